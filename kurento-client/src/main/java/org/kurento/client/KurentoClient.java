@@ -30,8 +30,11 @@ import org.kurento.client.internal.client.RomManager;
 import org.kurento.client.internal.transport.jsonrpc.RomClientJsonRpcClient;
 import org.kurento.commons.PropertiesManager;
 import org.kurento.commons.exception.KurentoException;
+import org.kurento.jsonrpc.client.AbstractJsonRpcClientWebSocket;
 import org.kurento.jsonrpc.client.JsonRpcClient;
+import org.kurento.jsonrpc.client.JsonRpcClientNettyWebSocket;
 import org.kurento.jsonrpc.client.JsonRpcClientWebSocket;
+import org.kurento.jsonrpc.client.JsonRpcWSConnectionListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +52,10 @@ public class KurentoClient {
 
   private static final int KEEPALIVE_TIME = 4 * 60 * 1000;
 
+  public static final String TRANSPORT_PROPERTY = "transport";
+  public static final String JETTY_TRANSPORT = "jetty";
+  public static final String NETTY_TRANSPORT = "netty";
+
   private static Logger log = LoggerFactory.getLogger(KurentoClient.class);
 
   protected RomManager manager;
@@ -109,12 +116,39 @@ public class KurentoClient {
 
   public static KurentoClient create(String websocketUrl, Properties properties) {
     log.info("Connecting to kms in {}", websocketUrl);
-    JsonRpcClientWebSocket client = new JsonRpcClientWebSocket(websocketUrl);
+    AbstractJsonRpcClientWebSocket client = createJsonRpcClient(websocketUrl, null, properties);
     configureJsonRpcClient(client);
     return new KurentoClient(client);
   }
 
+  /**
+   * Creates the WebSocket JSON-RPC client for the transport selected with the {@code transport}
+   * property ({@code jetty} or {@code netty}). If not present, the {@code kurento.client.transport}
+   * system property is used, and {@code jetty} by default.
+   */
+  protected static AbstractJsonRpcClientWebSocket createJsonRpcClient(String websocketUrl,
+      JsonRpcWSConnectionListener listener, Properties properties) {
+
+    Object transport = properties.get(TRANSPORT_PROPERTY);
+    if (transport == null) {
+      transport = PropertiesManager.getProperty("kurento.client.transport", JETTY_TRANSPORT);
+    }
+
+    if (NETTY_TRANSPORT.equalsIgnoreCase(transport.toString())) {
+      return new JsonRpcClientNettyWebSocket(websocketUrl, listener);
+    } else if (JETTY_TRANSPORT.equalsIgnoreCase(transport.toString())) {
+      return new JsonRpcClientWebSocket(websocketUrl, listener);
+    } else {
+      throw new KurentoException("Unknown transport '" + transport + "'. Valid values are '"
+          + JETTY_TRANSPORT + "' and '" + NETTY_TRANSPORT + "'");
+    }
+  }
+
   protected static void configureJsonRpcClient(JsonRpcClientWebSocket client) {
+    configureJsonRpcClient((AbstractJsonRpcClientWebSocket) client);
+  }
+
+  protected static void configureJsonRpcClient(AbstractJsonRpcClientWebSocket client) {
     client.enableHeartbeat(KEEPALIVE_TIME);
     client.setTryReconnectingForever(true);
     updateLabel(client, null);
@@ -135,8 +169,8 @@ public class KurentoClient {
   public static KurentoClient create(String websocketUrl, KurentoConnectionListener listener,
       Properties properties) {
     log.info("Connecting to KMS in {}", websocketUrl);
-    JsonRpcClientWebSocket client = new JsonRpcClientWebSocket(websocketUrl,
-        JsonRpcConnectionListenerKurento.create(listener));
+    AbstractJsonRpcClientWebSocket client = createJsonRpcClient(websocketUrl,
+        JsonRpcConnectionListenerKurento.create(listener), properties);
     configureJsonRpcClient(client);
     return new KurentoClient(client);
 
@@ -146,8 +180,8 @@ public class KurentoClient {
     this.client = client;
     this.manager = new RomManager(new RomClientJsonRpcClient(client));
     client.setRequestTimeout(requesTimeout);
-    if (client instanceof JsonRpcClientWebSocket) {
-      ((JsonRpcClientWebSocket) client).enableHeartbeat(KEEPALIVE_TIME);
+    if (client instanceof AbstractJsonRpcClientWebSocket) {
+      ((AbstractJsonRpcClientWebSocket) client).enableHeartbeat(KEEPALIVE_TIME);
     }
     try {
       client.connect();
@@ -30,4 +30,14 @@ public class ThreadFactoryCreator {
         .setNameFormat(name + "-e" + numExecutor.incrementAndGet() + "-t%d").build();
   }
 
+  /**
+   * Creates a factory of daemon threads. Used by executors shared by all the instances in the
+   * process, that are never shut down and must not prevent the JVM from exiting.
+   */
+  public static ThreadFactory createDaemon(String name) {
+    return new ThreadFactoryBuilder()
+        .setNameFormat(name + "-e" + numExecutor.incrementAndGet() + "-t%d").setDaemon(true)
+        .build();
+  }
+
 }
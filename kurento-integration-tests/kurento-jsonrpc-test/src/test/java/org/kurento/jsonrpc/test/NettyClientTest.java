@@ -0,0 +1,206 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.Continuation;
+import org.kurento.jsonrpc.client.JsonRpcClientNettyWebSocket;
+import org.kurento.jsonrpc.client.JsonRpcWSConnectionAdapter;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.test.base.JsonRpcConnectorBaseTest;
+import org.kurento.jsonrpc.test.util.EventWaiter;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Round trips of the Netty transport against the test server.
+ */
+public class NettyClientTest extends JsonRpcConnectorBaseTest {
+
+  static {
+    // All the clients share the same event loop thread
+    System.setProperty("jsonRpcClientNetty.eventLoopThreads", "1");
+  }
+
+  static class Params {
+    String param1;
+    String param2;
+  }
+
+  private JsonRpcClientNettyWebSocket createNettyClient(String servicePath) {
+    return new JsonRpcClientNettyWebSocket("ws://localhost:" + getPort() + servicePath);
+  }
+
+  @Test
+  public void connectAndSendRequest() throws Exception {
+
+    try (JsonRpcClientNettyWebSocket client = createNettyClient("/jsonrpc")) {
+
+      client.connect();
+
+      Params params = new Params();
+      params.param1 = "Value1";
+      params.param2 = "Value2";
+
+      Params result = client.sendRequest("echo", params, Params.class);
+
+      Assert.assertEquals(params.param1, result.param1);
+      Assert.assertEquals(params.param2, result.param2);
+    }
+  }
+
+  @Test
+  public void sendAsyncRequest() throws Exception {
+
+    try (JsonRpcClientNettyWebSocket client = createNettyClient("/jsonrpc")) {
+
+      JsonObject params = new JsonObject();
+      params.addProperty("param1", "Value1");
+
+      final CountDownLatch responseLatch = new CountDownLatch(1);
+      final JsonElement[] response = new JsonElement[1];
+
+      client.sendRequest("echo", params, new Continuation<JsonElement>() {
+        @Override
+        public void onSuccess(JsonElement result) {
+          response[0] = result;
+          responseLatch.countDown();
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+          responseLatch.countDown();
+        }
+      });
+
+      Assert.assertTrue("Response not received", responseLatch.await(5, TimeUnit.SECONDS));
+      Assert.assertEquals("Value1",
+          response[0].getAsJsonObject().get("param1").getAsString());
+    }
+  }
+
+  @Test
+  public void sendAndReceiveNotifications() throws Exception {
+
+    final CountDownLatch serverNotifications = new CountDownLatch(3);
+
+    try (JsonRpcClientNettyWebSocket client = createNettyClient("/notification")) {
+
+      client.setServerRequestHandler(new DefaultJsonRpcHandler<Integer>() {
+        @Override
+        public void handleRequest(Transaction transaction, Request<Integer> request)
+            throws Exception {
+          serverNotifications.countDown();
+        }
+      });
+
+      client.sendNotification("echo", 1);
+      client.sendNotification("echo", 2);
+      client.sendNotification("echo", 3);
+
+      Assert.assertTrue("The server has not sent the notifications",
+          serverNotifications.await(5000, TimeUnit.MILLISECONDS));
+    }
+  }
+
+  @Test
+  public void blockingHandlerDoesntStallOtherClients() throws Exception {
+
+    final CountDownLatch handlerBlocked = new CountDownLatch(1);
+    final CountDownLatch unblockHandler = new CountDownLatch(1);
+
+    try (JsonRpcClientNettyWebSocket blockedClient = createNettyClient("/notification");
+        JsonRpcClientNettyWebSocket client = createNettyClient("/jsonrpc")) {
+
+      // The handler is executed in the thread processing the messages of the connection
+      blockedClient.setConcurrentServerRequest(false);
+      blockedClient.setServerRequestHandler(new DefaultJsonRpcHandler<Integer>() {
+        @Override
+        public void handleRequest(Transaction transaction, Request<Integer> request)
+            throws Exception {
+          handlerBlocked.countDown();
+          unblockHandler.await(30, TimeUnit.SECONDS);
+        }
+      });
+
+      // Unblocked before closing, because closing waits for the response to the close request
+      try {
+
+        blockedClient.sendNotification("echo", 1);
+        Assert.assertTrue("The server has not sent the notification",
+            handlerBlocked.await(5, TimeUnit.SECONDS));
+
+        client.setRequestTimeout(5000);
+        client.connect();
+
+        Params params = new Params();
+        params.param1 = "Value1";
+
+        Assert.assertEquals("Value1", client.sendRequest("echo", params, Params.class).param1);
+
+      } finally {
+        unblockHandler.countDown();
+      }
+    }
+  }
+
+  @Test
+  public void reconnectsToSameSession() throws Exception {
+
+    final EventWaiter reconnecting = new EventWaiter("reconnecting");
+    final EventWaiter reconnected = new EventWaiter("reconnected");
+
+    JsonRpcWSConnectionAdapter listener = new JsonRpcWSConnectionAdapter() {
+      @Override
+      public void reconnecting() {
+        reconnecting.eventReceived();
+      }
+
+      @Override
+      public void reconnected(boolean sameServer) {
+        reconnected.eventReceived();
+      }
+    };
+
+    try (JsonRpcClientNettyWebSocket client = new JsonRpcClientNettyWebSocket(
+        "ws://localhost:" + getPort() + "/reconnection", listener)) {
+
+      assertThat(client.sendRequest("sessiontest", String.class)).isEqualTo("new");
+      assertThat(client.sendRequest("sessiontest", String.class)).isEqualTo("old");
+
+      String sessionId = client.getSession().getSessionId();
+
+      client.closeNativeClient();
+
+      reconnecting.waitFor(3000);
+      reconnected.waitFor(3000);
+
+      assertThat(client.sendRequest("sessiontest", String.class)).isEqualTo("old");
+      assertThat(client.getSession().getSessionId()).isEqualTo(sessionId);
+    }
+  }
+}
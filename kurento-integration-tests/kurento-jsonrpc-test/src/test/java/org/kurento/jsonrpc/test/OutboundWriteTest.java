@@ -0,0 +1,192 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.jsonrpc.test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.TransportException;
+import org.kurento.jsonrpc.client.JsonRpcClientWebSocket;
+import org.kurento.jsonrpc.internal.ws.CompressionStats;
+import org.kurento.jsonrpc.test.base.JsonRpcConnectorBaseTest;
+
+import com.google.gson.JsonObject;
+
+public class OutboundWriteTest extends JsonRpcConnectorBaseTest {
+
+  private static final int CONCURRENT_REQUESTS = 200;
+
+  private static class TestClient extends JsonRpcClientWebSocket {
+
+    public TestClient(String url) {
+      super(url);
+      setPerMessageDeflate(true);
+    }
+
+    boolean isDeflateNegotiated() {
+      for (ExtensionConfig config : jettyWsSession.getUpgradeResponse().getExtensions()) {
+        if ("permessage-deflate".equals(config.getName())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // Replaces the Jetty session, so its writes fail after being queued
+    void failWrites() {
+
+      final Session session = jettyWsSession;
+      final RemoteEndpoint remote = session.getRemote();
+
+      final RemoteEndpoint failingRemote = (RemoteEndpoint) Proxy.newProxyInstance(
+          getClass().getClassLoader(), new Class<?>[] { RemoteEndpoint.class },
+          new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+              if (args != null && args.length == 2 && args[1] instanceof WriteCallback) {
+                ((WriteCallback) args[1]).writeFailed(new IOException("Broken pipe"));
+                return null;
+              }
+              return delegate(remote, method, args);
+            }
+          });
+
+      jettyWsSession = (Session) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class<?>[] { Session.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+              if (method.getName().equals("getRemote")) {
+                return failingRemote;
+              }
+              return delegate(session, method, args);
+            }
+          });
+    }
+
+    private static Object delegate(Object target, Method method, Object[] args)
+        throws Throwable {
+      try {
+        return method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  @Test
+  public void testWriteFailureFailsRequest() throws IOException {
+
+    TestClient client = new TestClient("ws://localhost:" + getPort() + "/jsonrpc");
+    client.setRequestTimeout(60000);
+
+    try {
+      client.connect();
+      client.sendRequest("echo", params(0));
+
+      client.failWrites();
+
+      long start = System.currentTimeMillis();
+      try {
+        client.sendRequest("echo", params(1));
+        Assert.fail("TransportException expected");
+      } catch (TransportException e) {
+        // Expected
+      }
+
+      // The request fails when its write fails, not when it times out
+      Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+      Assert.assertEquals(0, client.getOutboundQueue().getQueueDepth());
+      Assert.assertTrue(client.getOutboundQueue().getFailedWrites() > 0);
+
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void testConcurrentRequestsWithDeflate() throws Exception {
+
+    final TestClient client = new TestClient("ws://localhost:" + getPort() + "/jsonrpc");
+    TestClient otherClient = new TestClient("ws://localhost:" + getPort() + "/jsonrpc");
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      client.connect();
+      otherClient.connect();
+      otherClient.sendRequest("echo", params(0));
+      long otherOutgoing = otherClient.getCompressionStats().getOutgoingBytes();
+
+      List<Future<JsonObject>> results = new ArrayList<>();
+      for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+        final int index = i;
+        results.add(executor.submit(new Callable<JsonObject>() {
+          @Override
+          public JsonObject call() throws Exception {
+            return client.sendRequest("echo", params(index)).getAsJsonObject();
+          }
+        }));
+      }
+
+      for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+        Assert.assertEquals(i, results.get(i).get().get("index").getAsInt());
+      }
+
+      Assert.assertEquals(0, client.getOutboundQueue().getFailedWrites());
+
+      if (client.isDeflateNegotiated()) {
+        CompressionStats stats = client.getCompressionStats();
+        Assert.assertTrue(stats.getOutgoingBytes() > 0);
+        Assert.assertTrue(stats.getOutgoingCompressedBytes() < stats.getOutgoingBytes());
+        Assert.assertTrue(stats.getIncomingBytes() > 0);
+        // Each client counts only its own traffic
+        Assert.assertEquals(otherOutgoing, otherClient.getCompressionStats().getOutgoingBytes());
+      }
+
+    } finally {
+      executor.shutdown();
+      client.close();
+      otherClient.close();
+    }
+  }
+
+  private static JsonObject params(int index) {
+    JsonObject params = new JsonObject();
+    params.addProperty("index", index);
+    // Compressible payload, bigger than the minimum size to be deflated
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append("payload-");
+    }
+    params.addProperty("data", sb.toString());
+    return params;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.message.Request;
+
+import com.google.common.io.Resources;
+import com.google.gson.JsonObject;
+
+/**
+ * Representative Kurento payloads used by the benchmarks, loaded from src/main/resources/fixtures.
+ */
+public class Fixtures {
+
+  public static final String SESSION_ID = "a6a1b1f0-0b4e-4f1e-8b3d-5d1c2e3f4a5b";
+
+  public static final String WEBRTC_ENDPOINT = "5a7c3b1e-8f61-4b2a-9d0e-3c2f1a6b7e90_kurento."
+      + "MediaPipeline/0e7d2c4f-1b3a-4e5d-8c9f-2a6b1d3e4f50_kurento.WebRtcEndpoint";
+
+  private Fixtures() {
+  }
+
+  /**
+   * @return an SDP offer as generated by a browser, with audio, video and RTX streams
+   */
+  public static String sdpOffer() {
+    return load("sdp-offer.sdp");
+  }
+
+  /**
+   * @return the JSON of the response to a getStats invocation on a WebRtcEndpoint
+   */
+  public static String getStatsResponse() {
+    return load("getstats-response.json");
+  }
+
+  /**
+   * @return the JSON of the result of a getStats invocation
+   */
+  public static JsonObject getStatsResult() {
+    return JsonUtils.fromJson(getStatsResponse(), JsonObject.class).getAsJsonObject("result");
+  }
+
+  /**
+   * Creates the invoke request used to process an SDP offer.
+   *
+   * @param sessionId
+   *          the session id of the request, or null to send it without session
+   */
+  public static Request<JsonObject> processOfferRequest(int id, String sessionId) {
+
+    JsonObject operationParams = new JsonObject();
+    operationParams.addProperty("offer", sdpOffer());
+
+    JsonObject params = new JsonObject();
+    params.addProperty("object", WEBRTC_ENDPOINT);
+    params.addProperty("operation", "processOffer");
+    params.add("operationParams", operationParams);
+
+    Request<JsonObject> request = new Request<>(id, "invoke", params);
+    request.setSessionId(sessionId);
+    return request;
+  }
+
+  private static String load(String name) {
+    try {
+      return Resources.toString(Resources.getResource(Fixtures.class, "/fixtures/" + name),
+          StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new IllegalStateException("Fixture " + name + " not found", e);
+    }
+  }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.internal.JsonRpcHandlerManager;
+import org.kurento.jsonrpc.internal.client.ClientSession;
+import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
+import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Dispatch of a request to a handler through {@link JsonRpcHandlerManager}: params conversion,
+ * transaction creation and response sending. The request is parsed once, so only the dispatch is
+ * measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerDispatchBenchmark {
+
+  public static class AnswerHandler extends DefaultJsonRpcHandler<JsonObject> {
+
+    @Override
+    public void handleRequest(Transaction transaction, Request<JsonObject> request)
+        throws Exception {
+      transaction.sendResponse("answer");
+    }
+  }
+
+  private final JsonRpcHandlerManager handlerManager = new JsonRpcHandlerManager(
+      new AnswerHandler());
+
+  private final ClientSession session = new ClientSession(Fixtures.SESSION_ID, null);
+
+  private Request<JsonElement> request;
+
+  @Setup
+  public void setup() {
+    Request<JsonObject> processOffer = Fixtures.processOfferRequest(1, Fixtures.SESSION_ID);
+    request = new Request<JsonElement>(processOffer.getSessionId(), processOffer.getId(),
+        processOffer.getMethod(), processOffer.getParams());
+  }
+
+  @Benchmark
+  public void handleRequest(final Blackhole blackhole) {
+
+    handlerManager.handleRequest(session, request, new ResponseSender() {
+      @Override
+      public void sendResponse(Message message) throws IOException {
+        blackhole.consume(message);
+      }
+
+      @Override
+      public void sendPingResponse(Message message) throws IOException {
+        blackhole.consume(message);
+      }
+    });
+  }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Serialization and parsing of JSON-RPC messages with {@link JsonUtils}, with and without the
+ * sessionId injected in the params/result of the message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonUtilsBenchmark {
+
+  @Param({ "true", "false" })
+  public boolean withSessionId;
+
+  private Request<JsonObject> request;
+  private Response<JsonElement> response;
+  private String requestJson;
+  private String responseJson;
+
+  @Setup
+  public void setup() {
+
+    String sessionId = withSessionId ? Fixtures.SESSION_ID : null;
+
+    request = Fixtures.processOfferRequest(1, sessionId);
+    requestJson = JsonUtils.toJsonMessage(request);
+
+    JsonObject getStatsResponse = JsonUtils.fromJson(Fixtures.getStatsResponse(),
+        JsonObject.class);
+    if (!withSessionId) {
+      getStatsResponse.getAsJsonObject("result").remove("sessionId");
+    }
+    responseJson = getStatsResponse.toString();
+    response = JsonUtils.fromJsonResponse(responseJson, JsonElement.class);
+  }
+
+  @Benchmark
+  public String toJsonRequest() {
+    return JsonUtils.toJsonMessage(request);
+  }
+
+  @Benchmark
+  public String toJsonResponse() {
+    return JsonUtils.toJsonMessage(response);
+  }
+
+  @Benchmark
+  public Request<JsonObject> fromJsonRequest() {
+    return JsonUtils.fromJsonRequest(requestJson, JsonObject.class);
+  }
+
+  @Benchmark
+  public Response<JsonElement> fromJsonResponse() {
+    return JsonUtils.fromJsonResponse(responseJson, JsonElement.class);
+  }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.jsonrpc.message.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Complete in-JVM round trip through {@link JsonRpcClientLocal}: serialization of the request,
+ * parsing on the "server", handler invocation, and serialization and parsing of the response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalRoundTripBenchmark {
+
+  public static class GetStatsHandler extends DefaultJsonRpcHandler<JsonObject> {
+
+    private final JsonObject stats = Fixtures.getStatsResult();
+
+    @Override
+    public void handleRequest(Transaction transaction, Request<JsonObject> request)
+        throws Exception {
+      transaction.sendResponse(stats);
+    }
+  }
+
+  private JsonRpcClientLocal client;
+  private JsonObject params;
+
+  @Setup
+  public void setup() {
+
+    client = new JsonRpcClientLocal(new GetStatsHandler());
+
+    params = new JsonObject();
+    params.addProperty("object", Fixtures.WEBRTC_ENDPOINT);
+    params.addProperty("operation", "getStats");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    client.close();
+  }
+
+  @Benchmark
+  public JsonElement getStats() throws IOException {
+    return client.sendRequest("invoke", params);
+  }
+
+}
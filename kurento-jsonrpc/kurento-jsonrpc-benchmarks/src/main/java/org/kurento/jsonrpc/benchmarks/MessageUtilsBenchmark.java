@@ -0,0 +1,79 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.message.MessageUtils;
+import org.kurento.jsonrpc.message.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Conversion of the JsonElement result of a response to the type expected by the caller, as done
+ * for every synchronous request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageUtilsBenchmark {
+
+  private JsonObject getStatsResult;
+  private JsonElement sdpAnswerResult;
+
+  @Setup
+  public void setup() {
+    getStatsResult = Fixtures.getStatsResult();
+    sdpAnswerResult = JsonUtils.toJsonElement(Fixtures.sdpOffer());
+  }
+
+  @Benchmark
+  public Response<JsonObject> convertToJsonObject() {
+    return MessageUtils.convertResponse(new Response<JsonElement>(1, getStatsResult),
+        JsonObject.class);
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Benchmark
+  public Response<Map> convertToMap() {
+    return MessageUtils.convertResponse(new Response<JsonElement>(1, getStatsResult), Map.class);
+  }
+
+  @Benchmark
+  public Response<String> convertToString() {
+    return MessageUtils.convertResponse(new Response<JsonElement>(1, sdpAnswerResult),
+        String.class);
+  }
+
+}
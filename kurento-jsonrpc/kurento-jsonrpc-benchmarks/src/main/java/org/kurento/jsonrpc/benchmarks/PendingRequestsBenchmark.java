@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.jsonrpc.internal.ws.PendingRequests;
+import org.kurento.jsonrpc.internal.ws.ResponseSlot;
+import org.kurento.jsonrpc.message.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Registration and completion of pending requests by several threads sharing a client, with and
+ * without a request timeout scheduled in the timer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class PendingRequestsBenchmark {
+
+  private static final JsonElement RESULT = new JsonPrimitive("OK");
+
+  private final PendingRequests pendingRequests = new PendingRequests();
+  private final AtomicInteger ids = new AtomicInteger();
+
+  @Benchmark
+  public ResponseSlot prepareAndComplete() {
+    int id = ids.incrementAndGet();
+    ResponseSlot slot = pendingRequests.prepareResponse(id);
+    pendingRequests.handleResponse(new Response<JsonElement>(id, RESULT));
+    return slot;
+  }
+
+  @Benchmark
+  public ResponseSlot prepareWithTimeoutAndComplete() {
+    int id = ids.incrementAndGet();
+    ResponseSlot slot = pendingRequests.prepareResponse(id, 60000);
+    pendingRequests.handleResponse(new Response<JsonElement>(id, RESULT));
+    return slot;
+  }
+
+}
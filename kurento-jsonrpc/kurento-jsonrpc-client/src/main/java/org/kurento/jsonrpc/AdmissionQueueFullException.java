@@ -0,0 +1,32 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc;
+
+/**
+ * Thrown when a request can't be sent because the client has reached its maximum number of
+ * in-flight requests and the admission queue, where requests wait for a free slot, is full.
+ */
+public class AdmissionQueueFullException extends TransportException {
+
+  private static final long serialVersionUID = -3178102457391823046L;
+
+  public AdmissionQueueFullException(String message) {
+    super(message);
+  }
+
+}
@@ -31,6 +31,7 @@ public abstract class DefaultJsonRpcHandler<P> implements JsonRpcHandler<P> {
   private boolean useSockJs;
   private String label;
   private boolean pingWatchdog = false;
+  private boolean perMessageDeflate = true;
 
   private List<String> allowedOrigins = ImmutableList.of();
 
@@ -100,4 +101,14 @@ public abstract class DefaultJsonRpcHandler<P> implements JsonRpcHandler<P> {
   public boolean isPingWatchdog() {
     return pingWatchdog;
   }
+
+  public DefaultJsonRpcHandler<P> withPerMessageDeflate(boolean perMessageDeflate) {
+    this.perMessageDeflate = perMessageDeflate;
+    return this;
+  }
+
+  @Override
+  public boolean isPerMessageDeflate() {
+    return perMessageDeflate;
+  }
 }
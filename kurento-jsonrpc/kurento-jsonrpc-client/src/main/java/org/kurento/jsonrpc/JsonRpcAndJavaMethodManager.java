@@ -18,6 +18,9 @@
 package org.kurento.jsonrpc;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
@@ -25,6 +28,8 @@ import java.lang.reflect.Type;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.jsonrpc.message.Response;
@@ -44,7 +49,93 @@ public class JsonRpcAndJavaMethodManager {
 
   private static Gson gson = new GsonBuilder().disableHtmlEscaping().create();
 
-  private Paranamer paranamer = new AnnotationParanamer();
+  private interface ParamConverter {
+    Object convert(Session session, JsonObject params, String parameterName);
+  }
+
+  /**
+   * Everything needed to invoke a method, calculated the first time it is used: parameter names,
+   * a converter for each parameter type and a method handle taking the parameters as an array.
+   */
+  private static class MethodPlan {
+
+    private final String[] parameterNames;
+    private final ParamConverter[] converters;
+    private final MethodHandle invoker;
+
+    public MethodPlan(String[] parameterNames, ParamConverter[] converters, MethodHandle invoker) {
+      this.parameterNames = parameterNames;
+      this.converters = converters;
+      this.invoker = invoker;
+    }
+  }
+
+  private static final ParamConverter SESSION_CONVERTER = new ParamConverter() {
+    @Override
+    public Object convert(Session session, JsonObject params, String parameterName) {
+      return session;
+    }
+  };
+
+  private static final ParamConverter NULL_CONVERTER = new ParamConverter() {
+    @Override
+    public Object convert(Session session, JsonObject params, String parameterName) {
+      return null;
+    }
+  };
+
+  private static final ParamConverter STRING_MAP_CONVERTER = new ParamConverter() {
+    @Override
+    public Object convert(Session session, JsonObject params, String parameterName) {
+
+      Map<String, String> returnParams = new HashMap<String, String>();
+      if (params != null) {
+        for (Entry<String, JsonElement> param : params.entrySet()) {
+          String valueStr = !param.getValue().isJsonNull() ? param.getValue().getAsString() : null;
+          returnParams.put(param.getKey(), valueStr);
+        }
+      }
+      return returnParams;
+    }
+  };
+
+  private abstract static class ElementConverter implements ParamConverter {
+
+    private final Object defaultValue;
+
+    public ElementConverter(Object defaultValue) {
+      this.defaultValue = defaultValue;
+    }
+
+    @Override
+    public Object convert(Session session, JsonObject params, String parameterName) {
+
+      // TODO Fail if the param is not present
+      JsonElement jsonElement = params != null ? params.get(parameterName) : null;
+
+      if (jsonElement == null) {
+        return defaultValue;
+      } else if (jsonElement.isJsonNull()) {
+        return null;
+      } else {
+        return convert(jsonElement);
+      }
+    }
+
+    protected abstract Object convert(JsonElement jsonElement);
+  }
+
+  private final Paranamer paranamer = new AnnotationParanamer();
+
+  private final ConcurrentMap<Method, MethodPlan> plans = new ConcurrentHashMap<>();
+
+  /**
+   * Calculates in advance how to invoke the method, so the first request executing it is not
+   * slower than the rest.
+   */
+  public void prepare(Method m) {
+    getPlan(m);
+  }
 
   public void executeMethod(Method m, Object object, Transaction transaction,
       Request<JsonObject> request) throws IOException {
@@ -85,12 +176,18 @@ public class JsonRpcAndJavaMethodManager {
   }
 
   private Response<JsonElement> execJavaMethod(Session session, Object object, Method m,
-      Transaction transaction, Request<JsonObject> request)
-          throws IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+      Transaction transaction, Request<JsonObject> request) throws InvocationTargetException {
 
-    Object[] values = calculateParamValues(session, m, request);
+    MethodPlan plan = getPlan(m);
 
-    Object result = m.invoke(object, values);
+    Object[] values = calculateParamValues(session, m, plan, request);
+
+    Object result;
+    try {
+      result = (Object) plan.invoker.invokeExact(object, values);
+    } catch (Throwable t) {
+      throw new InvocationTargetException(t);
+    }
 
     if (result == null) {
       return null;
@@ -99,96 +196,108 @@ public class JsonRpcAndJavaMethodManager {
     }
   }
 
-  private Object[] calculateParamValues(Session session, Method m, Request<JsonObject> request) {
+  private Object[] calculateParamValues(Session session, Method m, MethodPlan plan,
+      Request<JsonObject> request) {
 
     JsonObject params = request.getParams();
 
+    Object[] values = new Object[plan.converters.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = plan.converters[i].convert(session, params, plan.parameterNames[i]);
+    }
+
+    log.debug("Executing method {} with params {}", m.getName(), params);
+
+    return values;
+  }
+
+  private MethodPlan getPlan(Method m) {
+
+    MethodPlan plan = plans.get(m);
+    if (plan == null) {
+      plan = createPlan(m);
+      MethodPlan previous = plans.putIfAbsent(m, plan);
+      if (previous != null) {
+        plan = previous;
+      }
+    }
+    return plan;
+  }
+
+  private MethodPlan createPlan(Method m) {
+
     String[] parameterNames = paranamer.lookupParameterNames(m, true);
     Type[] parameterTypes = m.getGenericParameterTypes();
 
-    Object[] values = new Object[parameterTypes.length];
+    ParamConverter[] converters = new ParamConverter[parameterTypes.length];
     for (int i = 0; i < parameterTypes.length; i++) {
-
-      values[i] = getValueFromParam(session, m, params, parameterNames[i], parameterTypes[i]);
+      converters[i] = createConverter(parameterTypes[i]);
     }
 
-    if (log.isInfoEnabled()) {
-      StringBuilder sb = new StringBuilder("[");
-      for (int i = 0; i < parameterNames.length; i++) {
-        sb.append(parameterNames[i] + "(" + parameterTypes[i] + ")=" + values[i] + ",");
-      }
-      sb.append("]");
-
-      log.info("Executing method {} with params {}", m.getName(), params);
+    MethodHandle invoker;
+    try {
+      m.setAccessible(true);
+      invoker = MethodHandles.lookup().unreflect(m)
+          .asType(MethodType.genericMethodType(parameterTypes.length + 1))
+          .asSpreader(Object[].class, parameterTypes.length);
+    } catch (IllegalAccessException | SecurityException e) {
+      throw new JsonRpcException("Method " + m + " can not be invoked", e);
     }
-    return values;
+
+    return new MethodPlan(parameterNames, converters, invoker);
   }
 
-  private Object getValueFromParam(Session session, Method m, JsonObject params,
-      String parameterName, Type genericType) {
+  private ParamConverter createConverter(Type genericType) {
 
     if (genericType instanceof Class) {
 
-      Class<?> type = (Class<?>) genericType;
+      final Class<?> type = (Class<?>) genericType;
 
       if (Session.class.isAssignableFrom(type)) {
-        return session;
-      } else {
-
-        // TODO Allow more types
-        JsonElement jsonElement = params.get(parameterName);
-
-        if (jsonElement != null) {
-          return getAsJavaType(type, jsonElement);
-        } else {
-          // TODO Fail in this case
-          if (type == boolean.class) {
-            return false;
-          } else if (type == int.class) {
-            return 0;
+        return SESSION_CONVERTER;
+      } else if (type == String.class) {
+        return new ElementConverter(null) {
+          @Override
+          protected Object convert(JsonElement jsonElement) {
+            return jsonElement.getClass().equals(JsonObject.class) ? jsonElement.toString()
+                : jsonElement.getAsString();
           }
-        }
+        };
+      } else if (type == boolean.class) {
+        return new ElementConverter(false) {
+          @Override
+          protected Object convert(JsonElement jsonElement) {
+            return jsonElement.getAsBoolean();
+          }
+        };
+      } else if (type.isEnum()) {
+        return new ElementConverter(null) {
+          @Override
+          protected Object convert(JsonElement jsonElement) {
+            return gson.fromJson(jsonElement, type);
+          }
+        };
+      } else if (type == int.class) {
+        return new ElementConverter(0) {
+          @Override
+          protected Object convert(JsonElement jsonElement) {
+            return jsonElement.getAsInt();
+          }
+        };
       }
 
-    } else {
-
-      if (genericType instanceof ParameterizedType) {
+    } else if (genericType instanceof ParameterizedType) {
 
-        ParameterizedType genericMap = (ParameterizedType) genericType;
+      ParameterizedType genericMap = (ParameterizedType) genericType;
 
-        if (Map.class.isAssignableFrom((Class<?>) genericMap.getRawType())
-            && (genericMap.getActualTypeArguments()[0] == String.class)
-            && (genericMap.getActualTypeArguments()[1] == String.class)) {
-
-          Map<String, String> returnParams = new HashMap<String, String>();
-          for (Entry<String, JsonElement> param : params.entrySet()) {
-            String valueStr =
-                !param.getValue().isJsonNull() ? param.getValue().getAsString() : null;
-            returnParams.put(param.getKey(), valueStr);
-          }
-
-          return returnParams;
-        }
+      if (Map.class.isAssignableFrom((Class<?>) genericMap.getRawType())
+          && (genericMap.getActualTypeArguments()[0] == String.class)
+          && (genericMap.getActualTypeArguments()[1] == String.class)) {
+        return STRING_MAP_CONVERTER;
       }
     }
 
-    return null;
-  }
-
-  private Object getAsJavaType(Class<?> type, JsonElement jsonElement) {
-    if (jsonElement.isJsonNull()) {
-      return null;
-    } else if (type == String.class) {
-      return jsonElement.getClass().equals(JsonObject.class) ? jsonElement.toString()
-          : jsonElement.getAsString();
-    } else if (type == boolean.class) {
-      return jsonElement.getAsBoolean();
-    } else if (type.isEnum()) {
-      return gson.fromJson(jsonElement, type);
-    } else if (type == int.class) {
-      return jsonElement.getAsInt();
-    } else {
-      return null;
-    }
+    // TODO Allow more types
+    return NULL_CONVERTER;
   }
 }
@@ -65,4 +65,10 @@ public interface JsonRpcHandler<P> {
   String getLabel();
 
   boolean isPingWatchdog();
+
+  /**
+   * @return true if the WebSocket endpoint accepts the permessage-deflate extension when offered
+   *         by clients
+   */
+  boolean isPerMessageDeflate();
 }
@@ -35,6 +35,7 @@ import java.util.Map;
 
 import org.kurento.jsonrpc.internal.JsonRpcConstants;
 import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.MessageEnvelope;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.jsonrpc.message.Response;
 import org.kurento.jsonrpc.message.ResponseError;
@@ -252,6 +253,8 @@ public class JsonUtils {
 
           builder.registerTypeAdapter(Props.class, new JsonPropsAdapter());
 
+          builder.registerTypeAdapterFactory(MessageEnvelope.LAZY_REQUEST_ADAPTER_FACTORY);
+
           builder.disableHtmlEscaping();
 
           gson = builder.create();
@@ -274,8 +277,22 @@ public class JsonUtils {
   public static String toJsonMessage(Message message) {
 
     if (message.getSessionId() != null && INJECT_SESSION_ID) {
+      return toJsonMessageObject(message).toString();
+    }
+
+    return JsonUtils.toJson(message);
 
-      JsonObject jsonObject = JsonUtils.toJsonObject(message);
+  }
+
+  /**
+   * Converts the message to a {@link JsonObject}, injecting its sessionId as
+   * {@link #toJsonMessage(Message)} does.
+   */
+  public static JsonObject toJsonMessageObject(Message message) {
+
+    JsonObject jsonObject = JsonUtils.toJsonObject(message);
+
+    if (message.getSessionId() != null && INJECT_SESSION_ID) {
 
       JsonObject objectToInjectSessionId;
       if (message instanceof Request) {
@@ -296,12 +313,9 @@ public class JsonUtils {
 
       objectToInjectSessionId.addProperty(JsonRpcConstants.SESSION_ID_PROPERTY,
           message.getSessionId());
-
-      return jsonObject.toString();
     }
 
-    return JsonUtils.toJson(message);
-
+    return jsonObject;
   }
 
   private static JsonObject convertToObject(JsonObject jsonObject, String... properties) {
@@ -0,0 +1,33 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc;
+
+/**
+ * Thrown when a message can't be queued for sending because the outbound queue of the connection
+ * has reached its high-water mark, usually because the peer or the network is not reading fast
+ * enough.
+ */
+public class OutboundQueueFullException extends TransportException {
+
+  private static final long serialVersionUID = 4620587381297415045L;
+
+  public OutboundQueueFullException(String message) {
+    super(message);
+  }
+
+}
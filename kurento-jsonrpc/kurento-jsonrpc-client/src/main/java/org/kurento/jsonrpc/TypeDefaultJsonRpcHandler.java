@@ -43,6 +43,16 @@ public abstract class TypeDefaultJsonRpcHandler extends DefaultJsonRpcHandler<Js
     }
   }
 
+  /**
+   * Prepares the invocation of all the {@link JsonRpcMethod} methods of this handler, so the first
+   * requests received after deploying it are not slower than the rest.
+   */
+  public void warmUp() {
+    for (Method method : methods.values()) {
+      methodManager.prepare(method);
+    }
+  }
+
   @Override
   public void handleRequest(Transaction transaction, Request<JsonObject> request) throws Exception {
 
@@ -19,42 +19,66 @@ package org.kurento.jsonrpc.client;
 import static org.kurento.jsonrpc.JsonUtils.fromJson;
 import static org.kurento.jsonrpc.JsonUtils.fromJsonRequest;
 import static org.kurento.jsonrpc.JsonUtils.fromJsonResponse;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ERROR_SERVER_ERROR;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_CLOSE;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_CONNECT;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_PING;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.POOLED_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.REPLAY_PROPERTY;
 
 import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.kurento.commons.PropertiesManager;
-import org.kurento.commons.ThreadFactoryCreator;
 import org.kurento.commons.TimeoutReentrantLock;
 import org.kurento.commons.TimeoutRuntimeException;
 import org.kurento.jsonrpc.JsonRpcClientClosedException;
 import org.kurento.jsonrpc.JsonRpcErrorException;
 import org.kurento.jsonrpc.JsonRpcException;
+import org.kurento.jsonrpc.TransportException;
 import org.kurento.jsonrpc.internal.JsonRpcConstants;
+import org.kurento.jsonrpc.internal.OrderedDispatcher;
+import org.kurento.jsonrpc.internal.ProtocolUtils;
 import org.kurento.jsonrpc.internal.JsonRpcRequestSenderHelper;
 import org.kurento.jsonrpc.internal.client.ClientSession;
 import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimer;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimers;
+import org.kurento.jsonrpc.internal.ws.AdmissionController;
+import org.kurento.jsonrpc.internal.ws.AdmissionController.Admission;
+import org.kurento.jsonrpc.internal.ws.AdmissionController.Permit;
+import org.kurento.jsonrpc.internal.ws.OutboundQueue.WriteCallback;
 import org.kurento.jsonrpc.internal.ws.PendingRequests;
+import org.kurento.jsonrpc.internal.ws.ReconnectThrottle;
+import org.kurento.jsonrpc.internal.ws.ReplayBuffer;
+import org.kurento.jsonrpc.internal.ws.RequestBatcher;
+import org.kurento.jsonrpc.internal.ws.ResponseSlot;
+import org.kurento.jsonrpc.message.BinaryMessageCodec;
 import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.MessageCodecs;
 import org.kurento.jsonrpc.message.MessageUtils;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.jsonrpc.message.Response;
+import org.kurento.jsonrpc.message.ResponseError;
+import org.kurento.jsonrpc.metrics.JsonRpcClientMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.util.concurrent.FutureCallback;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
 
@@ -64,15 +88,36 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
 
   protected static final long RECONNECT_DELAY_TIME_MILLIS = 5000;
 
+  /**
+   * Max retries of an explicit connection failing with a transient failure.
+   */
+  protected static final int MAX_CONNECT_RETRIES = 5;
+
+  private static final WriteCallback IGNORE_WRITE_RESULT = new WriteCallback() {
+    @Override
+    public void writeSuccess() {
+    }
+
+    @Override
+    public void writeFailed(Throwable cause) {
+    }
+  };
+
   private long requestTimeout = PropertiesManager.getProperty("jsonRpcClientWebSocket.timeout",
       60000);
 
-  private volatile ExecutorService reqResEventExec;
-  private volatile ScheduledExecutorService disconnectExec;
+  private OrderedDispatcher dispatcher = OrderedDispatcher.getShared();
+  private Object dispatchKey = this;
+  private Executor dispatchExecutor = dispatcher.executorFor(dispatchKey);
+  // Messages received are processed in order with their own key, so a handler waiting for a
+  // response doesn't block the processing of the response
+  private final Object inboundKey = new Object();
+  private final JsonRpcTimer timer = JsonRpcTimers
+      .createTimer("AbstractJsonRpcClientWebSocket-disconnectExec");
 
   protected String url;
 
-  private final PendingRequests pendingRequests = new PendingRequests();
+  private final PendingRequests pendingRequests = new PendingRequests(timer);
   private ResponseSender rs;
 
   private JsonRpcWSConnectionListener connectionListener;
@@ -91,12 +136,44 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
 
   private boolean startSessionWhenConnected = false;
 
+  private volatile boolean pooledTransport;
+
+  private boolean batchingEnabled = PropertiesManager
+      .getProperty("jsonRpcClientWebSocket.batch.enabled", false);
+
+  private volatile long batchWindowMillis = PropertiesManager
+      .getProperty("jsonRpcClientWebSocket.batch.windowMillis", 2);
+
+  private volatile int batchMaxMessages = PropertiesManager
+      .getProperty("jsonRpcClientWebSocket.batch.maxMessages", 50);
+
+  private volatile int batchMaxBytes = PropertiesManager
+      .getProperty("jsonRpcClientWebSocket.batch.maxBytes", 64 * 1024);
+
+  private volatile RequestBatcher batcher;
+
+  private BinaryMessageCodec binaryCodec = MessageCodecs
+      .getBinary(PropertiesManager.getProperty("jsonRpcClientWebSocket.binaryProtocol", ""));
+
+  protected volatile BinaryMessageCodec negotiatedBinaryCodec;
+
+  private volatile AdmissionController admissionController = createAdmissionController();
+
+  private volatile ReplayBuffer replayBuffer = new ReplayBuffer(
+      PropertiesManager.getProperty("jsonRpcClientWebSocket.replayBuffer.size", 0));
+
+  private volatile ReconnectPolicy reconnectPolicy = ExponentialBackoffReconnectPolicy
+      .fromProperties();
+
+  private final ReconnectThrottle reconnectThrottle;
+
   public AbstractJsonRpcClientWebSocket(String url,
       JsonRpcWSConnectionListener connectionListener) {
 
     this.lock = new TimeoutReentrantLock(CONNECTION_LOCK_TIMEOUT, "Server " + url);
     this.url = url;
     this.connectionListener = connectionListener;
+    this.reconnectThrottle = createReconnectThrottle(url);
 
     rsHelper = new JsonRpcRequestSenderHelper() {
       @Override
@@ -116,6 +193,16 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
 
   }
 
+  private static ReconnectThrottle createReconnectThrottle(String url) {
+    try {
+      URI uri = new URI(url);
+      return ReconnectThrottle.forHost(uri.getHost() + ":" + uri.getPort());
+    } catch (Exception e) {
+      log.warn("Reconnections to {} are not throttled: {}", url, e.getMessage());
+      return null;
+    }
+  }
+
   /**
    * Configures the request timeout in this client. If a request doesn't receive a response before
    * this time (in millis), a TransportException will be thrown.
@@ -129,6 +216,67 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
     return requestTimeout;
   }
 
+  /**
+   * Gets the number of requests sent by this client that are waiting for a response.
+   *
+   * @return the number of in-flight requests
+   */
+  public int getInFlightRequests() {
+    return pendingRequests.getInFlightRequests();
+  }
+
+  /**
+   * Configures the admission controller that limits the number of requests this client has in
+   * flight. Requests over the limit wait in a bounded queue, and are rejected with an
+   * {@link org.kurento.jsonrpc.AdmissionQueueFullException} when it is full. By default, the
+   * controller is created if the property jsonRpcClientWebSocket.admission.enabled is true.
+   *
+   * @param admissionController
+   *          the controller, or null to send requests without limit
+   */
+  public void setAdmissionController(AdmissionController admissionController) {
+    this.admissionController = admissionController;
+    if (admissionController != null) {
+      admissionController.setLabel(label);
+    }
+  }
+
+  public AdmissionController getAdmissionController() {
+    return admissionController;
+  }
+
+  private AdmissionController createAdmissionController() {
+
+    if (!PropertiesManager.getProperty("jsonRpcClientWebSocket.admission.enabled", false)) {
+      return null;
+    }
+
+    AdmissionController controller = new AdmissionController(timer, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        dispatchExecutor.execute(command);
+      }
+    }, PropertiesManager.getProperty("jsonRpcClientWebSocket.admission.maxInFlight", 256),
+        PropertiesManager.getProperty("jsonRpcClientWebSocket.admission.maxQueued", 1024),
+        PropertiesManager.getProperty("jsonRpcClientWebSocket.admission.queueTimeout", 10000));
+
+    if (PropertiesManager.getProperty("jsonRpcClientWebSocket.admission.adaptive", false)) {
+      controller.setAdaptive(
+          PropertiesManager.getProperty("jsonRpcClientWebSocket.admission.minInFlight", 8),
+          PropertiesManager.getProperty("jsonRpcClientWebSocket.admission.targetLatency", 1000));
+    }
+
+    return controller;
+  }
+
+  @Override
+  public void setLabel(String label) {
+    super.setLabel(label);
+    if (admissionController != null) {
+      admissionController.setLabel(this.label);
+    }
+  }
+
   /**
    * Configures if this client should send a close message to server when close() method is invoked.
    * This close message is used to inform the server that client explicitly closed the connection.
@@ -145,6 +293,24 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
     return sendCloseMessage;
   }
 
+  /**
+   * Configures the delays between reconnection attempts. By default, an
+   * {@link ExponentialBackoffReconnectPolicy} configured with properties is used.
+   *
+   * Besides the delay of the policy, attempts are spaced by the retry-after hint sent by the server
+   * in the close reason (if any) and by a rate limit of attempts to the same host shared by all the
+   * clients in the JVM (see {@link ReconnectThrottle}).
+   *
+   * @param reconnectPolicy
+   */
+  public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+    this.reconnectPolicy = reconnectPolicy;
+  }
+
+  public ReconnectPolicy getReconnectPolicy() {
+    return reconnectPolicy;
+  }
+
   public void setTryReconnectingForever(boolean tryReconnectingForever) {
     this.tryReconnectingForever = tryReconnectingForever;
   }
@@ -153,13 +319,49 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
     return tryReconnectingForever;
   }
 
+  /**
+   * Configures the dispatcher used to execute handlers of requests from server, continuations of
+   * asynchronous requests and connection events. By default, a dispatcher shared by all clients
+   * is used.
+   *
+   * @param dispatcher
+   */
+  public synchronized void setDispatcher(OrderedDispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+    this.dispatchExecutor = dispatcher.executorFor(dispatchKey);
+  }
+
+  public OrderedDispatcher getDispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * Configures the key used to dispatch the tasks of this client. Tasks with the same key are
+   * executed in order, one at a time. By default, each client uses its own key, so the handlers
+   * and continuations of a client are executed in order, and different clients are executed in
+   * parallel.
+   *
+   * @param dispatchKey
+   */
+  public synchronized void setDispatchKey(Object dispatchKey) {
+    this.dispatchKey = dispatchKey;
+    this.dispatchExecutor = dispatcher.executorFor(dispatchKey);
+  }
+
+  public Object getDispatchKey() {
+    return dispatchKey;
+  }
+
   /**
    * Configures how requests from server have to be processed. If concurrentServerRequest is true,
-   * then a executor service with several threads is used to execute the handler of the request. If
-   * concurrentServerRequest is false, the websocket library thread is used to execute the handler.
-   * In the current implementation (using Jetty as websocket client), this means that handler is
-   * executed sequentially. That is problematic if a synchronous request in sent to server in a
-   * handler because a deadlock is produced.
+   * the handler of the request is executed in the threads of the dispatcher (see
+   * {@link #setDispatcher(OrderedDispatcher)}), in the order the requests are received. If
+   * concurrentServerRequest is false, the thread processing the messages of the connection is used
+   * to execute the handler: the websocket library thread with Jetty, or a serial queue of the
+   * dispatcher with transports whose threads are shared by all the clients (see
+   * {@link #dispatchInbound(Runnable)}). This means that handler is executed sequentially. That is
+   * problematic if a synchronous request in sent to server in a handler because a deadlock is
+   * produced.
    * 
    * By default, concurrentServerRequest is true.
    * 
@@ -173,10 +375,145 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
     return concurrentServerRequest;
   }
 
+  /**
+   * Configures if requests sent by this client are coalesced in JSON-RPC 2.0 batches. When
+   * enabled, requests issued within the batch window (or until the max number of messages or bytes
+   * is reached) are sent in a single WebSocket frame containing a JSON array. Responses are
+   * demultiplexed to the corresponding pending requests whether the server answers them one by one
+   * or in a batch.
+   *
+   * The server must support JSON-RPC batches. By default batchingEnabled is false.
+   *
+   * @param batchingEnabled
+   */
+  public void setBatchingEnabled(boolean batchingEnabled) {
+    this.batchingEnabled = batchingEnabled;
+  }
+
+  public boolean isBatchingEnabled() {
+    return batchingEnabled;
+  }
+
+  /**
+   * Configures the batching window. The batch is flushed by the client timer, so with the shared
+   * timer (see {@link JsonRpcTimers}) the window is rounded up to the timer tick.
+   *
+   * @param batchWindowMillis
+   */
+  public void setBatchWindowMillis(long batchWindowMillis) {
+    this.batchWindowMillis = batchWindowMillis;
+  }
+
+  public long getBatchWindowMillis() {
+    return batchWindowMillis;
+  }
+
+  /**
+   * Configures the max number of messages in a batch. It can be changed while the client is
+   * sending batches; the batch being filled is sent as soon as it reaches the new limit.
+   *
+   * @param batchMaxMessages
+   */
+  public void setBatchMaxMessages(int batchMaxMessages) {
+    this.batchMaxMessages = batchMaxMessages;
+  }
+
+  public int getBatchMaxMessages() {
+    return batchMaxMessages;
+  }
+
+  /**
+   * Configures the max size of a batch, in characters. As with
+   * {@link #setBatchMaxMessages(int)}, it can be changed while the client is sending batches.
+   *
+   * @param batchMaxBytes
+   */
+  public void setBatchMaxBytes(int batchMaxBytes) {
+    this.batchMaxBytes = batchMaxBytes;
+  }
+
+  public int getBatchMaxBytes() {
+    return batchMaxBytes;
+  }
+
+  /**
+   * Configures the binary codec offered to the server as WebSocket subprotocol in the next
+   * connections. If the server accepts the subprotocol, messages are exchanged in binary frames
+   * encoded with this codec; otherwise the textual codec is used. By default the codec of the
+   * subprotocol in the property jsonRpcClientWebSocket.binaryProtocol (e.g. "jsonrpc-cbor") is
+   * used, and none if the property is not set.
+   *
+   * @param binaryCodec
+   *          the codec, or null to use always text messages
+   */
+  public void setBinaryCodec(BinaryMessageCodec binaryCodec) {
+    this.binaryCodec = binaryCodec;
+  }
+
+  public BinaryMessageCodec getBinaryCodec() {
+    return binaryCodec;
+  }
+
+  /**
+   * Configures how many requests sent but not answered yet are kept to be sent again when the
+   * client reconnects to the same session. The ids of the requests are announced in the connect
+   * request, and the server answers the ones it already received from its response cache. Only the
+   * ones the server reports as not received are sent again; if the server doesn't report them, the
+   * requests fail instead of risking executing them twice.
+   *
+   * By default the size is taken from the property jsonRpcClientWebSocket.replayBuffer.size, and is
+   * 0 (no requests are replayed) if it is not set.
+   *
+   * @param replayBufferSize
+   *          max number of unanswered requests to replay
+   */
+  public void setReplayBufferSize(int replayBufferSize) {
+    this.replayBuffer = new ReplayBuffer(replayBufferSize);
+  }
+
+  public int getReplayBufferSize() {
+    return replayBuffer.getCapacity();
+  }
+
+  /**
+   * @return true if the current connection exchanges messages in binary frames
+   */
+  public boolean isBinaryProtocolNegotiated() {
+    return negotiatedBinaryCodec != null;
+  }
+
+  /**
+   * @return the subprotocol that transports should offer in the WebSocket handshake, or null
+   */
+  protected String getRequestedSubprotocol() {
+    BinaryMessageCodec requested = binaryCodec;
+    return requested != null ? requested.getSubprotocol() : null;
+  }
+
+  /**
+   * Invoked by transports after the WebSocket handshake with the subprotocol selected by the
+   * server (null if none).
+   */
+  protected void setAcceptedSubprotocol(String subprotocol) {
+    BinaryMessageCodec requested = binaryCodec;
+    if (requested != null && requested.getSubprotocol().equals(subprotocol)) {
+      negotiatedBinaryCodec = requested;
+    } else {
+      if (requested != null) {
+        log.debug("{} Server at {} didn't accept subprotocol {}. Using text messages", label, url,
+            requested.getSubprotocol());
+      }
+      negotiatedBinaryCodec = null;
+    }
+  }
+
   private void fireEvent(Runnable r) {
     if (connectionListener != null) {
-      createExecServiceIfNecessary();
-      reqResEventExec.submit(r);
+      try {
+        dispatcher.dispatch(dispatchKey, r);
+      } catch (RejectedExecutionException e) {
+        log.warn("{} Connection event discarded: {}", label, e.getMessage());
+      }
     }
   }
 
@@ -236,67 +573,170 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
     });
   }
 
-  protected void createExecServiceIfNecessary() {
+  protected <P, R> Response<R> internalSendRequestWebSocket(Request<P> request,
+      Class<R> resultClass) throws IOException {
 
-    if (reqResEventExec == null || disconnectExec == null || reqResEventExec.isShutdown()
-        || reqResEventExec.isTerminated() || disconnectExec.isShutdown()
-        || disconnectExec.isTerminated()) {
+    JsonRpcClientMetrics metrics = this.metrics;
+    if (metrics == null || request.getId() == null) {
+      return admitAndSendRequest(request, resultClass);
+    }
 
-      lock.tryLockTimeout("createExecServiceIfNecessary");
+    long start = System.nanoTime();
+    Response<R> response = null;
+    Throwable failure = null;
+    try {
+      response = admitAndSendRequest(request, resultClass);
+      return response;
+    } catch (IOException | RuntimeException e) {
+      failure = e;
+      throw e;
+    } finally {
+      metrics.requestCompleted(request, System.nanoTime() - start, response, failure);
+    }
+  }
 
-      try {
+  protected <P> void internalSendRequestWebSocket(final Request<P> request,
+      final Class<JsonElement> resultClass,
+      final Continuation<Response<JsonElement>> continuation) {
 
-        if (reqResEventExec == null || reqResEventExec.isShutdown()
-            || reqResEventExec.isTerminated()) {
-          reqResEventExec = Executors.newCachedThreadPool(
-              ThreadFactoryCreator.create("AbstractJsonRpcClientWebSocket-reqResEventExec"));
-        }
+    final JsonRpcClientMetrics metrics = this.metrics;
+    if (metrics == null || request.getId() == null) {
+      admitAndSendRequest(request, resultClass, continuation);
+      return;
+    }
 
-        if (disconnectExec == null || disconnectExec.isShutdown()
-            || disconnectExec.isTerminated()) {
-          disconnectExec = Executors.newScheduledThreadPool(1,
-              ThreadFactoryCreator.create("AbstractJsonRpcClientWebSocket-disconnectExec"));
-        }
-      } finally {
-        lock.unlock();
+    final long start = System.nanoTime();
+    admitAndSendRequest(request, resultClass, new Continuation<Response<JsonElement>>() {
+      @Override
+      public void onSuccess(Response<JsonElement> result) {
+        metrics.requestCompleted(request, System.nanoTime() - start, result, null);
+        continuation.onSuccess(result);
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        metrics.requestCompleted(request, System.nanoTime() - start, null, cause);
+        continuation.onError(cause);
       }
+    });
+  }
+
+  private <P, R> Response<R> admitAndSendRequest(Request<P> request, Class<R> resultClass)
+      throws IOException {
+
+    AdmissionController admissionController = this.admissionController;
+    if (admissionController == null || !isAdmissionControlled(request)) {
+      return sendRequestWebSocket(request, resultClass);
+    }
+
+    Permit permit = admissionController.acquire();
+    try {
+      return sendRequestWebSocket(request, resultClass);
+    } finally {
+      permit.release();
     }
   }
 
-  protected <P, R> Response<R> internalSendRequestWebSocket(Request<P> request,
-      Class<R> resultClass) throws IOException {
+  private <P> void admitAndSendRequest(final Request<P> request,
+      final Class<JsonElement> resultClass,
+      final Continuation<Response<JsonElement>> continuation) {
+
+    AdmissionController admissionController = this.admissionController;
+    if (admissionController == null || !isAdmissionControlled(request)) {
+      sendRequestWebSocket(request, resultClass, continuation);
+      return;
+    }
+
+    admissionController.acquire(new Admission() {
+      @Override
+      public void admitted(final Permit permit) {
+        sendRequestWebSocket(request, resultClass, new Continuation<Response<JsonElement>>() {
+          @Override
+          public void onSuccess(Response<JsonElement> result) {
+            permit.release();
+            continuation.onSuccess(result);
+          }
+
+          @Override
+          public void onError(Throwable cause) {
+            permit.release();
+            continuation.onError(cause);
+          }
+        });
+      }
+
+      @Override
+      public void rejected(Throwable cause) {
+        continuation.onError(cause);
+      }
+    });
+  }
+
+  /**
+   * Pings and the requests used to establish the session are never queued, so they can't be
+   * delayed behind user requests. Notifications are not tracked because they have no response.
+   */
+  private boolean isAdmissionControlled(Request<?> request) {
+    String method = request.getMethod();
+    return request.getId() != null && !METHOD_PING.equals(method)
+        && !METHOD_CONNECT.equals(method);
+  }
+
+  private boolean isReplayable(Request<?> request) {
+    return isAdmissionControlled(request) && !METHOD_CLOSE.equals(request.getMethod());
+  }
+
+  private <P, R> Response<R> sendRequestWebSocket(Request<P> request, Class<R> resultClass)
+      throws IOException {
 
     connectIfNecessary();
 
-    Future<Response<JsonElement>> responseFuture = null;
+    ResponseSlot responseSlot = null;
 
     if (request.getId() != null) {
-      responseFuture = pendingRequests.prepareResponse(request.getId());
+      responseSlot = pendingRequests.prepareResponse(request.getId());
+      if (isReplayable(request)) {
+        replayBuffer.add(request);
+      }
     }
 
     boolean isPing = false;
-    String jsonMessage = request.toString();
+    BinaryMessageCodec binaryCodec = negotiatedBinaryCodec;
+    String jsonMessage = binaryCodec == null ? codec.encode(request) : null;
+    Object loggedMessage = jsonMessage != null ? jsonMessage.trim() : request;
     if (METHOD_PING.equals(request.getMethod())) {
       isPing = true;
-      log.trace("{} Req-> {}", label, jsonMessage.trim());
+      log.trace("{} Req-> {}", label, loggedMessage);
     } else {
-      log.debug("{} Req-> {}", label, jsonMessage.trim());
+      log.debug("{} Req-> {}", label, loggedMessage);
     }
 
-    sendTextMessage(jsonMessage);
+    try {
+      if (binaryCodec != null) {
+        sendBinaryRequestMessage(binaryCodec.encode(request), request.getId());
+      } else {
+        sendRequestMessage(jsonMessage, request.getId(), isPing);
+      }
+    } catch (IOException | RuntimeException e) {
+      if (responseSlot != null) {
+        responseSlot.cancel(false);
+        replayBuffer.remove(request.getId());
+      }
+      throw e;
+    }
 
-    if (responseFuture == null) {
+    if (responseSlot == null) {
       return null;
     }
 
     Response<JsonElement> responseJson;
     try {
-      responseJson = responseFuture.get(requestTimeout, TimeUnit.MILLISECONDS);
+      responseJson = responseSlot.get(requestTimeout, TimeUnit.MILLISECONDS);
 
       if (isPing) {
-        log.trace("{} <-Res {}", label, responseJson.toString());
+        log.trace("{} <-Res {}", label, responseJson);
       } else {
-        log.debug("{} <-Res {}", label, responseJson.toString());
+        log.debug("{} <-Res {}", label, responseJson);
       }
 
       Response<R> response = MessageUtils.convertResponse(responseJson, resultClass);
@@ -310,14 +750,20 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
     } catch (InterruptedException e) {
       throw new JsonRpcException(label + " Interrupted while waiting for a response", e);
     } catch (ExecutionException e) {
-      throw new JsonRpcException(label + " This exception shouldn't be thrown", e);
+      // The request failed before receiving a response, e.g. because it could not be written
+      if (e.getCause() instanceof JsonRpcException) {
+        throw (JsonRpcException) e.getCause();
+      }
+      throw new TransportException(label + " Request " + loggedMessage + " failed", e.getCause());
     } catch (TimeoutException e) {
+      responseSlot.cancel(false);
+      replayBuffer.remove(request.getId());
       throw new JsonRpcException(label + " Timeout of " + requestTimeout
-          + " milliseconds waiting from response to request " + jsonMessage.trim(), e);
+          + " milliseconds waiting from response to request " + loggedMessage, e);
     }
   }
 
-  protected <P> void internalSendRequestWebSocket(final Request<P> request,
+  private <P> void sendRequestWebSocket(final Request<P> request,
       final Class<JsonElement> resultClass,
       final Continuation<Response<JsonElement>> continuation) {
 
@@ -325,36 +771,51 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
 
       connectIfNecessary();
 
-      ListenableFuture<Response<JsonElement>> responseFuture = null;
+      ResponseSlot responseSlot = null;
 
       if (request.getId() != null) {
-        responseFuture = pendingRequests.prepareResponse(request.getId());
+        responseSlot = pendingRequests.prepareResponse(request.getId(), requestTimeout);
+        if (isReplayable(request)) {
+          replayBuffer.add(request);
+        }
       }
 
       final boolean isPing;
-      String jsonMessage = request.toString();
+      BinaryMessageCodec binaryCodec = negotiatedBinaryCodec;
+      String jsonMessage = binaryCodec == null ? codec.encode(request) : null;
+      Object loggedMessage = jsonMessage != null ? jsonMessage.trim() : request;
       if (METHOD_PING.equals(request.getMethod())) {
         isPing = true;
-        log.trace("{} Req-> {}", label, jsonMessage.trim());
+        log.trace("{} Req-> {}", label, loggedMessage);
       } else {
         isPing = false;
-        log.debug("{} Req-> {}", label, jsonMessage.trim());
+        log.debug("{} Req-> {}", label, loggedMessage);
       }
 
-      sendTextMessage(jsonMessage);
-
-      if (responseFuture != null) {
+      try {
+        if (binaryCodec != null) {
+          sendBinaryRequestMessage(binaryCodec.encode(request), request.getId());
+        } else {
+          sendRequestMessage(jsonMessage, request.getId(), isPing);
+        }
+      } catch (IOException | RuntimeException e) {
+        if (responseSlot != null) {
+          responseSlot.cancel(false);
+          replayBuffer.remove(request.getId());
+        }
+        throw e;
+      }
 
-        createExecServiceIfNecessary();
+      if (responseSlot != null) {
 
-        Futures.addCallback(responseFuture, new FutureCallback<Response<JsonElement>>() {
+        responseSlot.setContinuation(new Continuation<Response<JsonElement>>() {
           @Override
           public void onSuccess(Response<JsonElement> responseJson) {
 
             if (isPing) {
-              log.trace("{} <-Res {}", label, responseJson.toString());
+              log.trace("{} <-Res {}", label, responseJson);
             } else {
-              log.debug("{} <-Res {}", label, responseJson.toString());
+              log.debug("{} <-Res {}", label, responseJson);
             }
 
             try {
@@ -374,10 +835,11 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
           }
 
           @Override
-          public void onFailure(Throwable thrown) {
-            continuation.onError(thrown);
+          public void onError(Throwable cause) {
+            replayBuffer.remove(request.getId());
+            continuation.onError(cause);
           }
-        }, reqResEventExec);
+        }, dispatchExecutor);
 
       }
 
@@ -386,6 +848,132 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
     }
   }
 
+  /**
+   * @param requestId
+   *          id of the request, to fail it if the message can't be written, or null if it is a
+   *          notification
+   */
+  private void sendRequestMessage(String jsonMessage, Integer requestId, boolean isPing)
+      throws IOException {
+
+    if (!batchingEnabled || isPing) {
+      RequestBatcher currentBatcher = batcher;
+      if (currentBatcher != null) {
+        // Keep order with requests waiting in the current batch
+        currentBatcher.flush();
+      }
+      writeTextMessage(jsonMessage, requestIds(requestId));
+      return;
+    }
+
+    final RequestBatcher currentBatcher = getOrCreateBatcher();
+
+    if (currentBatcher.add(jsonMessage, requestId)) {
+
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            currentBatcher.flush();
+          } catch (Exception e) {
+            log.warn("{} Exception sending batch of requests. {}:{}", label,
+                e.getClass().getName(), e.getMessage());
+          }
+        }
+      }, batchWindowMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void sendBinaryRequestMessage(byte[] data, Integer requestId) throws IOException {
+    RequestBatcher currentBatcher = batcher;
+    if (currentBatcher != null) {
+      // Batches are text only. Send the pending ones first to keep the order
+      currentBatcher.flush();
+    }
+    writeBinaryMessage(data, requestIds(requestId));
+  }
+
+  private static List<Integer> requestIds(Integer requestId) {
+    return requestId != null ? Collections.singletonList(requestId)
+        : Collections.<Integer> emptyList();
+  }
+
+  /**
+   * Returns the callback that fails the given requests if the message containing them can't be
+   * written. Requests are failed right away instead of waiting for their response timeout.
+   */
+  private WriteCallback failOnWriteError(final List<Integer> requestIds) {
+
+    if (requestIds.isEmpty()) {
+      return IGNORE_WRITE_RESULT;
+    }
+
+    return new WriteCallback() {
+      @Override
+      public void writeSuccess() {
+      }
+
+      @Override
+      public void writeFailed(Throwable cause) {
+        for (Integer id : requestIds) {
+          replayBuffer.remove(id);
+          pendingRequests.failRequest(id, new TransportException(
+              label + " Exception writing request with id " + id + " to server " + url, cause));
+        }
+      }
+    };
+  }
+
+  private void writeTextMessage(String message, List<Integer> requestIds) throws IOException {
+    sendTextMessage(message, failOnWriteError(requestIds));
+    messageSent();
+    JsonRpcClientMetrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.messageSent(message.length());
+    }
+  }
+
+  private void writeBinaryMessage(byte[] data, List<Integer> requestIds) throws IOException {
+    sendBinaryMessage(data, failOnWriteError(requestIds));
+    messageSent();
+    JsonRpcClientMetrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.messageSent(data.length);
+    }
+  }
+
+  private RequestBatcher getOrCreateBatcher() {
+    if (batcher == null) {
+      synchronized (this) {
+        if (batcher == null) {
+          batcher = new RequestBatcher(new RequestBatcher.BatchSender() {
+            @Override
+            public void sendBatch(String message, List<Integer> requestIds) throws IOException {
+              try {
+                writeTextMessage(message, requestIds);
+              } catch (IOException | RuntimeException e) {
+                // The batch may be flushed by the timer, where nobody would notice the failure
+                failOnWriteError(requestIds).writeFailed(e);
+                throw e;
+              }
+            }
+
+            @Override
+            public int getMaxMessages() {
+              return batchMaxMessages;
+            }
+
+            @Override
+            public int getMaxBytes() {
+              return batchMaxBytes;
+            }
+          });
+        }
+      }
+    }
+    return batcher;
+  }
+
   @Override
   public void close() throws IOException {
 
@@ -405,6 +993,11 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
 
     reconnecting = false;
 
+    if (admissionController != null) {
+      admissionController.rejectQueued(
+          new JsonRpcClientClosedException("Client closed while waiting to send request"));
+    }
+
     this.closeClient("Session closed by JsonRpcClientWebsocket user");
 
   }
@@ -415,27 +1008,13 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
       notifyUserClientClosed(reason, false);
     }
 
-    closeNativeClient();
-
-    if (reqResEventExec != null) {
-      try {
-        reqResEventExec.shutdown();
-      } catch (Exception e) {
-        log.debug("{} Could not properly shut down executor service. Reason: {}", label,
-            e.getMessage());
-      }
-      reqResEventExec = null;
+    if (batcher != null) {
+      batcher.clear();
     }
 
-    if (disconnectExec != null) {
-      try {
-        disconnectExec.shutdown();
-      } catch (Exception e) {
-        log.debug("{} Could not properly shut down disconnect executor service. Reason: {}", label,
-            e.getMessage());
-      }
-      disconnectExec = null;
-    }
+    closeNativeClient();
+
+    timer.release();
 
     if (heartbeating) {
       disableHeartbeat();
@@ -450,31 +1029,63 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
     }
 
     pendingRequests.closeAllPendingRequests();
+    replayBuffer.clear();
 
     if (session != null) {
       handlerManager.afterConnectionClosed(session, reason);
     }
   }
 
-  protected void handleResponseFromServer(JsonObject message) {
-
-    Response<JsonElement> response = fromJsonResponse(message, JsonElement.class);
+  protected void handleResponseFromServer(Response<JsonElement> response) {
 
     setSessionId(response.getSessionId());
 
+    if (response.getId() != null) {
+      replayBuffer.remove(response.getId());
+    }
+
     pendingRequests.handleResponse(response);
   }
 
+  /**
+   * Executes the processing of a message received, or of the connection loss, in the dispatcher of
+   * this client. Tasks are executed one at a time in the order they are dispatched, with a key
+   * other than the one of the handlers, so handlers waiting for responses don't block them.
+   *
+   * Transports whose threads are shared by all the clients in the JVM, such as Netty event loops,
+   * use it so a blocking handler or continuation only stalls its own client.
+   *
+   * @throws RejectedExecutionException
+   *           if too many tasks are queued or the dispatcher has been shut down
+   */
+  protected void dispatchInbound(Runnable task) {
+    dispatcher.dispatch(inboundKey, task);
+  }
+
   protected void receivedTextMessage(String message) {
 
+    messageReceived();
+
+    JsonRpcClientMetrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.messageReceived(message.length());
+    }
+
     try {
 
-      JsonObject jsonMessage = fromJson(message, JsonObject.class);
+      if (RequestBatcher.isBatch(message)) {
+
+        JsonArray batch = fromJson(message, JsonArray.class);
+        for (JsonElement element : batch) {
+          try {
+            receivedJsonMessage((JsonObject) element);
+          } catch (Exception e) {
+            log.error("{} Exception processing jsonRpc message {} in batch", label, element, e);
+          }
+        }
 
-      if (jsonMessage.has(JsonRpcConstants.METHOD_PROPERTY)) {
-        handleRequestFromServer(jsonMessage);
       } else {
-        handleResponseFromServer(jsonMessage);
+        receivedMessage(codec.decodeMessage(message));
       }
 
     } catch (Exception e) {
@@ -482,23 +1093,78 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
     }
   }
 
-  void handleRequestFromServer(final JsonObject message) {
+  protected void receivedBinaryMessage(byte[] data, int offset, int length) {
+
+    messageReceived();
+
+    JsonRpcClientMetrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.messageReceived(length);
+    }
+
+    BinaryMessageCodec binaryCodec = negotiatedBinaryCodec;
+
+    if (binaryCodec == null) {
+      log.warn("{} Discarding binary message of {} bytes. No binary subprotocol was negotiated",
+          label, length);
+      return;
+    }
+
+    try {
+      receivedMessage(binaryCodec.decodeMessage(data, offset, length));
+    } catch (Exception e) {
+      log.error("{} Exception processing binary jsonRpc message of {} bytes", label, length, e);
+    }
+  }
+
+  private void receivedJsonMessage(JsonObject jsonMessage) {
+    if (jsonMessage.has(JsonRpcConstants.METHOD_PROPERTY)) {
+      handleRequestFromServer(fromJsonRequest(jsonMessage, JsonElement.class));
+    } else {
+      handleResponseFromServer(fromJsonResponse(jsonMessage, JsonElement.class));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void receivedMessage(Message message) {
+    if (message instanceof Request) {
+      handleRequestFromServer((Request<JsonElement>) message);
+    } else {
+      handleResponseFromServer((Response<JsonElement>) message);
+    }
+  }
+
+  void handleRequestFromServer(final Request<JsonElement> message) {
 
     if (concurrentServerRequest) {
 
-      createExecServiceIfNecessary();
+      try {
 
-      reqResEventExec.submit(new Runnable() {
-        @Override
-        public void run() {
-          handlerManager.handleRequest(session, fromJsonRequest(message, JsonElement.class), rs);
+        dispatcher.dispatch(dispatchKey, new Runnable() {
+          @Override
+          public void run() {
+            handlerManager.handleRequest(session, message, rs);
+          }
+        });
+
+      } catch (RejectedExecutionException e) {
+
+        log.warn("{} Request from server discarded: {}", label, e.getMessage());
+
+        if (message.getId() != null) {
+          try {
+            rs.sendResponse(new Response<>(message.getId(),
+                new ResponseError(ERROR_SERVER_ERROR, "Client is overloaded: " + e.getMessage())));
+          } catch (IOException e1) {
+            log.warn("{} Exception sending error response to server", label, e1);
+          }
         }
-      });
+      }
 
     } else {
 
       try {
-        handlerManager.handleRequest(session, fromJsonRequest(message, JsonElement.class), rs);
+        handlerManager.handleRequest(session, message, rs);
       } catch (Exception e) {
         log.warn("{} Exception processing request {}", label, message, e);
       }
@@ -511,11 +1177,12 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
       
       log.debug("{}JsonRpcWsClient disconnected from {} because {}.", label, url, closeReason);
 
-      reconnect(closeReason);
+      reconnect(closeReason, 0, ProtocolUtils.parseRetryAfter(closeReason));
 
     } else {
 
       pendingRequests.closeAllPendingRequests();
+      replayBuffer.clear();
 
       handlerManager.afterConnectionClosed(session, closeReason);
 
@@ -523,11 +1190,24 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
     }
   }
 
-  private void reconnect(final String closeReason) {
-    reconnect(closeReason, 0);
-  }
+  private void reconnect(final String closeReason, final int attempt, long minDelayMillis) {
 
-  private void reconnect(final String closeReason, final long delayMillis) {
+    long delayMillis = reconnectPolicy.getDelay(attempt);
+
+    if (delayMillis == ReconnectPolicy.GIVE_UP) {
+      log.warn("{} Giving up reconnecting to server {} after {} attempts", label, url, attempt);
+      giveUpReconnecting(closeReason);
+      return;
+    }
+
+    delayMillis = Math.max(delayMillis, minDelayMillis);
+
+    if (reconnectThrottle != null) {
+      delayMillis = Math.max(delayMillis, reconnectThrottle.reserve());
+    }
+
+    log.debug("{} Reconnection attempt {} to server {} in {} millis", label, attempt + 1, url,
+        delayMillis);
 
     reconnecting = true;
 
@@ -537,54 +1217,81 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
       disableHeartbeat();
     }
 
-    createExecServiceIfNecessary();
-
-    disconnectExec.schedule(new Runnable() {
+    // Connecting blocks, so the timer only triggers the attempt, which is executed elsewhere
+    timer.schedule(new Runnable() {
       @Override
       public void run() {
-        try {
+        JsonRpcTimers.getBlockingExecutor().execute(new Runnable() {
+          @Override
+          public void run() {
+            reconnectAttempt(closeReason, attempt);
+          }
+        });
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
 
-          log.debug("{}JsonRpcWsClient reconnecting to {}. ", label, url);
+  private void reconnectAttempt(String closeReason, int attempt) {
 
-          connectIfNecessary();
+    if (isClosedByUser()) {
+      reconnecting = false;
+      return;
+    }
 
-          reconnecting = false;
+    try {
 
-        } catch (Exception e) {
+      log.debug("{}JsonRpcWsClient reconnecting to {}. ", label, url);
 
-          if (!tryReconnectingForever) {
+      connectIfNecessary();
 
-            log.warn(
-                "{} Exception trying to reconnect to server {}.",
-                label, url, e);
+      reconnecting = false;
 
-            notifyUserClientClosed(closeReason, true);
+    } catch (Exception e) {
 
-          } else {
-            
-            log.warn(
-                "{} Exception trying to reconnect to server {}. Retrying in {} millis",
-                label, url, RECONNECT_DELAY_TIME_MILLIS, e);
-            
-            reconnect(closeReason, RECONNECT_DELAY_TIME_MILLIS);
-          }
-        }
+      if (!tryReconnectingForever && !isTransientConnectFailure(e)) {
+
+        log.warn("{} Exception trying to reconnect to server {}.", label, url, e);
+
+        giveUpReconnecting(closeReason);
+
+      } else {
+
+        log.warn("{} Exception trying to reconnect to server {}. Retrying", label, url, e);
+
+        reconnect(closeReason, attempt + 1, 0);
       }
+    } catch (Error e) {
+      reconnecting = false;
+      throw e;
+    }
+  }
 
-    }, delayMillis, TimeUnit.MILLISECONDS);
+  private void giveUpReconnecting(String closeReason) {
+    reconnecting = false;
+    notifyUserClientClosed(closeReason, true);
+  }
+
+  /**
+   * Returns true if the connection failed for a reason that is expected to go away by itself, such
+   * as the server rejecting the WebSocket upgrade while it is starting. Those failures are retried
+   * with the delays of the reconnect policy, up to {@value #MAX_CONNECT_RETRIES} times when
+   * connecting explicitly. By default, no failure is considered transient.
+   */
+  protected boolean isTransientConnectFailure(Throwable failure) {
+    return false;
   }
 
   @Override
   protected void closeWithReconnection() {
     log.info("{} Closing websocket session to force reconnection", label);
-    closeNativeClient();
+    disconnectNativeClient();
     handleReconnectDisconnection(999, "ping timeout");
   }
 
   @Override
   public void connect() throws IOException {
     this.closedByClient = false;
-    connectIfNecessary();
+    connectWithRetries();
   }
 
   public void connectWithSession() throws IOException {
@@ -593,12 +1300,70 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
 
     this.closedByClient = false;
 
-    connectIfNecessary();
+    connectWithRetries();
 
     log.info("{} Connected to server with session {}", label, getSession().getSessionId());
 
   }
 
+  /**
+   * Connects, retrying transient failures (see {@link #isTransientConnectFailure(Throwable)}). The
+   * retries are scheduled on the timer and executed in the blocking executor of
+   * {@link JsonRpcTimers}, so the connection lock is not held while waiting between attempts.
+   */
+  private void connectWithRetries() throws IOException {
+
+    SettableFuture<Void> result = SettableFuture.create();
+
+    connectAttempt(result, 0);
+
+    try {
+      result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new JsonRpcException(label + " Interrupted while connecting to " + url, e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new JsonRpcException(label + " Exception connecting to " + url, e.getCause());
+    }
+  }
+
+  private void connectAttempt(final SettableFuture<Void> result, final int attempt) {
+
+    try {
+
+      connectIfNecessary();
+      result.set(null);
+
+    } catch (Throwable t) {
+
+      long delayMillis = ReconnectPolicy.GIVE_UP;
+      if (attempt < MAX_CONNECT_RETRIES && isTransientConnectFailure(t) && !isClosedByUser()) {
+        delayMillis = reconnectPolicy.getDelay(attempt);
+      }
+
+      if (delayMillis == ReconnectPolicy.GIVE_UP) {
+        result.setException(t);
+        return;
+      }
+
+      log.warn("{} Exception connecting to {}. Try {} of {}. Retrying in {}ms", label, url,
+          attempt + 1, MAX_CONNECT_RETRIES, delayMillis);
+
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          JsonRpcTimers.getBlockingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+              connectAttempt(result, attempt + 1);
+            }
+          });
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
   protected void internalConnectIfNecessary() throws IOException {
 
     if (!isNativeClientConnected()) {
@@ -656,6 +1421,10 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
 
       boolean sameServer = executeConnectProtocol();
 
+      if (metrics != null) {
+        metrics.reconnected();
+      }
+
       if (sameServer) {
         fireReconnectedSameServer();
       } else {
@@ -664,7 +1433,10 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
 
     } else {
 
-      if (startSessionWhenConnected) {
+      if (pooledTransport && rsHelper.getSessionId() != null) {
+        // Joins the session established through another connection of the pool
+        executeConnectProtocol();
+      } else if (startSessionWhenConnected) {
         rsHelper.sendRequest(METHOD_CONNECT, String.class);
       }
 
@@ -679,10 +1451,15 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
 
   boolean executeConnectProtocol() throws IOException {
     try {
-      rsHelper.sendRequest(METHOD_CONNECT, String.class);
+      List<Request<?>> unanswered = replayBuffer.getUnanswered();
+
+      JsonElement result = rsHelper.sendRequest(METHOD_CONNECT, connectParams(unanswered),
+          JsonElement.class);
 
       log.info("{} Reconnected to the same session in server {}", label, url);
 
+      replayRequests(unanswered, result);
+
       return true;
 
     } catch (JsonRpcErrorException e) {
@@ -691,6 +1468,7 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
       if (e.getCode() == 40007) {
 
         pendingRequests.closeAllPendingRequests();
+        replayBuffer.clear();
 
         try {
 
@@ -713,20 +1491,204 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
     }
   }
 
+  /**
+   * @return the params of the connect request, or null if there is nothing to tell the server
+   */
+  private JsonObject connectParams(List<Request<?>> replayed) {
+
+    JsonObject params = new JsonObject();
+
+    if (pooledTransport) {
+      params.addProperty(POOLED_PROPERTY, true);
+    }
+
+    if (!replayed.isEmpty()) {
+      JsonArray ids = new JsonArray();
+      for (Request<?> request : replayed) {
+        ids.add(new JsonPrimitive(request.getId()));
+      }
+      params.add(REPLAY_PROPERTY, ids);
+    }
+
+    return params.entrySet().isEmpty() ? null : params;
+  }
+
+  /**
+   * Makes this client a connection of a {@link JsonRpcClientPooledWebSocket}. Once the session is
+   * established, it joins it as an additional transport instead of creating a new one, and takes
+   * the request ids from the pool, so requests can be moved between connections.
+   */
+  void setPooledTransport(JsonRpcRequestSenderHelper poolRsHelper) {
+    this.pooledTransport = true;
+    this.rsHelper.shareIds(poolRsHelper);
+  }
+
+  /**
+   * Sets the session to be joined by this connection of a pool, even if it is not connected yet.
+   */
+  void joinSession(String sessionId) {
+    rsHelper.setSessionId(sessionId);
+    if (session != null) {
+      session.setSessionId(sessionId);
+    }
+  }
+
+  /**
+   * Removes the requests not answered yet, so they can be sent through another connection of a
+   * pool. They are not replayed when this connection is recovered.
+   */
+  List<Request<?>> takeUnansweredRequests() {
+    List<Request<?>> unanswered = replayBuffer.getUnanswered();
+    for (Request<?> request : unanswered) {
+      replayBuffer.remove(request.getId());
+    }
+    return unanswered;
+  }
+
+  /**
+   * Takes over the requests of another connection of the pool. They are announced to the server
+   * as replays through this connection, and it answers the ones it already received through it;
+   * only the ones it never received are sent again. The responses are delivered to the requests
+   * waiting in the original connection.
+   */
+  void resendRequests(List<Request<?>> requests, final AbstractJsonRpcClientWebSocket origin) {
+
+    for (final Request<?> request : requests) {
+
+      ResponseSlot responseSlot = pendingRequests.prepareResponse(request.getId(),
+          requestTimeout);
+      replayBuffer.add(request);
+
+      responseSlot.setContinuation(new Continuation<Response<JsonElement>>() {
+        @Override
+        public void onSuccess(Response<JsonElement> response) {
+          origin.pendingRequests.handleResponse(response);
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+          replayBuffer.remove(request.getId());
+          origin.pendingRequests.failRequest(request.getId(), cause);
+        }
+      }, dispatchExecutor);
+    }
+
+    log.info("{} Taking over {} requests of lost connection {}", label, requests.size(),
+        origin.label);
+
+    try {
+
+      JsonElement result = rsHelper.sendRequest(METHOD_CONNECT, connectParams(requests),
+          JsonElement.class);
+
+      replayRequests(requests, result);
+
+    } catch (Exception e) {
+      for (Request<?> request : requests) {
+        pendingRequests.failRequest(request.getId(), e);
+      }
+    }
+  }
+
+  /**
+   * Sends again, with their original ids, the requests that the server reports as not received in
+   * the result of the connect request. The others are answered by the server without sending them
+   * again. If the server doesn't report it, the requests can't be replayed safely and fail.
+   */
+  private void replayRequests(List<Request<?>> unanswered, JsonElement connectResult)
+      throws IOException {
+
+    if (unanswered.isEmpty()) {
+      return;
+    }
+
+    Set<Integer> notReceived = getNotReceivedRequests(connectResult);
+
+    if (notReceived == null) {
+
+      log.warn("{} Server {} can't replay requests. Failing {} unanswered requests", label, url,
+          unanswered.size());
+
+      for (Request<?> request : unanswered) {
+        replayBuffer.remove(request.getId());
+        pendingRequests.failRequest(request.getId(), new TransportException(label
+            + " Connection lost before receiving the response to request " + request.getId()));
+      }
+      return;
+    }
+
+    log.info("{} Replaying {} of {} unanswered requests to server {}", label, notReceived.size(),
+        unanswered.size(), url);
+
+    BinaryMessageCodec binaryCodec = negotiatedBinaryCodec;
+
+    for (Request<?> request : unanswered) {
+
+      // Skip the ones answered in the meantime
+      if (!notReceived.contains(request.getId()) || !pendingRequests.isPending(request.getId())) {
+        continue;
+      }
+
+      if (binaryCodec != null) {
+        log.debug("{} Req-> (replay) {}", label, request);
+        sendBinaryRequestMessage(binaryCodec.encode(request), request.getId());
+      } else {
+        String jsonMessage = codec.encode(request);
+        log.debug("{} Req-> (replay) {}", label, jsonMessage.trim());
+        sendRequestMessage(jsonMessage, request.getId(), false);
+      }
+    }
+  }
+
+  /**
+   * @return the ids of the announced requests the server didn't receive, or null if the server
+   *         didn't report them
+   */
+  private static Set<Integer> getNotReceivedRequests(JsonElement connectResult) {
+
+    if (connectResult == null || !connectResult.isJsonObject()) {
+      return null;
+    }
+
+    JsonElement replay = connectResult.getAsJsonObject().get(REPLAY_PROPERTY);
+
+    if (replay == null || !replay.isJsonArray()) {
+      return null;
+    }
+
+    Set<Integer> ids = new HashSet<>();
+    for (JsonElement id : replay.getAsJsonArray()) {
+      ids.add(id.getAsInt());
+    }
+    return ids;
+  }
+
   void configureResponseSender() {
     rs = new ResponseSender() {
       @Override
       public void sendResponse(Message message) throws IOException {
-        String jsonMessage = message.toString();
-        log.debug("{} <-Res {}", label, jsonMessage);
-        sendTextMessage(jsonMessage);
+        BinaryMessageCodec binaryCodec = negotiatedBinaryCodec;
+        if (binaryCodec != null) {
+          log.debug("{} <-Res {}", label, message);
+          writeBinaryMessage(binaryCodec.encode(message), Collections.<Integer> emptyList());
+        } else {
+          String jsonMessage = codec.encode(message);
+          log.debug("{} <-Res {}", label, jsonMessage);
+          writeTextMessage(jsonMessage, Collections.<Integer> emptyList());
+        }
       }
 
       @Override
       public void sendPingResponse(Message message) throws IOException {
-        String jsonMessage = message.toString();
-        log.trace("{} <-Res {}", label, jsonMessage);
-        sendTextMessage(jsonMessage);
+        BinaryMessageCodec binaryCodec = negotiatedBinaryCodec;
+        if (binaryCodec != null) {
+          log.trace("{} <-Res {}", label, message);
+          writeBinaryMessage(binaryCodec.encode(message), Collections.<Integer> emptyList());
+        } else {
+          String jsonMessage = codec.encode(message);
+          log.trace("{} <-Res {}", label, jsonMessage);
+          writeTextMessage(jsonMessage, Collections.<Integer> emptyList());
+        }
       }
     };
   }
@@ -755,8 +1717,47 @@ public abstract class AbstractJsonRpcClientWebSocket extends JsonRpcClient {
 
   protected abstract void sendTextMessage(String jsonMessage) throws IOException;
 
+  /**
+   * Sends a text frame, notifying the callback when it has been written or its write has failed.
+   * Transports writing asynchronously override it, so the requests of a message that can't be
+   * written are failed right away. By default, the frame is sent with
+   * {@link #sendTextMessage(String)}, and the callback is notified when it returns. Exceptions
+   * thrown by this method are not notified to the callback.
+   */
+  protected void sendTextMessage(String jsonMessage, WriteCallback callback) throws IOException {
+    sendTextMessage(jsonMessage);
+    callback.writeSuccess();
+  }
+
+  /**
+   * Sends a binary frame. Only invoked when a binary subprotocol has been negotiated, so transports
+   * not requesting {@link #getRequestedSubprotocol()} don't need to override it.
+   */
+  protected void sendBinaryMessage(byte[] data) throws IOException {
+    throw new UnsupportedOperationException(
+        getClass().getSimpleName() + " doesn't support binary messages");
+  }
+
+  /**
+   * Sends a binary frame, notifying the callback as {@link #sendTextMessage(String, WriteCallback)}
+   * does.
+   */
+  protected void sendBinaryMessage(byte[] data, WriteCallback callback) throws IOException {
+    sendBinaryMessage(data);
+    callback.writeSuccess();
+  }
+
   protected abstract void closeNativeClient();
 
+  /**
+   * Drops the connection when it is considered dead, before reconnecting. Transports able to
+   * abort it without the close handshake override it. By default, it is closed with
+   * {@link #closeNativeClient()}.
+   */
+  protected void disconnectNativeClient() {
+    closeNativeClient();
+  }
+
   protected abstract boolean isNativeClientConnected();
 
   protected abstract void connectNativeClient() throws TimeoutException, Exception;
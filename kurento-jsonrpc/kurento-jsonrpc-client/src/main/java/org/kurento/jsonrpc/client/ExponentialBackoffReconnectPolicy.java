@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.kurento.commons.PropertiesManager;
+
+/**
+ * Exponential backoff with full jitter: the delay before attempt n is a random value between 0
+ * and min(maxDelay, initialDelay * multiplier^n). The randomness spreads the reconnections of
+ * clients that lost the connection at the same time (e.g. when the server restarts), so they
+ * don't hit the server in lockstep.
+ *
+ * The default policy is configured with the properties
+ * jsonRpcClientWebSocket.reconnect.initialDelay (default 500 ms),
+ * jsonRpcClientWebSocket.reconnect.maxDelay (default 5000 ms),
+ * jsonRpcClientWebSocket.reconnect.multiplier (default 2) and
+ * jsonRpcClientWebSocket.reconnect.maxAttempts (default 0, no limit).
+ */
+public class ExponentialBackoffReconnectPolicy implements ReconnectPolicy {
+
+  private final long initialDelay;
+  private final long maxDelay;
+  private final double multiplier;
+  private final int maxAttempts;
+
+  /**
+   * @param initialDelay
+   *          upper bound in millis of the delay before the first attempt
+   * @param maxDelay
+   *          upper bound in millis of the delay before any attempt
+   * @param multiplier
+   *          growth of the upper bound after each failed attempt
+   * @param maxAttempts
+   *          number of attempts before giving up, or 0 to try forever
+   */
+  public ExponentialBackoffReconnectPolicy(long initialDelay, long maxDelay, double multiplier,
+      int maxAttempts) {
+
+    if (initialDelay < 0 || maxDelay < initialDelay || multiplier < 1) {
+      throw new IllegalArgumentException("Invalid backoff: initialDelay=" + initialDelay
+          + " maxDelay=" + maxDelay + " multiplier=" + multiplier);
+    }
+
+    this.initialDelay = initialDelay;
+    this.maxDelay = maxDelay;
+    this.multiplier = multiplier;
+    this.maxAttempts = maxAttempts;
+  }
+
+  public static ExponentialBackoffReconnectPolicy fromProperties() {
+    return new ExponentialBackoffReconnectPolicy(
+        PropertiesManager.getProperty("jsonRpcClientWebSocket.reconnect.initialDelay", 500L),
+        PropertiesManager.getProperty("jsonRpcClientWebSocket.reconnect.maxDelay", 5000L),
+        PropertiesManager.getProperty("jsonRpcClientWebSocket.reconnect.multiplier", 2.0),
+        PropertiesManager.getProperty("jsonRpcClientWebSocket.reconnect.maxAttempts", 0));
+  }
+
+  @Override
+  public long getDelay(int attempt) {
+
+    if (maxAttempts > 0 && attempt >= maxAttempts) {
+      return GIVE_UP;
+    }
+
+    double bound = initialDelay * Math.pow(multiplier, attempt);
+    long cap = bound >= maxDelay ? maxDelay : (long) bound;
+
+    return cap > 0 ? ThreadLocalRandom.current().nextLong(cap + 1) : 0;
+  }
+
+  public long getInitialDelay() {
+    return initialDelay;
+  }
+
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  public double getMultiplier() {
+    return multiplier;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+}
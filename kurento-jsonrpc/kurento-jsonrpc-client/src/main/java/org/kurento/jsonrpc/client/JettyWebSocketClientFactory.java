@@ -0,0 +1,233 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.kurento.commons.PropertiesManager;
+import org.kurento.jsonrpc.internal.ws.MeteredPerMessageDeflateExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out started Jetty {@link WebSocketClient}s shared by many {@link JsonRpcClientWebSocket}
+ * instances, so connecting or reconnecting doesn't pay the cost of creating and starting a new
+ * client. There are {@code clientsPerSslContext} clients for each {@link SslContextFactory} and
+ * connect timeout, used in round robin, and all of them share the same thread pool and buffer pool.
+ * The connect timeout is set on the Jetty client, so clients with different connection timeouts
+ * don't share it.
+ *
+ * The shared factory is configured with the properties:
+ * <ul>
+ * <li>{@value #CLIENTS_PROPERTY}: clients per SslContextFactory (default 1)</li>
+ * <li>{@value #MIN_THREADS_PROPERTY} and {@value #MAX_THREADS_PROPERTY}: size of the thread pool
+ * (default 8 and 200)</li>
+ * <li>{@value #MAX_MESSAGE_SIZE_PROPERTY}: max size of text and binary messages (default
+ * 1000000)</li>
+ * <li>{@value #BUFFER_POOL_MAX_SIZE_PROPERTY}: max size of the buffers kept in the buffer pool
+ * (default 64KB)</li>
+ * </ul>
+ */
+public class JettyWebSocketClientFactory {
+
+  private static final Logger log = LoggerFactory.getLogger(JettyWebSocketClientFactory.class);
+
+  public static final String CLIENTS_PROPERTY = "jsonRpcClientWebSocket.jetty.clients";
+  public static final String MIN_THREADS_PROPERTY = "jsonRpcClientWebSocket.jetty.minThreads";
+  public static final String MAX_THREADS_PROPERTY = "jsonRpcClientWebSocket.jetty.maxThreads";
+  public static final String MAX_MESSAGE_SIZE_PROPERTY =
+      "jsonRpcClientWebSocket.jetty.maxMessageSize";
+  public static final String BUFFER_POOL_MAX_SIZE_PROPERTY =
+      "jsonRpcClientWebSocket.jetty.bufferPool.maxSize";
+
+  public static final String PER_MESSAGE_DEFLATE = "permessage-deflate";
+
+  private static class SharedFactoryHolder {
+    static final JettyWebSocketClientFactory factory = new JettyWebSocketClientFactory(
+        PropertiesManager.getProperty(CLIENTS_PROPERTY, 1),
+        PropertiesManager.getProperty(MIN_THREADS_PROPERTY, 8),
+        PropertiesManager.getProperty(MAX_THREADS_PROPERTY, 200),
+        PropertiesManager.getProperty(MAX_MESSAGE_SIZE_PROPERTY, 1000000),
+        PropertiesManager.getProperty(BUFFER_POOL_MAX_SIZE_PROPERTY, 64 * 1024));
+  }
+
+  private static class DefaultSslContextFactoryHolder {
+    static final SslContextFactory sslContextFactory = new SslContextFactory();
+  }
+
+  private static class ClientsKey {
+
+    private final SslContextFactory sslContextFactory;
+    private final int connectTimeout;
+
+    public ClientsKey(SslContextFactory sslContextFactory, int connectTimeout) {
+      this.sslContextFactory = sslContextFactory;
+      this.connectTimeout = connectTimeout;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(sslContextFactory) + connectTimeout;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ClientsKey)) {
+        return false;
+      }
+      ClientsKey other = (ClientsKey) obj;
+      return sslContextFactory == other.sslContextFactory
+          && connectTimeout == other.connectTimeout;
+    }
+  }
+
+  private class SharedClients {
+
+    private final WebSocketClient[] clients;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public SharedClients(ClientsKey key) {
+      clients = new WebSocketClient[clientsPerSslContext];
+      for (int i = 0; i < clients.length; i++) {
+        clients[i] = createClient(key.sslContextFactory, key.connectTimeout);
+      }
+    }
+
+    public WebSocketClient next() {
+      return clients[(next.getAndIncrement() & Integer.MAX_VALUE) % clients.length];
+    }
+  }
+
+  private final int clientsPerSslContext;
+  private final int maxMessageSize;
+
+  private final QueuedThreadPool threadPool;
+  private final ByteBufferPool bufferPool;
+
+  private final Map<ClientsKey, SharedClients> clients = new ConcurrentHashMap<>();
+
+  public JettyWebSocketClientFactory(int clientsPerSslContext, int minThreads, int maxThreads,
+      int maxMessageSize, int bufferPoolMaxSize) {
+
+    this.clientsPerSslContext = Math.max(1, clientsPerSslContext);
+    this.maxMessageSize = maxMessageSize;
+
+    this.threadPool = new QueuedThreadPool(maxThreads, minThreads);
+    this.threadPool.setName("JsonRpcClientWebSocket-jetty");
+    this.threadPool.setDaemon(true);
+
+    // Jetty requires the max size to be a multiple of the increment
+    int increment = 1024;
+    this.bufferPool = new ArrayByteBufferPool(0, increment,
+        Math.max(2, bufferPoolMaxSize / increment) * increment);
+  }
+
+  public static JettyWebSocketClientFactory getShared() {
+    return SharedFactoryHolder.factory;
+  }
+
+  /**
+   * @return the SslContextFactory used by clients created without one. Sharing it allows them to
+   *         share the same Jetty clients
+   */
+  public static SslContextFactory getDefaultSslContextFactory() {
+    return DefaultSslContextFactoryHolder.sslContextFactory;
+  }
+
+  /**
+   * Returns a started client for the given SslContextFactory and connect timeout. The client is
+   * shared, so it must not be stopped by the caller.
+   *
+   * @param connectTimeout
+   *          milliseconds to wait for the connections of the client to be established
+   */
+  public synchronized WebSocketClient getClient(SslContextFactory sslContextFactory,
+      int connectTimeout) throws Exception {
+
+    if (!threadPool.isStarted()) {
+      threadPool.start();
+    }
+
+    ClientsKey key = new ClientsKey(sslContextFactory, connectTimeout);
+    SharedClients sharedClients = clients.get(key);
+    if (sharedClients == null) {
+      sharedClients = new SharedClients(key);
+      clients.put(key, sharedClients);
+    }
+
+    WebSocketClient client = sharedClients.next();
+    if (!client.isStarted()) {
+      client.start();
+    }
+    return client;
+  }
+
+  public int getMaxMessageSize() {
+    return maxMessageSize;
+  }
+
+  /**
+   * Stops all the clients and the thread pool. Sessions opened with them are closed.
+   */
+  public synchronized void stop() {
+
+    for (SharedClients sharedClients : clients.values()) {
+      for (WebSocketClient client : sharedClients.clients) {
+        try {
+          client.stop();
+          client.destroy();
+        } catch (Exception e) {
+          log.debug("Could not properly stop websocket client. Reason: {}", e.getMessage());
+        }
+      }
+    }
+    clients.clear();
+
+    try {
+      threadPool.stop();
+    } catch (Exception e) {
+      log.debug("Could not properly stop websocket client thread pool. Reason: {}",
+          e.getMessage());
+    }
+  }
+
+  private WebSocketClient createClient(SslContextFactory sslContextFactory, int connectTimeout) {
+
+    WebSocketClient client = new WebSocketClient(sslContextFactory, threadPool, bufferPool);
+    client.setConnectTimeout(connectTimeout);
+    client.setDaemon(true);
+    client.getExtensionFactory().register(PER_MESSAGE_DEFLATE,
+        MeteredPerMessageDeflateExtension.class);
+
+    WebSocketPolicy policy = client.getPolicy();
+    policy.setMaxBinaryMessageBufferSize(maxMessageSize);
+    policy.setMaxTextMessageBufferSize(maxMessageSize);
+    policy.setMaxBinaryMessageSize(maxMessageSize);
+    policy.setMaxTextMessageSize(maxMessageSize);
+
+    return client;
+  }
+}
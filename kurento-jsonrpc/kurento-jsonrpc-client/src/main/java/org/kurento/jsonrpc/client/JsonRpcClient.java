@@ -18,26 +18,33 @@
 package org.kurento.jsonrpc.client;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ADAPTIVE_PROPERTY;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_PING;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.PONG;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.PONG_PAYLOAD;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.kurento.commons.ThreadFactoryCreator;
+import org.kurento.commons.PropertiesManager;
 import org.kurento.commons.exception.KurentoException;
 import org.kurento.jsonrpc.JsonRpcHandler;
+import org.kurento.jsonrpc.JsonUtils;
 import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.internal.JsonRpcHandlerManager;
 import org.kurento.jsonrpc.internal.JsonRpcRequestSender;
 import org.kurento.jsonrpc.internal.JsonRpcRequestSenderHelper;
 import org.kurento.jsonrpc.internal.client.ClientSession;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimer;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimers;
+import org.kurento.jsonrpc.internal.timer.Timeout;
+import org.kurento.jsonrpc.message.MessageCodec;
+import org.kurento.jsonrpc.message.MessageCodecs;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.jsonrpc.message.Response;
+import org.kurento.jsonrpc.metrics.JsonRpcClientMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -70,9 +77,13 @@ public abstract class JsonRpcClient implements JsonRpcRequestSender, Closeable {
 
   public static Logger log = LoggerFactory.getLogger(JsonRpcClient.class.getName());
 
+  public static final String ADAPTIVE_HEARTBEAT_PROPERTY = "jsonRpcClient.heartbeat.adaptive";
+
   private static class PingParams {
     @SuppressWarnings("unused")
     public long interval;
+    // Not sent if null, so servers not supporting adaptive heartbeats see the usual params
+    public Boolean adaptive;
   }
 
   protected JsonRpcHandlerManager handlerManager = new JsonRpcHandlerManager();
@@ -84,13 +95,26 @@ public abstract class JsonRpcClient implements JsonRpcRequestSender, Closeable {
   protected int idleTimeout = 300000;
   protected int heartbeatInterval = 0;
   private static final int DEFAULT_HEARTBEAT_INTERVAL = 5000;
+  protected MessageCodec codec = MessageCodecs.getDefault();
+  protected volatile JsonRpcClientMetrics metrics = PropertiesManager
+      .getProperty(JsonRpcClientMetrics.ENABLED_PROPERTY, true) ? new JsonRpcClientMetrics() : null;
   protected boolean heartbeating;
   protected boolean closedByClient;
   private volatile PingParams pingParams;
+  private volatile boolean adaptiveHeartbeat = PropertiesManager
+      .getProperty(ADAPTIVE_HEARTBEAT_PROPERTY, false);
+  private volatile boolean adaptiveHeartbeatAccepted;
+  private volatile long lastMessageSent = System.nanoTime();
+  private volatile long lastMessageReceived = System.nanoTime();
+  private volatile long lastPing = System.nanoTime();
 
-  private ScheduledExecutorService hearbeatExec = createScheduler();
+  private final JsonRpcTimer heartbeatTimer = JsonRpcTimers
+      .createTimer("JsonRpcClient-hearbeatExec");
 
-  private Future<?> heartbeat;
+  private Timeout heartbeat;
+  // Incremented each time the heartbeat is enabled, to ignore the pongs of previous heartbeats
+  private int heartbeatGeneration;
+  private final AtomicBoolean pingInFlight = new AtomicBoolean();
 
   public void setServerRequestHandler(JsonRpcHandler<?> handler) {
     this.handlerManager.setJsonRpcHandler(handler);
@@ -100,6 +124,40 @@ public abstract class JsonRpcClient implements JsonRpcRequestSender, Closeable {
     this.label = "[" + label + "] ";
   }
 
+  /**
+   * Sets the codec used to serialize and parse JSON-RPC messages. By default, the codec configured
+   * with the property {@value MessageCodecs#CODEC_PROPERTY} is used.
+   *
+   * @param codec
+   *          the message codec
+   */
+  public void setMessageCodec(MessageCodec codec) {
+    this.codec = codec;
+  }
+
+  public MessageCodec getMessageCodec() {
+    return codec;
+  }
+
+  /**
+   * Sets the metrics where the latencies of requests and the traffic of this client are recorded.
+   * By default, metrics are enabled unless the property
+   * {@value JsonRpcClientMetrics#ENABLED_PROPERTY} is false.
+   *
+   * @param metrics
+   *          the metrics, or null to disable them
+   */
+  public void setMetrics(JsonRpcClientMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return the metrics of this client, or null if they are disabled
+   */
+  public JsonRpcClientMetrics getMetrics() {
+    return metrics;
+  }
+
   @Override
   public <R> R sendRequest(String method, Class<R> resultClass) throws IOException {
     return rsHelper.sendRequest(method, resultClass);
@@ -241,61 +299,194 @@ public abstract class JsonRpcClient implements JsonRpcRequestSender, Closeable {
     this.enableHeartbeat(this.heartbeatInterval);
   }
 
+  /**
+   * Enables or disables the adaptive heartbeat, used from the next call to
+   * {@link #enableHeartbeat(int)}. Its default value is given by the property
+   * {@value #ADAPTIVE_HEARTBEAT_PROPERTY}.
+   *
+   * With adaptive heartbeat, the client asks the server in the first ping to consider any message
+   * as a sign of liveness. If the server accepts it, a ping is skipped when other messages have
+   * been sent or received in the last interval. Servers not supporting it ignore the request, and
+   * then a ping is sent in every interval as usual.
+   */
+  public void setAdaptiveHeartbeat(boolean adaptiveHeartbeat) {
+    this.adaptiveHeartbeat = adaptiveHeartbeat;
+  }
+
+  public boolean isAdaptiveHeartbeat() {
+    return adaptiveHeartbeat;
+  }
+
+  /**
+   * @return true if the server has accepted the adaptive heartbeat
+   */
+  public boolean isAdaptiveHeartbeatAccepted() {
+    return adaptiveHeartbeatAccepted;
+  }
+
+  /**
+   * Records that a message has been sent to the server. Used by transports to skip unneeded pings
+   * when the adaptive heartbeat is enabled.
+   */
+  protected void messageSent() {
+    lastMessageSent = System.nanoTime();
+  }
+
+  /**
+   * Records that a message has been received from the server. Used by transports to skip unneeded
+   * pings when the adaptive heartbeat is enabled.
+   */
+  protected void messageReceived() {
+    lastMessageReceived = System.nanoTime();
+  }
+
+  /**
+   * A ping can be skipped if a message has been sent since the last ping, in the last interval.
+   * Messages received are also enough while the server has received something in the last two
+   * intervals, because the server closes the session after three intervals without messages.
+   */
+  private boolean isPingNeeded(long intervalNanos) {
+
+    if (!adaptiveHeartbeatAccepted) {
+      return true;
+    }
+
+    long now = System.nanoTime();
+    long sent = lastMessageSent;
+    long received = lastMessageReceived;
+    long ping = lastPing;
+
+    if (sent - ping > 0 && now - sent < intervalNanos) {
+      return false;
+    }
+
+    long lastSeenByServer = sent - ping > 0 ? sent : ping;
+
+    return !(received - ping > 0 && now - received < intervalNanos
+        && now - lastSeenByServer < 2 * intervalNanos);
+  }
+
   public synchronized void enableHeartbeat(int interval) {
 
     if (heartbeat == null || heartbeat.isCancelled()) {
 
       pingParams = new PingParams();
       pingParams.interval = interval;
+      if (adaptiveHeartbeat) {
+        pingParams.adaptive = true;
+      }
+      adaptiveHeartbeatAccepted = false;
 
       log.debug("{} Enabling heartbeat with an interval of {} ms", label, interval);
       this.heartbeating = true;
       this.heartbeatInterval = interval;
 
-      if (hearbeatExec.isShutdown()) {
-        hearbeatExec = createScheduler();
-      }
+      final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+      final int generation = ++heartbeatGeneration;
+      pingInFlight.set(false);
 
-      heartbeat = hearbeatExec.scheduleAtFixedRate(new Runnable() {
+      // The ping is sent asynchronously, so the shared timer thread is not blocked waiting for the
+      // pong. A ping is not sent while the previous one is waiting for its response, which fails
+      // after the request timeout
+      heartbeat = heartbeatTimer.scheduleAtFixedRate(new Runnable() {
         @Override
         public void run() {
-          try {
-            JsonObject response = sendRequest(METHOD_PING, pingParams).getAsJsonObject();
 
-            pingParams = null;
+          if (!isPingNeeded(intervalNanos)) {
+            log.trace("{} Skipping heartbeat. Messages exchanged with server in last {} ms",
+                label, heartbeatInterval);
+            return;
+          }
 
-            if (!PONG.equals(response.get(PONG_PAYLOAD).getAsString())) {
-              closeHeartbeatOnFailure();
-            }
-          } catch (Exception e) {
-            log.warn("{} Error sending heartbeat to server. Exception: {}", label, e.getMessage());
-            closeHeartbeatOnFailure();
+          if (!pingInFlight.compareAndSet(false, true)) {
+            log.trace("{} Skipping heartbeat. Previous ping still waiting for response", label);
+            return;
           }
+
+          sendPing(generation);
         }
       }, 0, heartbeatInterval, MILLISECONDS);
     }
   }
 
-  private ScheduledExecutorService createScheduler() {
-    return Executors.newSingleThreadScheduledExecutor(
-        ThreadFactoryCreator.create("JsonRpcClient-hearbeatExec"));
+  private void sendPing(final int generation) {
+
+    final PingParams params = pingParams;
+
+    sendRequest(METHOD_PING, params != null ? JsonUtils.toJsonObject(params) : null,
+        new Continuation<JsonElement>() {
+          @Override
+          public void onSuccess(JsonElement result) {
+
+            pingInFlight.set(false);
+            lastPing = System.nanoTime();
+
+            try {
+              JsonObject response = result.getAsJsonObject();
+
+              if (params != null) {
+                pingParams = null;
+                adaptiveHeartbeatAccepted = params.adaptive != null
+                    && response.has(ADAPTIVE_PROPERTY)
+                    && response.get(ADAPTIVE_PROPERTY).getAsBoolean();
+                if (adaptiveHeartbeatAccepted) {
+                  log.debug("{} Server accepted adaptive heartbeat", label);
+                }
+              }
+
+              if (!PONG.equals(response.get(PONG_PAYLOAD).getAsString())) {
+                closeHeartbeatOnFailure(generation);
+              }
+            } catch (Exception e) {
+              log.warn("{} Invalid heartbeat response {}", label, result);
+              closeHeartbeatOnFailure(generation);
+            }
+          }
+
+          @Override
+          public void onError(Throwable cause) {
+            pingInFlight.set(false);
+            log.warn("{} Error sending heartbeat to server. Exception: {}", label,
+                cause.getMessage());
+            closeHeartbeatOnFailure(generation);
+          }
+        });
   }
 
   /**
-   * Cancels the heartbeat task and closes the client
+   * Cancels the heartbeat task and closes the client. The client is closed, and reconnected, in
+   * the blocking executor of {@link JsonRpcTimers}, because this method can be invoked from a
+   * thread of the shared timer.
+   *
+   * @param generation
+   *          generation of the heartbeat that failed. Nothing is done if the heartbeat has been
+   *          disabled or enabled again since then
    */
-  private final void closeHeartbeatOnFailure() {
-    log.warn("{} Stopping heartbeat and closing client: failure during heartbeat mechanism", label);
+  private void closeHeartbeatOnFailure(int generation) {
+
+    synchronized (this) {
+      if (generation != heartbeatGeneration || heartbeat == null) {
+        return;
+      }
 
-    heartbeat.cancel(false);
-    heartbeat = null;
-    hearbeatExec.shutdownNow();
+      log.warn("{} Stopping heartbeat and closing client: failure during heartbeat mechanism",
+          label);
 
-    try {
-      closeWithReconnection();
-    } catch (IOException e) {
-      log.warn("{} Exception while closing client: {}", label, e.getMessage());
+      heartbeat.cancel();
+      heartbeat = null;
+      heartbeatTimer.release();
     }
+
+    JsonRpcTimers.getBlockingExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          closeWithReconnection();
+        } catch (IOException e) {
+          log.warn("{} Exception while closing client: {}", label, e.getMessage());
+        }
+      }
+    });
   }
 
   /**
@@ -311,17 +502,19 @@ public abstract class JsonRpcClient implements JsonRpcRequestSender, Closeable {
    * task has been cancelled.
    *
    * @param mayInterruptIfRunning
-   *          Signals the task to interrupt even if it is already running
+   *          Kept for compatibility. Heartbeat tasks already running are never interrupted,
+   *          because they can be executed by threads shared by all clients (see
+   *          {@link JsonRpcTimers})
    */
-  public void disableHeartbeat(boolean mayInterruptIfRunning) {
+  public synchronized void disableHeartbeat(boolean mayInterruptIfRunning) {
     if (heartbeating) {
       log.debug("Disabling heartbeat. Interrupt if running is {}", mayInterruptIfRunning);
       this.heartbeating = false;
       if (heartbeat != null) {
-        heartbeat.cancel(mayInterruptIfRunning);
+        heartbeat.cancel();
         heartbeat = null;
       }
-      hearbeatExec.shutdownNow();
+      heartbeatTimer.release();
     }
   }
 
@@ -342,6 +535,9 @@ public abstract class JsonRpcClient implements JsonRpcRequestSender, Closeable {
     log.debug("Closing JsonRpcClient by client");
     this.closedByClient = true;
     this.disableHeartbeat(true);
+    if (metrics != null) {
+      metrics.unregisterMBean();
+    }
   }
 
   protected void closeWithReconnection() throws IOException {
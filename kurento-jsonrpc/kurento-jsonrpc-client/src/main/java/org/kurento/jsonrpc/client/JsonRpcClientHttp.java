@@ -14,22 +14,37 @@
  * limitations under the License.
  *
  */
-
 package org.kurento.jsonrpc.client;
 
-import static org.kurento.jsonrpc.JsonUtils.fromJsonResponse;
-import static org.kurento.jsonrpc.JsonUtils.toJson;
-
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.kurento.commons.PropertiesManager;
+import org.kurento.commons.ThreadFactoryCreator;
 import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.TransportException;
 import org.kurento.jsonrpc.internal.HttpResponseSender;
 import org.kurento.jsonrpc.internal.JsonRpcRequestSenderHelper;
 import org.kurento.jsonrpc.internal.client.ClientSession;
+import org.kurento.jsonrpc.message.Message;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.jsonrpc.message.Response;
 import org.kurento.jsonrpc.message.ResponseError;
@@ -39,18 +54,66 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.JsonElement;
 import com.google.gson.reflect.TypeToken;
 
+/**
+ * JSON-RPC client over HTTP, for environments where WebSockets are not available.
+ *
+ * Requests are posted through a pool of keep-alive connections, and bodies bigger than 1024 bytes
+ * (property {@value #GZIP_THRESHOLD_PROPERTY}) are compressed with gzip. Responses are
+ * decompressed transparently. Asynchronous requests are executed in a thread pool as big as the connection
+ * pool.
+ *
+ * Requests from the server are received with long polling: a poll request is held by the server
+ * until it has messages for the client or its poll timeout expires, and a new one is sent as soon
+ * as it is answered. Responses to server requests are sent in the next poll, or in an extra poll
+ * sent immediately if a poll is being held.
+ */
 public class JsonRpcClientHttp extends JsonRpcClient {
 
-  private final Logger log = LoggerFactory.getLogger(JsonRpcClient.class);
+  private static final Logger log = LoggerFactory.getLogger(JsonRpcClientHttp.class);
 
-  private Thread longPoolingThread;
-  private String url;
+  public static final String TIMEOUT_PROPERTY = "jsonRpcClientHttp.timeout";
+  public static final String POLL_TIMEOUT_PROPERTY = "jsonRpcClientHttp.pollTimeout";
+  public static final String MAX_CONNECTIONS_PROPERTY = "jsonRpcClientHttp.maxConnections";
+  public static final String GZIP_THRESHOLD_PROPERTY = "jsonRpcClientHttp.gzipThreshold";
 
-  private HttpResponseSender rs;
+  private static final long POLL_RETRY_DELAY_MILLIS = 1000;
+
+  private final String url;
+  private final HttpResponseSender rs;
+  private final CloseableHttpClient httpClient;
+  private final ExecutorService asyncExecutor;
+  private final AtomicBoolean responsesFlushScheduled = new AtomicBoolean();
+
+  private final int gzipThreshold = PropertiesManager.getProperty(GZIP_THRESHOLD_PROPERTY, 1024);
+  private final long pollTimeout = PropertiesManager.getProperty(POLL_TIMEOUT_PROPERTY, 60000);
+  private volatile long requestTimeout = PropertiesManager.getProperty(TIMEOUT_PROPERTY, 60000);
+
+  private Thread pollingThread;
+  private volatile HttpPost currentPoll;
 
   public JsonRpcClientHttp(String url) {
+
     this.url = url;
-    this.rs = new HttpResponseSender();
+
+    int maxConnections = PropertiesManager.getProperty(MAX_CONNECTIONS_PROPERTY, 8);
+
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+    this.httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+
+    this.asyncExecutor = Executors.newFixedThreadPool(maxConnections,
+        ThreadFactoryCreator.create("JsonRpcClientHttp-async"));
+
+    this.rs = new HttpResponseSender() {
+      @Override
+      public synchronized void sendResponse(Message message) throws IOException {
+        super.sendResponse(message);
+        scheduleResponsesFlush();
+      }
+    };
+
     this.rsHelper = new JsonRpcRequestSenderHelper() {
       @Override
       public <P, R> Response<R> internalSendRequest(Request<P> request, Class<R> resultClass)
@@ -59,9 +122,33 @@ public class JsonRpcClientHttp extends JsonRpcClient {
       }
 
       @Override
-      protected void internalSendRequest(Request<? extends Object> request,
-          Class<JsonElement> class1, Continuation<Response<JsonElement>> continuation) {
-        throw new UnsupportedOperationException("Async client int local is unavailable");
+      protected void internalSendRequest(final Request<? extends Object> request,
+          final Class<JsonElement> resultClass,
+          final Continuation<Response<JsonElement>> continuation) {
+
+        try {
+          asyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+              Response<JsonElement> response;
+              try {
+                response = internalSendRequestHttp(request, resultClass);
+              } catch (Exception e) {
+                continuation.onError(e);
+                return;
+              }
+
+              try {
+                continuation.onSuccess(response);
+              } catch (Exception e) {
+                log.error("{} Exception while processing response", label, e);
+              }
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          continuation.onError(new TransportException(label + " Client closed", e));
+        }
       }
     };
   }
@@ -70,62 +157,109 @@ public class JsonRpcClientHttp extends JsonRpcClient {
 
     String sessionId = response.getSessionId();
 
+    if (sessionId == null) {
+      return;
+    }
+
     rsHelper.setSessionId(sessionId);
 
-    if (session == null) {
-      session = new ClientSession(sessionId, registerInfo, this);
+    synchronized (this) {
+      if (session == null) {
+        session = new ClientSession(sessionId, registerInfo, this);
 
-      handlerManager.afterConnectionEstablished(session);
+        handlerManager.afterConnectionEstablished(session);
 
-      startPooling();
+        startPolling();
+      }
     }
   }
 
-  private void startPooling() {
-    this.longPoolingThread = new Thread() {
+  private void startPolling() {
+    this.pollingThread = new Thread("JsonRpcClientHttp-polling") {
       @Override
       public void run() {
-        longPooling();
+        longPolling();
       }
     };
 
-    this.longPoolingThread.start();
+    this.pollingThread.setDaemon(true);
+    this.pollingThread.start();
   }
 
-  private void longPooling() {
+  private void longPolling() {
 
-    while (true) {
+    while (!Thread.currentThread().isInterrupted()) {
 
       try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) {
-        log.debug("Long polling thread interrupted", e);
-      }
 
-      if (Thread.interrupted()) {
-        break;
+        poll();
+
+      } catch (Exception e) {
+
+        if (Thread.currentThread().isInterrupted() || closedByClient) {
+          break;
+        }
+
+        // TODO Decide what to do in this case. If the net connection is
+        // lost, this will retry indefinitely
+        log.warn("{} Exception when waiting for server messages (long-polling). Retrying in {} ms",
+            label, POLL_RETRY_DELAY_MILLIS, e);
+
+        try {
+          Thread.sleep(POLL_RETRY_DELAY_MILLIS);
+        } catch (InterruptedException e1) {
+          break;
+        }
       }
+    }
 
-      try {
+    log.debug("{} Long polling finished", label);
+  }
 
-        JsonElement requestsListJsonObject = this.sendRequest(Request.POLL_METHOD_NAME,
-            rs.getResponseListToSend(), JsonElement.class);
+  /**
+   * Sends a poll with the pending responses to server requests, and processes the requests
+   * received from the server.
+   */
+  private void poll() throws IOException {
 
-        log.info("Response from pool: {}", requestsListJsonObject);
+    JsonElement requestsListJsonObject = this.sendRequest(Request.POLL_METHOD_NAME,
+        rs.getResponseListToSend(), JsonElement.class);
 
-        Type collectionType = new TypeToken<List<Request<JsonElement>>>() {
-        }.getType();
+    log.debug("{} Response from poll: {}", label, requestsListJsonObject);
 
-        List<Request<JsonElement>> requestList = JsonUtils.fromJson(requestsListJsonObject,
-            collectionType);
+    if (requestsListJsonObject == null || !requestsListJsonObject.isJsonArray()) {
+      return;
+    }
 
-        processServerRequests(requestList);
+    Type collectionType = new TypeToken<List<Request<JsonElement>>>() {
+    }.getType();
 
-      } catch (IOException e) {
-        // TODO Decide what to do in this case. If the net connection is
-        // lost, this will retry indefinitely
-        log.error("Exception when waiting for events (long-polling). Retry", e);
-      }
+    List<Request<JsonElement>> requestList = JsonUtils.fromJson(requestsListJsonObject,
+        collectionType);
+
+    processServerRequests(requestList);
+  }
+
+  private void scheduleResponsesFlush() {
+
+    if (currentPoll == null || !responsesFlushScheduled.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      asyncExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          responsesFlushScheduled.set(false);
+          try {
+            poll();
+          } catch (Exception e) {
+            log.warn("{} Exception sending responses to server requests", label, e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      responsesFlushScheduled.set(false);
     }
   }
 
@@ -138,28 +272,89 @@ public class JsonRpcClientHttp extends JsonRpcClient {
   private <P, R> Response<R> internalSendRequestHttp(Request<P> request, Class<R> resultClass)
       throws IOException {
 
-    String resultJson = org.apache.http.client.fluent.Request.Post(url)
-        .bodyString(toJson(request), ContentType.APPLICATION_JSON).execute().returnContent()
-        .asString();
+    boolean isPoll = Request.POLL_METHOD_NAME.equals(request.getMethod());
+
+    String requestJson = codec.encode(request);
+
+    HttpPost post = createPost(requestJson, isPoll ? pollTimeout : requestTimeout);
+
+    if (isPoll) {
+      currentPoll = post;
+    } else {
+      log.debug("{} Req-> {}", label, requestJson);
+    }
+
+    String resultJson;
+    try (CloseableHttpResponse httpResponse = httpClient.execute(post)) {
+
+      int status = httpResponse.getStatusLine().getStatusCode();
+      HttpEntity entity = httpResponse.getEntity();
+      resultJson = entity != null ? EntityUtils.toString(entity, StandardCharsets.UTF_8) : null;
+
+      if (status != 200) {
+        throw new TransportException(label + " Server answered with HTTP status " + status
+            + " to request " + requestJson);
+      }
+
+    } finally {
+      if (isPoll) {
+        currentPoll = null;
+      }
+    }
+
+    if (request.getId() == null) {
+      return null;
+    }
 
     if (resultJson == null || resultJson.trim().isEmpty()) {
-      return new Response<>(request.getId(), new ResponseError(3,
-          "The server send an empty response"));
+      return new Response<>(request.getId(),
+          new ResponseError(3, "The server send an empty response"));
+    }
+
+    if (!isPoll) {
+      log.debug("{} <-Res {}", label, resultJson.trim());
     }
 
-    Response<R> response = fromJsonResponse(resultJson, resultClass);
+    Response<R> response = codec.decodeResponse(resultJson, resultClass);
 
     updateSession(response);
 
     return response;
   }
 
+  private HttpPost createPost(String body, long socketTimeout) {
+
+    HttpPost post = new HttpPost(url);
+
+    post.setConfig(RequestConfig.custom().setConnectTimeout(connectionTimeout)
+        .setConnectionRequestTimeout(connectionTimeout).setSocketTimeout((int) socketTimeout)
+        .build());
+
+    HttpEntity entity = new StringEntity(body, ContentType.APPLICATION_JSON);
+    if (body.length() >= gzipThreshold) {
+      entity = new GzipCompressingEntity(entity);
+    }
+    post.setEntity(entity);
+
+    return post;
+  }
+
   @Override
   public void close() {
-    if (this.longPoolingThread != null) {
-      log.info("Interrupted!!!");
-      this.longPoolingThread.interrupt();
+
+    closedByClient = true;
+
+    if (this.pollingThread != null) {
+      this.pollingThread.interrupt();
+    }
+
+    HttpPost poll = currentPoll;
+    if (poll != null) {
+      poll.abort();
     }
+
+    asyncExecutor.shutdown();
+
     handlerManager.afterConnectionClosed(session, "Client closed connection");
     session = null;
     try {
@@ -167,15 +362,22 @@ public class JsonRpcClientHttp extends JsonRpcClient {
     } catch (IOException e) {
       log.error("Exception while executing close from base class JsonRpcClient", e);
     }
+
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      log.warn("{} Exception closing HTTP client", label, e);
+    }
   }
 
   @Override
   public void connect() throws IOException {
 
-    try {
+    HttpPost post = createPost("", connectionTimeout);
+
+    try (CloseableHttpResponse httpResponse = httpClient.execute(post)) {
 
-      org.apache.http.client.fluent.Request.Post(url).bodyString("", ContentType.APPLICATION_JSON)
-      .execute();
+      EntityUtils.consume(httpResponse.getEntity());
 
     } catch (ClientProtocolException e) {
       // Silence http connection exception. This indicate that server is
@@ -184,8 +386,8 @@ public class JsonRpcClientHttp extends JsonRpcClient {
   }
 
   @Override
-  public void setRequestTimeout(long requesTimeout) {
-    log.warn("setRequestTimeout(...) method will be ignored");
+  public void setRequestTimeout(long requestTimeout) {
+    this.requestTimeout = requestTimeout;
   }
 
 }
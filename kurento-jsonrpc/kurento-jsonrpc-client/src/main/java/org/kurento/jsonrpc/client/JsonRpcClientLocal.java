@@ -18,37 +18,75 @@
 package org.kurento.jsonrpc.client;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import org.kurento.commons.PropertiesManager;
+import org.kurento.jsonrpc.JsonRpcException;
 import org.kurento.jsonrpc.JsonRpcHandler;
 import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.TransportException;
 import org.kurento.jsonrpc.internal.JsonRpcHandlerManager;
 import org.kurento.jsonrpc.internal.JsonRpcRequestSenderHelper;
 import org.kurento.jsonrpc.internal.client.ClientSession;
 import org.kurento.jsonrpc.internal.client.TransactionImpl;
 import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
 import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.MessageUtils;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.jsonrpc.message.Response;
 import org.kurento.jsonrpc.message.ResponseError;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+/**
+ * Client that sends requests to a handler in the same JVM. The way messages are passed to the
+ * handler depends on the {@link Mode}:
+ * <ul>
+ * <li>JSON (default): requests and responses are serialized to JSON and parsed back, as if they
+ * were sent through the network.</li>
+ * <li>REFERENCE: request params and response results are passed by reference. Params are only
+ * converted if the handler expects another type.</li>
+ * <li>DEEP_COPY: as REFERENCE, but params and results are deep copied, so neither side can modify
+ * the objects of the other one.</li>
+ * </ul>
+ * In REFERENCE and DEEP_COPY modes, asynchronous requests are completed when the handler sends the
+ * response, even if it does it later from another thread (see {@link org.kurento.jsonrpc.Transaction#startAsync()}).
+ * The default mode can be configured with the property {@value #MODE_PROPERTY}.
+ */
 public class JsonRpcClientLocal extends JsonRpcClient {
 
+  public enum Mode {
+    JSON, REFERENCE, DEEP_COPY
+  }
+
+  public static final String MODE_PROPERTY = "jsonRpcClientLocal.mode";
+
   private static Logger log = LoggerFactory.getLogger(JsonRpcClientLocal.class);
 
+  private static final long DEFAULT_REQUEST_TIMEOUT = 10000;
+
   private JsonRpcHandler<? extends Object> remoteHandler;
   private final JsonRpcHandlerManager remoteHandlerManager = new JsonRpcHandlerManager();
+  private final Class<?> remoteParamsType;
+  private final Mode mode;
+  private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
 
   public <F> JsonRpcClientLocal(JsonRpcHandler<? extends Object> handler) {
+    this(handler, PropertiesManager.getProperty(MODE_PROPERTY, Mode.JSON));
+  }
+
+  public JsonRpcClientLocal(JsonRpcHandler<? extends Object> handler, Mode mode) {
 
     this.remoteHandler = handler;
     this.remoteHandlerManager.setJsonRpcHandler(remoteHandler);
+    this.remoteParamsType = JsonRpcHandlerManager.getParamsType(handler.getHandlerType());
+    this.mode = mode;
 
     session = new ClientSession("XXX", null, this);
 
@@ -56,20 +94,32 @@ public class JsonRpcClientLocal extends JsonRpcClient {
       @Override
       public <P, R> Response<R> internalSendRequest(Request<P> request, Class<R> resultClass)
           throws IOException {
-        return localSendRequest(request, resultClass);
+        if (JsonRpcClientLocal.this.mode == Mode.JSON) {
+          return localSendRequest(request, resultClass);
+        } else {
+          return referenceSendRequest(request, resultClass);
+        }
       }
 
       @Override
       protected void internalSendRequest(Request<? extends Object> request,
           Class<JsonElement> resultClass, Continuation<Response<JsonElement>> continuation) {
-        Response<JsonElement> result = localSendRequest(request, resultClass);
-        if (result != null) {
-          continuation.onSuccess(result);
+        if (JsonRpcClientLocal.this.mode == Mode.JSON) {
+          Response<JsonElement> result = localSendRequest(request, resultClass);
+          if (result != null) {
+            continuation.onSuccess(result);
+          }
+        } else {
+          referenceSendRequest(request, continuation);
         }
       }
     };
   }
 
+  public Mode getMode() {
+    return mode;
+  }
+
   @SuppressWarnings({ "unchecked", "rawtypes" })
   private <R, P> Response<R> localSendRequest(Request<P> request, Class<R> resultClass) {
     // Simulate sending json string for net
@@ -81,73 +131,8 @@ public class JsonRpcClientLocal extends JsonRpcClient {
 
     final Response<JsonObject>[] response = new Response[1];
 
-    ClientSession clientSession = new ClientSession(session.getSessionId(), null,
-        new JsonRpcRequestSenderHelper() {
-
-      @Override
-      protected void internalSendRequest(Request<? extends Object> request,
-          Class<JsonElement> clazz, final Continuation<Response<JsonElement>> continuation) {
-            handlerManager.handleRequest(session, (Request<JsonElement>) request,
-                new ResponseSender() {
-                  @Override
-                  public void sendResponse(Message message) throws IOException {
-                    continuation.onSuccess((Response<JsonElement>) message);
-                  }
-
-                  @Override
-                  public void sendPingResponse(Message message) throws IOException {
-                    sendResponse(message);
-                  }
-                });
-      }
-
-      @Override
-      protected <P2, R2> Response<R2> internalSendRequest(Request<P2> request,
-          Class<R2> resultClass) throws IOException {
-
-        final Object[] response = new Object[1];
-
-            final CountDownLatch responseLatch = new CountDownLatch(1);
-
-            handlerManager.handleRequest(session, (Request<JsonElement>) request,
-                new ResponseSender() {
-                  @Override
-                  public void sendResponse(Message message) throws IOException {
-                    response[0] = message;
-                    responseLatch.countDown();
-                  }
-
-                  @Override
-                  public void sendPingResponse(Message message) throws IOException {
-                    sendResponse(message);
-                  }
-                });
-
-            Response<R2> response2 = (Response<R2>) response[0];
-
-            try {
-              responseLatch.await(10, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-              throw new RuntimeException(e);
-            }
-
-            log.debug("<-- {}", response2);
-
-            Object result = response2.getResult();
-
-            if (result == null || resultClass.isAssignableFrom(result.getClass())) {
-              return response2;
-            } else if (resultClass == JsonElement.class) {
-              response2.setResult((R2) JsonUtils.toJsonElement(result));
-              return response2;
-            } else {
-              throw new ClassCastException("Class " + result + " cannot be converted to "
-                  + resultClass);
-            }
-      }
-    });
-
-    TransactionImpl t = new TransactionImpl(clientSession, newRequest, new ResponseSender() {
+    TransactionImpl t = new TransactionImpl(createRemoteSession(), newRequest,
+        new ResponseSender() {
 
       @Override
       public void sendResponse(Message message) throws IOException {
@@ -189,6 +174,289 @@ public class JsonRpcClientLocal extends JsonRpcClient {
 
   }
 
+  /**
+   * Receives the response of a request sent in REFERENCE or DEEP_COPY mode. If there is a
+   * continuation, it is invoked in the thread that sends the response; otherwise the response is
+   * kept for the thread waiting for it.
+   */
+  private class LocalCall implements ResponseSender {
+
+    private final Request<?> request;
+    private final Continuation<Response<JsonElement>> continuation;
+    private Response<?> response;
+
+    public LocalCall(Request<?> request, Continuation<Response<JsonElement>> continuation) {
+      this.request = request;
+      this.continuation = continuation;
+    }
+
+    @Override
+    public void sendResponse(Message message) throws IOException {
+
+      Response<?> localResponse = (Response<?>) message;
+
+      if (continuation == null) {
+        synchronized (this) {
+          response = localResponse;
+          notifyAll();
+        }
+        return;
+      }
+
+      Response<JsonElement> jsonResponse;
+      try {
+        jsonResponse = toLocalResponse(localResponse, request.getId(), JsonElement.class);
+      } catch (Exception e) {
+        continuation.onError(e);
+        return;
+      }
+      continuation.onSuccess(jsonResponse);
+    }
+
+    @Override
+    public void sendPingResponse(Message message) throws IOException {
+      sendResponse(message);
+    }
+
+    synchronized Response<?> awaitResponse() {
+
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(requestTimeout);
+      try {
+        while (response == null) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            throw new TransportException("Timeout of " + requestTimeout
+                + " milliseconds waiting from response to request " + request);
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new JsonRpcException("Interrupted while waiting for a response", e);
+      }
+      return response;
+    }
+  }
+
+  private <P, R> Response<R> referenceSendRequest(Request<P> request, Class<R> resultClass) {
+
+    LocalCall call = new LocalCall(request, null);
+
+    Response<R> error = dispatchToRemoteHandler(request, call);
+    if (error != null) {
+      return error;
+    }
+
+    if (request.getId() == null) {
+      return null;
+    }
+
+    return toLocalResponse(call.awaitResponse(), request.getId(), resultClass);
+  }
+
+  private void referenceSendRequest(Request<?> request,
+      Continuation<Response<JsonElement>> continuation) {
+
+    Response<JsonElement> error = dispatchToRemoteHandler(request,
+        new LocalCall(request, request.getId() != null ? continuation : null));
+
+    if (error != null) {
+      continuation.onSuccess(error);
+    }
+  }
+
+  /**
+   * Invokes the remote handler with a request sharing (or, in DEEP_COPY mode, copying) the params
+   * of the original one.
+   *
+   * @return an error response if the handler failed, or null if the response will be sent to the
+   *         call
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private <R> Response<R> dispatchToRemoteHandler(Request<?> request, LocalCall call) {
+
+    log.debug("--> {}", request);
+
+    Object params = request.getParams();
+    if (mode == Mode.DEEP_COPY) {
+      params = deepCopy(params);
+    }
+    if (params != null && !remoteParamsType.isInstance(params)
+        && !(params instanceof JsonElement)) {
+      params = JsonUtils.toJsonElement(params);
+    }
+
+    Request<Object> localRequest = new Request<>(request.getSessionId(), request.getId(),
+        request.getMethod(), params);
+
+    TransactionImpl t = new TransactionImpl(createRemoteSession(), localRequest, call);
+
+    try {
+
+      ((JsonRpcHandler) remoteHandler).handleRequest(t,
+          MessageUtils.convertRequest(localRequest, remoteParamsType));
+
+      if (!t.isAsync() && request.getId() != null && t.setRespondedIfNot()) {
+        // Empty response, as sent by JsonRpcHandlerManager
+        call.sendResponse(new Response<>(request.getId(), ""));
+      }
+
+    } catch (Exception e) {
+      if (request.getId() == null) {
+        log.warn("Exception processing notification {}", request, e);
+        return null;
+      }
+      return new Response<>(request.getId(), ResponseError.newFromException(e));
+    }
+
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <R> Response<R> toLocalResponse(Response<?> response, Integer id, Class<R> resultClass) {
+
+    log.debug("<-- {}", response);
+
+    if (response.getError() != null) {
+      return new Response<>(response.getSessionId(), id, response.getError());
+    }
+
+    Object result = response.getResult();
+    if (mode == Mode.DEEP_COPY) {
+      result = deepCopy(result);
+    }
+
+    R converted;
+    if (result == null || resultClass.isInstance(result)) {
+      converted = (R) result;
+    } else if (resultClass == JsonElement.class) {
+      converted = (R) JsonUtils.toJsonElement(result);
+    } else if (result instanceof JsonElement) {
+      converted = JsonUtils.fromJson((JsonElement) result, resultClass);
+    } else {
+      converted = JsonUtils.fromJson(JsonUtils.toJsonElement(result), resultClass);
+    }
+
+    return new Response<R>(response.getSessionId(), id, converted);
+  }
+
+  /**
+   * Copies a value without serializing it to text. JSON trees are copied node by node and other
+   * mutable objects are copied through a JSON tree; strings, numbers and booleans are immutable,
+   * so they are shared.
+   */
+  private static Object deepCopy(Object value) {
+
+    if (value == null || value instanceof String || value instanceof Number
+        || value instanceof Boolean) {
+      return value;
+    }
+
+    if (value instanceof JsonElement) {
+      return deepCopy((JsonElement) value);
+    }
+
+    return JsonUtils.fromJson(JsonUtils.toJsonElement(value), value.getClass());
+  }
+
+  private static JsonElement deepCopy(JsonElement element) {
+
+    if (element.isJsonObject()) {
+      JsonObject copy = new JsonObject();
+      for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+        copy.add(entry.getKey(), deepCopy(entry.getValue()));
+      }
+      return copy;
+    }
+
+    if (element.isJsonArray()) {
+      JsonArray copy = new JsonArray();
+      for (JsonElement item : element.getAsJsonArray()) {
+        copy.add(deepCopy(item));
+      }
+      return copy;
+    }
+
+    // Primitives and null are immutable
+    return element;
+  }
+
+  /**
+   * Creates the session seen by the remote handler. Requests sent by the handler through this
+   * session are processed by the handler of this client.
+   */
+  @SuppressWarnings("unchecked")
+  private ClientSession createRemoteSession() {
+
+    return new ClientSession(session.getSessionId(), null, new JsonRpcRequestSenderHelper() {
+
+      @Override
+      protected void internalSendRequest(Request<? extends Object> request,
+          Class<JsonElement> clazz, final Continuation<Response<JsonElement>> continuation) {
+        handlerManager.handleRequest(session, (Request<JsonElement>) request,
+            new ResponseSender() {
+              @Override
+              public void sendResponse(Message message) throws IOException {
+                continuation.onSuccess((Response<JsonElement>) message);
+              }
+
+              @Override
+              public void sendPingResponse(Message message) throws IOException {
+                sendResponse(message);
+              }
+            });
+      }
+
+      @Override
+      protected <P2, R2> Response<R2> internalSendRequest(Request<P2> request,
+          Class<R2> resultClass) throws IOException {
+
+        final Object[] response = new Object[1];
+
+        final CountDownLatch responseLatch = new CountDownLatch(1);
+
+        handlerManager.handleRequest(session, (Request<JsonElement>) request,
+            new ResponseSender() {
+              @Override
+              public void sendResponse(Message message) throws IOException {
+                response[0] = message;
+                responseLatch.countDown();
+              }
+
+              @Override
+              public void sendPingResponse(Message message) throws IOException {
+                sendResponse(message);
+              }
+            });
+
+        try {
+          if (!responseLatch.await(requestTimeout, TimeUnit.MILLISECONDS)) {
+            throw new TransportException("Timeout of " + requestTimeout
+                + " milliseconds waiting from response to request " + request);
+          }
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+
+        Response<R2> response2 = (Response<R2>) response[0];
+
+        log.debug("<-- {}", response2);
+
+        Object result = response2.getResult();
+
+        if (result == null || resultClass.isAssignableFrom(result.getClass())) {
+          return response2;
+        } else if (resultClass == JsonElement.class) {
+          response2.setResult((R2) JsonUtils.toJsonElement(result));
+          return response2;
+        } else {
+          throw new ClassCastException("Class " + result + " cannot be converted to "
+              + resultClass);
+        }
+      }
+    });
+  }
+
   @Override
   public void close() throws IOException {
     handlerManager.afterConnectionClosed(session, "Client close");
@@ -208,9 +476,13 @@ public class JsonRpcClientLocal extends JsonRpcClient {
 
   }
 
+  /**
+   * Configures the maximum time to wait for the response of a synchronous request. Only used in
+   * REFERENCE and DEEP_COPY modes, and for requests sent by the handler to this client.
+   */
   @Override
-  public void setRequestTimeout(long requesTimeout) {
-    log.warn("setRequestTimeout(...) method will be ignored");
+  public void setRequestTimeout(long requestTimeout) {
+    this.requestTimeout = requestTimeout;
   }
 
 }
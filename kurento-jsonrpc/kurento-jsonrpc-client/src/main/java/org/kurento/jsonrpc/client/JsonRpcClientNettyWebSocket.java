@@ -0,0 +1,478 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import javax.net.ssl.SSLException;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.commons.ThreadFactoryCreator;
+import org.kurento.jsonrpc.internal.ws.OutboundQueue;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+/**
+ * WebSocket JSON-RPC client built on Netty. All the instances in the JVM share the same
+ * {@link EventLoopGroup}, so the number of selector threads doesn't grow with the number of
+ * connections. Its size is configured with the property {@code jsonRpcClientNetty.eventLoopThreads}
+ * (0 means Netty's default, twice the number of processors).
+ *
+ * Outgoing messages are encoded into pooled buffers and written without blocking the caller. Write
+ * failures are logged; the connection loss is handled when the channel becomes inactive.
+ *
+ * Messages received are never processed in the event loop, because it is shared by every client:
+ * a blocking handler or continuation would stall all of them. They are processed in order in the
+ * dispatcher of the client (see {@link #dispatchInbound(Runnable)}), also when
+ * {@link #setConcurrentServerRequest(boolean)} is false. The channel stops reading while
+ * {@value #MAX_QUEUED_INBOUND_MESSAGES} messages are waiting to be processed.
+ *
+ * Netty is an optional dependency of this module, so applications using this transport have to
+ * include {@code io.netty:netty-codec-http} and {@code io.netty:netty-handler}.
+ */
+public class JsonRpcClientNettyWebSocket extends AbstractJsonRpcClientWebSocket {
+
+  private static final int MAX_PACKET_SIZE = 1000000;
+
+  private static final int MAX_HANDSHAKE_RESPONSE_SIZE = 8192;
+
+  private static final int MAX_QUEUED_INBOUND_MESSAGES = 1000;
+
+  private static final AtomicReferenceFieldUpdater<JsonRpcClientNettyWebSocket, Channel> CHANNEL =
+      AtomicReferenceFieldUpdater.newUpdater(JsonRpcClientNettyWebSocket.class, Channel.class,
+          "channel");
+
+  private static class EventLoopHolder {
+
+    private static final EventLoopGroup GROUP = new NioEventLoopGroup(
+        PropertiesManager.getProperty("jsonRpcClientNetty.eventLoopThreads", 0),
+        ThreadFactoryCreator.createDaemon("JsonRpcClientNetty-eventLoop"));
+  }
+
+  private class NettyWebSocketHandler extends SimpleChannelInboundHandler<Object> {
+
+    private final WebSocketClientHandshaker handshaker;
+    private ChannelPromise handshakeFuture;
+
+    private volatile int closeStatusCode = 1006;
+    private volatile String closeReason = "Connection closed";
+
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+
+    public NettyWebSocketHandler(WebSocketClientHandshaker handshaker) {
+      this.handshaker = handshaker;
+    }
+
+    public ChannelFuture handshakeFuture() {
+      return handshakeFuture;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+      handshakeFuture = ctx.newPromise();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+      handshaker.handshake(ctx.channel());
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+
+      if (!handshakeFuture.isDone()) {
+        handshakeFuture.tryFailure(new IOException("Connection closed during handshake"));
+      }
+
+      if (CHANNEL.compareAndSet(JsonRpcClientNettyWebSocket.this, ctx.channel(), null)) {
+
+        log.debug("Websocket disconnected because '{}' (status code {})", closeReason,
+            closeStatusCode);
+
+        // Handled after the messages received before, and out of the event loop
+        Runnable disconnection = new Runnable() {
+          @Override
+          public void run() {
+            handleReconnectDisconnection(closeStatusCode, closeReason);
+          }
+        };
+
+        try {
+          dispatchInbound(disconnection);
+        } catch (RejectedExecutionException e) {
+          disconnection.run();
+        }
+      }
+    }
+
+    /**
+     * Processes a message out of the event loop. Reading is suspended while too many messages are
+     * waiting, and resumed when half of them have been processed.
+     */
+    private void dispatchReceived(ChannelHandlerContext ctx, final Runnable processing) {
+
+      final Channel ch = ctx.channel();
+
+      if (queuedMessages.incrementAndGet() >= MAX_QUEUED_INBOUND_MESSAGES) {
+        ch.config().setAutoRead(false);
+        // The queue may have been drained before reading was suspended
+        resumeReadingIfDrained(ch);
+      }
+
+      try {
+
+        dispatchInbound(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              processing.run();
+            } finally {
+              queuedMessages.decrementAndGet();
+              resumeReadingIfDrained(ch);
+            }
+          }
+        });
+
+      } catch (RejectedExecutionException e) {
+        queuedMessages.decrementAndGet();
+        log.warn("{} Message received from {} can't be processed: {}. Closing connection", label,
+            url, e.getMessage());
+        closeReason = "Messages can't be processed";
+        ctx.close();
+      }
+    }
+
+    private void resumeReadingIfDrained(Channel ch) {
+      if (!ch.config().isAutoRead()
+          && queuedMessages.get() <= MAX_QUEUED_INBOUND_MESSAGES / 2) {
+        ch.config().setAutoRead(true);
+      }
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
+
+      if (!handshaker.isHandshakeComplete()) {
+        try {
+          handshaker.finishHandshake(ctx.channel(), (FullHttpResponse) msg);
+          setAcceptedSubprotocol(handshaker.actualSubprotocol());
+          handshakeFuture.setSuccess();
+        } catch (Exception e) {
+          handshakeFuture.tryFailure(e);
+        }
+        return;
+      }
+
+      if (msg instanceof TextWebSocketFrame) {
+
+        final String text = ((TextWebSocketFrame) msg).text();
+        dispatchReceived(ctx, new Runnable() {
+          @Override
+          public void run() {
+            receivedTextMessage(text);
+          }
+        });
+
+      } else if (msg instanceof BinaryWebSocketFrame) {
+
+        // Copied, because the frame is released when this method returns
+        final byte[] data = ByteBufUtil.getBytes(((BinaryWebSocketFrame) msg).content());
+        dispatchReceived(ctx, new Runnable() {
+          @Override
+          public void run() {
+            receivedBinaryMessage(data, 0, data.length);
+          }
+        });
+
+      } else if (msg instanceof PingWebSocketFrame) {
+
+        ctx.writeAndFlush(new PongWebSocketFrame(((PingWebSocketFrame) msg).content().retain()));
+
+      } else if (msg instanceof CloseWebSocketFrame) {
+
+        CloseWebSocketFrame closeFrame = (CloseWebSocketFrame) msg;
+        closeStatusCode = closeFrame.statusCode();
+        closeReason = closeFrame.reasonText();
+        ctx.close();
+
+      } else if (msg instanceof FullHttpResponse) {
+
+        log.warn("{} Unexpected HTTP response {} from server {}", label,
+            ((FullHttpResponse) msg).status(), url);
+      }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+      if (evt instanceof IdleStateEvent) {
+        log.debug("{} Websocket idle for {}ms. Closing connection", label, idleTimeout);
+        closeReason = "Idle timeout";
+        ctx.close();
+      } else {
+        super.userEventTriggered(ctx, evt);
+      }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      log.warn("{} Exception in websocket connection to {}", label, url, cause);
+      if (!handshakeFuture.isDone()) {
+        handshakeFuture.tryFailure(cause);
+      }
+      closeReason = cause.getMessage();
+      ctx.close();
+    }
+  }
+
+  private final ChannelFutureListener writeListener = new ChannelFutureListener() {
+    @Override
+    public void operationComplete(ChannelFuture future) {
+      if (!future.isSuccess()) {
+        log.warn("{} Exception sending message to {}", label, url, future.cause());
+      }
+    }
+  };
+
+  protected final SslContext sslContext;
+
+  protected volatile Channel channel;
+
+  public JsonRpcClientNettyWebSocket(String url) {
+    this(url, null, null);
+  }
+
+  public JsonRpcClientNettyWebSocket(String url, JsonRpcWSConnectionListener connectionListener) {
+    this(url, connectionListener, null);
+  }
+
+  /**
+   * @param sslContext
+   *          context used for wss:// urls. If null, a client context with the default trust
+   *          manager is created when needed
+   */
+  public JsonRpcClientNettyWebSocket(String url, JsonRpcWSConnectionListener connectionListener,
+      SslContext sslContext) {
+    super(url, connectionListener);
+    this.sslContext = sslContext;
+  }
+
+  @Override
+  protected void sendTextMessage(String jsonMessage) throws IOException {
+    sendTextMessage(jsonMessage, null);
+  }
+
+  @Override
+  protected void sendTextMessage(String jsonMessage, OutboundQueue.WriteCallback callback)
+      throws IOException {
+
+    Channel ch = activeChannel();
+    ByteBuf buf = ByteBufUtil.writeUtf8(ch.alloc(), jsonMessage);
+    ch.writeAndFlush(new TextWebSocketFrame(buf)).addListener(writeListener(callback));
+  }
+
+  @Override
+  protected void sendBinaryMessage(byte[] data) throws IOException {
+    sendBinaryMessage(data, null);
+  }
+
+  @Override
+  protected void sendBinaryMessage(byte[] data, OutboundQueue.WriteCallback callback)
+      throws IOException {
+
+    Channel ch = activeChannel();
+    // The encoded message is wrapped instead of copied into a pooled buffer: client frames are
+    // masked, so the frame encoder already copies the payload into a buffer of the pooled allocator
+    ch.writeAndFlush(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(data)))
+        .addListener(writeListener(callback));
+  }
+
+  private Channel activeChannel() {
+
+    Channel ch = channel;
+
+    if (ch == null || !ch.isActive()) {
+      throw new IllegalStateException(
+          label + " JsonRpcClient is disconnected from WebSocket server at '" + this.url + "'");
+    }
+
+    return ch;
+  }
+
+  /**
+   * Netty writes frames asynchronously, so write failures are notified to the callback from the
+   * event loop.
+   */
+  private ChannelFutureListener writeListener(final OutboundQueue.WriteCallback callback) {
+
+    if (callback == null) {
+      return writeListener;
+    }
+
+    return new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) {
+        writeListener.operationComplete(future);
+        if (future.isSuccess()) {
+          callback.writeSuccess();
+        } else {
+          callback.writeFailed(future.cause());
+        }
+      }
+    };
+  }
+
+  @Override
+  protected boolean isNativeClientConnected() {
+    Channel ch = channel;
+    return ch != null && ch.isActive();
+  }
+
+  @Override
+  protected void connectNativeClient() throws TimeoutException, Exception {
+
+    URI uri = new URI(url);
+
+    final boolean secure = "wss".equalsIgnoreCase(uri.getScheme());
+    final String host = uri.getHost();
+    final int port = uri.getPort() != -1 ? uri.getPort() : (secure ? 443 : 80);
+    final SslContext ssl = secure ? getSslContext() : null;
+
+    WebSocketClientHandshaker handshaker = WebSocketClientHandshakerFactory.newHandshaker(uri,
+        WebSocketVersion.V13, getRequestedSubprotocol(), true, new DefaultHttpHeaders(),
+        MAX_PACKET_SIZE);
+
+    final NettyWebSocketHandler handler = new NettyWebSocketHandler(handshaker);
+
+    Bootstrap bootstrap = new Bootstrap().group(EventLoopHolder.GROUP)
+        .channel(NioSocketChannel.class)
+        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, this.connectionTimeout)
+        .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+        .option(ChannelOption.TCP_NODELAY, true).handler(new ChannelInitializer<SocketChannel>() {
+          @Override
+          protected void initChannel(SocketChannel ch) {
+            ChannelPipeline pipeline = ch.pipeline();
+            if (ssl != null) {
+              pipeline.addLast(ssl.newHandler(ch.alloc(), host, port));
+            }
+            pipeline.addLast(new HttpClientCodec(),
+                new HttpObjectAggregator(MAX_HANDSHAKE_RESPONSE_SIZE),
+                new IdleStateHandler(0, 0, idleTimeout, TimeUnit.MILLISECONDS),
+                new WebSocketFrameAggregator(MAX_PACKET_SIZE), handler);
+          }
+        });
+
+    ChannelFuture connectFuture = bootstrap.connect(host, port);
+
+    if (!connectFuture.await(this.connectionTimeout)) {
+      connectFuture.cancel(true);
+      throw new TimeoutException(
+          "Timeout of " + this.connectionTimeout + "ms when connecting to " + url);
+    }
+
+    if (!connectFuture.isSuccess()) {
+      throw new IOException("Exception connecting to " + url, connectFuture.cause());
+    }
+
+    Channel ch = connectFuture.channel();
+    ChannelFuture handshakeFuture = handler.handshakeFuture();
+
+    if (!handshakeFuture.await(this.connectionTimeout)) {
+      ch.close();
+      throw new TimeoutException(
+          "Timeout of " + this.connectionTimeout + "ms in websocket handshake with " + url);
+    }
+
+    if (!handshakeFuture.isSuccess()) {
+      ch.close();
+      throw new IOException("Websocket handshake with " + url + " failed",
+          handshakeFuture.cause());
+    }
+
+    channel = ch;
+
+    if (!ch.isActive() && CHANNEL.compareAndSet(this, ch, null)) {
+      // Closed before being published, so channelInactive has not handled it
+      throw new IOException("Connection to " + url + " closed after websocket handshake");
+    }
+  }
+
+  @Override
+  public void closeNativeClient() {
+
+    Channel ch = CHANNEL.getAndSet(this, null);
+
+    if (ch != null) {
+      log.debug("{} Closing client", label);
+      if (ch.isActive()) {
+        ch.writeAndFlush(new CloseWebSocketFrame()).addListener(ChannelFutureListener.CLOSE);
+      } else {
+        ch.close();
+      }
+    } else {
+      log.warn("{} Trying to close a JsonRpcClientNettyWebSocket with channel=null", label);
+    }
+  }
+
+  private SslContext getSslContext() throws SSLException {
+    if (sslContext != null) {
+      return sslContext;
+    }
+    return SslContextBuilder.forClient().build();
+  }
+
+}
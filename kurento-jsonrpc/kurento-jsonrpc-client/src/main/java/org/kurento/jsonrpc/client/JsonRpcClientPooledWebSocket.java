@@ -0,0 +1,570 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.jsonrpc.JsonRpcHandler;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.internal.JsonRpcRequestSenderHelper;
+import org.kurento.jsonrpc.internal.client.ClientSession;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimers;
+import org.kurento.jsonrpc.internal.ws.AdmissionController;
+import org.kurento.jsonrpc.message.MessageCodec;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+import org.kurento.jsonrpc.metrics.JsonRpcClientMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Client that keeps several WebSocket connections to the same server under a single logical
+ * session. Each request is sent through the connected connection with the fewest requests waiting
+ * for a response, so a connection busy receiving a large message doesn't delay the others.
+ *
+ * The session is established by the first connection, and the others join it in the server as
+ * additional transports. Requests from the server are processed whichever connection they arrive
+ * from. When a connection drops, new requests are routed to the remaining ones while it
+ * reconnects, and the requests waiting for a response in it are sent again through another one.
+ * The last requests of each connection are kept for that (100 by default, configured with
+ * {@value #REPLAY_BUFFER_PROPERTY}). The server is told they are replays, so it doesn't process
+ * twice the ones it already received. The connection listener is notified only when all the
+ * connections are lost or the first one is recovered.
+ */
+public class JsonRpcClientPooledWebSocket extends JsonRpcClient {
+
+  private static final Logger log = LoggerFactory.getLogger(JsonRpcClientPooledWebSocket.class);
+
+  public static final String CONNECTIONS_PROPERTY = "jsonRpcClientPooledWebSocket.connections";
+
+  public static final String REPLAY_BUFFER_PROPERTY =
+      "jsonRpcClientPooledWebSocket.replayBuffer.size";
+
+  /**
+   * Creates the physical connections of the pool.
+   */
+  public interface ConnectionFactory {
+
+    AbstractJsonRpcClientWebSocket createConnection(String url,
+        JsonRpcWSConnectionListener connectionListener);
+  }
+
+  private static final ConnectionFactory JETTY_CONNECTION_FACTORY = new ConnectionFactory() {
+    @Override
+    public AbstractJsonRpcClientWebSocket createConnection(String url,
+        JsonRpcWSConnectionListener connectionListener) {
+      return new JsonRpcClientWebSocket(url, connectionListener);
+    }
+  };
+
+  private class Connection implements JsonRpcWSConnectionListener {
+
+    private final AbstractJsonRpcClientWebSocket client;
+    private final AtomicBoolean up = new AtomicBoolean();
+
+    public Connection(String url, ConnectionFactory factory) {
+      this.client = factory.createConnection(url, this);
+    }
+
+    @Override
+    public void connected() {
+      adoptSession();
+      if (setUp()) {
+        if (connectedOnce.compareAndSet(false, true)) {
+          fire(Event.CONNECTED, false);
+        } else {
+          fire(Event.RECONNECTED, false);
+        }
+      }
+    }
+
+    @Override
+    public void connectionFailed() {
+      if (upConnections.get() == 0 && !connectedOnce.get()) {
+        fire(Event.CONNECTION_FAILED, false);
+      }
+    }
+
+    @Override
+    public void disconnected() {
+      if (setDown()) {
+        fire(Event.DISCONNECTED, false);
+      }
+      scheduleReconnection(this, 0);
+    }
+
+    @Override
+    public void reconnected(boolean sameServer) {
+      adoptSession();
+      if (setUp()) {
+        fire(Event.RECONNECTED, sameServer);
+      }
+    }
+
+    @Override
+    public void reconnecting() {
+      if (setDown()) {
+        fire(Event.RECONNECTING, false);
+      }
+      rerouteRequests(this);
+    }
+
+    // The server creates a new session if the previous one expired
+    private void adoptSession() {
+      Session clientSession = client.getSession();
+      if (clientSession != null) {
+        updateSessionId(clientSession.getSessionId());
+      }
+    }
+
+    private boolean setUp() {
+      return up.compareAndSet(false, true) && upConnections.getAndIncrement() == 0;
+    }
+
+    private boolean setDown() {
+      return up.compareAndSet(true, false) && upConnections.decrementAndGet() == 0;
+    }
+
+    private int getLoad() {
+      AdmissionController admissionController = client.getAdmissionController();
+      int queued = admissionController != null ? admissionController.getQueued() : 0;
+      return client.getInFlightRequests() + queued;
+    }
+  }
+
+  private enum Event {
+    CONNECTED, CONNECTION_FAILED, DISCONNECTED, RECONNECTED, RECONNECTING
+  }
+
+  private final List<Connection> connections = new ArrayList<>();
+  private final JsonRpcWSConnectionListener connectionListener;
+
+  private final AtomicInteger nextConnection = new AtomicInteger();
+  private final AtomicInteger upConnections = new AtomicInteger();
+  private final AtomicBoolean connectedOnce = new AtomicBoolean();
+  private volatile boolean closing;
+  private volatile String sessionId;
+
+  public JsonRpcClientPooledWebSocket(String url) {
+    this(url, PropertiesManager.getProperty(CONNECTIONS_PROPERTY, 2), null);
+  }
+
+  public JsonRpcClientPooledWebSocket(String url, int numConnections,
+      JsonRpcWSConnectionListener connectionListener) {
+    this(url, numConnections, connectionListener, JETTY_CONNECTION_FACTORY);
+  }
+
+  public JsonRpcClientPooledWebSocket(String url, int numConnections,
+      JsonRpcWSConnectionListener connectionListener, ConnectionFactory connectionFactory) {
+
+    if (numConnections < 1) {
+      throw new IllegalArgumentException("At least one connection is needed");
+    }
+
+    this.connectionListener = connectionListener;
+
+    session = new ClientSession(null, null, this);
+
+    rsHelper = new JsonRpcRequestSenderHelper() {
+      @Override
+      public <P, R> Response<R> internalSendRequest(Request<P> request, Class<R> resultClass)
+          throws IOException {
+
+        Response<R> response = selectConnection().client.internalSendRequestWebSocket(request,
+            resultClass);
+
+        if (response != null) {
+          updateSessionId(response.getSessionId());
+        }
+        return response;
+      }
+
+      @Override
+      protected void internalSendRequest(Request<? extends Object> request,
+          Class<JsonElement> resultClass, final Continuation<Response<JsonElement>> continuation) {
+
+        selectConnection().client.internalSendRequestWebSocket(request, resultClass,
+            new Continuation<Response<JsonElement>>() {
+              @Override
+              public void onSuccess(Response<JsonElement> response) {
+                if (response != null) {
+                  updateSessionId(response.getSessionId());
+                }
+                continuation.onSuccess(response);
+              }
+
+              @Override
+              public void onError(Throwable cause) {
+                continuation.onError(cause);
+              }
+            });
+      }
+    };
+
+    int replayBufferSize = PropertiesManager.getProperty(REPLAY_BUFFER_PROPERTY, 100);
+
+    for (int i = 0; i < numConnections; i++) {
+      Connection connection = new Connection(url, connectionFactory);
+      connection.client.setMetrics(metrics);
+      connection.client.setPooledTransport(rsHelper);
+      connection.client.setReplayBufferSize(replayBufferSize);
+      connections.add(connection);
+    }
+  }
+
+  /**
+   * @return the physical connections of this client, e.g. to configure them
+   */
+  public List<AbstractJsonRpcClientWebSocket> getConnections() {
+    List<AbstractJsonRpcClientWebSocket> clients = new ArrayList<>(connections.size());
+    for (Connection connection : connections) {
+      clients.add(connection.client);
+    }
+    return Collections.unmodifiableList(clients);
+  }
+
+  /**
+   * @return the number of connections currently connected
+   */
+  public int getConnectedConnections() {
+    return upConnections.get();
+  }
+
+  /**
+   * @return the requests waiting for a response in all the connections
+   */
+  public int getInFlightRequests() {
+    int inFlight = 0;
+    for (Connection connection : connections) {
+      inFlight += connection.client.getInFlightRequests();
+    }
+    return inFlight;
+  }
+
+  /**
+   * Connects all the connections of the pool. The first one connected establishes the session, and
+   * the others join it. Fails only if none of them can be connected; the ones that fail are retried
+   * in background.
+   */
+  @Override
+  public void connect() throws IOException {
+
+    Exception lastException = null;
+    int connected = 0;
+
+    for (Connection connection : connections) {
+      try {
+        if (sessionId == null) {
+          connection.client.connectWithSession();
+          updateSessionId(connection.client.getSession().getSessionId());
+        } else {
+          connection.client.connect();
+        }
+        connected++;
+      } catch (IOException | RuntimeException e) {
+        log.warn("{} Exception connecting to server: {}", label, e.getMessage());
+        lastException = e;
+        scheduleReconnection(connection, 1);
+      }
+    }
+
+    if (connected == 0) {
+      if (lastException instanceof IOException) {
+        throw (IOException) lastException;
+      }
+      throw (RuntimeException) lastException;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+
+    closing = true;
+
+    super.close();
+
+    for (Connection connection : connections) {
+      try {
+        connection.client.close();
+      } catch (IOException | RuntimeException e) {
+        log.warn("{} Exception closing connection: {}", label, e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public void setServerRequestHandler(JsonRpcHandler<?> handler) {
+    super.setServerRequestHandler(handler);
+    for (Connection connection : connections) {
+      connection.client.setServerRequestHandler(handler);
+    }
+  }
+
+  @Override
+  public void setLabel(String label) {
+    super.setLabel(label);
+    for (int i = 0; i < connections.size(); i++) {
+      connections.get(i).client.setLabel(label + "-" + i);
+    }
+  }
+
+  @Override
+  public void setMessageCodec(MessageCodec codec) {
+    super.setMessageCodec(codec);
+    for (Connection connection : connections) {
+      connection.client.setMessageCodec(codec);
+    }
+  }
+
+  @Override
+  public void setMetrics(JsonRpcClientMetrics metrics) {
+    super.setMetrics(metrics);
+    for (Connection connection : connections) {
+      connection.client.setMetrics(metrics);
+    }
+  }
+
+  @Override
+  public void setRequestTimeout(long requestTimeout) {
+    for (Connection connection : connections) {
+      connection.client.setRequestTimeout(requestTimeout);
+    }
+  }
+
+  @Override
+  public void setConnectionTimeoutValue(int connectionTimeout) {
+    super.setConnectionTimeoutValue(connectionTimeout);
+    for (Connection connection : connections) {
+      connection.client.setConnectionTimeoutValue(connectionTimeout);
+    }
+  }
+
+  @Override
+  public void setIdleTimeout(int idleTimeout) {
+    super.setIdleTimeout(idleTimeout);
+    for (Connection connection : connections) {
+      connection.client.setIdleTimeout(idleTimeout);
+    }
+  }
+
+  @Override
+  public void setAdaptiveHeartbeat(boolean adaptiveHeartbeat) {
+    super.setAdaptiveHeartbeat(adaptiveHeartbeat);
+    for (Connection connection : connections) {
+      connection.client.setAdaptiveHeartbeat(adaptiveHeartbeat);
+    }
+  }
+
+  public void setTryReconnectingForever(boolean tryReconnectingForever) {
+    for (Connection connection : connections) {
+      connection.client.setTryReconnectingForever(tryReconnectingForever);
+    }
+  }
+
+  /**
+   * Enables the heartbeat in each connection, so a dropped connection is detected even if no
+   * requests are being routed through it.
+   */
+  @Override
+  public synchronized void enableHeartbeat(int interval) {
+    this.heartbeating = true;
+    this.heartbeatInterval = interval;
+    for (Connection connection : connections) {
+      connection.client.enableHeartbeat(interval);
+    }
+  }
+
+  @Override
+  public void disableHeartbeat(boolean mayInterruptIfRunning) {
+    this.heartbeating = false;
+    for (Connection connection : connections) {
+      connection.client.disableHeartbeat(mayInterruptIfRunning);
+    }
+  }
+
+  @Override
+  public void setSessionId(String sessionId) {
+    super.setSessionId(sessionId);
+    updateSessionId(sessionId);
+  }
+
+  private Connection selectConnection() {
+    Connection selected = selectConnection(null);
+    // If none is connected, the selected one will try to connect when sending
+    return selected != null ? selected : connections.get(
+        (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.size());
+  }
+
+  /**
+   * @return the connected connection with less load, or null if there is none
+   */
+  private Connection selectConnection(Connection excluded) {
+
+    int size = connections.size();
+    int start = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+    Connection selected = null;
+    int selectedLoad = Integer.MAX_VALUE;
+
+    // Start at a rotating position so ties are spread among connections
+    for (int i = 0; i < size; i++) {
+      Connection connection = connections.get((start + i) % size);
+      if (connection == excluded || !connection.up.get()) {
+        continue;
+      }
+      int load = connection.getLoad();
+      if (load < selectedLoad) {
+        selected = connection;
+        selectedLoad = load;
+        if (load == 0) {
+          break;
+        }
+      }
+    }
+
+    return selected;
+  }
+
+  private void updateSessionId(String newSessionId) {
+
+    if (newSessionId == null || newSessionId.equals(sessionId)) {
+      return;
+    }
+
+    sessionId = newSessionId;
+    rsHelper.setSessionId(newSessionId);
+    session.setSessionId(newSessionId);
+
+    for (Connection connection : connections) {
+      connection.client.joinSession(newSessionId);
+    }
+  }
+
+  /**
+   * Sends the requests waiting for a response in a dropped connection through another one. If
+   * there is none connected, they are replayed by the dropped connection when it reconnects.
+   */
+  private void rerouteRequests(final Connection dropped) {
+
+    if (closing) {
+      return;
+    }
+
+    final Connection target = selectConnection(dropped);
+    if (target == null) {
+      return;
+    }
+
+    final List<Request<?>> requests = dropped.client.takeUnansweredRequests();
+    if (requests.isEmpty()) {
+      return;
+    }
+
+    // Sending blocks waiting for the server to accept the replays
+    JsonRpcTimers.getBlockingExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        target.client.resendRequests(requests, dropped.client);
+      }
+    });
+  }
+
+  private void scheduleReconnection(final Connection connection, final int attempt) {
+
+    if (closing) {
+      return;
+    }
+
+    long delay = connection.client.getReconnectPolicy().getDelay(attempt);
+
+    if (delay == ReconnectPolicy.GIVE_UP) {
+      log.warn("{} Giving up reconnecting a connection to server after {} attempts", label,
+          attempt);
+      return;
+    }
+
+    // Connecting blocks, so the timer only triggers the attempt, which is executed elsewhere
+    JsonRpcTimers.getSharedTimer().schedule(new Runnable() {
+      @Override
+      public void run() {
+        JsonRpcTimers.getBlockingExecutor().execute(new Runnable() {
+          @Override
+          public void run() {
+            reconnect(connection, attempt);
+          }
+        });
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void reconnect(Connection connection, int attempt) {
+
+    if (closing || connection.up.get()) {
+      return;
+    }
+
+    try {
+      if (sessionId == null) {
+        // None of the connections could establish the session yet
+        connection.client.connectWithSession();
+      } else {
+        connection.client.connect();
+      }
+    } catch (Exception e) {
+      log.debug("{} Exception reconnecting to server: {}", label, e.getMessage());
+      scheduleReconnection(connection, attempt + 1);
+    }
+  }
+
+  private void fire(Event event, boolean sameServer) {
+
+    if (connectionListener == null || (closing && event != Event.DISCONNECTED)) {
+      return;
+    }
+
+    switch (event) {
+      case CONNECTED:
+        connectionListener.connected();
+        break;
+      case CONNECTION_FAILED:
+        connectionListener.connectionFailed();
+        break;
+      case DISCONNECTED:
+        connectionListener.disconnected();
+        break;
+      case RECONNECTED:
+        connectionListener.reconnected(sameServer);
+        break;
+      case RECONNECTING:
+        connectionListener.reconnecting();
+        break;
+      default:
+        break;
+    }
+  }
+
+}
@@ -18,42 +18,77 @@ package org.kurento.jsonrpc.client;
 
 import java.io.IOException;
 import java.net.URI;
-import java.util.concurrent.ExecutionException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.UpgradeException;
-import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.api.extensions.Extension;
+import org.eclipse.jetty.websocket.api.extensions.OutgoingFrames;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.common.extensions.ExtensionStack;
+import org.kurento.commons.PropertiesManager;
+import org.kurento.jsonrpc.internal.ws.CompressionStats;
+import org.kurento.jsonrpc.internal.ws.MeteredPerMessageDeflateExtension;
+import org.kurento.jsonrpc.internal.ws.OutboundQueue;
 
 public class JsonRpcClientWebSocket extends AbstractJsonRpcClientWebSocket {
 
-  private static final int MAX_PACKET_SIZE = 1000000;
+  private static final AtomicReferenceFieldUpdater<JsonRpcClientWebSocket, Session> WS_SESSION =
+      AtomicReferenceFieldUpdater.newUpdater(JsonRpcClientWebSocket.class, Session.class,
+          "jettyWsSession");
 
   @WebSocket
   public class WebSocketClientSocket {
 
+    private volatile Session session;
+
     @OnWebSocketClose
     public void onClose(int statusCode, String closeReason) {
+
+      // Jetty clients are shared and sessions are closed asynchronously, so the close of a session
+      // already replaced by a reconnection can arrive when the client is connected again
+      Session closedSession = session;
+      if (closedSession == null
+          || !WS_SESSION.compareAndSet(JsonRpcClientWebSocket.this, closedSession, null)) {
+        log.debug("{} Ignoring close of a previous websocket session: '{}' (status code {})",
+            label, closeReason, statusCode);
+        return;
+      }
+
       log.debug("Websocket disconnected because '{}' (status code {})", closeReason, statusCode);
       handleReconnectDisconnection(statusCode, closeReason);
     }
 
     @OnWebSocketConnect
     public void onConnect(Session session) {
+      this.session = session;
+      // Invoked before any frame is read, so all the traffic is counted in the stats of the client
+      bindCompressionStats(session);
     }
 
     @OnWebSocketMessage
     public void onMessage(String message) {
       receivedTextMessage(message);
     }
+
+    @OnWebSocketMessage
+    public void onMessage(byte[] data, int offset, int length) {
+      receivedBinaryMessage(data, offset, length);
+    }
   }
 
   protected final SslContextFactory sslContextFactory;
@@ -61,8 +96,56 @@ public class JsonRpcClientWebSocket extends AbstractJsonRpcClientWebSocket {
   protected volatile Session jettyWsSession;
   protected volatile WebSocketClient jettyClient;
 
+  private JettyWebSocketClientFactory clientFactory = JettyWebSocketClientFactory.getShared();
+
+  private boolean perMessageDeflate = PropertiesManager
+      .getProperty("jsonRpcClientWebSocket.deflate.enabled", false);
+
+  private final CompressionStats compressionStats = new CompressionStats();
+
+  private final OutboundQueue outboundQueue = new OutboundQueue(new OutboundQueue.Writer() {
+    @Override
+    public void write(Object message, boolean more, final OutboundQueue.WriteCallback callback) {
+
+      Session wsSession = jettyWsSession;
+      if (wsSession == null) {
+        callback.writeFailed(new IllegalStateException(
+            label + " JsonRpcClient is disconnected from WebSocket server at '" + url + "'"));
+        return;
+      }
+
+      WriteCallback jettyCallback = new WriteCallback() {
+        @Override
+        public void writeSuccess() {
+          callback.writeSuccess();
+        }
+
+        @Override
+        public void writeFailed(Throwable cause) {
+          callback.writeFailed(cause);
+        }
+      };
+
+      // The queue issues the next write from the callback of the previous one, so the batch mode
+      // is never changed while a frame is being written. Frames followed by others are aggregated
+      // by Jetty, and their callbacks succeed when aggregated; if the aggregated frames can't be
+      // written, the failure is notified to the callback of the frame that flushes them
+      RemoteEndpoint remote = wsSession.getRemote();
+      remote.setBatchMode(more ? BatchMode.ON : BatchMode.OFF);
+
+      if (message instanceof String) {
+        remote.sendString((String) message, jettyCallback);
+      } else {
+        remote.sendBytes(ByteBuffer.wrap((byte[]) message), jettyCallback);
+      }
+    }
+  }, PropertiesManager.getProperty("jsonRpcClientWebSocket.outbound.highWaterMark", 10000),
+      PropertiesManager.getProperty("jsonRpcClientWebSocket.outbound.overflowPolicy",
+          OutboundQueue.OverflowPolicy.REJECT),
+      PropertiesManager.getProperty("jsonRpcClientWebSocket.outbound.blockTimeout", 5000));
+
   public JsonRpcClientWebSocket(String url) {
-    this(url, null, new SslContextFactory());
+    this(url, null, JettyWebSocketClientFactory.getDefaultSslContextFactory());
   }
 
   public JsonRpcClientWebSocket(String url, SslContextFactory sslContextFactory) {
@@ -70,7 +153,7 @@ public class JsonRpcClientWebSocket extends AbstractJsonRpcClientWebSocket {
   }
 
   public JsonRpcClientWebSocket(String url, JsonRpcWSConnectionListener connectionListener) {
-    this(url, connectionListener, new SslContextFactory());
+    this(url, connectionListener, JettyWebSocketClientFactory.getDefaultSslContextFactory());
   }
 
   public JsonRpcClientWebSocket(String url, JsonRpcWSConnectionListener connectionListener,
@@ -79,17 +162,105 @@ public class JsonRpcClientWebSocket extends AbstractJsonRpcClientWebSocket {
     this.sslContextFactory = sslContextFactory;
   }
 
+  @Override
+  public void setLabel(String label) {
+    super.setLabel(label);
+    outboundQueue.setLabel(this.label);
+  }
+
+  /**
+   * Sets the factory providing the Jetty client used to connect. The clients of the factory are
+   * shared, so they are not stopped when this client is closed.
+   */
+  public void setWebSocketClientFactory(JettyWebSocketClientFactory clientFactory) {
+    this.clientFactory = clientFactory;
+  }
+
+  public JettyWebSocketClientFactory getWebSocketClientFactory() {
+    return clientFactory;
+  }
+
+  /**
+   * Offers permessage-deflate to the server in the next connections. Messages smaller than
+   * {@value MeteredPerMessageDeflateExtension#MIN_SIZE_PROPERTY} are not compressed.
+   */
+  public void setPerMessageDeflate(boolean perMessageDeflate) {
+    this.perMessageDeflate = perMessageDeflate;
+  }
+
+  public boolean isPerMessageDeflate() {
+    return perMessageDeflate;
+  }
+
+  /**
+   * @return payload bytes before and after compression of the connections of this client that
+   *         negotiated permessage-deflate, including the previous ones after reconnections
+   */
+  public CompressionStats getCompressionStats() {
+    return compressionStats;
+  }
+
+  private void bindCompressionStats(Session session) {
+
+    if (!(session instanceof WebSocketSession)) {
+      return;
+    }
+
+    OutgoingFrames outgoing = ((WebSocketSession) session).getOutgoingHandler();
+    if (outgoing instanceof ExtensionStack) {
+      for (Extension extension : ((ExtensionStack) outgoing).getExtensions()) {
+        if (extension instanceof MeteredPerMessageDeflateExtension) {
+          ((MeteredPerMessageDeflateExtension) extension).setStats(compressionStats);
+        }
+      }
+    }
+  }
+
   @Override
   protected void sendTextMessage(String jsonMessage) throws IOException {
+    sendTextMessage(jsonMessage, null);
+  }
+
+  @Override
+  protected void sendTextMessage(String jsonMessage, OutboundQueue.WriteCallback callback)
+      throws IOException {
 
     if (jettyWsSession == null) {
       throw new IllegalStateException(
           label + " JsonRpcClient is disconnected from WebSocket server at '" + this.url + "'");
     }
 
-    synchronized (jettyWsSession) {
-      jettyWsSession.getRemote().sendString(jsonMessage);
+    outboundQueue.send(jsonMessage, callback);
+  }
+
+  @Override
+  protected void sendBinaryMessage(byte[] data) throws IOException {
+    sendBinaryMessage(data, null);
+  }
+
+  @Override
+  protected void sendBinaryMessage(byte[] data, OutboundQueue.WriteCallback callback)
+      throws IOException {
+
+    if (jettyWsSession == null) {
+      throw new IllegalStateException(
+          label + " JsonRpcClient is disconnected from WebSocket server at '" + this.url + "'");
     }
+
+    outboundQueue.send(data, callback);
+  }
+
+  /**
+   * Messages are written asynchronously through this queue, so senders are never blocked by the
+   * network. Its high-water mark and overflow policy are configured with the properties
+   * jsonRpcClientWebSocket.outbound.highWaterMark (default 10000 messages),
+   * jsonRpcClientWebSocket.outbound.overflowPolicy (REJECT or BLOCK) and
+   * jsonRpcClientWebSocket.outbound.blockTimeout (default 5000 ms).
+   *
+   * @return the outbound queue, to read its depth and write latency metrics
+   */
+  public OutboundQueue getOutboundQueue() {
+    return outboundQueue;
   }
 
   protected boolean isNativeClientConnected() {
@@ -98,69 +269,92 @@ public class JsonRpcClientWebSocket extends AbstractJsonRpcClientWebSocket {
 
   protected void connectNativeClient() throws TimeoutException, Exception {
 
-    if (jettyClient == null || jettyClient.isStopped() || jettyClient.isStopping()) {
-
-      jettyClient = new WebSocketClient(sslContextFactory);
-      jettyClient.setConnectTimeout(this.connectionTimeout);
-      WebSocketPolicy policy = jettyClient.getPolicy();
-      policy.setMaxBinaryMessageBufferSize(MAX_PACKET_SIZE);
-      policy.setMaxTextMessageBufferSize(MAX_PACKET_SIZE);
-      policy.setMaxBinaryMessageSize(MAX_PACKET_SIZE);
-      policy.setMaxTextMessageSize(MAX_PACKET_SIZE);
-
-      jettyClient.start();
-
+    jettyClient = clientFactory.getClient(sslContextFactory, this.connectionTimeout);
+
+    Future<Session> connecting = jettyClient.connect(new WebSocketClientSocket(), new URI(url),
+        createUpgradeRequest());
+    Session wsSession;
+    try {
+      wsSession = connecting.get(this.connectionTimeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // The upgrade is not bounded by the connect timeout of the Jetty client
+      connecting.cancel(true);
+      throw e;
     }
 
-    int numRetries = 0;
-    int maxRetries = 5;
-    while (true) {
-
-      try {
+    wsSession.setIdleTimeout(this.idleTimeout);
 
-        jettyWsSession = jettyClient
-            .connect(new WebSocketClientSocket(), new URI(url), new ClientUpgradeRequest())
-            .get(this.connectionTimeout, TimeUnit.MILLISECONDS);
+    setAcceptedSubprotocol(wsSession.getUpgradeResponse().getAcceptedSubProtocol());
 
-        jettyWsSession.setIdleTimeout(this.idleTimeout);
+    jettyWsSession = wsSession;
 
-        return;
+    if (!wsSession.isOpen() && WS_SESSION.compareAndSet(this, wsSession, null)) {
+      // Closed before being published, so its close has been ignored
+      throw new IOException("Connection to " + url + " closed after websocket handshake");
+    }
+  }
 
-      } catch (ExecutionException e) {
-        if (e.getCause() instanceof UpgradeException && numRetries < maxRetries) {
-          log.warn(
-              "Upgrade exception when trying to connect to {}. Try {} of {}. Retrying in 200ms ",
-              url, numRetries + 1, maxRetries);
-          Thread.sleep(200);
-          numRetries++;
-        } else {
-          throw e;
-        }
+  /**
+   * Upgrade rejections, e.g. from a server that is starting, are retried.
+   */
+  @Override
+  protected boolean isTransientConnectFailure(Throwable failure) {
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      if (cause instanceof UpgradeException) {
+        return true;
       }
     }
+    return false;
+  }
 
+  private ClientUpgradeRequest createUpgradeRequest() {
+    ClientUpgradeRequest request = new ClientUpgradeRequest();
+    if (perMessageDeflate) {
+      request.addExtensions(JettyWebSocketClientFactory.PER_MESSAGE_DEFLATE);
+    }
+    String subprotocol = getRequestedSubprotocol();
+    if (subprotocol != null) {
+      request.setSubProtocols(subprotocol);
+    }
+    return request;
   }
 
   @Override
   public void closeNativeClient() {
     if (jettyClient != null) {
       log.debug("{} Closing client", label);
-      try {
-        jettyClient.stop();
-        jettyClient.destroy();
-      } catch (Exception e) {
-        log.debug("{} Could not properly close websocket client. Reason: {}", label,
-            e.getMessage());
-      }
+      // The Jetty client is shared with other clients, so it is not stopped here
       jettyClient = null;
     }
 
-    if (jettyWsSession != null) {
-      jettyWsSession.close();
-      jettyWsSession = null;
+    // Once unpublished, the close of the session is ignored by its socket
+    Session wsSession = WS_SESSION.getAndSet(this, null);
+
+    if (wsSession != null) {
+      wsSession.close();
     } else {
       log.warn("{} Trying to close a JsonRpcClientWebSocket with jettyWsSession=null", label);
     }
   }
 
+  /**
+   * The link is considered dead, so the session is disconnected without waiting for the close
+   * handshake.
+   */
+  @Override
+  protected void disconnectNativeClient() {
+
+    jettyClient = null;
+
+    Session wsSession = WS_SESSION.getAndSet(this, null);
+
+    if (wsSession != null) {
+      try {
+        wsSession.disconnect();
+      } catch (IOException e) {
+        log.debug("{} Exception disconnecting websocket session", label, e);
+      }
+    }
+  }
+
 }
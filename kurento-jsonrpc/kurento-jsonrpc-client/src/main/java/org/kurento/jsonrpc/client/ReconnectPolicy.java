@@ -0,0 +1,39 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.client;
+
+/**
+ * Decides how long a WebSocket client waits before each attempt to reconnect to the server.
+ *
+ * @see ExponentialBackoffReconnectPolicy
+ */
+public interface ReconnectPolicy {
+
+  /**
+   * Value returned by {@link #getDelay(int)} when the client must stop trying to reconnect.
+   */
+  long GIVE_UP = -1;
+
+  /**
+   * @param attempt
+   *          number of failed attempts since the connection was lost (0 before the first one)
+   * @return milliseconds to wait before the attempt, or {@link #GIVE_UP}
+   */
+  long getDelay(int attempt);
+
+}
@@ -0,0 +1,440 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+import org.kurento.jsonrpc.JsonRpcException;
+
+import com.google.common.io.BaseEncoding;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Minimal CBOR (RFC 7049) encoder and decoder for Gson trees. Only the data model of JSON is
+ * written: maps, arrays, text strings, integers, floats, booleans and null. Integral numbers are
+ * written as CBOR integers and the rest as single or double precision floats, whichever keeps the
+ * value.
+ *
+ * The decoder also accepts indefinite lengths, half precision floats, byte strings (converted to
+ * base64 strings), tags (ignored) and undefined (converted to null).
+ */
+public class Cbor {
+
+  private static final int MAJOR_UNSIGNED = 0;
+  private static final int MAJOR_NEGATIVE = 1;
+  private static final int MAJOR_BYTES = 2;
+  private static final int MAJOR_TEXT = 3;
+  private static final int MAJOR_ARRAY = 4;
+  private static final int MAJOR_MAP = 5;
+  private static final int MAJOR_TAG = 6;
+  private static final int MAJOR_SIMPLE = 7;
+
+  private static final int FALSE = 0xf4;
+  private static final int TRUE = 0xf5;
+  private static final int NULL = 0xf6;
+  private static final int UNDEFINED = 0xf7;
+  private static final int HALF_FLOAT = 0xf9;
+  private static final int FLOAT = 0xfa;
+  private static final int DOUBLE = 0xfb;
+  private static final int BREAK = 0xff;
+
+  private static final int INDEFINITE = 31;
+
+  private Cbor() {
+  }
+
+  public static byte[] encode(JsonElement element) {
+    Writer writer = new Writer();
+    writer.write(element);
+    return writer.toByteArray();
+  }
+
+  public static JsonElement decode(byte[] data) {
+    return decode(data, 0, data.length);
+  }
+
+  public static JsonElement decode(byte[] data, int offset, int length) {
+    Reader reader = new Reader(data, offset, offset + length);
+    JsonElement element = reader.read();
+    if (reader.pos != reader.end) {
+      throw new JsonRpcException("Unexpected data after CBOR item at position " + reader.pos);
+    }
+    return element;
+  }
+
+  private static class Writer {
+
+    private byte[] buf = new byte[256];
+    private int count;
+
+    public void write(JsonElement element) {
+
+      if (element == null || element.isJsonNull()) {
+
+        writeByte(NULL);
+
+      } else if (element.isJsonObject()) {
+
+        JsonObject object = element.getAsJsonObject();
+        writeTypeAndLength(MAJOR_MAP, object.entrySet().size());
+        for (Entry<String, JsonElement> entry : object.entrySet()) {
+          writeText(entry.getKey());
+          write(entry.getValue());
+        }
+
+      } else if (element.isJsonArray()) {
+
+        JsonArray array = element.getAsJsonArray();
+        writeTypeAndLength(MAJOR_ARRAY, array.size());
+        for (JsonElement item : array) {
+          write(item);
+        }
+
+      } else {
+        writePrimitive(element.getAsJsonPrimitive());
+      }
+    }
+
+    private void writePrimitive(JsonPrimitive primitive) {
+
+      if (primitive.isBoolean()) {
+        writeByte(primitive.getAsBoolean() ? TRUE : FALSE);
+      } else if (primitive.isString()) {
+        writeText(primitive.getAsString());
+      } else {
+        writeNumber(primitive.getAsNumber());
+      }
+    }
+
+    private void writeNumber(Number number) {
+
+      if (number instanceof Integer || number instanceof Long || number instanceof Short
+          || number instanceof Byte) {
+        writeInteger(number.longValue());
+        return;
+      }
+
+      if (!(number instanceof Double) && !(number instanceof Float)) {
+        // LazilyParsedNumber, BigDecimal, BigInteger...
+        String text = number.toString();
+        if (text.indexOf('.') == -1 && text.indexOf('e') == -1 && text.indexOf('E') == -1) {
+          BigInteger value = new BigInteger(text);
+          if (value.bitLength() < 64) {
+            writeInteger(value.longValue());
+            return;
+          }
+        }
+      }
+
+      double value = number.doubleValue();
+      float floatValue = (float) value;
+      if (floatValue == value || Double.isNaN(value)) {
+        writeByte(FLOAT);
+        writeInt(Float.floatToIntBits(floatValue));
+      } else {
+        writeByte(DOUBLE);
+        long bits = Double.doubleToLongBits(value);
+        writeInt((int) (bits >>> 32));
+        writeInt((int) bits);
+      }
+    }
+
+    private void writeInteger(long value) {
+      if (value >= 0) {
+        writeTypeAndLength(MAJOR_UNSIGNED, value);
+      } else {
+        writeTypeAndLength(MAJOR_NEGATIVE, -1 - value);
+      }
+    }
+
+    private void writeText(String text) {
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      writeTypeAndLength(MAJOR_TEXT, bytes.length);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buf, count, bytes.length);
+      count += bytes.length;
+    }
+
+    private void writeTypeAndLength(int major, long length) {
+
+      int type = major << 5;
+
+      if (length < 24) {
+        writeByte(type | (int) length);
+      } else if (length < 0x100) {
+        writeByte(type | 24);
+        writeByte((int) length);
+      } else if (length < 0x10000) {
+        writeByte(type | 25);
+        writeByte((int) (length >>> 8));
+        writeByte((int) length);
+      } else if (length < 0x100000000L) {
+        writeByte(type | 26);
+        writeInt((int) length);
+      } else {
+        writeByte(type | 27);
+        writeInt((int) (length >>> 32));
+        writeInt((int) length);
+      }
+    }
+
+    private void writeInt(int value) {
+      ensureCapacity(4);
+      buf[count++] = (byte) (value >>> 24);
+      buf[count++] = (byte) (value >>> 16);
+      buf[count++] = (byte) (value >>> 8);
+      buf[count++] = (byte) value;
+    }
+
+    private void writeByte(int value) {
+      ensureCapacity(1);
+      buf[count++] = (byte) value;
+    }
+
+    private void ensureCapacity(int bytes) {
+      if (count + bytes > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + bytes));
+      }
+    }
+
+    public byte[] toByteArray() {
+      return Arrays.copyOf(buf, count);
+    }
+  }
+
+  private static class Reader {
+
+    private final byte[] data;
+    private final int end;
+    private int pos;
+
+    public Reader(byte[] data, int offset, int end) {
+      this.data = data;
+      this.pos = offset;
+      this.end = end;
+    }
+
+    public JsonElement read() {
+
+      int initial = readByte();
+
+      if (initial == BREAK) {
+        throw new JsonRpcException("Unexpected CBOR break at position " + (pos - 1));
+      }
+
+      int major = initial >>> 5;
+      int info = initial & 0x1f;
+
+      switch (major) {
+        case MAJOR_UNSIGNED:
+          return readUnsigned(info);
+        case MAJOR_NEGATIVE:
+          return readNegative(info);
+        case MAJOR_BYTES:
+          return new JsonPrimitive(BaseEncoding.base64().encode(readBytes(MAJOR_BYTES, info)));
+        case MAJOR_TEXT:
+          return new JsonPrimitive(new String(readBytes(MAJOR_TEXT, info), StandardCharsets.UTF_8));
+        case MAJOR_ARRAY:
+          return readArray(info);
+        case MAJOR_MAP:
+          return readMap(info);
+        case MAJOR_TAG:
+          readLength(info);
+          return read();
+        default:
+          return readSimple(initial, info);
+      }
+    }
+
+    private JsonElement readUnsigned(int info) {
+      long value = readLength(info);
+      if (value < 0) {
+        // Greater than Long.MAX_VALUE
+        return new JsonPrimitive(toUnsigned(value));
+      }
+      return new JsonPrimitive(value);
+    }
+
+    private JsonElement readNegative(int info) {
+      long value = readLength(info);
+      if (value < 0) {
+        return new JsonPrimitive(BigInteger.ONE.negate().subtract(toUnsigned(value)));
+      }
+      return new JsonPrimitive(-1 - value);
+    }
+
+    private byte[] readBytes(int major, int info) {
+
+      if (info != INDEFINITE) {
+        int length = checkLength(readLength(info));
+        byte[] bytes = Arrays.copyOfRange(data, pos, pos + length);
+        pos += length;
+        return bytes;
+      }
+
+      // Indefinite length: concatenation of definite length chunks of the same type
+      byte[] bytes = new byte[0];
+      while (peekByte() != BREAK) {
+        int chunkInitial = readByte();
+        if (chunkInitial >>> 5 != major || (chunkInitial & 0x1f) == INDEFINITE) {
+          throw new JsonRpcException("Invalid chunk in CBOR string at position " + (pos - 1));
+        }
+        byte[] chunk = readBytes(major, chunkInitial & 0x1f);
+        int previous = bytes.length;
+        bytes = Arrays.copyOf(bytes, previous + chunk.length);
+        System.arraycopy(chunk, 0, bytes, previous, chunk.length);
+      }
+      pos++;
+      return bytes;
+    }
+
+    private JsonArray readArray(int info) {
+
+      JsonArray array = new JsonArray();
+
+      if (info == INDEFINITE) {
+        while (peekByte() != BREAK) {
+          array.add(read());
+        }
+        pos++;
+      } else {
+        long length = readLength(info);
+        for (long i = 0; i < length; i++) {
+          array.add(read());
+        }
+      }
+      return array;
+    }
+
+    private JsonObject readMap(int info) {
+
+      JsonObject object = new JsonObject();
+
+      if (info == INDEFINITE) {
+        while (peekByte() != BREAK) {
+          readEntry(object);
+        }
+        pos++;
+      } else {
+        long length = readLength(info);
+        for (long i = 0; i < length; i++) {
+          readEntry(object);
+        }
+      }
+      return object;
+    }
+
+    private void readEntry(JsonObject object) {
+      JsonElement key = read();
+      JsonElement value = read();
+      object.add(key.isJsonPrimitive() ? key.getAsString() : key.toString(), value);
+    }
+
+    private JsonElement readSimple(int initial, int info) {
+
+      switch (initial) {
+        case FALSE:
+          return new JsonPrimitive(false);
+        case TRUE:
+          return new JsonPrimitive(true);
+        case NULL:
+        case UNDEFINED:
+          return JsonNull.INSTANCE;
+        case HALF_FLOAT:
+          return new JsonPrimitive(halfToFloat((int) readUnsignedBytes(2)));
+        case FLOAT:
+          return new JsonPrimitive(Float.intBitsToFloat((int) readUnsignedBytes(4)));
+        case DOUBLE:
+          return new JsonPrimitive(Double.longBitsToDouble(readUnsignedBytes(8)));
+        default:
+          throw new JsonRpcException(
+              "Unsupported CBOR simple value " + info + " at position " + (pos - 1));
+      }
+    }
+
+    private long readLength(int info) {
+      if (info < 24) {
+        return info;
+      }
+      switch (info) {
+        case 24:
+          return readUnsignedBytes(1);
+        case 25:
+          return readUnsignedBytes(2);
+        case 26:
+          return readUnsignedBytes(4);
+        case 27:
+          return readUnsignedBytes(8);
+        default:
+          throw new JsonRpcException(
+              "Invalid CBOR additional info " + info + " at position " + (pos - 1));
+      }
+    }
+
+    private long readUnsignedBytes(int bytes) {
+      checkLength(bytes);
+      long value = 0;
+      for (int i = 0; i < bytes; i++) {
+        value = (value << 8) | (data[pos++] & 0xff);
+      }
+      return value;
+    }
+
+    private int checkLength(long length) {
+      if (length < 0 || length > end - pos) {
+        throw new JsonRpcException("Truncated CBOR data at position " + pos);
+      }
+      return (int) length;
+    }
+
+    private int readByte() {
+      checkLength(1);
+      return data[pos++] & 0xff;
+    }
+
+    private int peekByte() {
+      checkLength(1);
+      return data[pos] & 0xff;
+    }
+
+    private static BigInteger toUnsigned(long value) {
+      return BigInteger.valueOf(value & Long.MAX_VALUE).setBit(63);
+    }
+
+    private static float halfToFloat(int half) {
+      int exponent = (half >>> 10) & 0x1f;
+      int mantissa = half & 0x3ff;
+      float value;
+      if (exponent == 0) {
+        value = mantissa * (float) Math.pow(2, -24);
+      } else if (exponent == 31) {
+        value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+      } else {
+        value = (float) Math.pow(2, exponent - 15) * (1 + mantissa / 1024f);
+      }
+      return (half & 0x8000) != 0 ? -value : value;
+    }
+  }
+}
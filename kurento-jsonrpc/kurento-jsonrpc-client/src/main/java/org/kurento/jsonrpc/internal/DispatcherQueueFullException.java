@@ -0,0 +1,33 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown by {@link OrderedDispatcher} when the queue of a key has reached its limit.
+ */
+public class DispatcherQueueFullException extends RejectedExecutionException {
+
+  private static final long serialVersionUID = -3532286437611542735L;
+
+  public DispatcherQueueFullException(String message) {
+    super(message);
+  }
+
+}
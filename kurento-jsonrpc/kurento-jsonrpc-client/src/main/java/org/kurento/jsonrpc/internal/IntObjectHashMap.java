@@ -0,0 +1,214 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hash map with primitive int keys, implemented with open addressing and linear probing. Keys are
+ * not boxed and there are no entry objects, so lookups and insertions don't allocate memory.
+ * Removal uses backward shift deletion, so there are no tombstones.
+ *
+ * Null values are not allowed. This class is not thread safe.
+ *
+ * @param <V>
+ *          type of values
+ */
+public class IntObjectHashMap<V> {
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private int[] keys;
+  private Object[] values;
+  private int mask;
+  private int size;
+  private int resizeThreshold;
+
+  public IntObjectHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public IntObjectHashMap(int expectedSize) {
+    int capacity = DEFAULT_CAPACITY;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+    // Load factor 0.5
+    resizeThreshold = capacity >> 1;
+  }
+
+  private int indexOf(int key) {
+    int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(int key) {
+    for (int i = indexOf(key);; i = (i + 1) & mask) {
+      Object value = values[i];
+      if (value == null) {
+        return null;
+      }
+      if (keys[i] == key) {
+        return (V) value;
+      }
+    }
+  }
+
+  public boolean containsKey(int key) {
+    return get(key) != null;
+  }
+
+  public V put(int key, V value) {
+    return put(key, value, false);
+  }
+
+  /**
+   * Associates the value with the key only if the key is not already present.
+   *
+   * @return the current value associated with the key, or null if the value was inserted
+   */
+  public V putIfAbsent(int key, V value) {
+    return put(key, value, true);
+  }
+
+  @SuppressWarnings("unchecked")
+  private V put(int key, V value, boolean onlyIfAbsent) {
+
+    if (value == null) {
+      throw new NullPointerException("Null values are not allowed");
+    }
+
+    for (int i = indexOf(key);; i = (i + 1) & mask) {
+
+      Object current = values[i];
+
+      if (current == null) {
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeThreshold) {
+          rehash(values.length << 1);
+        }
+        return null;
+      }
+
+      if (keys[i] == key) {
+        if (!onlyIfAbsent) {
+          values[i] = value;
+        }
+        return (V) current;
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public V remove(int key) {
+
+    for (int i = indexOf(key);; i = (i + 1) & mask) {
+
+      Object current = values[i];
+
+      if (current == null) {
+        return null;
+      }
+
+      if (keys[i] == key) {
+        size--;
+        shiftBack(i);
+        return (V) current;
+      }
+    }
+  }
+
+  /**
+   * Moves back the entries that follow a removed slot in the same probe sequence, so lookups
+   * don't stop at the gap.
+   */
+  private void shiftBack(int removed) {
+
+    int gap = removed;
+
+    for (int i = (removed + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+
+      int ideal = indexOf(keys[i]);
+
+      // Move the entry if the gap is between its ideal slot and its current slot (cyclically)
+      if (((i - ideal) & mask) >= ((i - gap) & mask)) {
+        keys[gap] = keys[i];
+        values[gap] = values[i];
+        gap = i;
+      }
+    }
+
+    values[gap] = null;
+  }
+
+  private void rehash(int newCapacity) {
+
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+
+    allocate(newCapacity);
+
+    for (int i = 0; i < oldValues.length; i++) {
+      Object value = oldValues[i];
+      if (value != null) {
+        int j = indexOf(oldKeys[i]);
+        while (values[j] != null) {
+          j = (j + 1) & mask;
+        }
+        keys[j] = oldKeys[i];
+        values[j] = value;
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<V> values() {
+    List<V> result = new ArrayList<>(size);
+    for (Object value : values) {
+      if (value != null) {
+        result.add((V) value);
+      }
+    }
+    return result;
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+}
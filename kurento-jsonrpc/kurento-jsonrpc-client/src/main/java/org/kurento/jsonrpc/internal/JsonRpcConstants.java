@@ -45,6 +45,14 @@ public class JsonRpcConstants {
 
   public static final String SESSION_ID_PROPERTY = "sessionId";
 
+  public static final String REPLAY_PROPERTY = "replay";
+
+  public static final String ADAPTIVE_PROPERTY = "adaptive";
+
+  public static final String POOLED_PROPERTY = "pooled";
+
+  public static final String VALUE_PROPERTY = "value";
+
   public static final String METHOD_START = "start";
 
   public static final String METHOD_TERMINATE = "terminate";
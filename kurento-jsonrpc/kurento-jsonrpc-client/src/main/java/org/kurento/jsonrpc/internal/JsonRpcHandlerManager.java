@@ -17,6 +17,8 @@
 
 package org.kurento.jsonrpc.internal;
 
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ERROR_INVALID_PARAM;
+
 import java.io.IOException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
@@ -35,6 +37,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 
 public class JsonRpcHandlerManager {
 
@@ -120,6 +123,18 @@ public class JsonRpcHandlerManager {
           rs.sendResponse(new Response<>(null, new ResponseError(0, message)));
         }
         return;
+
+      } catch (JsonParseException e) {
+
+        // Params are valid JSON, but they don't match the type expected by the handler
+        log.warn("Request {} params can't be converted to {}", request.getId(),
+            paramsType.getCanonicalName(), e);
+
+        if (request.getId() != null) {
+          rs.sendResponse(new Response<>(request.getId(),
+              new ResponseError(ERROR_INVALID_PARAM, "Invalid params: " + e.getMessage())));
+        }
+        return;
       }
 
       JsonRpcHandler nonGenHandler = handler;
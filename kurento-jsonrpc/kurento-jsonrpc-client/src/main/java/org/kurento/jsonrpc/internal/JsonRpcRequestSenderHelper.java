@@ -50,6 +50,14 @@ public abstract class JsonRpcRequestSenderHelper implements JsonRpcRequestSender
     this.sessionId = sessionId;
   }
 
+  /**
+   * Takes the ids of the requests from the same sequence as the given helper, so the requests sent
+   * through both of them never have the same id.
+   */
+  public void shareIds(JsonRpcRequestSenderHelper helper) {
+    this.id = helper.id;
+  }
+
   @Override
   public <R> R sendRequest(String method, Class<R> resultClass) throws IOException {
     return sendRequest(method, null, resultClass);
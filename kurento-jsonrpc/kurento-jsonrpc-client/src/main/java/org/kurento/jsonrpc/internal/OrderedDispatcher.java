@@ -0,0 +1,359 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.commons.ThreadFactoryCreator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes tasks in a fixed pool of threads, keeping the order of the tasks dispatched with the
+ * same key. Each key has a serial queue; a queue is drained by one worker at a time, so tasks of a
+ * key are never executed concurrently, while tasks of different keys run in parallel.
+ *
+ * Queues are bounded. When the queue of a key is full, the task is rejected with a
+ * {@link DispatcherQueueFullException}.
+ *
+ * Workers are a fixed pool of threads by default, but any executor can be plugged in (e.g. one
+ * creating a virtual thread per task). Tasks of a key are serialized by the dispatcher whatever
+ * the executor is.
+ *
+ * The shared dispatcher used by JSON-RPC clients is configured with the properties
+ * {@value #THREADS_PROPERTY} and {@value #MAX_QUEUED_PER_KEY_PROPERTY}.
+ */
+public class OrderedDispatcher {
+
+  private static final Logger log = LoggerFactory.getLogger(OrderedDispatcher.class);
+
+  public static final String THREADS_PROPERTY = "jsonRpc.dispatcher.threads";
+  public static final String MAX_QUEUED_PER_KEY_PROPERTY = "jsonRpc.dispatcher.maxQueuedPerKey";
+
+  private static final int DEFAULT_MAX_QUEUED_PER_KEY = 10000;
+
+  // Max tasks executed from a queue before giving the worker to other keys
+  private static final int MAX_TASKS_PER_DRAIN = 64;
+
+  private static class SharedDispatcherHolder {
+    static final OrderedDispatcher dispatcher = new OrderedDispatcher(
+        ThreadFactoryCreator.createDaemon("JsonRpcDispatcher"),
+        PropertiesManager.getProperty(THREADS_PROPERTY,
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2)),
+        PropertiesManager.getProperty(MAX_QUEUED_PER_KEY_PROPERTY, DEFAULT_MAX_QUEUED_PER_KEY));
+  }
+
+  private static class QueuedTask {
+
+    private final Runnable task;
+    private final long queuedNanos;
+
+    QueuedTask(Runnable task) {
+      this.task = task;
+      this.queuedNanos = System.nanoTime();
+    }
+  }
+
+  private final Executor workers;
+  private final int maxQueuedPerKey;
+  private final ConcurrentMap<Object, SerialQueue> queues = new ConcurrentHashMap<>();
+
+  private volatile boolean shutdown;
+
+  private final AtomicInteger queuedTasks = new AtomicInteger();
+  private final AtomicLong executedTasks = new AtomicLong();
+  private final AtomicLong rejectedTasks = new AtomicLong();
+  private final AtomicLong queueTimeNanos = new AtomicLong();
+  private volatile int maxQueueDepth;
+
+  public OrderedDispatcher(String name, int threads, int maxQueuedPerKey) {
+    this(ThreadFactoryCreator.create(name), threads, maxQueuedPerKey);
+  }
+
+  public OrderedDispatcher(ThreadFactory threadFactory, int threads, int maxQueuedPerKey) {
+    this(createWorkers(threadFactory, threads), maxQueuedPerKey);
+  }
+
+  /**
+   * Creates a dispatcher running the tasks in the given executor. If it is an
+   * {@link ExecutorService}, it is shut down with the dispatcher.
+   */
+  public OrderedDispatcher(Executor workers, int maxQueuedPerKey) {
+    this.workers = workers;
+    this.maxQueuedPerKey = maxQueuedPerKey;
+  }
+
+  private static ThreadPoolExecutor createWorkers(ThreadFactory threadFactory, int threads) {
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), threadFactory);
+    workers.allowCoreThreadTimeOut(true);
+    return workers;
+  }
+
+  /**
+   * Returns the dispatcher shared by all the JSON-RPC clients of the process.
+   */
+  public static OrderedDispatcher getShared() {
+    return SharedDispatcherHolder.dispatcher;
+  }
+
+  /**
+   * Queues a task to be executed after all the tasks previously dispatched with the same key.
+   *
+   * @throws DispatcherQueueFullException
+   *           if the queue of the key is full
+   * @throws RejectedExecutionException
+   *           if the dispatcher has been shut down
+   */
+  public void dispatch(Object key, Runnable task) {
+
+    while (true) {
+
+      SerialQueue queue = queues.get(key);
+
+      if (queue == null) {
+        SerialQueue newQueue = new SerialQueue(key);
+        queue = queues.putIfAbsent(key, newQueue);
+        if (queue == null) {
+          queue = newQueue;
+        }
+      }
+
+      if (queue.add(task)) {
+        return;
+      }
+
+      // The queue was removed from the map after being drained. Try again with a new one.
+    }
+  }
+
+  /**
+   * Returns an executor that dispatches all its tasks with the given key.
+   */
+  public Executor executorFor(final Object key) {
+    return new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        dispatch(key, task);
+      }
+    };
+  }
+
+  /**
+   * Discards the tasks of a key waiting to be executed. A task of the key being executed is not
+   * interrupted.
+   *
+   * @return the number of discarded tasks
+   */
+  public int discard(Object key) {
+    SerialQueue queue = queues.get(key);
+    return queue != null ? queue.clear() : 0;
+  }
+
+  public void shutdown() {
+    shutdown = true;
+    if (workers instanceof ExecutorService) {
+      ((ExecutorService) workers).shutdown();
+    }
+  }
+
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  /**
+   * Number of tasks waiting to be executed.
+   */
+  public int getQueuedTasks() {
+    return queuedTasks.get();
+  }
+
+  public long getExecutedTasks() {
+    return executedTasks.get();
+  }
+
+  /**
+   * Number of tasks rejected because the queue of their key was full.
+   */
+  public long getRejectedTasks() {
+    return rejectedTasks.get();
+  }
+
+  /**
+   * Number of keys with queued or running tasks.
+   */
+  public int getActiveKeys() {
+    return queues.size();
+  }
+
+  public int getQueuedTasks(Object key) {
+    SerialQueue queue = queues.get(key);
+    return queue != null ? queue.size() : 0;
+  }
+
+  /**
+   * Max number of tasks observed waiting in the queue of a key.
+   */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  /**
+   * Total time spent by executed tasks waiting in their queues.
+   */
+  public long getQueueTimeNanos() {
+    return queueTimeNanos.get();
+  }
+
+  /**
+   * Average time spent by executed tasks waiting in their queues.
+   */
+  public double getAverageQueueTimeMillis() {
+    long executed = executedTasks.get();
+    return executed == 0 ? 0 : queueTimeNanos.get() / 1000000.0 / executed;
+  }
+
+  private class SerialQueue implements Runnable {
+
+    private final Object key;
+    private final Queue<QueuedTask> tasks = new ArrayDeque<>();
+
+    // Guarded by this
+    private boolean scheduled;
+    private boolean removed;
+
+    SerialQueue(Object key) {
+      this.key = key;
+    }
+
+    /**
+     * @return false if the queue has been removed and can't accept more tasks
+     */
+    boolean add(Runnable task) {
+
+      synchronized (this) {
+
+        if (removed) {
+          return false;
+        }
+
+        if (tasks.size() >= maxQueuedPerKey) {
+          rejectedTasks.incrementAndGet();
+          throw new DispatcherQueueFullException("Queue of dispatcher key " + key
+              + " is full with " + tasks.size() + " tasks");
+        }
+
+        tasks.add(new QueuedTask(task));
+        queuedTasks.incrementAndGet();
+
+        if (tasks.size() > maxQueueDepth) {
+          maxQueueDepth = tasks.size();
+        }
+
+        if (scheduled) {
+          return true;
+        }
+
+        scheduled = true;
+      }
+
+      schedule();
+      return true;
+    }
+
+    synchronized int size() {
+      return tasks.size();
+    }
+
+    synchronized int clear() {
+      int discarded = tasks.size();
+      queuedTasks.addAndGet(-discarded);
+      tasks.clear();
+      return discarded;
+    }
+
+    private void schedule() {
+      try {
+        if (shutdown) {
+          throw new RejectedExecutionException("Dispatcher has been shut down");
+        }
+        workers.execute(this);
+      } catch (RejectedExecutionException e) {
+        synchronized (this) {
+          queuedTasks.addAndGet(-tasks.size());
+          tasks.clear();
+          scheduled = false;
+        }
+        throw e;
+      }
+    }
+
+    @Override
+    public void run() {
+
+      for (int i = 0; i < MAX_TASKS_PER_DRAIN; i++) {
+
+        QueuedTask task;
+
+        synchronized (this) {
+          task = tasks.poll();
+          if (task == null) {
+            scheduled = false;
+            removed = true;
+            queues.remove(key, this);
+            return;
+          }
+        }
+
+        queuedTasks.decrementAndGet();
+        queueTimeNanos.addAndGet(System.nanoTime() - task.queuedNanos);
+
+        try {
+          task.task.run();
+        } catch (Throwable t) {
+          log.warn("Exception executing task dispatched with key {}", key, t);
+        }
+
+        executedTasks.incrementAndGet();
+      }
+
+      // Give other keys the chance to run
+      try {
+        if (shutdown) {
+          throw new RejectedExecutionException("Dispatcher has been shut down");
+        }
+        workers.execute(this);
+      } catch (RejectedExecutionException e) {
+        log.debug("Dispatcher shut down with pending tasks for key {}", key);
+      }
+    }
+  }
+}
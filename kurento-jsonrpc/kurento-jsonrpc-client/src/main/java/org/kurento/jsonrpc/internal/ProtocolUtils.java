@@ -35,6 +35,8 @@ public final class ProtocolUtils {
   private static final String UTF32BE = "UTF-32BE";
   private static final String UTF32LE = "UTF-32LE";
 
+  private static final String RETRY_AFTER = "retryAfter";
+
   /**
    * Reads inputStream (from request) and detects incoming JSON encoding.
    * 
@@ -83,4 +85,50 @@ public final class ProtocolUtils {
     }
   }
 
+  /**
+   * Appends a retry-after hint to a WebSocket close reason, so clients wait at least the given
+   * time before reconnecting.
+   *
+   * @param reason
+   *          close reason
+   * @param retryAfterMillis
+   *          milliseconds the client should wait before reconnecting
+   * @return the close reason with the hint (e.g. "Server overloaded; retryAfter=5000")
+   */
+  public static String withRetryAfter(String reason, long retryAfterMillis) {
+    String hint = RETRY_AFTER + "=" + retryAfterMillis;
+    return reason == null || reason.isEmpty() ? hint : reason + "; " + hint;
+  }
+
+  /**
+   * Extracts the retry-after hint added by {@link #withRetryAfter(String, long)}.
+   *
+   * @param reason
+   *          close reason
+   * @return the hint in milliseconds, or 0 if the reason doesn't include a valid one
+   */
+  public static long parseRetryAfter(String reason) {
+
+    if (reason == null) {
+      return 0;
+    }
+
+    int index = reason.lastIndexOf(RETRY_AFTER + "=");
+    if (index == -1) {
+      return 0;
+    }
+
+    int start = index + RETRY_AFTER.length() + 1;
+    int end = start;
+    while (end < reason.length() && Character.isDigit(reason.charAt(end))) {
+      end++;
+    }
+
+    if (end == start || end - start > 18) {
+      return 0;
+    }
+
+    return Long.parseLong(reason.substring(start, end));
+  }
+
 }
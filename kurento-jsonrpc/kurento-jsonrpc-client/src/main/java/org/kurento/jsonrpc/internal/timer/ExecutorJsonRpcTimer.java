@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.timer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.commons.ThreadFactoryCreator;
+
+/**
+ * Timer with its own {@link ScheduledExecutorService}, used by a single client. Tasks are executed
+ * in the scheduler thread. This is the behaviour of clients before the shared timer was introduced.
+ */
+public class ExecutorJsonRpcTimer implements JsonRpcTimer {
+
+  private static class FutureTimeout implements Timeout {
+
+    private final ScheduledFuture<?> future;
+
+    FutureTimeout(ScheduledFuture<?> future) {
+      this.future = future;
+    }
+
+    @Override
+    public boolean cancel() {
+      return future.cancel(false);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return future.isCancelled();
+    }
+  }
+
+  private final String name;
+
+  private ScheduledExecutorService exec;
+
+  public ExecutorJsonRpcTimer(String name) {
+    this.name = name;
+  }
+
+  private synchronized ScheduledExecutorService getExecutor() {
+    if (exec == null || exec.isShutdown()) {
+      exec = Executors.newSingleThreadScheduledExecutor(ThreadFactoryCreator.create(name));
+    }
+    return exec;
+  }
+
+  @Override
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    return new FutureTimeout(getExecutor().schedule(task, delay, unit));
+  }
+
+  @Override
+  public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period,
+      TimeUnit unit) {
+    return new FutureTimeout(getExecutor().scheduleAtFixedRate(task, initialDelay, period, unit));
+  }
+
+  @Override
+  public synchronized void release() {
+    if (exec != null) {
+      exec.shutdown();
+      exec = null;
+    }
+  }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.timer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Low resolution timer based on a hashed timing wheel. A single thread advances the wheel every
+ * tick and hands expired tasks to an executor, so the number of threads doesn't depend on the
+ * number of scheduled tasks or on the number of clients using the timer. Scheduling and cancelling
+ * are O(1), and tasks are executed with a delay of up to one tick.
+ *
+ * Tasks must not block the executor for long, because it is shared by all the users of the timer.
+ */
+public class HashedWheelTimer implements JsonRpcTimer {
+
+  private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+  private static final int ST_INIT = 0;
+  private static final int ST_CANCELLED = 1;
+  private static final int ST_EXPIRED = 2;
+
+  private static final int MAX_TRANSFERRED_TIMEOUTS_PER_TICK = 100000;
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final Executor executor;
+  private final Thread tickThread;
+  private final long startTime;
+
+  private final Queue<WheelTimeout> newTimeouts = new ConcurrentLinkedQueue<>();
+  private final Queue<WheelTimeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+  private final AtomicLong pendingTimeouts = new AtomicLong();
+  private final AtomicBoolean started = new AtomicBoolean();
+
+  private volatile boolean stopped;
+
+  // Only accessed from the tick thread
+  private long tick;
+
+  public HashedWheelTimer(ThreadFactory threadFactory, long tickDuration, TimeUnit unit,
+      int ticksPerWheel, Executor executor) {
+
+    if (tickDuration <= 0) {
+      throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+    }
+
+    this.tickNanos = unit.toNanos(tickDuration);
+    this.wheel = createWheel(ticksPerWheel);
+    this.mask = wheel.length - 1;
+    this.executor = executor;
+    this.startTime = System.nanoTime();
+    this.tickThread = threadFactory.newThread(new Runnable() {
+      @Override
+      public void run() {
+        runTicks();
+      }
+    });
+  }
+
+  private static Bucket[] createWheel(int ticksPerWheel) {
+
+    if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+      throw new IllegalArgumentException("ticksPerWheel must be in (0, 2^30]: " + ticksPerWheel);
+    }
+
+    int normalized = 1;
+    while (normalized < ticksPerWheel) {
+      normalized <<= 1;
+    }
+
+    Bucket[] wheel = new Bucket[normalized];
+    for (int i = 0; i < wheel.length; i++) {
+      wheel[i] = new Bucket();
+    }
+    return wheel;
+  }
+
+  @Override
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+
+    if (stopped) {
+      throw new RejectedExecutionException("Timer has been stopped");
+    }
+
+    if (started.compareAndSet(false, true)) {
+      tickThread.start();
+    }
+
+    long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+
+    WheelTimeout timeout = new WheelTimeout(task, deadline);
+    pendingTimeouts.incrementAndGet();
+    newTimeouts.add(timeout);
+    return timeout;
+  }
+
+  @Override
+  public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period,
+      TimeUnit unit) {
+    PeriodicTask periodicTask = new PeriodicTask(this, task, period, unit);
+    periodicTask.start(initialDelay, unit);
+    return periodicTask;
+  }
+
+  @Override
+  public void release() {
+    // Shared by all the clients. Use stop() to finish the timer thread.
+  }
+
+  public void stop() {
+    stopped = true;
+    if (started.get()) {
+      tickThread.interrupt();
+    }
+  }
+
+  /**
+   * Number of tasks scheduled and not yet expired or cancelled.
+   */
+  public long getPendingTimeouts() {
+    return pendingTimeouts.get();
+  }
+
+  public long getTickDuration(TimeUnit unit) {
+    return unit.convert(tickNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void runTicks() {
+
+    while (!stopped) {
+
+      long deadline = waitForNextTick();
+      if (deadline < 0) {
+        break;
+      }
+
+      processCancelledTimeouts();
+      transferNewTimeouts();
+      wheel[(int) (tick & mask)].expireTimeouts(deadline);
+      tick++;
+    }
+
+    log.debug("Timer stopped with {} pending timeouts", pendingTimeouts.get());
+  }
+
+  private long waitForNextTick() {
+
+    long deadline = tickNanos * (tick + 1);
+
+    while (true) {
+
+      long currentTime = System.nanoTime() - startTime;
+      long sleepMillis = (deadline - currentTime + 999999) / 1000000;
+
+      if (sleepMillis <= 0) {
+        return currentTime;
+      }
+
+      try {
+        Thread.sleep(sleepMillis);
+      } catch (InterruptedException e) {
+        if (stopped) {
+          return -1;
+        }
+      }
+    }
+  }
+
+  private void transferNewTimeouts() {
+
+    for (int i = 0; i < MAX_TRANSFERRED_TIMEOUTS_PER_TICK; i++) {
+
+      WheelTimeout timeout = newTimeouts.poll();
+      if (timeout == null) {
+        break;
+      }
+
+      if (timeout.state.get() == ST_CANCELLED) {
+        continue;
+      }
+
+      long calculated = timeout.deadline / tickNanos;
+      timeout.remainingRounds = (calculated - tick) / wheel.length;
+
+      // Timeouts already expired go to the current bucket
+      long ticks = Math.max(calculated, tick);
+      wheel[(int) (ticks & mask)].add(timeout);
+    }
+  }
+
+  private void processCancelledTimeouts() {
+
+    while (true) {
+      WheelTimeout timeout = cancelledTimeouts.poll();
+      if (timeout == null) {
+        break;
+      }
+      timeout.remove();
+    }
+  }
+
+  private final class WheelTimeout implements Timeout {
+
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+    // Only accessed from the tick thread
+    long remainingRounds;
+    WheelTimeout next;
+    WheelTimeout prev;
+    Bucket bucket;
+    boolean removed;
+
+    WheelTimeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public boolean cancel() {
+      if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+        return false;
+      }
+      cancelledTimeouts.add(this);
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return state.get() == ST_CANCELLED;
+    }
+
+    void remove() {
+      if (removed) {
+        return;
+      }
+      removed = true;
+      if (bucket != null) {
+        bucket.remove(this);
+      }
+      pendingTimeouts.decrementAndGet();
+    }
+
+    void expire() {
+
+      if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+        return;
+      }
+
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        log.warn("Timer task {} rejected by executor", task, e);
+      }
+    }
+  }
+
+  /**
+   * Doubly linked list of timeouts, so cancelled timeouts can be removed in constant time. Only
+   * accessed from the tick thread.
+   */
+  private static final class Bucket {
+
+    private WheelTimeout head;
+    private WheelTimeout tail;
+
+    void add(WheelTimeout timeout) {
+      timeout.bucket = this;
+      if (head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+
+    void expireTimeouts(long deadline) {
+
+      WheelTimeout timeout = head;
+
+      while (timeout != null) {
+
+        WheelTimeout next = timeout.next;
+
+        if (timeout.remainingRounds <= 0) {
+          if (timeout.deadline <= deadline) {
+            timeout.remove();
+            timeout.expire();
+          }
+        } else if (timeout.isCancelled()) {
+          timeout.remove();
+        } else {
+          timeout.remainingRounds--;
+        }
+
+        timeout = next;
+      }
+    }
+
+    void remove(WheelTimeout timeout) {
+
+      if (timeout.bucket != this) {
+        return;
+      }
+
+      if (timeout.prev != null) {
+        timeout.prev.next = timeout.next;
+      }
+      if (timeout.next != null) {
+        timeout.next.prev = timeout.prev;
+      }
+      if (timeout == head) {
+        head = timeout.next;
+      }
+      if (timeout == tail) {
+        tail = timeout.prev;
+      }
+
+      timeout.prev = null;
+      timeout.next = null;
+      timeout.bucket = null;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer used by JSON-RPC clients and sessions to schedule heartbeats, reconnections and request
+ * timeouts.
+ *
+ * @see JsonRpcTimers
+ */
+public interface JsonRpcTimer {
+
+  Timeout schedule(Runnable task, long delay, TimeUnit unit);
+
+  /**
+   * Schedules a periodic task. As in {@link java.util.concurrent.ScheduledExecutorService}, the
+   * executions of the task never overlap, and if the task throws an exception it is not executed
+   * again.
+   */
+  Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit);
+
+  /**
+   * Releases the resources used by the owner of this timer. Shared timers ignore this call. Tasks
+   * already scheduled are still executed, and released timers can still be used; resources are
+   * recreated when needed.
+   */
+  void release();
+
+}
@@ -0,0 +1,115 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.timer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.commons.ThreadFactoryCreator;
+
+/**
+ * Provides the timers used by JSON-RPC clients. The implementation is selected with the property
+ * {@value #TIMER_PROPERTY}:
+ * <ul>
+ * <li>wheel (default): all the clients of the process share a single {@link HashedWheelTimer}.
+ * Expired tasks are executed in a shared pool of up to {@value #WORKER_THREADS_PROPERTY}
+ * threads.</li>
+ * <li>executor: each client has its own scheduler thread.</li>
+ * </ul>
+ */
+public class JsonRpcTimers {
+
+  public enum TimerType {
+    WHEEL, EXECUTOR
+  }
+
+  public static final String TIMER_PROPERTY = "jsonRpcClient.timer";
+  public static final String TICK_MILLIS_PROPERTY = "jsonRpcClient.timer.tickMillis";
+  public static final String TICKS_PER_WHEEL_PROPERTY = "jsonRpcClient.timer.ticksPerWheel";
+  public static final String WORKER_THREADS_PROPERTY = "jsonRpcClient.timer.workerThreads";
+
+  private static final int DEFAULT_TICK_MILLIS = 10;
+  private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+  private static class SharedTimerHolder {
+
+    static final ThreadPoolExecutor workers = createWorkers();
+
+    static final HashedWheelTimer timer = new HashedWheelTimer(
+        ThreadFactoryCreator.createDaemon("JsonRpcTimer-tick"),
+        PropertiesManager.getProperty(TICK_MILLIS_PROPERTY, DEFAULT_TICK_MILLIS),
+        TimeUnit.MILLISECONDS,
+        PropertiesManager.getProperty(TICKS_PER_WHEEL_PROPERTY, DEFAULT_TICKS_PER_WHEEL), workers);
+
+    private static ThreadPoolExecutor createWorkers() {
+
+      int threads = PropertiesManager.getProperty(WORKER_THREADS_PROPERTY,
+          Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+
+      ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          ThreadFactoryCreator.createDaemon("JsonRpcTimer-worker"));
+      workers.allowCoreThreadTimeOut(true);
+      return workers;
+    }
+  }
+
+  private static class BlockingExecutorHolder {
+
+    static final Executor executor = Executors
+        .newCachedThreadPool(ThreadFactoryCreator.createDaemon("JsonRpcClient-blocking"));
+  }
+
+  private JsonRpcTimers() {
+  }
+
+  /**
+   * Returns the executor for the work triggered by timers that may block, such as connecting to
+   * the server. Timer tasks hand that work to this executor, so a slow connection doesn't delay
+   * the tasks of the other clients sharing the timer.
+   */
+  public static Executor getBlockingExecutor() {
+    return BlockingExecutorHolder.executor;
+  }
+
+  /**
+   * Returns the timer shared by all the clients of the process.
+   */
+  public static HashedWheelTimer getSharedTimer() {
+    return SharedTimerHolder.timer;
+  }
+
+  /**
+   * Creates the timer to be used by a client, according to {@value #TIMER_PROPERTY}.
+   *
+   * @param name
+   *          name of the scheduler threads when a per-client timer is used
+   */
+  public static JsonRpcTimer createTimer(String name) {
+    if (PropertiesManager.getProperty(TIMER_PROPERTY, TimerType.WHEEL) == TimerType.EXECUTOR) {
+      return new ExecutorJsonRpcTimer(name);
+    } else {
+      return getSharedTimer();
+    }
+  }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.timer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodic task implemented on top of one-shot timeouts. The next execution is scheduled when the
+ * current one finishes, so executions never overlap. Missed executions are not recovered in bursts.
+ */
+class PeriodicTask implements Timeout, Runnable {
+
+  private static final Logger log = LoggerFactory.getLogger(PeriodicTask.class);
+
+  private final JsonRpcTimer timer;
+  private final Runnable task;
+  private final long periodNanos;
+
+  private long nextExecutionNanos;
+  private Timeout current;
+  private boolean cancelled;
+
+  PeriodicTask(JsonRpcTimer timer, Runnable task, long period, TimeUnit unit) {
+    this.timer = timer;
+    this.task = task;
+    this.periodNanos = unit.toNanos(period);
+  }
+
+  synchronized void start(long initialDelay, TimeUnit unit) {
+    long delayNanos = unit.toNanos(initialDelay);
+    nextExecutionNanos = System.nanoTime() + delayNanos;
+    current = timer.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void run() {
+
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+    }
+
+    try {
+      task.run();
+    } catch (Throwable t) {
+      log.warn("Periodic task {} threw an exception and will not be executed again", task, t);
+      cancel();
+      return;
+    }
+
+    synchronized (this) {
+      if (!cancelled) {
+        nextExecutionNanos += periodNanos;
+        long delayNanos = Math.max(0, nextExecutionNanos - System.nanoTime());
+        if (delayNanos == 0) {
+          nextExecutionNanos = System.nanoTime();
+        }
+        current = timer.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean cancel() {
+    if (cancelled) {
+      return false;
+    }
+    cancelled = true;
+    if (current != null) {
+      current.cancel();
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+}
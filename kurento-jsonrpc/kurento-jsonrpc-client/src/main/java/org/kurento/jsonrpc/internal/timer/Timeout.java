@@ -0,0 +1,34 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.timer;
+
+/**
+ * Handle of a task scheduled in a {@link JsonRpcTimer}.
+ */
+public interface Timeout {
+
+  /**
+   * Cancels the task. If the task is already running, it is not interrupted.
+   *
+   * @return false if the task has already been executed or cancelled
+   */
+  boolean cancel();
+
+  boolean isCancelled();
+
+}
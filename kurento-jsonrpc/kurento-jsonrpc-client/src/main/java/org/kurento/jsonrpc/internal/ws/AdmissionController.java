@@ -0,0 +1,466 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.ws;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.kurento.jsonrpc.AdmissionQueueFullException;
+import org.kurento.jsonrpc.JsonRpcException;
+import org.kurento.jsonrpc.TransportException;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimer;
+import org.kurento.jsonrpc.internal.timer.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of requests of a client that are in flight (sent and waiting for their
+ * response). When the limit is reached, new requests wait in a bounded FIFO queue until a response
+ * frees a slot or their deadline in the queue expires. If the queue is full, requests are rejected
+ * immediately with an {@link AdmissionQueueFullException}.
+ *
+ * The limit can be adaptive (AIMD): it grows by one each time a full window of requests completes
+ * below the target latency, and it's halved (at most once per target latency period) when a request
+ * takes longer than that, down to the configured minimum.
+ */
+public class AdmissionController {
+
+  private static final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+
+  private static final double DECREASE_FACTOR = 0.5;
+
+  public interface Admission {
+
+    /**
+     * Invoked when the request can be sent. The permit has to be released when the request
+     * completes, whatever the result.
+     */
+    void admitted(Permit permit);
+
+    void rejected(Throwable cause);
+  }
+
+  public class Permit {
+
+    private final long admittedTime = System.nanoTime();
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * Frees the slot of the request. Only the first invocation has effect.
+     */
+    public void release() {
+      if (released.compareAndSet(false, true)) {
+        AdmissionController.this.release(System.nanoTime() - admittedTime);
+      }
+    }
+  }
+
+  private abstract static class Waiter {
+
+    abstract void admit(Permit permit);
+
+    abstract void reject(RuntimeException cause);
+  }
+
+  private static class SyncWaiter extends Waiter {
+
+    private volatile Permit permit;
+    private RuntimeException failure;
+
+    @Override
+    synchronized void admit(Permit permit) {
+      this.permit = permit;
+      notifyAll();
+    }
+
+    @Override
+    synchronized void reject(RuntimeException cause) {
+      this.failure = cause;
+      notifyAll();
+    }
+
+    synchronized boolean await(long deadline) throws InterruptedException {
+      while (permit == null && failure == null) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return true;
+    }
+
+    synchronized Permit getPermit() {
+      if (failure != null) {
+        throw failure;
+      }
+      return permit;
+    }
+  }
+
+  private class AsyncWaiter extends Waiter implements Runnable {
+
+    private final Admission admission;
+    private Timeout timeout;
+    private Permit permit;
+
+    public AsyncWaiter(Admission admission) {
+      this.admission = admission;
+    }
+
+    @Override
+    void admit(Permit permit) {
+      timeout.cancel();
+      this.permit = permit;
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        permit.release();
+        admission.rejected(e);
+      }
+    }
+
+    @Override
+    void reject(RuntimeException cause) {
+      timeout.cancel();
+      admission.rejected(cause);
+    }
+
+    @Override
+    public void run() {
+      admission.admitted(permit);
+    }
+  }
+
+  private final JsonRpcTimer timer;
+  private final Executor executor;
+  private final int maxInFlight;
+  private final int maxQueued;
+  private final long queueTimeoutMillis;
+
+  private boolean adaptive;
+  private int minInFlight;
+  private long targetLatencyNanos;
+
+  private final Queue<Waiter> queue = new ArrayDeque<>();
+  private int inFlight;
+  private int limit;
+  private int increaseCredit;
+  private long lastDecreaseTime = System.nanoTime();
+
+  private long admittedRequests;
+  private long rejectedRequests;
+  private long expiredRequests;
+
+  private String label = "";
+
+  /**
+   * @param timer
+   *          timer used to expire the requests waiting in the queue
+   * @param executor
+   *          executor of the asynchronous requests admitted after waiting in the queue
+   * @param maxInFlight
+   *          maximum number of requests in flight
+   * @param maxQueued
+   *          maximum number of requests waiting for a slot
+   * @param queueTimeoutMillis
+   *          maximum time a request can wait for a slot
+   */
+  public AdmissionController(JsonRpcTimer timer, Executor executor, int maxInFlight,
+      int maxQueued, long queueTimeoutMillis) {
+    this.timer = timer;
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+    this.maxQueued = maxQueued;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.limit = maxInFlight;
+  }
+
+  public void setLabel(String label) {
+    this.label = label;
+  }
+
+  /**
+   * Makes the limit of requests in flight adapt to the observed latency, between minInFlight and
+   * the configured maximum.
+   *
+   * @param minInFlight
+   *          lower bound of the limit
+   * @param targetLatencyMillis
+   *          latency above which the limit is decreased
+   */
+  public synchronized void setAdaptive(int minInFlight, long targetLatencyMillis) {
+    this.adaptive = true;
+    this.minInFlight = Math.max(1, Math.min(minInFlight, maxInFlight));
+    this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+  }
+
+  public synchronized boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /**
+   * Waits for a free slot to send a request.
+   *
+   * @return the permit to be released when the request completes
+   * @throws AdmissionQueueFullException
+   *           if the queue of waiting requests is full
+   * @throws TransportException
+   *           if no slot is freed before the queue timeout
+   */
+  public Permit acquire() {
+
+    SyncWaiter waiter = new SyncWaiter();
+
+    synchronized (this) {
+      if (tryAdmit()) {
+        return new Permit();
+      }
+      checkQueueFull();
+      queue.add(waiter);
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    try {
+      if (waiter.await(deadline)) {
+        return waiter.getPermit();
+      }
+    } catch (InterruptedException e) {
+      if (!remove(waiter)) {
+        // Admitted or rejected concurrently
+        awaitUninterruptibly(waiter);
+        if (waiter.permit != null) {
+          waiter.permit.release();
+        }
+      }
+      Thread.currentThread().interrupt();
+      throw new JsonRpcException(label + " Interrupted while waiting for a slot to send request",
+          e);
+    }
+
+    if (remove(waiter)) {
+      synchronized (this) {
+        expiredRequests++;
+      }
+      throw createTimeoutException();
+    }
+
+    awaitUninterruptibly(waiter);
+    return waiter.getPermit();
+  }
+
+  /**
+   * Requests a slot to send a request without blocking. If there is a free slot, the admission is
+   * invoked in the calling thread; otherwise, it is invoked in the executor when a slot is freed,
+   * or rejected when the queue timeout expires.
+   */
+  public void acquire(Admission admission) {
+
+    RuntimeException failure = null;
+
+    synchronized (this) {
+      if (!tryAdmit()) {
+        try {
+          checkQueueFull();
+          final AsyncWaiter waiter = new AsyncWaiter(admission);
+          waiter.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+              expire(waiter);
+            }
+          }, queueTimeoutMillis, TimeUnit.MILLISECONDS);
+          queue.add(waiter);
+          return;
+        } catch (AdmissionQueueFullException e) {
+          failure = e;
+        }
+      }
+    }
+
+    if (failure != null) {
+      admission.rejected(failure);
+    } else {
+      admission.admitted(new Permit());
+    }
+  }
+
+  /**
+   * Rejects all the requests waiting in the queue, e.g. when the client is closed.
+   */
+  public void rejectQueued(RuntimeException cause) {
+
+    List<Waiter> rejected;
+    synchronized (this) {
+      rejected = new ArrayList<>(queue);
+      queue.clear();
+    }
+
+    for (Waiter waiter : rejected) {
+      waiter.reject(cause);
+    }
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public synchronized int getQueued() {
+    return queue.size();
+  }
+
+  /**
+   * @return the current limit of requests in flight
+   */
+  public synchronized int getLimit() {
+    return limit;
+  }
+
+  public synchronized long getAdmittedRequests() {
+    return admittedRequests;
+  }
+
+  /**
+   * @return the requests rejected because the queue was full
+   */
+  public synchronized long getRejectedRequests() {
+    return rejectedRequests;
+  }
+
+  /**
+   * @return the requests rejected because their queue timeout expired
+   */
+  public synchronized long getExpiredRequests() {
+    return expiredRequests;
+  }
+
+  private boolean tryAdmit() {
+    if (inFlight < limit && queue.isEmpty()) {
+      inFlight++;
+      admittedRequests++;
+      return true;
+    }
+    return false;
+  }
+
+  private void checkQueueFull() {
+    if (queue.size() >= maxQueued) {
+      rejectedRequests++;
+      throw new AdmissionQueueFullException(label + " Admission queue full: " + inFlight
+          + " requests in flight and " + queue.size() + " waiting");
+    }
+  }
+
+  private synchronized boolean remove(Waiter waiter) {
+    return queue.remove(waiter);
+  }
+
+  private void expire(AsyncWaiter waiter) {
+
+    synchronized (this) {
+      if (!queue.remove(waiter)) {
+        return;
+      }
+      expiredRequests++;
+    }
+
+    waiter.admission.rejected(createTimeoutException());
+  }
+
+  private TransportException createTimeoutException() {
+    return new TransportException(label + " Timeout of " + queueTimeoutMillis
+        + " milliseconds waiting for a slot to send request");
+  }
+
+  private void awaitUninterruptibly(SyncWaiter waiter) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        if (waiter.await(System.nanoTime() + TimeUnit.SECONDS.toNanos(1))) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void release(long latencyNanos) {
+
+    List<Waiter> toAdmit = null;
+
+    synchronized (this) {
+
+      inFlight--;
+
+      if (adaptive) {
+        adaptLimit(latencyNanos);
+      }
+
+      while (inFlight < limit && !queue.isEmpty()) {
+        if (toAdmit == null) {
+          toAdmit = new ArrayList<>();
+        }
+        toAdmit.add(queue.poll());
+        inFlight++;
+        admittedRequests++;
+      }
+    }
+
+    if (toAdmit != null) {
+      for (Waiter waiter : toAdmit) {
+        waiter.admit(new Permit());
+      }
+    }
+  }
+
+  private void adaptLimit(long latencyNanos) {
+
+    if (latencyNanos > targetLatencyNanos) {
+
+      long now = System.nanoTime();
+      if (now - lastDecreaseTime >= targetLatencyNanos) {
+        lastDecreaseTime = now;
+        increaseCredit = 0;
+        int newLimit = Math.max(minInFlight, (int) (limit * DECREASE_FACTOR));
+        if (newLimit != limit) {
+          log.debug("{} Request latency {} ms over target. Decreasing in-flight limit to {}",
+              label, TimeUnit.NANOSECONDS.toMillis(latencyNanos), newLimit);
+          limit = newLimit;
+        }
+      }
+
+    } else if (limit < maxInFlight && (inFlight + 1 >= limit || !queue.isEmpty())) {
+
+      // Only grow when the limit is actually constraining the client
+      if (++increaseCredit >= limit) {
+        increaseCredit = 0;
+        limit++;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.ws;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the payload bytes of WebSocket data frames before and after permessage-deflate.
+ * Messages not compressed (because they are smaller than the threshold or the extension was not
+ * negotiated by a connection using it) count the same size in both counters.
+ */
+public class CompressionStats {
+
+  private final AtomicLong outgoingBytes = new AtomicLong();
+  private final AtomicLong outgoingCompressedBytes = new AtomicLong();
+  private final AtomicLong incomingBytes = new AtomicLong();
+  private final AtomicLong incomingCompressedBytes = new AtomicLong();
+  private final AtomicLong uncompressedMessages = new AtomicLong();
+
+  void addOutgoing(long bytes) {
+    outgoingBytes.addAndGet(bytes);
+  }
+
+  void addOutgoingCompressed(long bytes) {
+    outgoingCompressedBytes.addAndGet(bytes);
+  }
+
+  void addIncoming(long bytes) {
+    incomingBytes.addAndGet(bytes);
+  }
+
+  void addIncomingCompressed(long bytes) {
+    incomingCompressedBytes.addAndGet(bytes);
+  }
+
+  void addUncompressedMessage() {
+    uncompressedMessages.incrementAndGet();
+  }
+
+  /**
+   * @return bytes sent by the application, before compression
+   */
+  public long getOutgoingBytes() {
+    return outgoingBytes.get();
+  }
+
+  /**
+   * @return bytes written to the connection, after compression
+   */
+  public long getOutgoingCompressedBytes() {
+    return outgoingCompressedBytes.get();
+  }
+
+  /**
+   * @return bytes delivered to the application, after decompression
+   */
+  public long getIncomingBytes() {
+    return incomingBytes.get();
+  }
+
+  /**
+   * @return bytes read from the connection, before decompression
+   */
+  public long getIncomingCompressedBytes() {
+    return incomingCompressedBytes.get();
+  }
+
+  /**
+   * @return outgoing messages sent without compression because they were below the threshold
+   */
+  public long getUncompressedMessages() {
+    return uncompressedMessages.get();
+  }
+
+  public void reset() {
+    outgoingBytes.set(0);
+    outgoingCompressedBytes.set(0);
+    incomingBytes.set(0);
+    incomingCompressedBytes.set(0);
+    uncompressedMessages.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "CompressionStats [outgoing=" + outgoingBytes + ", outgoingCompressed="
+        + outgoingCompressedBytes + ", incoming=" + incomingBytes + ", incomingCompressed="
+        + incomingCompressedBytes + ", uncompressedMessages=" + uncompressedMessages + "]";
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.ws;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension;
+import org.kurento.commons.PropertiesManager;
+
+/**
+ * permessage-deflate extension that doesn't compress messages smaller than
+ * {@value #MIN_SIZE_PROPERTY} bytes (default 256), such as pings, and counts payload bytes before
+ * and after compression in {@link #getStats()}. Jetty creates an instance per connection; the
+ * client owning the connection sets its own stats with {@link #setStats(CompressionStats)}.
+ *
+ * Small messages are passed to the next extension directly, with RSV1 unset, which is allowed by
+ * RFC 7692 because compression is decided per message. To keep the order of frames, a message is
+ * only passed directly when no previous frame is waiting in the compressor; otherwise it is
+ * compressed as usual.
+ */
+public class MeteredPerMessageDeflateExtension extends PerMessageDeflateExtension {
+
+  public static final String MIN_SIZE_PROPERTY = "jsonRpcClientWebSocket.deflate.minSize";
+
+  private static final int MIN_SIZE = PropertiesManager.getProperty(MIN_SIZE_PROPERTY, 256);
+
+  private volatile CompressionStats stats = new CompressionStats();
+
+  private final AtomicInteger framesInCompressor = new AtomicInteger();
+
+  public CompressionStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Counts the bytes of this connection in the given stats from now on.
+   */
+  public void setStats(CompressionStats stats) {
+    this.stats = stats;
+  }
+
+  // The compressor invokes the callback once the frame has been passed to the next extension
+  private class CompressorCallback implements WriteCallback {
+
+    private final WriteCallback callback;
+
+    public CompressorCallback(WriteCallback callback) {
+      this.callback = callback;
+    }
+
+    @Override
+    public void writeFailed(Throwable cause) {
+      framesInCompressor.decrementAndGet();
+      if (callback != null) {
+        callback.writeFailed(cause);
+      }
+    }
+
+    @Override
+    public void writeSuccess() {
+      framesInCompressor.decrementAndGet();
+      if (callback != null) {
+        callback.writeSuccess();
+      }
+    }
+  }
+
+  @Override
+  public void incomingFrame(Frame frame) {
+    if (frame.getType().isData()) {
+      stats.addIncomingCompressed(frame.getPayloadLength());
+    }
+    super.incomingFrame(frame);
+  }
+
+  @Override
+  protected void nextIncomingFrame(Frame frame) {
+    if (frame.getType().isData()) {
+      stats.addIncoming(frame.getPayloadLength());
+    }
+    super.nextIncomingFrame(frame);
+  }
+
+  @Override
+  public void outgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode) {
+
+    if (!frame.getType().isData()) {
+      super.outgoingFrame(frame, callback, batchMode);
+      return;
+    }
+
+    stats.addOutgoing(frame.getPayloadLength());
+
+    // Checking and then incrementing the counter is not atomic: it relies on frames being sent by
+    // one thread at a time, which the outbound queue of JsonRpcClientWebSocket guarantees by
+    // handing the next message to Jetty only when the write of the previous one has completed.
+    // With concurrent writes, a small message could overtake a frame entering the compressor
+    if (frame.isFin() && frame.getType() != Frame.Type.CONTINUATION
+        && frame.getPayloadLength() < MIN_SIZE && framesInCompressor.get() == 0) {
+      stats.addUncompressedMessage();
+      nextOutgoingFrame(frame, callback, batchMode);
+    } else {
+      framesInCompressor.incrementAndGet();
+      super.outgoingFrame(frame, new CompressorCallback(callback), batchMode);
+    }
+  }
+
+  @Override
+  protected void nextOutgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode) {
+    if (frame.getType().isData()) {
+      stats.addOutgoingCompressed(frame.getPayloadLength());
+    }
+    super.nextOutgoingFrame(frame, callback, batchMode);
+  }
+}
@@ -0,0 +1,369 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.ws;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.jsonrpc.JsonRpcException;
+import org.kurento.jsonrpc.OutboundQueueFullException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Multi-producer single-consumer queue of outgoing messages. Producers never block on the network:
+ * messages are enqueued and handed to the {@link Writer}, which writes them asynchronously.
+ *
+ * Only one message is written at a time: the next one is handed to the writer when the write of
+ * the previous one completes, so the writer and the WebSocket extensions below it never see
+ * concurrent writes. The writer is told when more messages follow, so it can coalesce adjacent
+ * frames in a single network write.
+ *
+ * Messages are counted from the moment they are enqueued until their write completes. When that
+ * count reaches the high-water mark, new messages are rejected with an
+ * {@link OutboundQueueFullException} or, with {@link OverflowPolicy#BLOCK}, the producer waits up
+ * to the block timeout for room before being rejected. The result of each write is notified to the
+ * callback given by the producer, so it can fail the requests contained in the message.
+ */
+public class OutboundQueue {
+
+  private static final Logger log = LoggerFactory.getLogger(OutboundQueue.class);
+
+  public enum OverflowPolicy {
+    REJECT, BLOCK
+  }
+
+  public interface WriteCallback {
+
+    void writeSuccess();
+
+    void writeFailed(Throwable cause);
+  }
+
+  public interface Writer {
+
+    /**
+     * Writes the message without blocking, invoking the callback when done. The callback is
+     * invoked once, either from this method or later from another thread.
+     *
+     * @param message
+     *          a String (text frame) or byte[] (binary frame)
+     * @param more
+     *          true if other messages are going to be written right after this one
+     */
+    void write(Object message, boolean more, WriteCallback callback);
+  }
+
+  // States of an entry handed to the writer
+  private static final int WRITING = 0;
+  private static final int WRITING_ASYNC = 1;
+  private static final int DONE = 2;
+
+  private class Entry implements WriteCallback {
+
+    private final Object message;
+    private final WriteCallback callback;
+    private final long enqueueTime = System.nanoTime();
+    private final AtomicInteger state = new AtomicInteger(WRITING);
+
+    public Entry(Object message, WriteCallback callback) {
+      this.message = message;
+      this.callback = callback;
+    }
+
+    @Override
+    public void writeSuccess() {
+
+      int previous = complete();
+      if (previous == DONE) {
+        return;
+      }
+
+      writtenMessages.incrementAndGet();
+      if (callback != null) {
+        callback.writeSuccess();
+      }
+      continueDraining(previous);
+    }
+
+    @Override
+    public void writeFailed(Throwable cause) {
+
+      int previous = complete();
+      if (previous == DONE) {
+        return;
+      }
+
+      failedWrites.incrementAndGet();
+      log.warn("{} Exception writing message: {}", label, cause.getMessage());
+      if (callback != null) {
+        callback.writeFailed(cause);
+      }
+      continueDraining(previous);
+    }
+
+    /**
+     * @return the state before completing the entry, or DONE if it was already completed
+     */
+    private int complete() {
+
+      int previous = state.getAndSet(DONE);
+      if (previous == DONE) {
+        return DONE;
+      }
+
+      long latency = System.nanoTime() - enqueueTime;
+      totalWriteLatency.addAndGet(latency);
+      long max;
+      while (latency > (max = maxWriteLatency.get())) {
+        if (maxWriteLatency.compareAndSet(max, latency)) {
+          break;
+        }
+      }
+
+      depth.decrementAndGet();
+
+      if (blockedProducers.get() > 0) {
+        synchronized (depth) {
+          depth.notifyAll();
+        }
+      }
+
+      writing.set(false);
+      return previous;
+    }
+
+    /**
+     * Writes completed asynchronously go on with the next message. Writes completed inline are
+     * followed by the loop in {@link OutboundQueue#drain()}, to avoid recursion.
+     */
+    private void continueDraining(int previous) {
+      if (previous == WRITING_ASYNC) {
+        drain();
+      }
+    }
+
+    /**
+     * Invoked by the draining thread after handing the entry to the writer.
+     *
+     * @return true if the write has already completed
+     */
+    private boolean completedInline() {
+      return !state.compareAndSet(WRITING, WRITING_ASYNC);
+    }
+  }
+
+  private final Writer writer;
+  private final int highWaterMark;
+  private final OverflowPolicy overflowPolicy;
+  private final long blockTimeoutMillis;
+
+  private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean writing = new AtomicBoolean();
+
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicInteger maxDepth = new AtomicInteger();
+  private final AtomicInteger blockedProducers = new AtomicInteger();
+
+  private final AtomicLong writtenMessages = new AtomicLong();
+  private final AtomicLong failedWrites = new AtomicLong();
+  private final AtomicLong rejectedMessages = new AtomicLong();
+  private final AtomicLong totalWriteLatency = new AtomicLong();
+  private final AtomicLong maxWriteLatency = new AtomicLong();
+
+  private String label = "";
+
+  public OutboundQueue(Writer writer, int highWaterMark, OverflowPolicy overflowPolicy,
+      long blockTimeoutMillis) {
+    this.writer = writer;
+    this.highWaterMark = highWaterMark;
+    this.overflowPolicy = overflowPolicy;
+    this.blockTimeoutMillis = blockTimeoutMillis;
+  }
+
+  public void setLabel(String label) {
+    this.label = label;
+  }
+
+  /**
+   * Enqueues a message and, if no message is being written, writes it.
+   *
+   * @param message
+   *          a String (text frame) or byte[] (binary frame)
+   * @throws OutboundQueueFullException
+   *           if the high-water mark has been reached
+   */
+  public void send(Object message) {
+    send(message, null);
+  }
+
+  /**
+   * Enqueues a message and, if no message is being written, writes it.
+   *
+   * @param message
+   *          a String (text frame) or byte[] (binary frame)
+   * @param callback
+   *          notified when the message has been written or its write has failed. It can be null
+   * @throws OutboundQueueFullException
+   *           if the high-water mark has been reached
+   */
+  public void send(Object message, WriteCallback callback) {
+
+    reserve();
+
+    queue.add(new Entry(message, callback));
+
+    drain();
+  }
+
+  private void reserve() {
+
+    int current = depth.incrementAndGet();
+    if (current <= highWaterMark) {
+      updateMaxDepth(current);
+      return;
+    }
+    depth.decrementAndGet();
+
+    if (overflowPolicy == OverflowPolicy.BLOCK && waitForRoom()) {
+      return;
+    }
+
+    rejectedMessages.incrementAndGet();
+    throw new OutboundQueueFullException(label + " Outbound queue full: " + highWaterMark
+        + " messages pending to be written");
+  }
+
+  private boolean waitForRoom() {
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+
+    blockedProducers.incrementAndGet();
+    try {
+      synchronized (depth) {
+        while (true) {
+
+          int current = depth.incrementAndGet();
+          if (current <= highWaterMark) {
+            updateMaxDepth(current);
+            return true;
+          }
+          depth.decrementAndGet();
+
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(depth, remaining);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new JsonRpcException(label + " Interrupted while waiting for room in outbound queue",
+          e);
+    } finally {
+      blockedProducers.decrementAndGet();
+    }
+  }
+
+  private void updateMaxDepth(int current) {
+    int max;
+    while (current > (max = maxDepth.get())) {
+      if (maxDepth.compareAndSet(max, current)) {
+        break;
+      }
+    }
+  }
+
+  private void drain() {
+
+    // The thread that sets the flag hands one message to the writer. If the write completes
+    // inline, the same thread goes on with the next message; otherwise the write callback does.
+    // Re-check after the flag is released, because another producer could have enqueued a message
+    // when it was still set.
+    while (!queue.isEmpty() && writing.compareAndSet(false, true)) {
+
+      Entry entry = queue.poll();
+      if (entry == null) {
+        writing.set(false);
+        continue;
+      }
+
+      try {
+        writer.write(entry.message, !queue.isEmpty(), entry);
+      } catch (Exception e) {
+        entry.writeFailed(e);
+      }
+
+      if (!entry.completedInline()) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return messages enqueued or being written
+   */
+  public int getQueueDepth() {
+    return depth.get();
+  }
+
+  public int getMaxQueueDepth() {
+    return maxDepth.get();
+  }
+
+  public int getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  public long getWrittenMessages() {
+    return writtenMessages.get();
+  }
+
+  public long getFailedWrites() {
+    return failedWrites.get();
+  }
+
+  public long getRejectedMessages() {
+    return rejectedMessages.get();
+  }
+
+  /**
+   * @return mean time in microseconds from enqueuing a message until its write completes
+   */
+  public long getMeanWriteLatencyMicros() {
+    long completed = writtenMessages.get() + failedWrites.get();
+    return completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWriteLatency.get() / completed);
+  }
+
+  public long getMaxWriteLatencyMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(maxWriteLatency.get());
+  }
+
+  @Override
+  public String toString() {
+    return "OutboundQueue [depth=" + depth + ", maxDepth=" + maxDepth + ", written="
+        + writtenMessages + ", failed=" + failedWrites + ", rejected=" + rejectedMessages
+        + ", meanLatencyMicros=" + getMeanWriteLatencyMicros() + ", maxLatencyMicros="
+        + getMaxWriteLatencyMicros() + "]";
+  }
+}
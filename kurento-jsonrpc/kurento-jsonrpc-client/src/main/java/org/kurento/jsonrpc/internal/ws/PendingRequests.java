@@ -1,5 +1,5 @@
 /*
- * (C) Copyright 2013 Kurento (http://kurento.org/)
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,60 +17,203 @@
 
 package org.kurento.jsonrpc.internal.ws;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.kurento.jsonrpc.JsonRpcException;
+import org.kurento.jsonrpc.TransportException;
+import org.kurento.jsonrpc.internal.IntObjectHashMap;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimer;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimers;
 import org.kurento.jsonrpc.message.Response;
 import org.kurento.jsonrpc.message.ResponseError;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.SettableFuture;
 import com.google.gson.JsonElement;
 
+/**
+ * Table of requests waiting for a response. Requests are stored in int keyed hash maps split in
+ * stripes, each one guarded by its own lock, so there is no boxing of ids and little contention.
+ *
+ * Requests can be prepared with a timeout. When it expires, the request is removed and its slot
+ * fails with a {@link TransportException}, so asynchronous requests are also notified.
+ */
 public class PendingRequests {
 
   private static final Logger log = LoggerFactory.getLogger(PendingRequests.class);
 
-  private final ConcurrentMap<Integer, SettableFuture<Response<JsonElement>>> pendingRequests =
-      new ConcurrentHashMap<>();
+  private static final int STRIPES = 16;
+
+  private final IntObjectHashMap<ResponseSlot>[] stripes;
+  private final JsonRpcTimer timer;
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  public PendingRequests() {
+    this(JsonRpcTimers.getSharedTimer());
+  }
+
+  @SuppressWarnings("unchecked")
+  public PendingRequests(JsonRpcTimer timer) {
+    this.timer = timer;
+    this.stripes = new IntObjectHashMap[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new IntObjectHashMap<>();
+    }
+  }
+
+  private IntObjectHashMap<ResponseSlot> stripe(int id) {
+    return stripes[id & (STRIPES - 1)];
+  }
 
   public void handleResponse(Response<JsonElement> response) {
 
-    SettableFuture<Response<JsonElement>> responseFuture = pendingRequests.remove(response.getId());
+    Integer id = response.getId();
 
-    if (responseFuture == null) {
+    ResponseSlot slot = null;
+    if (id != null) {
+      IntObjectHashMap<ResponseSlot> stripe = stripe(id);
+      synchronized (stripe) {
+        slot = stripe.remove(id);
+      }
+    }
+
+    if (slot == null) {
       // TODO It is necessary to do something else? Who is watching this?
       log.error("Received response with an id not registered as pending request");
     } else {
-      responseFuture.set(response);
+      inFlight.decrementAndGet();
+      slot.complete(response);
+    }
+  }
+
+  /**
+   * @return true if the request is still waiting for its response
+   */
+  public boolean isPending(Integer id) {
+    IntObjectHashMap<ResponseSlot> stripe = stripe(id);
+    synchronized (stripe) {
+      return stripe.get(id) != null;
     }
   }
 
-  public ListenableFuture<Response<JsonElement>> prepareResponse(Integer id) {
+  /**
+   * Registers a request waiting for a response. The request doesn't expire; the caller is in
+   * charge of waiting with a timeout and cancelling the returned slot.
+   */
+  public ResponseSlot prepareResponse(Integer id) {
+    return prepareResponse(id, 0);
+  }
+
+  /**
+   * Registers a request waiting for a response.
+   *
+   * @param id
+   *          request id
+   * @param timeoutMillis
+   *          time to wait for the response before failing the request with a
+   *          {@link TransportException}. If 0 or less, the request never expires
+   */
+  public ResponseSlot prepareResponse(Integer id, final long timeoutMillis) {
 
     Preconditions.checkNotNull(id, "The request id cannot be null");
 
-    SettableFuture<Response<JsonElement>> responseFuture = SettableFuture.create();
+    final ResponseSlot slot = new ResponseSlot(id, this);
 
-    if (pendingRequests.putIfAbsent(id, responseFuture) != null) {
-      throw new JsonRpcException("Can not send a request with the id '" + id
-          + "'. There is already a pending request with this id");
+    IntObjectHashMap<ResponseSlot> stripe = stripe(id);
+    synchronized (stripe) {
+      if (stripe.putIfAbsent(id, slot) != null) {
+        throw new JsonRpcException("Can not send a request with the id '" + id
+            + "'. There is already a pending request with this id");
+      }
     }
 
-    return responseFuture;
+    inFlight.incrementAndGet();
+
+    if (timeoutMillis > 0) {
+      slot.deadline = timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (remove(slot)) {
+            slot.fail(new TransportException("Timeout of " + timeoutMillis
+                + " milliseconds waiting from response to request with id:" + slot.getId(),
+                new TimeoutException()));
+          }
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    return slot;
+  }
+
+  /**
+   * Removes the slot if it is still pending.
+   *
+   * @return true if it was removed
+   */
+  boolean remove(ResponseSlot slot) {
+
+    IntObjectHashMap<ResponseSlot> stripe = stripe(slot.getId());
+
+    synchronized (stripe) {
+      if (stripe.get(slot.getId()) != slot) {
+        return false;
+      }
+      stripe.remove(slot.getId());
+    }
+
+    inFlight.decrementAndGet();
+    return true;
+  }
+
+  /**
+   * Fails a pending request without waiting for its response, e.g. because it could not be
+   * written. Does nothing if the request is no longer pending.
+   */
+  public void failRequest(Integer id, Throwable cause) {
+
+    ResponseSlot slot;
+    IntObjectHashMap<ResponseSlot> stripe = stripe(id);
+    synchronized (stripe) {
+      slot = stripe.remove(id);
+    }
+
+    if (slot != null) {
+      inFlight.decrementAndGet();
+      slot.fail(cause);
+    }
   }
 
   public void closeAllPendingRequests() {
+
     log.info("Sending error to all pending requests");
-    for (SettableFuture<Response<JsonElement>> responseFuture : pendingRequests.values()) {
-      responseFuture.set(new Response<JsonElement>(
+
+    List<ResponseSlot> slots = new ArrayList<>();
+
+    for (IntObjectHashMap<ResponseSlot> stripe : stripes) {
+      synchronized (stripe) {
+        slots.addAll(stripe.values());
+        stripe.clear();
+      }
+    }
+
+    inFlight.addAndGet(-slots.size());
+
+    for (ResponseSlot slot : slots) {
+      slot.complete(new Response<JsonElement>(
           new ResponseError(0, "Connection with server have been closed")));
     }
-    pendingRequests.clear();
+  }
+
+  /**
+   * Number of requests waiting for a response.
+   */
+  public int getInFlightRequests() {
+    return inFlight.get();
   }
 
 }
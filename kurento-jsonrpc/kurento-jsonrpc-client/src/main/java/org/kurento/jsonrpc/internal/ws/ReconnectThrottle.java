@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.ws;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.commons.PropertiesManager;
+
+/**
+ * Token bucket limiting the rate of connection attempts to a host, shared by all the clients in
+ * the JVM. It protects servers from reconnection storms when many clients lose the connection at
+ * the same time.
+ *
+ * Tokens are reserved instead of waited for: {@link #reserve()} always takes a token and returns
+ * how long the caller has to wait until the token is really available, so attempts are scheduled
+ * without blocking threads. The rate and burst are configured with the properties
+ * jsonRpcClientWebSocket.reconnect.maxRatePerHost (attempts per second, default 20, 0 disables
+ * the limit) and jsonRpcClientWebSocket.reconnect.burstPerHost (default 20).
+ */
+public class ReconnectThrottle {
+
+  private static final double RATE = PropertiesManager
+      .getProperty("jsonRpcClientWebSocket.reconnect.maxRatePerHost", 20.0);
+
+  private static final int BURST = PropertiesManager
+      .getProperty("jsonRpcClientWebSocket.reconnect.burstPerHost", 20);
+
+  private static final ConcurrentMap<String, ReconnectThrottle> throttles =
+      new ConcurrentHashMap<>();
+
+  private final double tokensPerNano;
+  private final double burst;
+
+  private double tokens;
+  private long lastRefill = System.nanoTime();
+
+  public ReconnectThrottle(double ratePerSecond, int burst) {
+    this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.burst = Math.max(1, burst);
+    this.tokens = this.burst;
+  }
+
+  /**
+   * @param host
+   *          host and port of the server
+   * @return the throttle shared by all the clients connecting to the host, or null if the rate is
+   *         not limited
+   */
+  public static ReconnectThrottle forHost(String host) {
+
+    if (RATE <= 0) {
+      return null;
+    }
+
+    ReconnectThrottle throttle = throttles.get(host);
+    if (throttle == null) {
+      ReconnectThrottle newThrottle = new ReconnectThrottle(RATE, BURST);
+      throttle = throttles.putIfAbsent(host, newThrottle);
+      if (throttle == null) {
+        throttle = newThrottle;
+      }
+    }
+    return throttle;
+  }
+
+  /**
+   * Takes a token for a connection attempt.
+   *
+   * @return milliseconds to wait before the attempt
+   */
+  public synchronized long reserve() {
+
+    long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+    lastRefill = now;
+
+    tokens--;
+
+    if (tokens >= 0) {
+      return 0;
+    }
+
+    return (long) Math.ceil(-tokens / tokensPerNano / TimeUnit.MILLISECONDS.toNanos(1));
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.ws;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.kurento.jsonrpc.message.Request;
+
+/**
+ * Bounded buffer of requests sent but not answered yet. When a client reconnects to the same
+ * session, the requests in the buffer are sent again with their original ids, so the server can
+ * answer them (or deduplicate them) instead of letting them fail.
+ *
+ * When the buffer is full, the oldest request is discarded. It won't be replayed, so it will
+ * fail by timeout if the connection is lost before its response arrives.
+ */
+public class ReplayBuffer {
+
+  private final int capacity;
+  private final LinkedHashMap<Integer, Request<?>> requests = new LinkedHashMap<>();
+
+  public ReplayBuffer(int capacity) {
+    this.capacity = capacity;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public synchronized void add(Request<?> request) {
+
+    if (capacity <= 0) {
+      return;
+    }
+
+    requests.put(request.getId(), request);
+
+    if (requests.size() > capacity) {
+      Iterator<Integer> it = requests.keySet().iterator();
+      it.next();
+      it.remove();
+    }
+  }
+
+  public synchronized void remove(Integer id) {
+    if (!requests.isEmpty()) {
+      requests.remove(id);
+    }
+  }
+
+  public synchronized boolean contains(Integer id) {
+    return requests.containsKey(id);
+  }
+
+  /**
+   * Requests not answered yet, in the order they were sent. They are kept in the buffer until
+   * their response arrives.
+   */
+  public synchronized List<Request<?>> getUnanswered() {
+    return new ArrayList<>(requests.values());
+  }
+
+  public synchronized void clear() {
+    requests.clear();
+  }
+
+  public synchronized int size() {
+    return requests.size();
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.ws;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accumulates JSON-RPC messages and sends them as a single JSON-RPC 2.0 batch (a JSON array of
+ * messages). A batch is sent when it reaches the configured number of messages or bytes, or when
+ * {@link #flush()} is invoked (usually when the batching window expires).
+ *
+ * Messages are sent while holding the batcher lock, so the order in which they are added is the
+ * order in which they reach the transport.
+ */
+public class RequestBatcher {
+
+  /**
+   * Sends the batches. The limits are asked every time a message is added, so they can be changed
+   * while the batcher is in use.
+   */
+  public interface BatchSender {
+
+    /**
+     * @param requestIds
+     *          ids of the requests in the batch, to fail them if it can't be sent
+     */
+    void sendBatch(String message, List<Integer> requestIds) throws IOException;
+
+    int getMaxMessages();
+
+    int getMaxBytes();
+  }
+
+  private final BatchSender sender;
+
+  private List<String> messages = new ArrayList<>();
+  private List<Integer> requestIds = new ArrayList<>();
+  private int bytes;
+
+  public RequestBatcher(BatchSender sender) {
+    this.sender = sender;
+  }
+
+  /**
+   * Adds a message to the current batch. If the batch reaches its limits, it is sent immediately.
+   *
+   * @param message
+   *          the JSON-RPC message
+   * @param requestId
+   *          id of the request, or null if the message is a notification
+   * @return true if this message opened a new batch, so the caller has to schedule a
+   *         {@link #flush()} at the end of the batching window
+   * @throws IOException
+   *           if the batch was sent and the transport failed
+   */
+  public synchronized boolean add(String message, Integer requestId) throws IOException {
+
+    boolean opened = messages.isEmpty();
+
+    messages.add(message);
+    if (requestId != null) {
+      requestIds.add(requestId);
+    }
+    bytes += message.length();
+
+    if (messages.size() >= sender.getMaxMessages() || bytes >= sender.getMaxBytes()) {
+      sendPending();
+      return false;
+    }
+
+    return opened;
+  }
+
+  public synchronized void flush() throws IOException {
+    sendPending();
+  }
+
+  public synchronized void clear() {
+    messages = new ArrayList<>();
+    requestIds = new ArrayList<>();
+    bytes = 0;
+  }
+
+  public synchronized int getPendingMessages() {
+    return messages.size();
+  }
+
+  private void sendPending() throws IOException {
+
+    if (messages.isEmpty()) {
+      return;
+    }
+
+    List<String> toSend = messages;
+    List<Integer> toSendIds = requestIds;
+    int toSendBytes = bytes;
+    clear();
+
+    if (toSend.size() == 1) {
+      sender.sendBatch(toSend.get(0), toSendIds);
+    } else {
+      sender.sendBatch(toBatch(toSend, toSendBytes), toSendIds);
+    }
+  }
+
+  public static String toBatch(List<String> messages, int bytes) {
+
+    StringBuilder sb = new StringBuilder(bytes + messages.size() + 1);
+    sb.append('[');
+    for (int i = 0; i < messages.size(); i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(messages.get(i));
+    }
+    sb.append(']');
+    return sb.toString();
+  }
+
+  public static boolean isBatch(String message) {
+    for (int i = 0; i < message.length(); i++) {
+      char c = message.charAt(i);
+      if (!Character.isWhitespace(c)) {
+        return c == '[';
+      }
+    }
+    return false;
+  }
+}
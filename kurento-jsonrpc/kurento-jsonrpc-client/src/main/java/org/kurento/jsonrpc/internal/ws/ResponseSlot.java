@@ -0,0 +1,225 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.ws;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.kurento.jsonrpc.client.Continuation;
+import org.kurento.jsonrpc.internal.DispatcherQueueFullException;
+import org.kurento.jsonrpc.internal.timer.Timeout;
+import org.kurento.jsonrpc.message.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Completion slot of a request waiting for its response. It can be used as a {@link Future} by
+ * synchronous requests, or it can invoke a {@link Continuation} for asynchronous ones.
+ */
+public class ResponseSlot implements Future<Response<JsonElement>> {
+
+  private static final Logger log = LoggerFactory.getLogger(ResponseSlot.class);
+
+  private static final Object CANCELLED = new Object();
+
+  private static class Failure {
+    final Throwable cause;
+
+    Failure(Throwable cause) {
+      this.cause = cause;
+    }
+  }
+
+  private final int id;
+  private final PendingRequests owner;
+
+  // Response, Failure or CANCELLED. Guarded by this
+  private Object outcome;
+  private Continuation<Response<JsonElement>> continuation;
+  private Executor continuationExecutor;
+
+  volatile Timeout deadline;
+
+  ResponseSlot(int id, PendingRequests owner) {
+    this.id = id;
+    this.owner = owner;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * Sets the continuation invoked when the slot is completed. If it is already completed, the
+   * continuation is invoked immediately.
+   *
+   * @param continuation
+   *          continuation to invoke
+   * @param executor
+   *          executor used to invoke the continuation, or null to invoke it in the thread that
+   *          completes the slot
+   */
+  public void setContinuation(Continuation<Response<JsonElement>> continuation,
+      Executor executor) {
+
+    Object currentOutcome;
+
+    synchronized (this) {
+      this.continuation = continuation;
+      this.continuationExecutor = executor;
+      currentOutcome = outcome;
+    }
+
+    if (currentOutcome != null) {
+      dispatch(currentOutcome, continuation, executor);
+    }
+  }
+
+  boolean complete(Response<JsonElement> response) {
+    return setOutcome(response);
+  }
+
+  boolean fail(Throwable cause) {
+    return setOutcome(new Failure(cause));
+  }
+
+  private boolean setOutcome(Object newOutcome) {
+
+    Continuation<Response<JsonElement>> currentContinuation;
+    Executor executor;
+
+    synchronized (this) {
+      if (outcome != null) {
+        return false;
+      }
+      outcome = newOutcome;
+      currentContinuation = continuation;
+      executor = continuationExecutor;
+      notifyAll();
+    }
+
+    Timeout currentDeadline = deadline;
+    if (currentDeadline != null) {
+      currentDeadline.cancel();
+    }
+
+    if (currentContinuation != null) {
+      dispatch(newOutcome, currentContinuation, executor);
+    }
+
+    return true;
+  }
+
+  private void dispatch(final Object outcome,
+      final Continuation<Response<JsonElement>> continuation, Executor executor) {
+
+    if (outcome == CANCELLED) {
+      return;
+    }
+
+    Runnable task = new Runnable() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public void run() {
+        if (outcome instanceof Failure) {
+          continuation.onError(((Failure) outcome).cause);
+        } else {
+          continuation.onSuccess((Response<JsonElement>) outcome);
+        }
+      }
+    };
+
+    if (executor == null) {
+      task.run();
+      return;
+    }
+
+    try {
+      executor.execute(task);
+    } catch (DispatcherQueueFullException e) {
+      continuation.onError(e);
+    } catch (RejectedExecutionException e) {
+      log.debug("Executor rejected continuation of request {}. Executing it in current thread", id);
+      task.run();
+    }
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    if (setOutcome(CANCELLED)) {
+      owner.remove(this);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return outcome == CANCELLED;
+  }
+
+  @Override
+  public synchronized boolean isDone() {
+    return outcome != null;
+  }
+
+  @Override
+  public synchronized Response<JsonElement> get()
+      throws InterruptedException, ExecutionException {
+    while (outcome == null) {
+      wait();
+    }
+    return report(outcome);
+  }
+
+  @Override
+  public synchronized Response<JsonElement> get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+
+    long remainingNanos = unit.toNanos(timeout);
+    long deadlineNanos = System.nanoTime() + remainingNanos;
+
+    while (outcome == null) {
+      if (remainingNanos <= 0) {
+        throw new TimeoutException();
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+      remainingNanos = deadlineNanos - System.nanoTime();
+    }
+    return report(outcome);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Response<JsonElement> report(Object outcome) throws ExecutionException {
+    if (outcome instanceof Failure) {
+      throw new ExecutionException(((Failure) outcome).cause);
+    } else if (outcome == CANCELLED) {
+      throw new CancellationException("Request " + id + " was cancelled");
+    } else {
+      return (Response<JsonElement>) outcome;
+    }
+  }
+
+}
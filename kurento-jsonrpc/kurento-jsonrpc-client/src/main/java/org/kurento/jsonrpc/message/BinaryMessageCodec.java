@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.message;
+
+/**
+ * Converts JSON-RPC messages to and from a binary representation, sent in WebSocket binary frames.
+ * The codec is negotiated with the WebSocket subprotocol returned by {@link #getSubprotocol()};
+ * when the peer doesn't accept it, the connection keeps using the textual {@link MessageCodec}.
+ *
+ * As with {@link MessageCodec}, implementations inject and extract the sessionId and must be thread
+ * safe.
+ *
+ * @see MessageCodecs
+ */
+public interface BinaryMessageCodec {
+
+  byte[] encode(Message message);
+
+  /**
+   * Decodes a message not knowing in advance if it is a request or a response. Requests are
+   * returned as {@code Request<JsonElement>} and responses as {@code Response<JsonElement>}.
+   */
+  Message decodeMessage(byte[] data, int offset, int length);
+
+  /**
+   * @return the WebSocket subprotocol used to negotiate this codec
+   */
+  String getSubprotocol();
+}
@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.message;
+
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_PROPERTY;
+
+import org.kurento.jsonrpc.JsonRpcException;
+import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.internal.Cbor;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Binary codec writing the same JSON-RPC objects as the textual codecs, encoded in CBOR (RFC 7049).
+ * Batches are not supported in this format.
+ */
+public class CborMessageCodec implements BinaryMessageCodec {
+
+  public static final String SUBPROTOCOL = "jsonrpc-cbor";
+
+  @Override
+  public byte[] encode(Message message) {
+    return Cbor.encode(JsonUtils.toJsonMessageObject(message));
+  }
+
+  @Override
+  public Message decodeMessage(byte[] data, int offset, int length) {
+
+    JsonElement element = Cbor.decode(data, offset, length);
+
+    if (!element.isJsonObject()) {
+      throw new JsonRpcException("CBOR JSON-RPC message is not a map: " + element);
+    }
+
+    JsonObject jsonObject = element.getAsJsonObject();
+
+    if (jsonObject.has(METHOD_PROPERTY)) {
+      return JsonUtils.fromJsonRequest(jsonObject, JsonElement.class);
+    } else {
+      return JsonUtils.fromJsonResponse(jsonObject, JsonElement.class);
+    }
+  }
+
+  @Override
+  public String getSubprotocol() {
+    return SUBPROTOCOL;
+  }
+
+}
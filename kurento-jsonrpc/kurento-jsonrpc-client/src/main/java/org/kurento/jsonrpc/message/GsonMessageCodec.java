@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.message;
+
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_PROPERTY;
+
+import org.kurento.jsonrpc.JsonUtils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Codec based on Gson trees. Messages are converted to a {@link JsonObject} to inject or extract
+ * the sessionId. This is the historical behaviour of {@link JsonUtils}.
+ */
+public class GsonMessageCodec implements MessageCodec {
+
+  public static final String NAME = "gson";
+
+  @Override
+  public String encode(Message message) {
+    return JsonUtils.toJsonMessage(message);
+  }
+
+  @Override
+  public <P> Request<P> decodeRequest(String json, Class<P> paramsClass) {
+    return JsonUtils.fromJsonRequest(json, paramsClass);
+  }
+
+  @Override
+  public <R> Response<R> decodeResponse(String json, Class<R> resultClass) {
+    return JsonUtils.fromJsonResponse(json, resultClass);
+  }
+
+  @Override
+  public Message decodeMessage(String json) {
+
+    JsonObject jsonObject = JsonUtils.fromJson(json, JsonObject.class);
+
+    if (jsonObject.has(METHOD_PROPERTY)) {
+      return JsonUtils.fromJsonRequest(jsonObject, JsonElement.class);
+    } else {
+      return JsonUtils.fromJsonResponse(jsonObject, JsonElement.class);
+    }
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+}
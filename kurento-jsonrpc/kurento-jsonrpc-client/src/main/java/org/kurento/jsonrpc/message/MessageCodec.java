@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.message;
+
+/**
+ * Converts JSON-RPC messages to and from their textual representation. Implementations are in
+ * charge of injecting and extracting the sessionId that travels inside params (requests) and
+ * result (responses).
+ *
+ * Implementations must be thread safe, because the same codec is shared by all messages of a
+ * client or server.
+ *
+ * @see MessageCodecs
+ */
+public interface MessageCodec {
+
+  /**
+   * Serializes a request or a response, injecting its sessionId if it has one.
+   */
+  String encode(Message message);
+
+  <P> Request<P> decodeRequest(String json, Class<P> paramsClass);
+
+  <R> Response<R> decodeResponse(String json, Class<R> resultClass);
+
+  /**
+   * Decodes a message not knowing in advance if it is a request or a response. Requests are
+   * returned as {@code Request<JsonElement>} and responses as {@code Response<JsonElement>}
+   * (with JsonElement from Gson).
+   */
+  Message decodeMessage(String json);
+
+  /**
+   * @return the name used to select this codec by configuration
+   */
+  String getName();
+}
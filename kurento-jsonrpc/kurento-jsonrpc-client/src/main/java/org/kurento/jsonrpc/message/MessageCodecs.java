@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.message;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.jsonrpc.JsonRpcException;
+
+/**
+ * Registry of {@link MessageCodec}s. The codec used by default in clients and servers is selected
+ * with the property {@value #CODEC_PROPERTY} ("gson" or "streaming"). Custom codecs can be
+ * registered with {@link #register(MessageCodec)} and then selected by name.
+ *
+ * Binary codecs are registered by WebSocket subprotocol. {@link CborMessageCodec} is registered
+ * by default.
+ */
+public class MessageCodecs {
+
+  public static final String CODEC_PROPERTY = "jsonRpc.codec";
+
+  private static final Map<String, MessageCodec> codecs = new ConcurrentHashMap<>();
+
+  private static final Map<String, BinaryMessageCodec> binaryCodecs = new ConcurrentHashMap<>();
+
+  static {
+    register(new GsonMessageCodec());
+    register(new StreamingMessageCodec());
+    registerBinary(new CborMessageCodec());
+  }
+
+  public static void register(MessageCodec codec) {
+    codecs.put(codec.getName(), codec);
+  }
+
+  public static MessageCodec get(String name) {
+    MessageCodec codec = codecs.get(name);
+    if (codec == null) {
+      throw new JsonRpcException("Unknown JSON-RPC message codec '" + name + "'. Available codecs: "
+          + codecs.keySet());
+    }
+    return codec;
+  }
+
+  public static MessageCodec getDefault() {
+    return get(PropertiesManager.getProperty(CODEC_PROPERTY, GsonMessageCodec.NAME));
+  }
+
+  public static void registerBinary(BinaryMessageCodec codec) {
+    binaryCodecs.put(codec.getSubprotocol(), codec);
+  }
+
+  /**
+   * @return the binary codec of the given subprotocol, or null if there is none
+   */
+  public static BinaryMessageCodec getBinary(String subprotocol) {
+    return subprotocol != null ? binaryCodecs.get(subprotocol) : null;
+  }
+
+  public static Set<String> getBinarySubprotocols() {
+    return Collections.unmodifiableSet(binaryCodecs.keySet());
+  }
+
+}
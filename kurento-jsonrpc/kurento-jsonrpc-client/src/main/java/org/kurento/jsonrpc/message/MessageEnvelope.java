@@ -0,0 +1,784 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.message;
+
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ERROR_PARSE_ERROR;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ERROR_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ID_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.PARAMS_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.RESULT_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.SESSION_ID_PROPERTY;
+
+import java.io.IOException;
+
+import org.kurento.jsonrpc.JsonRpcErrorException;
+import org.kurento.jsonrpc.JsonUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Envelope of a JSON-RPC message obtained scanning its text, without building a JSON tree. Only
+ * the {@code method}, {@code id} and {@code sessionId} are extracted; {@code params} is kept as a
+ * slice of the original text and it is parsed only if it is requested.
+ *
+ * Requests created with {@link #toRequest()} parse their params the first time
+ * {@link Request#getParams()} is invoked, removing the sessionId from them as the codecs do.
+ *
+ * The syntax of the params is validated while scanning. Params the scanner can't validate are
+ * parsed at once, so malformed params are reported by {@link #getParamsError()} before the request
+ * is dispatched instead of failing when a handler uses them.
+ */
+public final class MessageEnvelope {
+
+  // Params nested deeper are parsed by Gson instead of validated by the scanner
+  private static final int MAX_VALIDATED_DEPTH = 64;
+
+  /**
+   * Makes Gson parse the params of lazy requests before serializing them.
+   */
+  public static final TypeAdapterFactory LAZY_REQUEST_ADAPTER_FACTORY = new TypeAdapterFactory() {
+    @Override
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+
+      if (!LazyRequest.class.isAssignableFrom(type.getRawType())) {
+        return null;
+      }
+
+      final TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+
+      return new TypeAdapter<T>() {
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+          if (value != null) {
+            ((LazyRequest) value).getParams();
+          }
+          delegate.write(out, value);
+        }
+
+        @Override
+        public T read(JsonReader in) throws IOException {
+          return delegate.read(in);
+        }
+      };
+    }
+  };
+
+  // Params are Object because handlers replace them with their own params type
+  private static class LazyRequest extends Request<Object> {
+
+    private final transient MessageEnvelope envelope;
+    private transient boolean parsed;
+
+    public LazyRequest(MessageEnvelope envelope) {
+      super(envelope.sessionId, envelope.id, envelope.method, null);
+      this.envelope = envelope;
+    }
+
+    @Override
+    public synchronized Object getParams() {
+      if (!parsed) {
+        params = envelope.parseParams();
+        parsed = true;
+      }
+      return params;
+    }
+
+    @Override
+    public synchronized void setParams(Object params) {
+      this.params = params;
+      this.parsed = true;
+    }
+  }
+
+  private final String json;
+  private int pos;
+
+  private String method;
+  private Integer id;
+  private String sessionId;
+  private boolean response;
+  private int paramsStart = -1;
+  private int paramsEnd = -1;
+
+  // Params not validated by the scanner, already parsed
+  private boolean paramsParsed;
+  private JsonElement parsedParams;
+  private ResponseError paramsError;
+
+  private MessageEnvelope(String json) {
+    this.json = json;
+  }
+
+  /**
+   * Scans a single JSON-RPC message.
+   *
+   * @return the envelope, or null if the message is not a JSON object or it uses a syntax this
+   *         scanner doesn't support (escaped member names, non integer ids...). In that case it has
+   *         to be decoded by a {@link MessageCodec}.
+   */
+  public static MessageEnvelope scan(String json) {
+    MessageEnvelope envelope = new MessageEnvelope(json);
+    try {
+      return envelope.scanMessage() ? envelope : null;
+    } catch (IndexOutOfBoundsException | NumberFormatException e) {
+      return null;
+    }
+  }
+
+  public boolean isRequest() {
+    return method != null;
+  }
+
+  public boolean isResponse() {
+    return method == null && response;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public Integer getId() {
+    return id;
+  }
+
+  /**
+   * @return the sessionId included in the params of the message
+   */
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  public boolean hasParams() {
+    return paramsStart != -1;
+  }
+
+  /**
+   * @return the error to answer the request with if its params are not valid JSON, or null if they
+   *         are valid
+   */
+  public ResponseError getParamsError() {
+    return paramsError;
+  }
+
+  /**
+   * @return the text of the params, or null if the message has no params
+   */
+  public String getParamsJson() {
+    return paramsStart != -1 ? json.substring(paramsStart, paramsEnd) : null;
+  }
+
+  /**
+   * Reads a numeric member of the params object without parsing it.
+   *
+   * @return the value of the member, or defaultValue if params is not an object or it doesn't have
+   *         a numeric member with that name
+   */
+  public long getParamsLong(String name, long defaultValue) {
+
+    if (paramsStart == -1 || paramsParsed || json.charAt(paramsStart) != '{') {
+      return defaultValue;
+    }
+
+    try {
+      int valueStart = findMember(paramsStart, name);
+      if (valueStart == -1) {
+        return defaultValue;
+      }
+
+      pos = valueStart;
+      String number;
+      if (json.charAt(pos) == '"') {
+        number = readString();
+      } else {
+        number = json.substring(valueStart, skipLiteral());
+      }
+
+      try {
+        return Long.parseLong(number);
+      } catch (NumberFormatException e) {
+        return (long) Double.parseDouble(number);
+      }
+
+    } catch (IndexOutOfBoundsException | NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Reads a boolean member of the params object without parsing it.
+   *
+   * @return the value of the member, or defaultValue if params is not an object or it doesn't have
+   *         a boolean member with that name
+   */
+  public boolean getParamsBoolean(String name, boolean defaultValue) {
+
+    if (paramsStart == -1 || paramsParsed || json.charAt(paramsStart) != '{') {
+      return defaultValue;
+    }
+
+    try {
+      int valueStart = findMember(paramsStart, name);
+      if (valueStart == -1) {
+        return defaultValue;
+      }
+
+      pos = valueStart;
+      String literal = json.substring(valueStart, skipLiteral());
+
+      if ("true".equals(literal)) {
+        return true;
+      } else if ("false".equals(literal)) {
+        return false;
+      } else {
+        return defaultValue;
+      }
+
+    } catch (IndexOutOfBoundsException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Parses the params of the message, removing its sessionId.
+   *
+   * @throws JsonRpcErrorException
+   *           with a parse error if the params are not valid JSON
+   */
+  public JsonElement parseParams() {
+
+    if (paramsError != null) {
+      throw new JsonRpcErrorException(paramsError);
+    }
+
+    if (paramsParsed) {
+      return parsedParams;
+    }
+
+    if (paramsStart == -1) {
+      return null;
+    }
+
+    JsonElement params;
+    try {
+      params = JsonUtils.fromJson(getParamsJson(), JsonElement.class);
+    } catch (JsonParseException e) {
+      throw new JsonRpcErrorException(newParseError(e));
+    }
+
+    if (params instanceof JsonNull) {
+      return null;
+    }
+
+    if (params instanceof JsonObject) {
+      ((JsonObject) params).remove(SESSION_ID_PROPERTY);
+    }
+
+    return params;
+  }
+
+  /**
+   * @return a request whose params are parsed when they are requested for the first time
+   */
+  @SuppressWarnings("unchecked")
+  public Request<JsonElement> toRequest() {
+    if (method == null) {
+      throw new IllegalStateException("Message is not a request");
+    }
+    return (Request<JsonElement>) (Request<?>) new LazyRequest(this);
+  }
+
+  // ------------------------------ Scanner ------------------------------
+
+  private boolean scanMessage() {
+
+    pos = 0;
+    skipWhitespace();
+    if (json.charAt(pos) != '{') {
+      return false;
+    }
+    pos++;
+    skipWhitespace();
+
+    if (json.charAt(pos) == '}') {
+      pos++;
+    } else {
+      while (true) {
+
+        if (json.charAt(pos) != '"') {
+          return false;
+        }
+
+        int nameStart = pos + 1;
+        if (skipString()) {
+          // Escaped member names are left to the codecs
+          return false;
+        }
+        int nameLength = pos - 1 - nameStart;
+
+        skipWhitespace();
+        if (json.charAt(pos) != ':') {
+          return false;
+        }
+        pos++;
+        skipWhitespace();
+
+        if (isName(METHOD_PROPERTY, nameStart, nameLength)) {
+          if (json.charAt(pos) != '"') {
+            return false;
+          }
+          method = readString();
+        } else if (isName(ID_PROPERTY, nameStart, nameLength)) {
+          if (!readId()) {
+            return false;
+          }
+        } else if (isName(PARAMS_PROPERTY, nameStart, nameLength)) {
+          paramsStart = pos;
+          if (!validateValue(0)) {
+            paramsParsed = true;
+            pos = paramsStart;
+            skipValue();
+          }
+          paramsEnd = pos;
+        } else if (isName(RESULT_PROPERTY, nameStart, nameLength)
+            || isName(ERROR_PROPERTY, nameStart, nameLength)) {
+          response = true;
+          skipValue();
+        } else {
+          skipValue();
+        }
+
+        skipWhitespace();
+        char c = json.charAt(pos++);
+        if (c == '}') {
+          break;
+        }
+        if (c != ',') {
+          return false;
+        }
+        skipWhitespace();
+      }
+    }
+
+    skipWhitespace();
+    if (pos != json.length()) {
+      return false;
+    }
+
+    if (paramsParsed) {
+      parseInvalidParams();
+    } else if (paramsStart != -1 && json.charAt(paramsStart) == '{') {
+      int sessionIdStart = findMember(paramsStart, SESSION_ID_PROPERTY);
+      if (sessionIdStart != -1) {
+        pos = sessionIdStart;
+        char c = json.charAt(pos);
+        if (c == '"') {
+          sessionId = readString();
+        } else if (c != 'n') {
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Parses the params rejected by the scanner. Gson is lenient, so they can still be valid for the
+   * codecs (single quotes, unquoted names...); otherwise the request has to be answered with a parse
+   * error.
+   */
+  private void parseInvalidParams() {
+
+    try {
+
+      JsonElement params = JsonUtils.fromJson(getParamsJson(), JsonElement.class);
+
+      if (params instanceof JsonObject) {
+        JsonElement sessionIdElement = ((JsonObject) params).remove(SESSION_ID_PROPERTY);
+        if (sessionIdElement != null && sessionIdElement.isJsonPrimitive()) {
+          sessionId = sessionIdElement.getAsString();
+        }
+      }
+
+      parsedParams = params instanceof JsonNull ? null : params;
+
+    } catch (JsonParseException e) {
+      paramsError = newParseError(e);
+    }
+  }
+
+  private static ResponseError newParseError(JsonParseException e) {
+    Throwable cause = e.getCause() != null ? e.getCause() : e;
+    return new ResponseError(ERROR_PARSE_ERROR, "Parse error", cause.getMessage());
+  }
+
+  /**
+   * Finds a member of the object starting at objectStart.
+   *
+   * @return the position of its value or -1 if the object has no member with that name
+   */
+  private int findMember(int objectStart, String name) {
+
+    pos = objectStart + 1;
+    skipWhitespace();
+
+    if (json.charAt(pos) == '}') {
+      return -1;
+    }
+
+    while (true) {
+
+      int nameStart = pos + 1;
+      boolean escaped = skipString();
+      int nameLength = pos - 1 - nameStart;
+
+      skipWhitespace();
+      pos++; // ':'
+      skipWhitespace();
+
+      if (!escaped && isName(name, nameStart, nameLength)) {
+        return pos;
+      }
+
+      skipValue();
+      skipWhitespace();
+      if (json.charAt(pos++) != ',') {
+        return -1;
+      }
+      skipWhitespace();
+    }
+  }
+
+  private boolean isName(String name, int start, int length) {
+    return name.length() == length && json.regionMatches(start, name, 0, length);
+  }
+
+  private boolean readId() {
+
+    char c = json.charAt(pos);
+
+    if (c == 'n') {
+      skipLiteral();
+      id = null;
+    } else if (c == '"') {
+      // Ids quoted as strings are accepted as the codecs do
+      id = Integer.valueOf(readString());
+    } else if (c == '-' || (c >= '0' && c <= '9')) {
+      id = Integer.valueOf(json.substring(pos, skipLiteral()));
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private void skipWhitespace() {
+    while (pos < json.length()) {
+      char c = json.charAt(pos);
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        break;
+      }
+      pos++;
+    }
+  }
+
+  /**
+   * Skips the string starting at the current position.
+   *
+   * @return true if the string has escape sequences
+   */
+  private boolean skipString() {
+    boolean escaped = false;
+    pos++;
+    while (true) {
+      char c = json.charAt(pos++);
+      if (c == '"') {
+        return escaped;
+      }
+      if (c == '\\') {
+        escaped = true;
+        pos++;
+      }
+    }
+  }
+
+  private String readString() {
+
+    int start = pos + 1;
+    if (!skipString()) {
+      return json.substring(start, pos - 1);
+    }
+
+    StringBuilder sb = new StringBuilder(pos - start);
+    for (int i = start; i < pos - 1; i++) {
+      char c = json.charAt(i);
+      if (c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      c = json.charAt(++i);
+      switch (c) {
+        case 'b':
+          sb.append('\b');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 't':
+          sb.append('\t');
+          break;
+        case 'u':
+          sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+          i += 4;
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Skips a number or a literal (true, false or null).
+   *
+   * @return the position after it
+   */
+  private int skipLiteral() {
+    while (pos < json.length()) {
+      char c = json.charAt(pos);
+      if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+        break;
+      }
+      pos++;
+    }
+    return pos;
+  }
+
+  private void skipValue() {
+
+    char c = json.charAt(pos);
+
+    if (c == '"') {
+      skipString();
+      return;
+    }
+
+    if (c != '{' && c != '[') {
+      int start = pos;
+      if (skipLiteral() == start) {
+        throw new IndexOutOfBoundsException("Missing value at " + start);
+      }
+      return;
+    }
+
+    int depth = 0;
+    while (true) {
+      c = json.charAt(pos);
+      if (c == '"') {
+        skipString();
+        continue;
+      }
+      pos++;
+      if (c == '{' || c == '[') {
+        depth++;
+      } else if (c == '}' || c == ']') {
+        if (--depth == 0) {
+          return;
+        }
+      }
+    }
+  }
+
+  // ----------------------------- Validation -----------------------------
+
+  /**
+   * Validates the syntax of the value at the current position, leaving the position after it.
+   *
+   * @return false if the value is not valid JSON
+   */
+  private boolean validateValue(int depth) {
+
+    switch (json.charAt(pos)) {
+      case '{':
+        return depth < MAX_VALIDATED_DEPTH && validateObject(depth);
+      case '[':
+        return depth < MAX_VALIDATED_DEPTH && validateArray(depth);
+      case '"':
+        return validateString();
+      case 't':
+        return validateLiteral("true");
+      case 'f':
+        return validateLiteral("false");
+      case 'n':
+        return validateLiteral("null");
+      default:
+        return validateNumber();
+    }
+  }
+
+  private boolean validateObject(int depth) {
+
+    pos++;
+    skipWhitespace();
+    if (json.charAt(pos) == '}') {
+      pos++;
+      return true;
+    }
+
+    while (true) {
+
+      if (json.charAt(pos) != '"' || !validateString()) {
+        return false;
+      }
+      skipWhitespace();
+      if (json.charAt(pos++) != ':') {
+        return false;
+      }
+      skipWhitespace();
+      if (!validateValue(depth + 1)) {
+        return false;
+      }
+      skipWhitespace();
+
+      char c = json.charAt(pos++);
+      if (c == '}') {
+        return true;
+      }
+      if (c != ',') {
+        return false;
+      }
+      skipWhitespace();
+    }
+  }
+
+  private boolean validateArray(int depth) {
+
+    pos++;
+    skipWhitespace();
+    if (json.charAt(pos) == ']') {
+      pos++;
+      return true;
+    }
+
+    while (true) {
+
+      if (!validateValue(depth + 1)) {
+        return false;
+      }
+      skipWhitespace();
+
+      char c = json.charAt(pos++);
+      if (c == ']') {
+        return true;
+      }
+      if (c != ',') {
+        return false;
+      }
+      skipWhitespace();
+    }
+  }
+
+  private boolean validateString() {
+
+    pos++;
+    while (true) {
+      char c = json.charAt(pos++);
+      if (c == '"') {
+        return true;
+      }
+      if (c < ' ') {
+        return false;
+      }
+      if (c == '\\') {
+        c = json.charAt(pos++);
+        if (c == 'u') {
+          for (int i = 0; i < 4; i++) {
+            if (Character.digit(json.charAt(pos++), 16) == -1) {
+              return false;
+            }
+          }
+        } else if ("\"\\/bfnrt".indexOf(c) == -1) {
+          return false;
+        }
+      }
+    }
+  }
+
+  private boolean validateLiteral(String literal) {
+    if (!json.startsWith(literal, pos)) {
+      return false;
+    }
+    pos += literal.length();
+    return true;
+  }
+
+  private boolean validateNumber() {
+
+    if (json.charAt(pos) == '-') {
+      pos++;
+    }
+
+    if (json.charAt(pos) == '0') {
+      pos++;
+    } else if (skipDigits() == 0) {
+      return false;
+    }
+
+    if (pos < json.length() && json.charAt(pos) == '.') {
+      pos++;
+      if (skipDigits() == 0) {
+        return false;
+      }
+    }
+
+    if (pos < json.length() && (json.charAt(pos) == 'e' || json.charAt(pos) == 'E')) {
+      pos++;
+      if (pos < json.length() && (json.charAt(pos) == '+' || json.charAt(pos) == '-')) {
+        pos++;
+      }
+      if (skipDigits() == 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private int skipDigits() {
+    int start = pos;
+    while (pos < json.length() && json.charAt(pos) >= '0' && json.charAt(pos) <= '9') {
+      pos++;
+    }
+    return pos - start;
+  }
+}
@@ -0,0 +1,483 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.message;
+
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ERROR_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ID_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.JSON_RPC_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.JSON_RPC_VERSION;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.PARAMS_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.RESULT_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.SESSION_ID_PROPERTY;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.kurento.jsonrpc.JsonRpcException;
+import org.kurento.jsonrpc.JsonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Codec that writes and reads the JSON-RPC envelope with Gson streaming API. The sessionId is
+ * injected while params or result are being written, so the message is serialized in a single pass
+ * without building intermediate trees. When reading, only params or result are materialized (once)
+ * and then converted to the requested type.
+ *
+ * Subclasses of {@link Request} or {@link Response} and error responses with sessionId are
+ * delegated to {@link GsonMessageCodec}, because they need the whole tree.
+ */
+public class StreamingMessageCodec implements MessageCodec {
+
+  private static final Logger log = LoggerFactory.getLogger(StreamingMessageCodec.class);
+
+  public static final String NAME = "streaming";
+
+  private final GsonMessageCodec treeCodec = new GsonMessageCodec();
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  // ------------------------------ Encode ------------------------------
+
+  @Override
+  public String encode(Message message) {
+
+    if (message.getClass() == Request.class) {
+      return encodeRequest((Request<?>) message);
+    }
+
+    if (message.getClass() == Response.class) {
+      Response<?> response = (Response<?>) message;
+      if (response.getError() == null || response.getSessionId() == null) {
+        return encodeResponse(response);
+      }
+    }
+
+    return treeCodec.encode(message);
+  }
+
+  private String encodeRequest(Request<?> request) {
+
+    try {
+
+      StringWriter sw = new StringWriter();
+      JsonWriter writer = new JsonWriter(sw);
+
+      writer.beginObject();
+
+      if (request.getId() != null) {
+        writer.name(ID_PROPERTY).value(request.getId());
+      }
+
+      if (request.getMethod() != null) {
+        writer.name(METHOD_PROPERTY).value(request.getMethod());
+      }
+
+      writeValue(writer, PARAMS_PROPERTY, request.getParams(), request.getSessionId());
+
+      writer.name(JSON_RPC_PROPERTY).value(JSON_RPC_VERSION);
+      writer.endObject();
+      writer.flush();
+
+      return sw.toString();
+
+    } catch (IOException e) {
+      throw new JsonRpcException("Exception serializing request " + request.getMethod(), e);
+    }
+  }
+
+  private String encodeResponse(Response<?> response) {
+
+    try {
+
+      StringWriter sw = new StringWriter();
+      JsonWriter writer = new JsonWriter(sw);
+
+      writer.beginObject();
+
+      if (response.getId() != null) {
+        writer.name(ID_PROPERTY).value(response.getId());
+      }
+
+      if (response.getError() != null) {
+        writer.name(ERROR_PROPERTY);
+        JsonUtils.getGson().toJson(response.getError(), ResponseError.class, writer);
+      } else {
+        writeValue(writer, RESULT_PROPERTY, response.getResult(), response.getSessionId());
+      }
+
+      writer.name(JSON_RPC_PROPERTY).value(JSON_RPC_VERSION);
+      writer.endObject();
+      writer.flush();
+
+      return sw.toString();
+
+    } catch (IOException e) {
+      throw new JsonRpcException("Exception serializing response " + response.getId(), e);
+    }
+  }
+
+  private void writeValue(JsonWriter writer, String property, Object value, String sessionId)
+      throws IOException {
+
+    if (sessionId == null) {
+      if (value != null) {
+        writer.name(property);
+        JsonUtils.getGson().toJson(value, value.getClass(), writer);
+      }
+      return;
+    }
+
+    writer.name(property);
+
+    if (value == null) {
+      writer.beginObject();
+      writer.name(SESSION_ID_PROPERTY).value(sessionId);
+      writer.endObject();
+      return;
+    }
+
+    Gson gson = JsonUtils.getGson();
+
+    // Gson configures nulls handling in the writer it receives, so it has to be copied to the
+    // underlying writer
+    boolean serializeNulls = writer.getSerializeNulls();
+    writer.setSerializeNulls(gson.serializeNulls());
+    try {
+      gson.toJson(value, value.getClass(), new SessionIdInjectingWriter(writer, sessionId));
+    } finally {
+      writer.setSerializeNulls(serializeNulls);
+    }
+  }
+
+  /**
+   * Writer that forwards all tokens to a delegate writer and adds the sessionId property before
+   * closing the top level object. When the top level value written by Gson is not an object, it is
+   * wrapped as {"value": ..., "sessionId": ...}, as {@link GsonMessageCodec} does.
+   */
+  private static class SessionIdInjectingWriter extends JsonWriter {
+
+    private final JsonWriter delegate;
+    private final String sessionId;
+    private int depth;
+    private boolean wrapped;
+
+    public SessionIdInjectingWriter(JsonWriter delegate, String sessionId) {
+      super(new StringWriter());
+      this.delegate = delegate;
+      this.sessionId = sessionId;
+    }
+
+    private void beforeValue() throws IOException {
+      if (depth == 0) {
+        wrapped = true;
+        delegate.beginObject();
+        delegate.name("value");
+      }
+    }
+
+    private void afterValue() throws IOException {
+      if (depth == 0 && wrapped) {
+        delegate.name(SESSION_ID_PROPERTY).value(sessionId);
+        delegate.endObject();
+      }
+    }
+
+    @Override
+    public JsonWriter beginObject() throws IOException {
+      depth++;
+      delegate.beginObject();
+      return this;
+    }
+
+    @Override
+    public JsonWriter endObject() throws IOException {
+      depth--;
+      if (depth == 0) {
+        delegate.name(SESSION_ID_PROPERTY).value(sessionId);
+      }
+      delegate.endObject();
+      return this;
+    }
+
+    @Override
+    public JsonWriter beginArray() throws IOException {
+      beforeValue();
+      depth++;
+      delegate.beginArray();
+      return this;
+    }
+
+    @Override
+    public JsonWriter endArray() throws IOException {
+      depth--;
+      delegate.endArray();
+      afterValue();
+      return this;
+    }
+
+    @Override
+    public JsonWriter name(String name) throws IOException {
+      delegate.name(name);
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(String value) throws IOException {
+      beforeValue();
+      delegate.value(value);
+      afterValue();
+      return this;
+    }
+
+    @Override
+    public JsonWriter nullValue() throws IOException {
+      beforeValue();
+      delegate.nullValue();
+      afterValue();
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) throws IOException {
+      beforeValue();
+      delegate.value(value);
+      afterValue();
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(double value) throws IOException {
+      beforeValue();
+      delegate.value(value);
+      afterValue();
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) throws IOException {
+      beforeValue();
+      delegate.value(value);
+      afterValue();
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(Number value) throws IOException {
+      beforeValue();
+      delegate.value(value);
+      afterValue();
+      return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      // The delegate is closed by its owner
+    }
+  }
+
+  // ------------------------------ Decode ------------------------------
+
+  private static class Envelope {
+    Integer id;
+    String method;
+    JsonElement payload;
+    ResponseError error;
+    String version;
+    boolean hasPayload;
+    boolean hasError;
+  }
+
+  private Envelope readEnvelope(String json) {
+
+    Envelope envelope = new Envelope();
+
+    try {
+
+      JsonReader reader = new JsonReader(new StringReader(json));
+      TypeAdapter<JsonElement> elementAdapter = JsonUtils.getGson().getAdapter(JsonElement.class);
+
+      reader.beginObject();
+
+      while (reader.hasNext()) {
+
+        String name = reader.nextName();
+
+        switch (name) {
+        case ID_PROPERTY:
+          envelope.id = readId(reader);
+          break;
+        case METHOD_PROPERTY:
+          envelope.method = reader.nextString();
+          break;
+        case JSON_RPC_PROPERTY:
+          envelope.version = reader.nextString();
+          break;
+        case PARAMS_PROPERTY:
+        case RESULT_PROPERTY:
+          envelope.payload = elementAdapter.read(reader);
+          envelope.hasPayload = true;
+          break;
+        case ERROR_PROPERTY:
+          envelope.error = JsonUtils.getGson().getAdapter(ResponseError.class).read(reader);
+          envelope.hasError = envelope.error != null;
+          break;
+        default:
+          reader.skipValue();
+        }
+      }
+
+      reader.endObject();
+
+      return envelope;
+
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      throw new JsonRpcException("Exception parsing JSON-RPC message '" + json + "'", e);
+    }
+  }
+
+  private Integer readId(JsonReader reader) throws IOException {
+    JsonToken token = reader.peek();
+    if (token == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    } else {
+      // nextInt() also accepts numbers quoted as strings
+      return Integer.valueOf(reader.nextInt());
+    }
+  }
+
+  private String extractSessionId(JsonElement payload) {
+
+    if (payload != null && payload.isJsonObject()) {
+
+      JsonElement sessionIdJson = ((JsonObject) payload).remove(SESSION_ID_PROPERTY);
+
+      if (sessionIdJson != null && !(sessionIdJson instanceof JsonNull)) {
+        return sessionIdJson.getAsString();
+      }
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> T convert(JsonElement element, Class<T> clazz) {
+
+    if (element == null) {
+      return null;
+    }
+
+    if (clazz == null || clazz == JsonElement.class
+        || (clazz.isInstance(element) && JsonElement.class.isAssignableFrom(clazz))) {
+      return (T) element;
+    }
+
+    return JsonUtils.getGson().fromJson(element, clazz);
+  }
+
+  @Override
+  public <P> Request<P> decodeRequest(String json, Class<P> paramsClass) {
+
+    Envelope envelope = readEnvelope(json);
+
+    if (envelope.method == null) {
+      throw new JsonRpcException(
+          "Invalid JsonRpc request lacking '" + METHOD_PROPERTY + "' field: " + json);
+    }
+
+    return toRequest(envelope, paramsClass);
+  }
+
+  private <P> Request<P> toRequest(Envelope envelope, Class<P> paramsClass) {
+
+    String sessionId = extractSessionId(envelope.payload);
+
+    Request<P> request = new Request<>(envelope.id, envelope.method,
+        convert(envelope.payload, paramsClass));
+    request.setSessionId(sessionId);
+
+    return request;
+  }
+
+  @Override
+  public <R> Response<R> decodeResponse(String json, Class<R> resultClass) {
+
+    Envelope envelope = readEnvelope(json);
+
+    if (envelope.version == null) {
+      throw new JsonRpcException(
+          "Invalid JsonRpc response lacking version '" + JSON_RPC_PROPERTY + "' field: " + json);
+    }
+
+    if (!JSON_RPC_VERSION.equals(envelope.version)) {
+      throw new JsonRpcException("Invalid JsonRpc version in response: " + json);
+    }
+
+    return toResponse(envelope, resultClass, json);
+  }
+
+  private <R> Response<R> toResponse(Envelope envelope, Class<R> resultClass, String json) {
+
+    if (envelope.hasError) {
+      return new Response<>(envelope.id, envelope.error);
+    }
+
+    if (!envelope.hasPayload) {
+      log.warn("Invalid JsonRpc response: {} It lacks a valid '{}' or '{}' field", json,
+          RESULT_PROPERTY, ERROR_PROPERTY);
+    }
+
+    String sessionId = extractSessionId(envelope.payload);
+
+    Response<R> response = new Response<>(envelope.id, convert(envelope.payload, resultClass));
+    response.setSessionId(sessionId);
+
+    return response;
+  }
+
+  @Override
+  public Message decodeMessage(String json) {
+
+    Envelope envelope = readEnvelope(json);
+
+    if (envelope.method != null) {
+      return toRequest(envelope, JsonElement.class);
+    } else {
+      return toResponse(envelope, JsonElement.class, json);
+    }
+  }
+}
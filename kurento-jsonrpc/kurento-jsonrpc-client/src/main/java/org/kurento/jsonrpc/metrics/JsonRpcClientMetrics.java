@@ -0,0 +1,292 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Request latencies and traffic counters of a JSON-RPC client. Latencies are kept per JSON-RPC
+ * method and, for Kurento invoke requests, per operation. All the counters are lock-free, so
+ * metrics can be left enabled in production.
+ *
+ * Metrics can be read directly, received by {@link JsonRpcClientMetricsListener}s or published in
+ * the platform MBean server with {@link #registerMBean(String)}.
+ */
+public class JsonRpcClientMetrics implements JsonRpcClientMetricsMXBean {
+
+  private static final Logger log = LoggerFactory.getLogger(JsonRpcClientMetrics.class);
+
+  public static final String ENABLED_PROPERTY = "jsonRpcClient.metrics.enabled";
+
+  public static final String MBEAN_DOMAIN = "org.kurento.jsonrpc";
+
+  private static final String INVOKE_METHOD = "invoke";
+  private static final String OPERATION_PARAM = "operation";
+
+  private final ConcurrentMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+  // Metric names of invoke requests by operation, so they are not built on each request
+  private final ConcurrentMap<String, String> invokeMetricNames = new ConcurrentHashMap<>();
+  private final CopyOnWriteArrayList<JsonRpcClientMetricsListener> listeners =
+      new CopyOnWriteArrayList<>();
+
+  private final AtomicLong reconnects = new AtomicLong();
+  private final AtomicLong messagesSent = new AtomicLong();
+  private final AtomicLong messagesReceived = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+
+  private ObjectName objectName;
+
+  public void addListener(JsonRpcClientMetricsListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(JsonRpcClientMetricsListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Records the completion of a request.
+   *
+   * @param request
+   *          the request sent
+   * @param latencyNanos
+   *          time since the request was sent
+   * @param response
+   *          the response received, or null if the request failed
+   * @param failure
+   *          the cause of the failure, or null if a response was received
+   */
+  public void requestCompleted(Request<?> request, long latencyNanos, Response<?> response,
+      Throwable failure) {
+
+    String metricName = getMetricName(request);
+    boolean timeout = failure != null && isTimeout(failure);
+    boolean error = failure != null || (response != null && response.getError() != null);
+
+    MethodMetrics metrics = methods.get(metricName);
+    if (metrics == null) {
+      MethodMetrics newMetrics = new MethodMetrics();
+      metrics = methods.putIfAbsent(metricName, newMetrics);
+      if (metrics == null) {
+        metrics = newMetrics;
+      }
+    }
+
+    metrics.record(latencyNanos, error, timeout);
+
+    for (JsonRpcClientMetricsListener listener : listeners) {
+      try {
+        listener.requestCompleted(metricName, latencyNanos, error, timeout);
+      } catch (Exception e) {
+        log.warn("Exception in metrics listener {}", listener, e);
+      }
+    }
+  }
+
+  public void messageSent(int bytes) {
+    messagesSent.incrementAndGet();
+    bytesSent.addAndGet(bytes);
+  }
+
+  public void messageReceived(int bytes) {
+    messagesReceived.incrementAndGet();
+    bytesReceived.addAndGet(bytes);
+  }
+
+  public void reconnected() {
+
+    reconnects.incrementAndGet();
+
+    for (JsonRpcClientMetricsListener listener : listeners) {
+      try {
+        listener.reconnected();
+      } catch (Exception e) {
+        log.warn("Exception in metrics listener {}", listener, e);
+      }
+    }
+  }
+
+  public MethodMetrics getMethodMetrics(String metricName) {
+    return methods.get(metricName);
+  }
+
+  @Override
+  public Map<String, MethodMetrics> getMethods() {
+    return new TreeMap<>(methods);
+  }
+
+  @Override
+  public long getRequests() {
+    long requests = 0;
+    for (MethodMetrics metrics : methods.values()) {
+      requests += metrics.getRequests();
+    }
+    return requests;
+  }
+
+  @Override
+  public long getErrors() {
+    long errors = 0;
+    for (MethodMetrics metrics : methods.values()) {
+      errors += metrics.getErrors();
+    }
+    return errors;
+  }
+
+  @Override
+  public long getTimeouts() {
+    long timeouts = 0;
+    for (MethodMetrics metrics : methods.values()) {
+      timeouts += metrics.getTimeouts();
+    }
+    return timeouts;
+  }
+
+  @Override
+  public long getReconnects() {
+    return reconnects.get();
+  }
+
+  @Override
+  public long getMessagesSent() {
+    return messagesSent.get();
+  }
+
+  @Override
+  public long getMessagesReceived() {
+    return messagesReceived.get();
+  }
+
+  /**
+   * @return bytes of binary messages plus characters of text messages sent
+   */
+  @Override
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  /**
+   * @return bytes of binary messages plus characters of text messages received
+   */
+  @Override
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * Publishes these metrics in the platform MBean server, with the object name
+   * org.kurento.jsonrpc:type=JsonRpcClient,name=&lt;name&gt;.
+   */
+  public synchronized void registerMBean(String name) {
+
+    unregisterMBean();
+
+    try {
+      ObjectName newObjectName = new ObjectName(MBEAN_DOMAIN + ":type=JsonRpcClient,name="
+          + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, newObjectName);
+      objectName = newObjectName;
+    } catch (JMException e) {
+      log.warn("Exception registering metrics MBean {}", name, e);
+    }
+  }
+
+  public synchronized void unregisterMBean() {
+
+    if (objectName == null) {
+      return;
+    }
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      log.warn("Exception unregistering metrics MBean {}", objectName, e);
+    }
+    objectName = null;
+  }
+
+  /**
+   * @return the JSON-RPC method of the request, or "invoke:operation" for Kurento invoke requests
+   */
+  public String getMetricName(Request<?> request) {
+
+    String method = request.getMethod();
+
+    if (INVOKE_METHOD.equals(method) && request.getParams() instanceof JsonObject) {
+      JsonElement operation = ((JsonObject) request.getParams()).get(OPERATION_PARAM);
+      if (operation != null && operation.isJsonPrimitive()) {
+        return getInvokeMetricName(operation.getAsString());
+      }
+    }
+
+    return method;
+  }
+
+  private String getInvokeMetricName(String operation) {
+
+    String metricName = invokeMetricNames.get(operation);
+    if (metricName == null) {
+      String newMetricName = INVOKE_METHOD + ":" + operation;
+      metricName = invokeMetricNames.putIfAbsent(operation, newMetricName);
+      if (metricName == null) {
+        metricName = newMetricName;
+      }
+    }
+    return metricName;
+  }
+
+  private static boolean isTimeout(Throwable failure) {
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      if (cause instanceof TimeoutException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return "[requests=" + getRequests() + ", errors=" + getErrors() + ", timeouts="
+        + getTimeouts() + ", reconnects=" + getReconnects() + ", bytesSent=" + getBytesSent()
+        + ", bytesReceived=" + getBytesReceived() + ", methods=" + getMethods() + "]";
+  }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.metrics;
+
+/**
+ * Receives the events measured by {@link JsonRpcClientMetrics}. Listeners are invoked in the
+ * thread that completes the request, so they must return quickly.
+ */
+public interface JsonRpcClientMetricsListener {
+
+  /**
+   * @param metricName
+   *          the JSON-RPC method, or "invoke:operation" for Kurento invoke requests
+   * @param latencyNanos
+   *          time from the request being sent to its response (or failure)
+   * @param error
+   *          true if the request failed or was answered with an error
+   * @param timeout
+   *          true if no response was received within the request timeout
+   */
+  void requestCompleted(String metricName, long latencyNanos, boolean error, boolean timeout);
+
+  void reconnected();
+
+}
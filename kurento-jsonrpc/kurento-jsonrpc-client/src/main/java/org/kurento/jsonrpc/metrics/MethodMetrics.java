@@ -0,0 +1,94 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency distribution and failure counters of the requests of a JSON-RPC method (or of an
+ * operation, for Kurento invoke requests).
+ */
+public class MethodMetrics {
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+
+  void record(long latencyNanos, boolean error, boolean timeout) {
+
+    latency.record(latencyNanos, TimeUnit.NANOSECONDS);
+
+    if (timeout) {
+      timeouts.incrementAndGet();
+    } else if (error) {
+      errors.incrementAndGet();
+    }
+  }
+
+  public long getRequests() {
+    return latency.getCount();
+  }
+
+  /**
+   * @return requests that failed or were answered with an error, excluding timeouts
+   */
+  public long getErrors() {
+    return errors.get();
+  }
+
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  public long getMeanMicros() {
+    return latency.getMeanMicros();
+  }
+
+  public long getMaxMicros() {
+    return latency.getMaxMicros();
+  }
+
+  public long getP50Micros() {
+    return latency.getValueAtPercentile(50);
+  }
+
+  public long getP90Micros() {
+    return latency.getValueAtPercentile(90);
+  }
+
+  public long getP99Micros() {
+    return latency.getValueAtPercentile(99);
+  }
+
+  public long getP999Micros() {
+    return latency.getValueAtPercentile(99.9);
+  }
+
+  public long getValueAtPercentile(double percentile) {
+    return latency.getValueAtPercentile(percentile);
+  }
+
+  @Override
+  public String toString() {
+    return "[requests=" + getRequests() + ", errors=" + getErrors() + ", timeouts="
+        + getTimeouts() + ", mean=" + getMeanMicros() + "us, p50=" + getP50Micros() + "us, p99="
+        + getP99Micros() + "us, max=" + getMaxMicros() + "us]";
+  }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.AdmissionQueueFullException;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimers;
+import org.kurento.jsonrpc.internal.ws.AdmissionController;
+import org.kurento.jsonrpc.internal.ws.AdmissionController.Admission;
+import org.kurento.jsonrpc.internal.ws.AdmissionController.Permit;
+
+public class AdmissionControllerTest {
+
+  private static final Executor DIRECT = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private static class RecordingAdmission implements Admission {
+
+    Permit permit;
+    Throwable failure;
+
+    @Override
+    public synchronized void admitted(Permit permit) {
+      this.permit = permit;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void rejected(Throwable cause) {
+      this.failure = cause;
+      notifyAll();
+    }
+
+    synchronized void await(long millis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + millis;
+      while (permit == null && failure == null && System.currentTimeMillis() < deadline) {
+        wait(deadline - System.currentTimeMillis());
+      }
+    }
+  }
+
+  @Test
+  public void testQueueAndReject() {
+
+    AdmissionController controller = new AdmissionController(JsonRpcTimers.getSharedTimer(),
+        DIRECT, 1, 1, 10000);
+
+    RecordingAdmission first = new RecordingAdmission();
+    RecordingAdmission queued = new RecordingAdmission();
+    RecordingAdmission overflow = new RecordingAdmission();
+
+    controller.acquire(first);
+    controller.acquire(queued);
+    controller.acquire(overflow);
+
+    Assert.assertNotNull(first.permit);
+    Assert.assertNull(queued.permit);
+    Assert.assertTrue(overflow.failure instanceof AdmissionQueueFullException);
+    Assert.assertEquals(1, controller.getInFlight());
+    Assert.assertEquals(1, controller.getQueued());
+    Assert.assertEquals(1, controller.getRejectedRequests());
+
+    first.permit.release();
+    first.permit.release();
+
+    Assert.assertNotNull(queued.permit);
+    Assert.assertEquals(1, controller.getInFlight());
+    Assert.assertEquals(0, controller.getQueued());
+
+    queued.permit.release();
+    Assert.assertEquals(0, controller.getInFlight());
+  }
+
+  @Test
+  public void testQueueTimeout() throws InterruptedException {
+
+    AdmissionController controller = new AdmissionController(JsonRpcTimers.getSharedTimer(),
+        DIRECT, 1, 10, 50);
+
+    Permit permit = controller.acquire();
+
+    RecordingAdmission queued = new RecordingAdmission();
+    controller.acquire(queued);
+    queued.await(2000);
+
+    Assert.assertNull(queued.permit);
+    Assert.assertNotNull(queued.failure);
+    Assert.assertEquals(1, controller.getExpiredRequests());
+    Assert.assertEquals(0, controller.getQueued());
+
+    permit.release();
+    Assert.assertEquals(0, controller.getInFlight());
+  }
+
+  @Test
+  public void testAdaptiveLimitDecreasesOnSlowResponses() throws InterruptedException {
+
+    AdmissionController controller = new AdmissionController(JsonRpcTimers.getSharedTimer(),
+        DIRECT, 16, 100, 10000);
+    controller.setAdaptive(2, 10);
+
+    List<Permit> permits = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      permits.add(controller.acquire());
+    }
+
+    Thread.sleep(50);
+    for (Permit permit : permits) {
+      permit.release();
+    }
+
+    Assert.assertEquals(8, controller.getLimit());
+  }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.internal.Cbor;
+import org.kurento.jsonrpc.message.BinaryMessageCodec;
+import org.kurento.jsonrpc.message.CborMessageCodec;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+import org.kurento.jsonrpc.message.ResponseError;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class CborMessageCodecTest {
+
+  private final BinaryMessageCodec codec = new CborMessageCodec();
+  private final JsonParser parser = new JsonParser();
+
+  @Test
+  public void testRoundTrip() {
+
+    JsonElement json = parser.parse("{\"string\":\"value ñ\",\"int\":-25,\"long\":12345678901,"
+        + "\"float\":1.5,\"double\":0.1,\"true\":true,\"false\":false,\"null\":null,"
+        + "\"array\":[1,[],{}],\"empty\":\"\"}");
+
+    JsonElement decoded = Cbor.decode(Cbor.encode(json));
+
+    Assert.assertEquals(json.toString(), decoded.toString());
+    Assert.assertEquals(-25, decoded.getAsJsonObject().get("int").getAsInt());
+    Assert.assertEquals(12345678901L, decoded.getAsJsonObject().get("long").getAsLong());
+    Assert.assertEquals(0.1, decoded.getAsJsonObject().get("double").getAsDouble(), 0);
+  }
+
+  @Test
+  public void testKnownEncoding() {
+
+    // {"a":[1,-1,"b"]} from RFC 7049 examples
+    byte[] expected = { (byte) 0xa1, 0x61, 0x61, (byte) 0x83, 0x01, 0x20, 0x61, 0x62 };
+
+    Assert.assertArrayEquals(expected, Cbor.encode(parser.parse("{\"a\":[1,-1,\"b\"]}")));
+  }
+
+  @Test
+  public void testIndefiniteLengths() {
+
+    // {_ "a": [_ 1, 2]} with indefinite map and array
+    byte[] data = { (byte) 0xbf, 0x61, 0x61, (byte) 0x9f, 0x01, 0x02, (byte) 0xff, (byte) 0xff };
+
+    Assert.assertEquals(parser.parse("{\"a\":[1,2]}"), Cbor.decode(data));
+  }
+
+  @Test
+  public void testRequestWithSessionId() {
+
+    JsonObject params = new JsonObject();
+    params.addProperty("param1", "value1");
+
+    Request<JsonObject> request = new Request<>("sessionId", 3, "method", params);
+
+    byte[] data = codec.encode(request);
+
+    @SuppressWarnings("unchecked")
+    Request<JsonElement> decoded = (Request<JsonElement>) codec.decodeMessage(data, 0,
+        data.length);
+
+    Assert.assertEquals("method", decoded.getMethod());
+    Assert.assertEquals(Integer.valueOf(3), decoded.getId());
+    Assert.assertEquals("sessionId", decoded.getSessionId());
+    Assert.assertEquals("value1", decoded.getParams().getAsJsonObject().get("param1")
+        .getAsString());
+  }
+
+  @Test
+  public void testErrorResponse() {
+
+    Response<String> response = new Response<>(7, new ResponseError(-32601, "Method not found"));
+
+    byte[] data = codec.encode(response);
+
+    @SuppressWarnings("unchecked")
+    Response<JsonElement> decoded = (Response<JsonElement>) codec.decodeMessage(data, 0,
+        data.length);
+
+    Assert.assertEquals(Integer.valueOf(7), decoded.getId());
+    Assert.assertEquals(-32601, decoded.getError().getCode());
+    Assert.assertEquals("Method not found", decoded.getError().getMessage());
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.commons.ThreadFactoryCreator;
+import org.kurento.jsonrpc.internal.timer.HashedWheelTimer;
+import org.kurento.jsonrpc.internal.timer.Timeout;
+
+public class HashedWheelTimerTest {
+
+  private ExecutorService executor;
+  private HashedWheelTimer timer;
+
+  @Before
+  public void setup() {
+    executor = Executors.newFixedThreadPool(2);
+    timer = new HashedWheelTimer(ThreadFactoryCreator.createDaemon("HashedWheelTimerTest"), 10,
+        TimeUnit.MILLISECONDS, 8, executor);
+  }
+
+  @After
+  public void teardown() {
+    timer.stop();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void scheduleTest() throws InterruptedException {
+
+    final CountDownLatch latch = new CountDownLatch(2);
+
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    };
+
+    long start = System.nanoTime();
+
+    timer.schedule(task, 20, TimeUnit.MILLISECONDS);
+    // Longer than a whole wheel round (8 ticks of 10 ms)
+    timer.schedule(task, 200, TimeUnit.MILLISECONDS);
+
+    Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+    Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+  }
+
+  @Test
+  public void cancelTest() throws InterruptedException {
+
+    final AtomicInteger executions = new AtomicInteger();
+
+    Timeout timeout = timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        executions.incrementAndGet();
+      }
+    }, 50, TimeUnit.MILLISECONDS);
+
+    Assert.assertTrue(timeout.cancel());
+    Assert.assertTrue(timeout.isCancelled());
+    Assert.assertFalse(timeout.cancel());
+
+    Thread.sleep(200);
+
+    Assert.assertEquals(0, executions.get());
+    Assert.assertEquals(0, timer.getPendingTimeouts());
+  }
+
+  @Test
+  public void scheduleAtFixedRateTest() throws InterruptedException {
+
+    final CountDownLatch latch = new CountDownLatch(3);
+
+    Timeout timeout = timer.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    }, 0, 20, TimeUnit.MILLISECONDS);
+
+    Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+
+    timeout.cancel();
+    Assert.assertTrue(timeout.isCancelled());
+  }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.internal.IntObjectHashMap;
+
+public class IntObjectHashMapTest {
+
+  @Test
+  public void behavesLikeHashMapTest() {
+
+    IntObjectHashMap<String> map = new IntObjectHashMap<>();
+    Map<Integer, String> expected = new HashMap<>();
+
+    Random random = new Random(0);
+
+    for (int i = 0; i < 100000; i++) {
+
+      // Small key range to have many collisions and removals
+      int key = random.nextInt(512) - 256;
+
+      switch (random.nextInt(3)) {
+      case 0:
+        Assert.assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i));
+        break;
+      case 1:
+        Assert.assertEquals(expected.remove(key), map.remove(key));
+        break;
+      default:
+        Assert.assertEquals(expected.get(key), map.get(key));
+      }
+
+      Assert.assertEquals(expected.size(), map.size());
+    }
+
+    for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+      Assert.assertEquals(entry.getValue(), map.get(entry.getKey()));
+    }
+    Assert.assertEquals(expected.size(), map.values().size());
+  }
+
+  @Test
+  public void putIfAbsentTest() {
+
+    IntObjectHashMap<String> map = new IntObjectHashMap<>();
+
+    Assert.assertNull(map.putIfAbsent(1, "a"));
+    Assert.assertEquals("a", map.putIfAbsent(1, "b"));
+    Assert.assertEquals("a", map.get(1));
+
+    map.clear();
+    Assert.assertTrue(map.isEmpty());
+    Assert.assertNull(map.get(1));
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.net.ServerSocket;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.jsonrpc.JsonRpcException;
+import org.kurento.jsonrpc.client.JettyWebSocketClientFactory;
+import org.kurento.jsonrpc.client.JsonRpcClientWebSocket;
+
+public class JettyWebSocketClientFactoryTest {
+
+  private final SslContextFactory sslContextFactory = new SslContextFactory();
+
+  private JettyWebSocketClientFactory factory;
+
+  @Before
+  public void setup() {
+    factory = new JettyWebSocketClientFactory(2, 2, 8, 1000000, 64 * 1024);
+  }
+
+  @After
+  public void teardown() {
+    factory.stop();
+  }
+
+  @Test
+  public void clientsAreSharedInRoundRobin() throws Exception {
+
+    WebSocketClient first = factory.getClient(sslContextFactory, 5000);
+    WebSocketClient second = factory.getClient(sslContextFactory, 5000);
+
+    Assert.assertTrue(first.isStarted());
+    Assert.assertTrue(second.isStarted());
+    Assert.assertNotSame(first, second);
+    Assert.assertSame(first, factory.getClient(sslContextFactory, 5000));
+    Assert.assertSame(second, factory.getClient(sslContextFactory, 5000));
+  }
+
+  @Test
+  public void clientsAreKeyedBySslContextAndConnectTimeout() throws Exception {
+
+    WebSocketClient client = factory.getClient(sslContextFactory, 5000);
+
+    WebSocketClient otherSslContext = factory.getClient(new SslContextFactory(), 5000);
+    Assert.assertNotSame(client, otherSslContext);
+    Assert.assertSame(sslContextFactory, client.getSslContextFactory());
+
+    WebSocketClient otherTimeout = factory.getClient(sslContextFactory, 1000);
+    Assert.assertNotSame(client, otherTimeout);
+    Assert.assertEquals(5000, client.getConnectTimeout());
+    Assert.assertEquals(1000, otherTimeout.getConnectTimeout());
+  }
+
+  @Test
+  public void stoppedFactoryCanBeReused() throws Exception {
+
+    WebSocketClient client = factory.getClient(sslContextFactory, 5000);
+
+    factory.stop();
+    Assert.assertTrue(client.isStopped());
+
+    WebSocketClient newClient = factory.getClient(sslContextFactory, 5000);
+    Assert.assertNotSame(client, newClient);
+    Assert.assertTrue(newClient.isStarted());
+  }
+
+  @Test
+  public void connectionTimeoutOfClientIsApplied() throws Exception {
+
+    // Accepts TCP connections, but never answers the upgrade request
+    try (ServerSocket server = new ServerSocket(0)) {
+
+      JsonRpcClientWebSocket client = new JsonRpcClientWebSocket(
+          "ws://localhost:" + server.getLocalPort() + "/jsonrpc");
+      client.setWebSocketClientFactory(factory);
+      client.setConnectionTimeoutValue(500);
+
+      long start = System.currentTimeMillis();
+      try {
+        client.connect();
+        Assert.fail("JsonRpcException expected");
+      } catch (JsonRpcException e) {
+        Assert.assertTrue(e.getCause() instanceof TimeoutException);
+      } finally {
+        client.close();
+      }
+
+      Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+  }
+}
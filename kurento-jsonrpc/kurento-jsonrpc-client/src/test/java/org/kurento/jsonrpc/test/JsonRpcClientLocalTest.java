@@ -17,16 +17,23 @@
 
 package org.kurento.jsonrpc.test;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.kurento.jsonrpc.DefaultJsonRpcHandler;
 import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.Continuation;
 import org.kurento.jsonrpc.client.JsonRpcClient;
 import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal.Mode;
 import org.kurento.jsonrpc.message.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 public class JsonRpcClientLocalTest {
@@ -47,6 +54,27 @@ public class JsonRpcClientLocalTest {
     }
   }
 
+  static class AsyncEchoJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
+
+    @Override
+    public void handleRequest(final Transaction transaction, final Request<JsonObject> request)
+        throws Exception {
+
+      transaction.startAsync();
+
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            transaction.sendResponse(request.getParams());
+          } catch (Exception e) {
+            LOG.error("Exception sending response", e);
+          }
+        }
+      }.start();
+    }
+  }
+
   static class Params {
     String param1;
     String param2;
@@ -76,4 +104,79 @@ public class JsonRpcClientLocalTest {
 
   }
 
+  @Test
+  public void echoReferenceTest() throws Exception {
+
+    JsonRpcClient client = new JsonRpcClientLocal(new EchoJsonRpcHandler(), Mode.REFERENCE);
+
+    Params params = new Params();
+    params.param1 = "Value1";
+    params.param2 = "Value2";
+
+    Params result = client.sendRequest("echo", params, Params.class);
+
+    Assert.assertEquals(params.param1, result.param1);
+    Assert.assertEquals(params.param2, result.param2);
+
+    JsonObject jsonParams = new JsonObject();
+    jsonParams.addProperty("param1", "Value1");
+
+    Assert.assertSame(jsonParams, client.sendRequest("echo", jsonParams));
+
+    client.close();
+  }
+
+  @Test
+  public void echoDeepCopyTest() throws Exception {
+
+    JsonRpcClient client = new JsonRpcClientLocal(new EchoJsonRpcHandler(), Mode.DEEP_COPY);
+
+    JsonObject jsonParams = new JsonObject();
+    jsonParams.add("nested", new JsonObject());
+    jsonParams.getAsJsonObject("nested").addProperty("param1", "Value1");
+
+    JsonElement result = client.sendRequest("echo", jsonParams);
+
+    Assert.assertNotSame(jsonParams, result);
+    Assert.assertNotSame(jsonParams.get("nested"), result.getAsJsonObject().get("nested"));
+    Assert.assertEquals(jsonParams, result);
+
+    client.close();
+  }
+
+  @Test
+  public void asyncContinuationTest() throws Exception {
+
+    JsonRpcClient client = new JsonRpcClientLocal(new AsyncEchoJsonRpcHandler(),
+        Mode.REFERENCE);
+
+    JsonObject jsonParams = new JsonObject();
+    jsonParams.addProperty("param1", "Value1");
+
+    final AtomicReference<JsonElement> result = new AtomicReference<>();
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    client.sendRequest("echo", jsonParams, new Continuation<JsonElement>() {
+      @Override
+      public void onSuccess(JsonElement response) {
+        result.set(response);
+        latch.countDown();
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        LOG.error("Unexpected error", cause);
+        latch.countDown();
+      }
+    });
+
+    Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    Assert.assertSame(jsonParams, result.get());
+
+    // Synchronous requests wait for the asynchronous response too
+    Assert.assertSame(jsonParams, client.sendRequest("echo", jsonParams));
+
+    client.close();
+  }
+
 }
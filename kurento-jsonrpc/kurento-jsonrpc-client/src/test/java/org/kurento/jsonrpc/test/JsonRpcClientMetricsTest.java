@@ -0,0 +1,112 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.TransportException;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.metrics.JsonRpcClientMetrics;
+import org.kurento.jsonrpc.metrics.LatencyHistogram;
+import org.kurento.jsonrpc.metrics.MethodMetrics;
+
+import com.google.gson.JsonObject;
+
+public class JsonRpcClientMetricsTest {
+
+  @Test
+  public void testPercentiles() {
+
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i, TimeUnit.MILLISECONDS);
+    }
+
+    Assert.assertEquals(1000, histogram.getCount());
+    Assert.assertEquals(1000000, histogram.getMaxMicros());
+    Assert.assertEquals(500500, histogram.getMeanMicros());
+
+    assertClose(500000, histogram.getValueAtPercentile(50));
+    assertClose(990000, histogram.getValueAtPercentile(99));
+    Assert.assertEquals(1000000, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testInvokeOperationsAndJmx() throws Exception {
+
+    JsonRpcClientMetrics metrics = new JsonRpcClientMetrics();
+
+    JsonObject params = new JsonObject();
+    params.addProperty("operation", "play");
+    Request<JsonObject> invoke = new Request<>(1, "invoke", params);
+
+    metrics.requestCompleted(invoke, 2000000, null, null);
+    metrics.requestCompleted(invoke, 3000000, null,
+        new TransportException("Timeout", new TimeoutException()));
+    metrics.requestCompleted(new Request<>(2, "create", new JsonObject()), 1000000, null,
+        new TransportException("Connection lost"));
+
+    MethodMetrics play = metrics.getMethodMetrics("invoke:play");
+    Assert.assertEquals(2, play.getRequests());
+    Assert.assertEquals(1, play.getTimeouts());
+    Assert.assertEquals(0, play.getErrors());
+    Assert.assertEquals(3, metrics.getRequests());
+    Assert.assertEquals(1, metrics.getErrors());
+
+    metrics.registerMBean("test");
+    try {
+      ObjectName name = new ObjectName("org.kurento.jsonrpc:type=JsonRpcClient,name=\"test\"");
+      Assert.assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name,
+          "Requests"));
+      TabularData methods = (TabularData) ManagementFactory.getPlatformMBeanServer()
+          .getAttribute(name, "Methods");
+      Assert.assertEquals(2, methods.size());
+    } finally {
+      metrics.unregisterMBean();
+    }
+  }
+
+  @Test
+  public void testInvokeMetricNameIsReused() {
+
+    JsonRpcClientMetrics metrics = new JsonRpcClientMetrics();
+
+    JsonObject params1 = new JsonObject();
+    params1.addProperty("operation", "play");
+    JsonObject params2 = new JsonObject();
+    params2.addProperty("operation", "play");
+
+    String name = metrics.getMetricName(new Request<>(1, "invoke", params1));
+    Assert.assertEquals("invoke:play", name);
+    Assert.assertSame(name, metrics.getMetricName(new Request<>(2, "invoke", params2)));
+    Assert.assertEquals("create", metrics.getMetricName(new Request<>(3, "create", params1)));
+  }
+
+  private static void assertClose(long expected, long actual) {
+    Assert.assertTrue("Expected about " + expected + " but was " + actual,
+        Math.abs(actual - expected) <= expected * 0.07);
+  }
+
+}
@@ -0,0 +1,406 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_CONNECT;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.POOLED_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.RECONNECTION_SUCCESSFUL;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.REPLAY_PROPERTY;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.TransportException;
+import org.kurento.jsonrpc.client.AbstractJsonRpcClientWebSocket;
+import org.kurento.jsonrpc.client.Continuation;
+import org.kurento.jsonrpc.client.JsonRpcClientPooledWebSocket;
+import org.kurento.jsonrpc.client.JsonRpcClientPooledWebSocket.ConnectionFactory;
+import org.kurento.jsonrpc.client.JsonRpcWSConnectionListener;
+import org.kurento.jsonrpc.client.ReconnectPolicy;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class JsonRpcClientPooledWebSocketTest {
+
+  private static final String SESSION_ID = "pooled-session";
+
+  // Server answering the connections of the pool. Echo requests can be lost before reaching it,
+  // or be kept in progress without answering them
+  private static class FakeServer implements ConnectionFactory {
+
+    final List<FakeConnection> connections = new ArrayList<>();
+    final Semaphore connectedEvents = new Semaphore(0);
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final Set<Integer> receivedEchoes = Collections.synchronizedSet(new HashSet<Integer>());
+    volatile boolean loseEchoes;
+    volatile boolean answerEchoes = true;
+    volatile boolean reportReplays = true;
+    volatile int lastEchoId;
+
+    @Override
+    public AbstractJsonRpcClientWebSocket createConnection(String url,
+        JsonRpcWSConnectionListener connectionListener) {
+      FakeConnection connection = new FakeConnection(this, url,
+          new CountingListener(connectionListener, connectedEvents));
+      connections.add(connection);
+      return connection;
+    }
+
+    void receive(final FakeConnection connection, String message) {
+
+      final JsonObject request = new JsonParser().parse(message).getAsJsonObject();
+      final int id = request.get("id").getAsInt();
+
+      if (METHOD_CONNECT.equals(request.get("method").getAsString())) {
+        connection.requests.add(request);
+        connect(connection, id, request.getAsJsonObject("params"));
+        return;
+      }
+
+      lastEchoId = id;
+      if (loseEchoes) {
+        return;
+      }
+
+      connection.requests.add(request);
+      receivedEchoes.add(id);
+
+      if (answerEchoes) {
+        answer(connection, id, "echo-" + id);
+      }
+    }
+
+    // Echoes received and not answered are answered through the connection reconnecting
+    private void connect(FakeConnection connection, int id, JsonObject params) {
+
+      if (params == null || !params.has(POOLED_PROPERTY)) {
+        answer(connection, id, "OK");
+        return;
+      }
+
+      if (!params.has(REPLAY_PROPERTY) || !reportReplays) {
+        answer(connection, id, RECONNECTION_SUCCESSFUL);
+        return;
+      }
+
+      JsonArray notReceived = new JsonArray();
+      List<Integer> inProgress = new ArrayList<>();
+      for (JsonElement replayed : params.getAsJsonArray(REPLAY_PROPERTY)) {
+        if (receivedEchoes.contains(replayed.getAsInt())) {
+          inProgress.add(replayed.getAsInt());
+        } else {
+          notReceived.add(replayed);
+        }
+      }
+
+      JsonObject result = new JsonObject();
+      result.addProperty("value", RECONNECTION_SUCCESSFUL);
+      result.add(REPLAY_PROPERTY, notReceived);
+      answer(connection, id, result);
+
+      for (int echoId : inProgress) {
+        answer(connection, echoId, "echo-" + echoId);
+      }
+    }
+
+    private void answer(final FakeConnection connection, final int id, String value) {
+      JsonObject result = new JsonObject();
+      result.addProperty("value", value);
+      answer(connection, id, result);
+    }
+
+    private void answer(final FakeConnection connection, final int id, final JsonObject result) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          connection.answer(id, result);
+        }
+      });
+    }
+
+    void shutdown() {
+      executor.shutdownNow();
+    }
+  }
+
+  // Tells when the pool has been notified that a connection is up
+  private static class CountingListener implements JsonRpcWSConnectionListener {
+
+    final JsonRpcWSConnectionListener listener;
+    final Semaphore connectedEvents;
+
+    CountingListener(JsonRpcWSConnectionListener listener, Semaphore connectedEvents) {
+      this.listener = listener;
+      this.connectedEvents = connectedEvents;
+    }
+
+    @Override
+    public void connected() {
+      listener.connected();
+      connectedEvents.release();
+    }
+
+    @Override
+    public void connectionFailed() {
+      listener.connectionFailed();
+    }
+
+    @Override
+    public void disconnected() {
+      listener.disconnected();
+    }
+
+    @Override
+    public void reconnected(boolean sameServer) {
+      listener.reconnected(sameServer);
+      connectedEvents.release();
+    }
+
+    @Override
+    public void reconnecting() {
+      listener.reconnecting();
+    }
+  }
+
+  private static class FakeConnection extends AbstractJsonRpcClientWebSocket {
+
+    final FakeServer server;
+    final BlockingQueue<JsonObject> requests = new LinkedBlockingQueue<>();
+    volatile boolean connected;
+
+    FakeConnection(FakeServer server, String url, JsonRpcWSConnectionListener listener) {
+      super(url, listener);
+      this.server = server;
+      // Lost connections are not recovered during the tests
+      setReconnectPolicy(new ReconnectPolicy() {
+        @Override
+        public long getDelay(int attempt) {
+          return 60000;
+        }
+      });
+    }
+
+    void answer(int id, JsonObject result) {
+      result.addProperty("sessionId", SESSION_ID);
+      JsonObject response = new JsonObject();
+      response.addProperty("jsonrpc", "2.0");
+      response.addProperty("id", id);
+      response.add("result", result);
+      receivedTextMessage(response.toString());
+    }
+
+    void drop() {
+      connected = false;
+      handleReconnectDisconnection(1006, "Connection lost");
+    }
+
+    JsonObject nextRequest() throws InterruptedException {
+      JsonObject request = requests.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(request);
+      return request;
+    }
+
+    @Override
+    protected void sendTextMessage(String jsonMessage) throws IOException {
+      if (!connected) {
+        throw new IOException("Not connected");
+      }
+      server.receive(this, jsonMessage);
+    }
+
+    @Override
+    protected void closeNativeClient() {
+      connected = false;
+    }
+
+    @Override
+    protected boolean isNativeClientConnected() {
+      return connected;
+    }
+
+    @Override
+    protected void connectNativeClient() throws Exception {
+      connected = true;
+    }
+  }
+
+  private static boolean isPooled(JsonObject request) {
+    JsonElement params = request.get("params");
+    return params != null && params.isJsonObject()
+        && params.getAsJsonObject().has(POOLED_PROPERTY);
+  }
+
+  private static class QueueContinuation implements Continuation<JsonElement> {
+
+    final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onSuccess(JsonElement result) {
+      results.add(result);
+    }
+
+    @Override
+    public void onError(Throwable cause) {
+      results.add(cause);
+    }
+
+    String nextValue() throws InterruptedException {
+      Object result = results.poll(5, TimeUnit.SECONDS);
+      Assert.assertTrue("Unexpected result " + result, result instanceof JsonElement);
+      return ((JsonElement) result).getAsJsonObject().get("value").getAsString();
+    }
+  }
+
+  private final FakeServer server = new FakeServer();
+  private JsonRpcClientPooledWebSocket client;
+  private FakeConnection dropped;
+  private FakeConnection target;
+
+  private void connectPool() throws IOException, InterruptedException {
+    client = new JsonRpcClientPooledWebSocket("ws://localhost:1/jsonrpc", 2, null, server);
+    client.connect();
+    server.connections.get(0).nextRequest();
+    server.connections.get(1).nextRequest();
+    Assert.assertTrue(server.connectedEvents.tryAcquire(2, 5, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Sends an echo request, and chooses the connection that sent it to be dropped.
+   *
+   * @return the id of the request
+   */
+  private int sendEcho(QueueContinuation continuation) throws Exception {
+
+    client.sendRequest("echo", new JsonObject(), continuation);
+    Assert.assertEquals(1, client.getInFlightRequests());
+
+    FakeConnection first = server.connections.get(0);
+    FakeConnection second = server.connections.get(1);
+    dropped = first.getInFlightRequests() > 0 ? first : second;
+    target = dropped == first ? second : first;
+
+    return server.lastEchoId;
+  }
+
+  @After
+  public void teardown() throws IOException {
+    if (client != null) {
+      client.close();
+    }
+    server.shutdown();
+  }
+
+  @Test
+  public void sessionEstablishedOnce() throws Exception {
+
+    client = new JsonRpcClientPooledWebSocket("ws://localhost:1/jsonrpc", 3, null, server);
+    client.connect();
+
+    // The first connection creates the session and the others join it
+    Assert.assertFalse(isPooled(server.connections.get(0).nextRequest()));
+    Assert.assertTrue(isPooled(server.connections.get(1).nextRequest()));
+    Assert.assertTrue(isPooled(server.connections.get(2).nextRequest()));
+
+    Assert.assertEquals(SESSION_ID, client.getSession().getSessionId());
+    for (AbstractJsonRpcClientWebSocket connection : client.getConnections()) {
+      Assert.assertEquals(SESSION_ID, connection.getSession().getSessionId());
+    }
+  }
+
+  @Test
+  public void requestsInProgressAreNotSentAgain() throws Exception {
+
+    connectPool();
+
+    server.answerEchoes = false;
+    QueueContinuation continuation = new QueueContinuation();
+    int id = sendEcho(continuation);
+    dropped.nextRequest();
+
+    dropped.drop();
+
+    // The request is announced, and the server answers it through the other connection
+    JsonObject announce = target.nextRequest();
+    Assert.assertEquals(METHOD_CONNECT, announce.get("method").getAsString());
+    Assert.assertEquals(id, announce.getAsJsonObject("params").getAsJsonArray(REPLAY_PROPERTY)
+        .get(0).getAsInt());
+
+    Assert.assertEquals("echo-" + id, continuation.nextValue());
+    Assert.assertNull(target.requests.poll(100, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(0, client.getInFlightRequests());
+  }
+
+  @Test
+  public void requestsNotReceivedAreSentAgain() throws Exception {
+
+    connectPool();
+
+    server.loseEchoes = true;
+    QueueContinuation continuation = new QueueContinuation();
+    int id = sendEcho(continuation);
+
+    server.loseEchoes = false;
+    dropped.drop();
+
+    JsonObject announce = target.nextRequest();
+    Assert.assertEquals(METHOD_CONNECT, announce.get("method").getAsString());
+
+    // Sent again with the same id
+    JsonObject resent = target.nextRequest();
+    Assert.assertEquals("echo", resent.get("method").getAsString());
+    Assert.assertEquals(id, resent.get("id").getAsInt());
+
+    Assert.assertEquals("echo-" + id, continuation.nextValue());
+  }
+
+  @Test
+  public void requestsFailIfServerCantReplay() throws Exception {
+
+    connectPool();
+
+    server.loseEchoes = true;
+    server.reportReplays = false;
+    QueueContinuation continuation = new QueueContinuation();
+    sendEcho(continuation);
+
+    dropped.drop();
+
+    Object result = continuation.results.poll(5, TimeUnit.SECONDS);
+    Assert.assertTrue("Unexpected result " + result, result instanceof TransportException);
+
+    // Only the announcement reaches the server
+    Assert.assertEquals(METHOD_CONNECT, target.nextRequest().get("method").getAsString());
+    Assert.assertNull(target.requests.poll(100, TimeUnit.MILLISECONDS));
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.jsonrpc.client.JsonRpcClientWebSocket;
+import org.kurento.jsonrpc.client.JsonRpcWSConnectionListener;
+
+public class JsonRpcClientWebSocketTest {
+
+  private static class EventsListener implements JsonRpcWSConnectionListener {
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+    @Override
+    public void connected() {
+      events.add("connected");
+    }
+
+    @Override
+    public void connectionFailed() {
+      events.add("connectionFailed");
+    }
+
+    @Override
+    public void disconnected() {
+      events.add("disconnected");
+    }
+
+    @Override
+    public void reconnected(boolean sameServer) {
+      events.add("reconnected");
+    }
+
+    @Override
+    public void reconnecting() {
+      events.add("reconnecting");
+    }
+  }
+
+  // Records the calls to a Jetty session, which is open until it is closed or disconnected
+  private static class FakeSession implements InvocationHandler {
+
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean open = true;
+
+    private final Session session = (Session) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] { Session.class }, this);
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+      String name = method.getName();
+      calls.add(name);
+
+      switch (name) {
+        case "isOpen":
+          return open;
+        case "close":
+        case "disconnect":
+          open = false;
+          return null;
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "toString":
+          return "FakeSession";
+        default:
+          return null;
+      }
+    }
+  }
+
+  private static class TestClient extends JsonRpcClientWebSocket {
+
+    public TestClient(JsonRpcWSConnectionListener listener) {
+      super("ws://localhost:1/jsonrpc", listener);
+    }
+
+    // As Jetty does when connecting, the socket receives its session before it is published
+    WebSocketClientSocket connect(Session session) {
+      WebSocketClientSocket socket = new WebSocketClientSocket();
+      socket.onConnect(session);
+      jettyWsSession = session;
+      return socket;
+    }
+
+    void dropDeadLink() {
+      disconnectNativeClient();
+    }
+
+    Session getJettySession() {
+      return jettyWsSession;
+    }
+  }
+
+  private EventsListener listener;
+  private TestClient client;
+
+  @Before
+  public void setup() {
+    listener = new EventsListener();
+    client = new TestClient(listener);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    client.close();
+  }
+
+  @Test
+  public void lateCloseOfPreviousSessionIsIgnored() throws Exception {
+
+    FakeSession oldSession = new FakeSession();
+    JsonRpcClientWebSocket.WebSocketClientSocket oldSocket = client.connect(oldSession.session);
+
+    // The link is dropped without the close handshake, and the client connects again
+    client.dropDeadLink();
+    Assert.assertTrue(oldSession.calls.contains("disconnect"));
+    Assert.assertFalse(oldSession.calls.contains("close"));
+
+    FakeSession newSession = new FakeSession();
+    client.connect(newSession.session);
+
+    // The close of the old session arrives after the reconnection
+    oldSocket.onClose(1006, "Disconnected");
+
+    Assert.assertNull(listener.events.poll(500, TimeUnit.MILLISECONDS));
+    Assert.assertSame(newSession.session, client.getJettySession());
+  }
+
+  @Test
+  public void closeOfCurrentSessionReconnects() throws Exception {
+
+    FakeSession session = new FakeSession();
+    JsonRpcClientWebSocket.WebSocketClientSocket socket = client.connect(session.session);
+
+    socket.onClose(1006, "Disconnected");
+
+    Assert.assertEquals("reconnecting", listener.events.poll(5, TimeUnit.SECONDS));
+    Assert.assertNull(client.getJettySession());
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.JsonRpcErrorException;
+import org.kurento.jsonrpc.internal.JsonRpcConstants;
+import org.kurento.jsonrpc.message.GsonMessageCodec;
+import org.kurento.jsonrpc.message.MessageEnvelope;
+import org.kurento.jsonrpc.message.Request;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+public class MessageEnvelopeTest {
+
+  private final JsonParser parser = new JsonParser();
+
+  @Test
+  public void pingTest() {
+
+    MessageEnvelope envelope = MessageEnvelope.scan("{\"id\":3,\"method\":\"ping\",\"params\":"
+        + "{\"interval\":3000,\"sessionId\":\"xxx\"},\"jsonrpc\":\"2.0\"}");
+
+    Assert.assertTrue(envelope.isRequest());
+    Assert.assertEquals("ping", envelope.getMethod());
+    Assert.assertEquals(Integer.valueOf(3), envelope.getId());
+    Assert.assertEquals("xxx", envelope.getSessionId());
+    Assert.assertEquals(3000, envelope.getParamsLong("interval", -1));
+    Assert.assertEquals(-1, envelope.getParamsLong("other", -1));
+  }
+
+  @Test
+  public void adaptivePingTest() {
+
+    MessageEnvelope envelope = MessageEnvelope.scan("{\"id\":3,\"method\":\"ping\",\"params\":"
+        + "{\"interval\":3000,\"adaptive\":true},\"jsonrpc\":\"2.0\"}");
+
+    Assert.assertEquals(3000, envelope.getParamsLong("interval", -1));
+    Assert.assertTrue(envelope.getParamsBoolean("adaptive", false));
+    Assert.assertTrue(envelope.getParamsBoolean("other", true));
+    Assert.assertFalse(envelope.getParamsBoolean("interval", false));
+  }
+
+  @Test
+  public void lazyRequestLikeCodecTest() {
+
+    String json = "{ \"jsonrpc\": \"2.0\", \"method\": \"invoke\", \"params\": { \"object\": "
+        + "\"a\\\"b\", \"sessionId\": \"xxx\", \"operationParams\": { \"list\": [1, {\"x\": "
+        + "\"]}\"}], \"flag\": true } }, \"id\": \"7\" }";
+
+    Request<JsonElement> expected = new GsonMessageCodec().decodeRequest(json, JsonElement.class);
+    Request<JsonElement> request = MessageEnvelope.scan(json).toRequest();
+
+    Assert.assertEquals(expected.getId(), request.getId());
+    Assert.assertEquals(expected.getMethod(), request.getMethod());
+    Assert.assertEquals(expected.getSessionId(), request.getSessionId());
+    Assert.assertEquals(expected.getParams(), request.getParams());
+    Assert.assertEquals(parser.parse(expected.toString()), parser.parse(request.toString()));
+  }
+
+  @Test
+  public void validParamsTest() {
+
+    String json = "{\"id\":1,\"method\":\"m\",\"params\":{\"a\":[-0.5e+3, 0, 12E-1, true, "
+        + "false, null, \"\\u00e9\\n\"], \"b\": {}, \"c\": [], \"interval\": 10}}";
+
+    MessageEnvelope envelope = MessageEnvelope.scan(json);
+
+    Assert.assertNull(envelope.getParamsError());
+    Assert.assertEquals(10, envelope.getParamsLong("interval", -1));
+    Assert.assertEquals(parser.parse(json).getAsJsonObject().get("params"),
+        envelope.toRequest().getParams());
+  }
+
+  @Test
+  public void malformedParamsTest() {
+
+    String[] malformedParams = { "{\"a\":}", "{\"a\":1]", "{\"a\":1,}", "{\"a\":\"\\x\"}",
+        "{\"a\" 1}" };
+
+    for (String params : malformedParams) {
+
+      MessageEnvelope envelope = MessageEnvelope
+          .scan("{\"id\":1,\"method\":\"m\",\"params\":" + params + "}");
+
+      Assert.assertNotNull(params, envelope);
+      Assert.assertEquals(params, Integer.valueOf(1), envelope.getId());
+      Assert.assertEquals(params, JsonRpcConstants.ERROR_PARSE_ERROR,
+          envelope.getParamsError().getCode());
+
+      try {
+        envelope.toRequest().getParams();
+        Assert.fail("Params " + params + " should not be parsed");
+      } catch (JsonRpcErrorException e) {
+        Assert.assertEquals(JsonRpcConstants.ERROR_PARSE_ERROR, e.getCode());
+      }
+    }
+  }
+
+  @Test
+  public void lenientParamsLikeCodecTest() {
+
+    // Not valid JSON, but accepted by Gson
+    String json = "{\"id\":1,\"method\":\"m\",\"params\":{'a':'b',c:tru,'d':[1,,2],"
+        + "'sessionId':'xxx'}}";
+
+    Request<JsonElement> expected = new GsonMessageCodec().decodeRequest(json, JsonElement.class);
+    MessageEnvelope envelope = MessageEnvelope.scan(json);
+
+    Assert.assertNull(envelope.getParamsError());
+    Assert.assertEquals(expected.getSessionId(), envelope.getSessionId());
+    Assert.assertEquals(expected.getParams(), envelope.toRequest().getParams());
+  }
+
+  @Test
+  public void unsupportedMessagesTest() {
+
+    Assert.assertNull(MessageEnvelope.scan("[{\"method\":\"ping\"}]"));
+    Assert.assertNull(MessageEnvelope.scan("{\"method\":\"ping\",\"id\":1.5}"));
+    Assert.assertNull(MessageEnvelope.scan("{\"method\":\"ping\",\"id\":}"));
+    Assert.assertNull(MessageEnvelope.scan("{\"method\":\"ping\""));
+
+    MessageEnvelope response = MessageEnvelope.scan("{\"id\":1,\"result\":{},\"jsonrpc\":\"2.0\"}");
+    Assert.assertFalse(response.isRequest());
+    Assert.assertTrue(response.isResponse());
+  }
+}
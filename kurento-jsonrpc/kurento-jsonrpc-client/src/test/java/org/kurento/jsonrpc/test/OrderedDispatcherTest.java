@@ -0,0 +1,171 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.jsonrpc.internal.DispatcherQueueFullException;
+import org.kurento.jsonrpc.internal.OrderedDispatcher;
+
+public class OrderedDispatcherTest {
+
+  private static final int KEYS = 8;
+  private static final int TASKS_PER_KEY = 1000;
+
+  private OrderedDispatcher dispatcher;
+
+  @Before
+  public void setup() {
+    dispatcher = new OrderedDispatcher("OrderedDispatcherTest", 4, TASKS_PER_KEY);
+  }
+
+  @After
+  public void teardown() {
+    dispatcher.shutdown();
+  }
+
+  @Test
+  public void orderPerKeyTest() throws InterruptedException {
+
+    final CountDownLatch latch = new CountDownLatch(KEYS * TASKS_PER_KEY);
+    final List<List<Integer>> executions = new ArrayList<>();
+
+    for (int key = 0; key < KEYS; key++) {
+      executions.add(Collections.synchronizedList(new ArrayList<Integer>()));
+    }
+
+    for (int i = 0; i < TASKS_PER_KEY; i++) {
+      for (int key = 0; key < KEYS; key++) {
+        final List<Integer> keyExecutions = executions.get(key);
+        final int value = i;
+        dispatcher.dispatch(key, new Runnable() {
+          @Override
+          public void run() {
+            keyExecutions.add(value);
+            latch.countDown();
+          }
+        });
+      }
+    }
+
+    Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+    for (List<Integer> keyExecutions : executions) {
+      Assert.assertEquals(TASKS_PER_KEY, keyExecutions.size());
+      for (int i = 0; i < TASKS_PER_KEY; i++) {
+        Assert.assertEquals(i, (int) keyExecutions.get(i));
+      }
+    }
+
+    Assert.assertEquals(0, dispatcher.getQueuedTasks());
+  }
+
+  @Test
+  public void queueLimitTest() throws InterruptedException {
+
+    final CountDownLatch blocked = new CountDownLatch(1);
+
+    dispatcher.dispatch("key", new Runnable() {
+      @Override
+      public void run() {
+        try {
+          blocked.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+
+    Runnable emptyTask = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+
+    try {
+      for (int i = 0; i <= TASKS_PER_KEY; i++) {
+        dispatcher.dispatch("key", emptyTask);
+      }
+      Assert.fail("DispatcherQueueFullException expected");
+    } catch (DispatcherQueueFullException e) {
+      Assert.assertEquals(1, dispatcher.getRejectedTasks());
+    } finally {
+      blocked.countDown();
+    }
+
+    // Other keys are not affected
+    dispatcher.dispatch("otherKey", emptyTask);
+  }
+
+  @Test
+  public void discardAndMetricsTest() throws InterruptedException {
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch executed = new CountDownLatch(1);
+
+    dispatcher.dispatch("key", new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          blocked.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        executed.countDown();
+      }
+    });
+
+    Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    final List<Integer> discardedExecutions = Collections.synchronizedList(new ArrayList<Integer>());
+
+    for (int i = 0; i < 10; i++) {
+      final int value = i;
+      dispatcher.dispatch("key", new Runnable() {
+        @Override
+        public void run() {
+          discardedExecutions.add(value);
+        }
+      });
+    }
+
+    Assert.assertEquals(10, dispatcher.getQueuedTasks("key"));
+    Assert.assertTrue(dispatcher.getMaxQueueDepth() >= 10);
+
+    Assert.assertEquals(10, dispatcher.discard("key"));
+    Assert.assertEquals(0, dispatcher.getQueuedTasks());
+
+    Thread.sleep(20);
+    blocked.countDown();
+
+    Assert.assertTrue(executed.await(5, TimeUnit.SECONDS));
+    Assert.assertTrue(discardedExecutions.isEmpty());
+    Assert.assertTrue(dispatcher.getQueueTimeNanos() > 0);
+  }
+
+}
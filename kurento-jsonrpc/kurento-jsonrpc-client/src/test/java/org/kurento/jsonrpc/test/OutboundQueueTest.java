@@ -0,0 +1,217 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.OutboundQueueFullException;
+import org.kurento.jsonrpc.internal.ws.OutboundQueue;
+import org.kurento.jsonrpc.internal.ws.OutboundQueue.OverflowPolicy;
+import org.kurento.jsonrpc.internal.ws.OutboundQueue.WriteCallback;
+
+public class OutboundQueueTest {
+
+  // Keeps writes pending until they are completed by the test
+  private static class PendingWriter implements OutboundQueue.Writer {
+
+    final List<Object> messages = new ArrayList<>();
+    final List<WriteCallback> callbacks = new ArrayList<>();
+
+    @Override
+    public synchronized void write(Object message, boolean more, WriteCallback callback) {
+      messages.add(message);
+      callbacks.add(callback);
+    }
+
+    // Completing a write hands the next message to the writer, so go on until none is pending
+    synchronized void completeAll() {
+      while (!callbacks.isEmpty()) {
+        List<WriteCallback> pending = new ArrayList<>(callbacks);
+        callbacks.clear();
+        for (WriteCallback callback : pending) {
+          callback.writeSuccess();
+        }
+      }
+    }
+
+    synchronized void failAll(Throwable cause) {
+      while (!callbacks.isEmpty()) {
+        List<WriteCallback> pending = new ArrayList<>(callbacks);
+        callbacks.clear();
+        for (WriteCallback callback : pending) {
+          callback.writeFailed(cause);
+        }
+      }
+    }
+  }
+
+  private static class RecordingCallback implements WriteCallback {
+
+    int successes;
+    Throwable failure;
+
+    @Override
+    public void writeSuccess() {
+      successes++;
+    }
+
+    @Override
+    public void writeFailed(Throwable cause) {
+      failure = cause;
+    }
+  }
+
+  @Test
+  public void testRejectAboveHighWaterMark() {
+
+    PendingWriter writer = new PendingWriter();
+    OutboundQueue queue = new OutboundQueue(writer, 2, OverflowPolicy.REJECT, 0);
+
+    queue.send("1");
+    queue.send("2");
+
+    try {
+      queue.send("3");
+      Assert.fail("OutboundQueueFullException expected");
+    } catch (OutboundQueueFullException e) {
+      // Expected
+    }
+
+    Assert.assertEquals(2, queue.getQueueDepth());
+    Assert.assertEquals(1, queue.getRejectedMessages());
+
+    writer.completeAll();
+    queue.send("4");
+
+    Assert.assertEquals(1, queue.getQueueDepth());
+    Assert.assertEquals(2, queue.getWrittenMessages());
+    Assert.assertEquals(3, writer.messages.size());
+    Assert.assertEquals("4", writer.messages.get(2));
+  }
+
+  @Test
+  public void testBlockUntilWritten() throws InterruptedException {
+
+    final PendingWriter writer = new PendingWriter();
+    OutboundQueue queue = new OutboundQueue(writer, 1, OverflowPolicy.BLOCK, 5000);
+
+    queue.send("1");
+
+    Thread completer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        writer.completeAll();
+      }
+    };
+    completer.start();
+
+    long start = System.currentTimeMillis();
+    queue.send("2");
+
+    Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+    completer.join();
+    Assert.assertEquals(2, writer.messages.size());
+  }
+
+  @Test
+  public void testOneWriteAtATime() {
+
+    final List<Boolean> more = new ArrayList<>();
+    PendingWriter writer = new PendingWriter() {
+      @Override
+      public synchronized void write(Object message, boolean hasMore, WriteCallback callback) {
+        more.add(hasMore);
+        super.write(message, hasMore, callback);
+      }
+    };
+    OutboundQueue queue = new OutboundQueue(writer, 10, OverflowPolicy.REJECT, 0);
+
+    queue.send("1");
+    queue.send("2");
+    queue.send("3");
+
+    Assert.assertEquals(1, writer.messages.size());
+    Assert.assertEquals(3, queue.getQueueDepth());
+
+    writer.callbacks.remove(0).writeSuccess();
+
+    Assert.assertEquals(2, writer.messages.size());
+    Assert.assertEquals("2", writer.messages.get(1));
+    Assert.assertTrue(more.get(1));
+
+    writer.completeAll();
+
+    Assert.assertEquals(3, writer.messages.size());
+    Assert.assertFalse(more.get(2));
+    Assert.assertEquals(0, queue.getQueueDepth());
+    Assert.assertEquals(3, queue.getWrittenMessages());
+  }
+
+  @Test
+  public void testWriteFailureNotifiesCallback() {
+
+    PendingWriter writer = new PendingWriter();
+    OutboundQueue queue = new OutboundQueue(writer, 10, OverflowPolicy.REJECT, 0);
+
+    RecordingCallback first = new RecordingCallback();
+    RecordingCallback second = new RecordingCallback();
+    queue.send("1", first);
+    queue.send("2", second);
+
+    writer.failAll(new IllegalStateException("Connection reset"));
+
+    Assert.assertEquals("Connection reset", first.failure.getMessage());
+    Assert.assertEquals("Connection reset", second.failure.getMessage());
+    Assert.assertEquals(0, first.successes);
+    Assert.assertEquals(2, queue.getFailedWrites());
+    Assert.assertEquals(0, queue.getQueueDepth());
+
+    // The queue goes on writing after a failure
+    RecordingCallback third = new RecordingCallback();
+    queue.send("3", third);
+    writer.completeAll();
+
+    Assert.assertEquals(1, third.successes);
+    Assert.assertNull(third.failure);
+  }
+
+  @Test
+  public void testWriterExceptionNotifiesCallback() {
+
+    OutboundQueue queue = new OutboundQueue(new OutboundQueue.Writer() {
+      @Override
+      public void write(Object message, boolean more, WriteCallback callback) {
+        throw new IllegalStateException("Disconnected");
+      }
+    }, 10, OverflowPolicy.REJECT, 0);
+
+    RecordingCallback callback = new RecordingCallback();
+    queue.send("1", callback);
+
+    Assert.assertEquals("Disconnected", callback.failure.getMessage());
+    Assert.assertEquals(0, queue.getQueueDepth());
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.commons.ThreadFactoryCreator;
+import org.kurento.jsonrpc.TransportException;
+import org.kurento.jsonrpc.client.Continuation;
+import org.kurento.jsonrpc.internal.timer.HashedWheelTimer;
+import org.kurento.jsonrpc.internal.ws.PendingRequests;
+import org.kurento.jsonrpc.internal.ws.ResponseSlot;
+import org.kurento.jsonrpc.message.Response;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+public class PendingRequestsTest {
+
+  private ExecutorService executor;
+  private HashedWheelTimer timer;
+  private PendingRequests pendingRequests;
+
+  @Before
+  public void setup() {
+    executor = Executors.newSingleThreadExecutor();
+    timer = new HashedWheelTimer(ThreadFactoryCreator.createDaemon("PendingRequestsTest"), 10,
+        TimeUnit.MILLISECONDS, 64, executor);
+    pendingRequests = new PendingRequests(timer);
+  }
+
+  @After
+  public void teardown() {
+    timer.stop();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void responseTest() throws Exception {
+
+    ResponseSlot slot = pendingRequests.prepareResponse(1);
+    Assert.assertEquals(1, pendingRequests.getInFlightRequests());
+
+    pendingRequests.handleResponse(new Response<JsonElement>(1, new JsonPrimitive("result")));
+
+    Assert.assertEquals(0, pendingRequests.getInFlightRequests());
+    Assert.assertEquals("result", slot.get(1, TimeUnit.SECONDS).getResult().getAsString());
+  }
+
+  @Test
+  public void continuationTest() throws Exception {
+
+    // Response received before the continuation is set
+    ResponseSlot slot = pendingRequests.prepareResponse(2, 1000);
+    pendingRequests.handleResponse(new Response<JsonElement>(2, new JsonPrimitive("result")));
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicReference<Response<JsonElement>> result = new AtomicReference<>();
+
+    slot.setContinuation(new Continuation<Response<JsonElement>>() {
+      @Override
+      public void onSuccess(Response<JsonElement> response) {
+        result.set(response);
+        latch.countDown();
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        latch.countDown();
+      }
+    }, executor);
+
+    Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+    Assert.assertEquals("result", result.get().getResult().getAsString());
+  }
+
+  @Test
+  public void timeoutTest() throws Exception {
+
+    ResponseSlot slot = pendingRequests.prepareResponse(3, 50);
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    slot.setContinuation(new Continuation<Response<JsonElement>>() {
+      @Override
+      public void onSuccess(Response<JsonElement> response) {
+        latch.countDown();
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        error.set(cause);
+        latch.countDown();
+      }
+    }, null);
+
+    Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+    Assert.assertTrue(error.get() instanceof TransportException);
+    Assert.assertEquals(0, pendingRequests.getInFlightRequests());
+
+    // Late responses are ignored
+    pendingRequests.handleResponse(new Response<JsonElement>(3, new JsonPrimitive("result")));
+  }
+
+  @Test
+  public void closeAllPendingRequestsTest() throws Exception {
+
+    ResponseSlot slot1 = pendingRequests.prepareResponse(4);
+    ResponseSlot slot2 = pendingRequests.prepareResponse(20, 1000);
+
+    pendingRequests.closeAllPendingRequests();
+
+    Assert.assertNotNull(slot1.get(1, TimeUnit.SECONDS).getError());
+    Assert.assertNotNull(slot2.get(1, TimeUnit.SECONDS).getError());
+    Assert.assertEquals(0, pendingRequests.getInFlightRequests());
+  }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.kurento.jsonrpc.JsonRpcException;
+import org.kurento.jsonrpc.client.AbstractJsonRpcClientWebSocket;
+import org.kurento.jsonrpc.client.ExponentialBackoffReconnectPolicy;
+import org.kurento.jsonrpc.client.ReconnectPolicy;
+import org.kurento.jsonrpc.internal.ProtocolUtils;
+import org.kurento.jsonrpc.internal.ws.ReconnectThrottle;
+
+public class ReconnectPolicyTest {
+
+  private static class TransientFailure extends Exception {
+    private static final long serialVersionUID = 1L;
+  }
+
+  // Fails the first connections, with transient failures if requested
+  private static class FlakyClient extends AbstractJsonRpcClientWebSocket {
+
+    final AtomicInteger attempts = new AtomicInteger();
+    final int failures;
+    final boolean transientFailures;
+    volatile boolean connected;
+
+    FlakyClient(int failures, boolean transientFailures) {
+      super("ws://localhost:1/jsonrpc", null);
+      this.failures = failures;
+      this.transientFailures = transientFailures;
+      setReconnectPolicy(new ExponentialBackoffReconnectPolicy(10, 20, 2, 100));
+    }
+
+    @Override
+    protected void connectNativeClient() throws Exception {
+      if (attempts.incrementAndGet() <= failures) {
+        throw transientFailures ? new TransientFailure() : new IOException("Refused");
+      }
+      connected = true;
+    }
+
+    @Override
+    protected boolean isTransientConnectFailure(Throwable failure) {
+      return failure.getCause() instanceof TransientFailure;
+    }
+
+    @Override
+    protected boolean isNativeClientConnected() {
+      return connected;
+    }
+
+    @Override
+    protected void closeNativeClient() {
+      connected = false;
+    }
+
+    @Override
+    protected void sendTextMessage(String jsonMessage) throws IOException {
+    }
+  }
+
+  @Test
+  public void backoffIsJitteredAndCapped() {
+
+    ReconnectPolicy policy = new ExponentialBackoffReconnectPolicy(100, 1000, 2, 10);
+
+    for (int attempt = 0; attempt < 10; attempt++) {
+      long bound = Math.min(1000, 100L << attempt);
+      for (int i = 0; i < 100; i++) {
+        long delay = policy.getDelay(attempt);
+        assertTrue("Delay " + delay + " out of [0, " + bound + "]", delay >= 0 && delay <= bound);
+      }
+    }
+
+    assertEquals(ReconnectPolicy.GIVE_UP, policy.getDelay(10));
+  }
+
+  @Test
+  public void throttleSpacesAttemptsBeyondBurst() {
+
+    ReconnectThrottle throttle = new ReconnectThrottle(10, 2);
+
+    assertEquals(0, throttle.reserve());
+    assertEquals(0, throttle.reserve());
+
+    long wait = throttle.reserve();
+    assertTrue("Unexpected wait " + wait, wait > 0 && wait <= 100);
+
+    long nextWait = throttle.reserve();
+    assertTrue("Unexpected wait " + nextWait, nextWait > wait && nextWait <= 200);
+  }
+
+  @Test
+  public void retryAfterHintInCloseReason() {
+
+    assertEquals(5000, ProtocolUtils.parseRetryAfter(
+        ProtocolUtils.withRetryAfter("Server overloaded", 5000)));
+    assertEquals(300, ProtocolUtils.parseRetryAfter(ProtocolUtils.withRetryAfter(null, 300)));
+    assertEquals(0, ProtocolUtils.parseRetryAfter("Server overloaded"));
+    assertEquals(0, ProtocolUtils.parseRetryAfter("retryAfter=abc"));
+    assertEquals(0, ProtocolUtils.parseRetryAfter(null));
+  }
+
+  @Test
+  public void connectRetriesTransientFailures() throws IOException {
+
+    FlakyClient client = new FlakyClient(3, true);
+    client.connect();
+
+    assertEquals(4, client.attempts.get());
+    assertTrue(client.connected);
+    client.close();
+  }
+
+  @Test
+  public void connectGivesUpAfterMaxRetries() throws IOException {
+
+    FlakyClient client = new FlakyClient(100, true);
+    try {
+      client.connect();
+      fail("JsonRpcException expected");
+    } catch (JsonRpcException e) {
+      // Expected
+    }
+
+    // The first attempt and 5 retries
+    assertEquals(6, client.attempts.get());
+  }
+
+  @Test
+  public void connectDoesntRetryOtherFailures() throws IOException {
+
+    FlakyClient client = new FlakyClient(1, false);
+    try {
+      client.connect();
+      fail("JsonRpcException expected");
+    } catch (JsonRpcException e) {
+      // Expected
+    }
+
+    assertEquals(1, client.attempts.get());
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.TransportException;
+import org.kurento.jsonrpc.client.AbstractJsonRpcClientWebSocket;
+import org.kurento.jsonrpc.client.Continuation;
+import org.kurento.jsonrpc.internal.ws.RequestBatcher;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+public class RequestBatcherTest {
+
+  private static class RecordingSender implements RequestBatcher.BatchSender {
+
+    final List<String> batches = new ArrayList<>();
+    final List<List<Integer>> batchIds = new ArrayList<>();
+    volatile int maxMessages = 10;
+    volatile IOException failure;
+
+    @Override
+    public void sendBatch(String message, List<Integer> requestIds) throws IOException {
+      batchIds.add(requestIds);
+      if (failure != null) {
+        throw failure;
+      }
+      batches.add(message);
+    }
+
+    @Override
+    public int getMaxMessages() {
+      return maxMessages;
+    }
+
+    @Override
+    public int getMaxBytes() {
+      return 64 * 1024;
+    }
+  }
+
+  // Client whose messages are recorded, or fail to be written if requested
+  private static class BatchingClient extends AbstractJsonRpcClientWebSocket {
+
+    final List<String> sent = new ArrayList<>();
+    volatile boolean failWrites;
+    volatile boolean connected;
+
+    BatchingClient() {
+      super("ws://localhost:1/jsonrpc", null);
+      setBatchingEnabled(true);
+    }
+
+    @Override
+    protected synchronized void sendTextMessage(String jsonMessage) throws IOException {
+      if (failWrites) {
+        throw new IOException("Broken pipe");
+      }
+      sent.add(jsonMessage);
+    }
+
+    synchronized int getSentMessages() {
+      return sent.size();
+    }
+
+    @Override
+    protected void connectNativeClient() throws Exception {
+      connected = true;
+    }
+
+    @Override
+    protected boolean isNativeClientConnected() {
+      return connected;
+    }
+
+    @Override
+    protected void closeNativeClient() {
+      connected = false;
+    }
+  }
+
+  private static class QueueContinuation implements Continuation<JsonElement> {
+
+    final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onSuccess(JsonElement result) {
+      results.add(result != null ? result : "null");
+    }
+
+    @Override
+    public void onError(Throwable cause) {
+      results.add(cause);
+    }
+  }
+
+  @Test
+  public void batchCarriesRequestIds() throws IOException {
+
+    RecordingSender sender = new RecordingSender();
+    RequestBatcher batcher = new RequestBatcher(sender);
+
+    Assert.assertTrue(batcher.add("{\"id\":1}", 1));
+    Assert.assertFalse(batcher.add("{\"method\":\"event\"}", null));
+    Assert.assertFalse(batcher.add("{\"id\":2}", 2));
+
+    batcher.flush();
+
+    Assert.assertEquals(1, sender.batches.size());
+    Assert.assertTrue(RequestBatcher.isBatch(sender.batches.get(0)));
+    Assert.assertEquals(Arrays.asList(1, 2), sender.batchIds.get(0));
+  }
+
+  @Test
+  public void limitsAreReadWhenAdding() throws IOException {
+
+    RecordingSender sender = new RecordingSender();
+    RequestBatcher batcher = new RequestBatcher(sender);
+
+    batcher.add("{\"id\":1}", 1);
+    batcher.add("{\"id\":2}", 2);
+    Assert.assertTrue(sender.batches.isEmpty());
+
+    sender.maxMessages = 3;
+    batcher.add("{\"id\":3}", 3);
+
+    Assert.assertEquals(1, sender.batches.size());
+    Assert.assertEquals(0, batcher.getPendingMessages());
+  }
+
+  @Test
+  public void failedFlushKeepsBatcherUsable() throws IOException {
+
+    RecordingSender sender = new RecordingSender();
+    RequestBatcher batcher = new RequestBatcher(sender);
+
+    sender.failure = new IOException("Broken pipe");
+    batcher.add("{\"id\":1}", 1);
+
+    try {
+      batcher.flush();
+      Assert.fail("IOException expected");
+    } catch (IOException e) {
+      // Expected
+    }
+
+    Assert.assertEquals(Arrays.asList(1), sender.batchIds.get(0));
+    Assert.assertEquals(0, batcher.getPendingMessages());
+
+    sender.failure = null;
+    batcher.add("{\"id\":2}", 2);
+    batcher.flush();
+
+    Assert.assertEquals(Arrays.asList(2), sender.batchIds.get(1));
+  }
+
+  @Test
+  public void failedFlushFailsBatchedRequests() throws Exception {
+
+    BatchingClient client = new BatchingClient();
+    client.setBatchWindowMillis(20);
+    client.connect();
+
+    client.failWrites = true;
+
+    QueueContinuation first = new QueueContinuation();
+    QueueContinuation second = new QueueContinuation();
+    client.sendRequest("echo", new JsonObject(), first);
+    client.sendRequest("echo", new JsonObject(), second);
+
+    // Failed by the flush of the batching window, not by the request timeout
+    Object firstResult = first.results.poll(5, TimeUnit.SECONDS);
+    Object secondResult = second.results.poll(5, TimeUnit.SECONDS);
+
+    Assert.assertTrue("Unexpected result " + firstResult,
+        firstResult instanceof TransportException);
+    Assert.assertTrue("Unexpected result " + secondResult,
+        secondResult instanceof TransportException);
+    Assert.assertEquals(0, client.getInFlightRequests());
+
+    client.close();
+  }
+
+  @Test
+  public void maxMessagesChangedOnLiveBatcher() throws Exception {
+
+    BatchingClient client = new BatchingClient();
+    client.setBatchWindowMillis(60000);
+    client.connect();
+
+    client.sendRequest("echo", new JsonObject(), new QueueContinuation());
+    Assert.assertEquals(0, client.getSentMessages());
+
+    client.setBatchMaxMessages(2);
+    client.sendRequest("echo", new JsonObject(), new QueueContinuation());
+
+    Assert.assertEquals(1, client.getSentMessages());
+    Assert.assertTrue(RequestBatcher.isBatch(client.sent.get(0)));
+
+    client.close();
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.message.GsonMessageCodec;
+import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.MessageCodec;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+import org.kurento.jsonrpc.message.ResponseError;
+import org.kurento.jsonrpc.message.StreamingMessageCodec;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+public class StreamingMessageCodecTest {
+
+  static class Params {
+    String param1;
+    int param2;
+  }
+
+  @JsonAdapter(IdAdapter.class)
+  static class Id {
+    String value;
+  }
+
+  static class IdAdapter extends TypeAdapter<Id> {
+
+    @Override
+    public void write(JsonWriter out, Id id) throws IOException {
+      out.value(id.value);
+    }
+
+    @Override
+    public Id read(JsonReader in) throws IOException {
+      Id id = new Id();
+      id.value = in.nextString();
+      return id;
+    }
+  }
+
+  private final MessageCodec gsonCodec = new GsonMessageCodec();
+  private final MessageCodec streamingCodec = new StreamingMessageCodec();
+  private final JsonParser parser = new JsonParser();
+
+  private void assertSameJson(Message message) {
+    Assert.assertEquals(parser.parse(gsonCodec.encode(message)),
+        parser.parse(streamingCodec.encode(message)));
+  }
+
+  private Params createParams() {
+    Params params = new Params();
+    params.param1 = "Value1";
+    params.param2 = 2;
+    return params;
+  }
+
+  @Test
+  public void encodeLikeGsonCodecTest() {
+
+    assertSameJson(new Request<>(1, "method", createParams()));
+    assertSameJson(new Request<>(null, "notification", createParams()));
+    assertSameJson(new Response<>(1, createParams()));
+    assertSameJson(new Response<>(1, "result"));
+    assertSameJson(new Response<Void>(1, new ResponseError(-32601, "Method not found")));
+
+    Request<Params> request = new Request<>(2, "method", createParams());
+    request.setSessionId("xxxxxxx");
+    assertSameJson(request);
+
+    Request<Void> noParamsRequest = new Request<>(3, "method", null);
+    noParamsRequest.setSessionId("xxxxxxx");
+    assertSameJson(noParamsRequest);
+
+    Response<List<String>> listResponse = new Response<List<String>>(4, Arrays.asList("a", "b"));
+    listResponse.setSessionId("xxxxxxx");
+    assertSameJson(listResponse);
+
+    Response<String> stringResponse = new Response<>(5, "value");
+    stringResponse.setSessionId("xxxxxxx");
+    assertSameJson(stringResponse);
+  }
+
+  @Test
+  public void encodeCustomAdapterWithSessionIdTest() {
+
+    Id id = new Id();
+    id.value = "id1";
+
+    Request<Id> request = new Request<>(1, "method", id);
+    request.setSessionId("xxxxxxx");
+    assertSameJson(request);
+
+    Response<Id> response = new Response<>(2, id);
+    response.setSessionId("xxxxxxx");
+    assertSameJson(response);
+  }
+
+  @Test
+  public void sessionIdRoundTripTest() {
+
+    Request<Params> request = new Request<>(1, "method", createParams());
+    request.setSessionId("xxxxxxx");
+
+    Request<Params> newRequest = streamingCodec
+        .decodeRequest(streamingCodec.encode(request), Params.class);
+
+    Assert.assertEquals("method", newRequest.getMethod());
+    Assert.assertEquals(Integer.valueOf(1), newRequest.getId());
+    Assert.assertEquals("Value1", newRequest.getParams().param1);
+    Assert.assertEquals(2, newRequest.getParams().param2);
+    Assert.assertEquals("xxxxxxx", newRequest.getSessionId());
+
+    Response<Params> response = new Response<>(1, createParams());
+    response.setSessionId("xxxxxxx");
+
+    Response<JsonElement> newResponse = streamingCodec
+        .decodeResponse(streamingCodec.encode(response), JsonElement.class);
+
+    Assert.assertEquals("xxxxxxx", newResponse.getSessionId());
+    Assert.assertFalse(((JsonObject) newResponse.getResult()).has("sessionId"));
+  }
+
+  @Test
+  public void decodeMessageTest() {
+
+    Message message = streamingCodec.decodeMessage(
+        "{\"id\":\"7\",\"method\":\"method\",\"params\":{\"param1\":\"Value1\"},\"jsonrpc\":\"2.0\"}");
+
+    Assert.assertTrue(message instanceof Request);
+    Assert.assertEquals(Integer.valueOf(7), ((Request<?>) message).getId());
+
+    message = streamingCodec
+        .decodeMessage("{\"id\":8,\"error\":{\"code\":-32601,\"message\":\"Method not found\"},"
+            + "\"jsonrpc\":\"2.0\"}");
+
+    Assert.assertTrue(message instanceof Response);
+    Assert.assertEquals(-32601, ((Response<?>) message).getError().getCode());
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import javax.inject.Named;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.JsonRpcErrorException;
+import org.kurento.jsonrpc.JsonRpcMethod;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.TypeDefaultJsonRpcHandler;
+import org.kurento.jsonrpc.client.JsonRpcClient;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal.Mode;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class TypeDefaultJsonRpcHandlerTest {
+
+  public static class Handler extends TypeDefaultJsonRpcHandler {
+
+    @JsonRpcMethod
+    public String describe(Session session, @Named("name") String name, @Named("count") int count,
+        @Named("enabled") boolean enabled) {
+      return name + ":" + count + ":" + enabled + ":" + (session != null);
+    }
+
+    @JsonRpcMethod
+    public void fail(@Named("code") int code) {
+      throw new JsonRpcErrorException(code, "Failed");
+    }
+  }
+
+  @Test
+  public void invocationTest() throws Exception {
+
+    Handler handler = new Handler();
+    handler.warmUp();
+
+    JsonRpcClient client = new JsonRpcClientLocal(handler, Mode.REFERENCE);
+
+    JsonObject params = new JsonObject();
+    params.addProperty("name", "a");
+    params.addProperty("count", 3);
+
+    Assert.assertEquals(new JsonPrimitive("a:3:false:true"),
+        client.sendRequest("describe", params));
+
+    params = new JsonObject();
+    params.addProperty("code", 42);
+
+    try {
+      client.sendRequest("fail", params);
+      Assert.fail("JsonRpcErrorException expected");
+    } catch (JsonRpcErrorException e) {
+      Assert.assertEquals(42, e.getCode());
+    }
+
+    client.close();
+  }
+}
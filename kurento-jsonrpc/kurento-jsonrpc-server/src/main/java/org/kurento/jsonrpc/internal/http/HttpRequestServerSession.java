@@ -0,0 +1,343 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.jsonrpc.JsonRpcException;
+import org.kurento.jsonrpc.TransportException;
+import org.kurento.jsonrpc.client.Continuation;
+import org.kurento.jsonrpc.internal.JsonRpcRequestSenderHelper;
+import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
+import org.kurento.jsonrpc.internal.server.ServerSession;
+import org.kurento.jsonrpc.internal.server.SessionsManager;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimer;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimers;
+import org.kurento.jsonrpc.internal.timer.Timeout;
+import org.kurento.jsonrpc.internal.ws.PendingRequests;
+import org.kurento.jsonrpc.internal.ws.ResponseSlot;
+import org.kurento.jsonrpc.message.MessageUtils;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Session of a client connected through HTTP. Messages from the server to the client are queued
+ * until the client polls for them. A poll finding no messages is held until a message is queued
+ * or the poll timeout expires; the client responses to server requests come in later polls.
+ */
+public class HttpRequestServerSession extends ServerSession {
+
+  private static final Logger log = LoggerFactory.getLogger(HttpRequestServerSession.class);
+
+  public static final String TIMEOUT_PROPERTY = "jsonRpcServerHttp.timeout";
+  public static final String POLL_TIMEOUT_PROPERTY = "jsonRpcServerHttp.pollTimeout";
+  public static final String MAX_QUEUED_MESSAGES_PROPERTY = "jsonRpcServerHttp.maxQueuedMessages";
+
+  private static final long TIMEOUT = PropertiesManager.getProperty(TIMEOUT_PROPERTY, 10000);
+
+  private static final long POLL_TIMEOUT =
+      PropertiesManager.getProperty(POLL_TIMEOUT_PROPERTY, 25000);
+
+  private static final int MAX_QUEUED_MESSAGES =
+      PropertiesManager.getProperty(MAX_QUEUED_MESSAGES_PROPERTY, 1000);
+
+  private class HeldPoll implements Runnable {
+
+    private final Integer requestId;
+    private final ResponseSender responseSender;
+    private Timeout timeout;
+
+    public HeldPoll(Integer requestId, ResponseSender responseSender) {
+      this.requestId = requestId;
+      this.responseSender = responseSender;
+    }
+
+    @Override
+    public void run() {
+      expire(this);
+    }
+  }
+
+  private final PendingRequests pendingRequests = new PendingRequests();
+  private final JsonRpcTimer timer = JsonRpcTimers.getSharedTimer();
+
+  // Guarded by this
+  private List<Request<?>> outbound = new ArrayList<>();
+  private HeldPoll heldPoll;
+  private boolean closed;
+
+  public HttpRequestServerSession(String sessionId, Object registerInfo,
+      SessionsManager sessionsManager) {
+
+    super(sessionId, registerInfo, sessionsManager, null);
+
+    setRsHelper(new JsonRpcRequestSenderHelper(sessionId) {
+
+      @Override
+      protected <P, R> Response<R> internalSendRequest(Request<P> request, Class<R> resultClass)
+          throws IOException {
+        return sendRequestHttp(request, resultClass);
+      }
+
+      @Override
+      protected void internalSendRequest(Request<? extends Object> request,
+          Class<JsonElement> resultClass, Continuation<Response<JsonElement>> continuation) {
+        sendRequestHttp(request, resultClass, continuation);
+      }
+    });
+  }
+
+  private <P, R> Response<R> sendRequestHttp(Request<P> request, Class<R> resultClass) {
+
+    ResponseSlot responseSlot = null;
+
+    if (request.getId() != null) {
+      responseSlot = pendingRequests.prepareResponse(request.getId());
+    }
+
+    try {
+      enqueue(request);
+    } catch (RuntimeException e) {
+      if (responseSlot != null) {
+        responseSlot.cancel(false);
+      }
+      throw e;
+    }
+
+    if (responseSlot == null) {
+      return null;
+    }
+
+    try {
+
+      return MessageUtils.convertResponse(responseSlot.get(TIMEOUT, TimeUnit.MILLISECONDS),
+          resultClass);
+
+    } catch (InterruptedException e) {
+      throw new JsonRpcException("Interrupted while waiting for a response", e);
+    } catch (ExecutionException e) {
+      throw new JsonRpcException("This exception shouldn't be thrown", e);
+    } catch (TimeoutException e) {
+      responseSlot.cancel(false);
+      throw new TransportException(
+          "Timeout of " + TIMEOUT + " milliseconds waiting from response to request with id:"
+              + request.getId() + ". Request: " + request,
+          e);
+    }
+  }
+
+  private void sendRequestHttp(Request<? extends Object> request,
+      final Class<JsonElement> resultClass,
+      final Continuation<Response<JsonElement>> continuation) {
+
+    ResponseSlot responseSlot = null;
+
+    try {
+
+      if (request.getId() != null) {
+        responseSlot = pendingRequests.prepareResponse(request.getId(), TIMEOUT);
+      }
+
+      enqueue(request);
+
+    } catch (RuntimeException e) {
+      if (responseSlot != null) {
+        responseSlot.cancel(false);
+      }
+      continuation.onError(e);
+      return;
+    }
+
+    if (responseSlot == null) {
+      continuation.onSuccess(null);
+      return;
+    }
+
+    responseSlot.setContinuation(new Continuation<Response<JsonElement>>() {
+      @Override
+      public void onSuccess(Response<JsonElement> response) {
+        try {
+          continuation.onSuccess(MessageUtils.convertResponse(response, resultClass));
+        } catch (Exception e) {
+          continuation.onError(e);
+        }
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        continuation.onError(cause);
+      }
+    }, null);
+  }
+
+  private void enqueue(Request<?> request) {
+
+    HeldPoll poll;
+    List<Request<?>> messages = null;
+
+    synchronized (this) {
+
+      if (closed) {
+        throw new TransportException("Session " + getSessionId() + " is closed");
+      }
+
+      if (outbound.size() >= MAX_QUEUED_MESSAGES) {
+        throw new TransportException("There are already " + MAX_QUEUED_MESSAGES
+            + " messages waiting for the client of session " + getSessionId() + " to poll");
+      }
+
+      outbound.add(request);
+
+      poll = heldPoll;
+      heldPoll = null;
+      if (poll != null) {
+        messages = drainOutbound();
+      }
+    }
+
+    if (poll != null) {
+      answer(poll, messages);
+    }
+  }
+
+  @Override
+  public void processPoll(Request<JsonElement> request, boolean responsesReceived,
+      ResponseSender responseSender) throws IOException {
+
+    HeldPoll replaced = null;
+    List<Request<?>> messages = null;
+
+    synchronized (this) {
+
+      if (!outbound.isEmpty() || responsesReceived || closed || POLL_TIMEOUT <= 0) {
+
+        messages = drainOutbound();
+
+      } else {
+
+        // Only the last poll of a client is held
+        replaced = heldPoll;
+
+        heldPoll = new HeldPoll(request.getId(), responseSender);
+        heldPoll.timeout = timer.schedule(heldPoll, POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    if (replaced != null) {
+      answer(replaced, Collections.<Request<?>> emptyList());
+    }
+
+    if (messages != null) {
+      responseSender.sendResponse(new Response<Object>(request.getId(), messages));
+    }
+  }
+
+  private void expire(HeldPoll poll) {
+
+    synchronized (this) {
+      if (heldPoll != poll) {
+        return;
+      }
+      heldPoll = null;
+    }
+
+    answer(poll, Collections.<Request<?>> emptyList());
+  }
+
+  private void answer(HeldPoll poll, List<Request<?>> messages) {
+
+    if (poll.timeout != null) {
+      poll.timeout.cancel();
+    }
+
+    try {
+
+      poll.responseSender.sendResponse(new Response<Object>(poll.requestId, messages));
+
+    } catch (IOException | RuntimeException e) {
+
+      log.warn("Exception answering poll of session {}. Messages will be sent in next poll",
+          getSessionId(), e);
+
+      synchronized (this) {
+        if (!closed) {
+          outbound.addAll(0, messages);
+        }
+      }
+    }
+  }
+
+  private List<Request<?>> drainOutbound() {
+    List<Request<?>> messages = outbound;
+    outbound = new ArrayList<>();
+    return messages;
+  }
+
+  @Override
+  public void handleResponse(Response<JsonElement> response) {
+    pendingRequests.handleResponse(response);
+  }
+
+  /**
+   * HTTP sessions have no native connection; the poll being held, if any, is answered.
+   */
+  @Override
+  public void closeNativeSession(String reason) {
+    releaseHeldPoll();
+  }
+
+  @Override
+  public void close() throws IOException {
+
+    synchronized (this) {
+      closed = true;
+      outbound.clear();
+    }
+
+    try {
+      releaseHeldPoll();
+      pendingRequests.closeAllPendingRequests();
+    } finally {
+      super.close();
+    }
+  }
+
+  private void releaseHeldPoll() {
+
+    HeldPoll poll;
+    synchronized (this) {
+      poll = heldPoll;
+      heldPoll = null;
+    }
+
+    if (poll != null) {
+      answer(poll, Collections.<Request<?>> emptyList());
+    }
+  }
+}
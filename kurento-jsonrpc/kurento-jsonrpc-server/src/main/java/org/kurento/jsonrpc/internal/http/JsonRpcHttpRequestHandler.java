@@ -14,69 +14,66 @@
  * limitations under the License.
  *
  */
-
 package org.kurento.jsonrpc.internal.http;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
-import org.kurento.jsonrpc.client.Continuation;
-import org.kurento.jsonrpc.internal.JsonRpcRequestSenderHelper;
-import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
+import org.kurento.commons.PropertiesManager;
+import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.internal.JsonRpcConstants;
 import org.kurento.jsonrpc.internal.server.ProtocolManager;
 import org.kurento.jsonrpc.internal.server.ProtocolManager.ServerSessionFactory;
 import org.kurento.jsonrpc.internal.server.ServerSession;
 import org.kurento.jsonrpc.internal.server.SessionsManager;
-import org.kurento.jsonrpc.message.Message;
-import org.kurento.jsonrpc.message.Request;
-import org.kurento.jsonrpc.message.Response;
+import org.kurento.jsonrpc.internal.ws.RequestBatcher;
+import org.kurento.jsonrpc.message.MessageEnvelope;
 import org.springframework.web.HttpRequestHandler;
 
 import com.google.common.io.CharStreams;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 public class JsonRpcHttpRequestHandler implements HttpRequestHandler {
 
-  private final class HttpRequestServerSession extends ServerSession {
+  public static final String RESPONSE_TIMEOUT_PROPERTY = "jsonRpcServerHttp.responseTimeout";
+  public static final String GZIP_THRESHOLD_PROPERTY = "jsonRpcServerHttp.gzipThreshold";
 
-    private HttpRequestServerSession(String sessionId, Object registerInfo,
-        SessionsManager sessionsManager, String internalSessionId) {
+  private static final long RESPONSE_TIMEOUT =
+      PropertiesManager.getProperty(RESPONSE_TIMEOUT_PROPERTY, 60000);
 
-      super(sessionId, registerInfo, sessionsManager, internalSessionId);
+  private static final int GZIP_THRESHOLD =
+      PropertiesManager.getProperty(GZIP_THRESHOLD_PROPERTY, 1024);
 
-      setRsHelper(new JsonRpcRequestSenderHelper(sessionId) {
+  private final ProtocolManager protocolManager;
 
-        @Override
-        protected <P, R> Response<R> internalSendRequest(Request<P> request, Class<R> resultClass)
-            throws IOException {
-          // TODO Poner aquí la cola de mensajes que devolver al
-          // cliente cuando haga pooling
-          return new Response<>();
-        }
+  private final ServerSessionFactory factory = new ServerSessionFactory() {
+    @Override
+    public ServerSession createSession(String sessionId, Object registerInfo,
+        SessionsManager sessionsManager) {
 
-        @Override
-        protected void internalSendRequest(Request<? extends Object> request,
-            Class<JsonElement> class1, Continuation<Response<JsonElement>> continuation) {
-          throw new UnsupportedOperationException("Async client is unavailable");
-        }
-      });
+      return new HttpRequestServerSession(sessionId, registerInfo, sessionsManager);
     }
 
     @Override
-    public void handleResponse(Response<JsonElement> response) {
+    public void updateSessionOnReconnection(ServerSession session) {
+      throw new UnsupportedOperationException();
     }
 
     @Override
-    public void closeNativeSession(String reason) {
+    public void closeTransport(String reason) {
       throw new UnsupportedOperationException();
     }
-  }
-
-  private final ProtocolManager protocolManager;
+  };
 
   public JsonRpcHttpRequestHandler(ProtocolManager protocolManager) {
     this.protocolManager = protocolManager;
@@ -88,31 +85,9 @@ public class JsonRpcHttpRequestHandler implements HttpRequestHandler {
 
     String messageJson = getBodyAsString(servletRequest);
 
-    ServerSessionFactory factory = new ServerSessionFactory() {
-      @Override
-      public ServerSession createSession(String sessionId, Object registerInfo,
-          SessionsManager sessionsManager) {
-
-        return new HttpRequestServerSession(sessionId, registerInfo, sessionsManager, null);
-      }
-
-      @Override
-      public void updateSessionOnReconnection(ServerSession session) {
-        throw new UnsupportedOperationException();
-      }
-    };
-
-    ResponseSender responseSender = new ResponseSender() {
-      @Override
-      public void sendResponse(Message message) throws IOException {
-        servletResponse.getWriter().println(message);
-      }
-
-      @Override
-      public void sendPingResponse(Message message) throws IOException {
-        sendResponse(message);
-      }
-    };
+    ServletResponseSender responseSender = new ServletResponseSender(servletRequest,
+        servletResponse, protocolManager.getMessageCodec(), countExpectedResponses(messageJson),
+        GZIP_THRESHOLD);
 
     String internalSessionId = null;
 
@@ -122,15 +97,58 @@ public class JsonRpcHttpRequestHandler implements HttpRequestHandler {
     }
 
     protocolManager.processMessage(messageJson, factory, responseSender, internalSessionId);
+
+    responseSender.processed(RESPONSE_TIMEOUT);
   }
 
   /**
-   *
-   * @param request
-   * @return
-   * @throws IOException
+   * @return the number of responses the messages will have: one for each request that is not a
+   *         notification, and one for each invalid message in a batch
    */
+  private int countExpectedResponses(String messageJson) {
+
+    if (RequestBatcher.isBatch(messageJson)) {
+
+      JsonArray batch = JsonUtils.fromJson(messageJson, JsonArray.class);
+
+      if (batch.size() == 0) {
+        return 1;
+      }
+
+      int expected = 0;
+      for (JsonElement message : batch) {
+        if (!message.isJsonObject()) {
+          expected++;
+        } else {
+          JsonObject messageObject = (JsonObject) message;
+          JsonElement id = messageObject.get(JsonRpcConstants.ID_PROPERTY);
+          if (messageObject.has(JsonRpcConstants.METHOD_PROPERTY) && id != null
+              && !id.isJsonNull()) {
+            expected++;
+          }
+        }
+      }
+      return expected;
+    }
+
+    MessageEnvelope envelope = MessageEnvelope.scan(messageJson);
+    if (envelope == null) {
+      // Decoded by the codec, that answers with an error if it is not valid
+      return 1;
+    }
+
+    return envelope.isRequest() && envelope.getId() != null ? 1 : 0;
+  }
+
   private String getBodyAsString(final HttpServletRequest request) throws IOException {
+
+    if ("gzip".equalsIgnoreCase(request.getHeader("Content-Encoding"))) {
+      try (Reader reader = new InputStreamReader(new GZIPInputStream(request.getInputStream()),
+          StandardCharsets.UTF_8)) {
+        return CharStreams.toString(reader);
+      }
+    }
+
     return CharStreams.toString(request.getReader());
   }
 
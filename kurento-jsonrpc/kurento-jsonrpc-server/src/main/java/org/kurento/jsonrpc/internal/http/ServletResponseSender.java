@@ -0,0 +1,232 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.http;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
+import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.MessageCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the JSON-RPC responses to the messages of an HTTP request and writes them as the HTTP
+ * response once all of them are available. If some of them are still missing when the request has
+ * been processed (handlers answering in other threads, polls held by the session), the request is
+ * put in asynchronous mode until they arrive or the timeout expires, so no container thread is
+ * blocked waiting for them.
+ */
+class ServletResponseSender implements ResponseSender {
+
+  private static final Logger log = LoggerFactory.getLogger(ServletResponseSender.class);
+
+  private final HttpServletRequest servletRequest;
+  private final HttpServletResponse servletResponse;
+  private final MessageCodec codec;
+  private final int gzipThreshold;
+
+  // Guarded by this
+  private final StringBuilder body = new StringBuilder();
+  private int pendingResponses;
+  private boolean written;
+  private AsyncContext asyncContext;
+
+  public ServletResponseSender(HttpServletRequest servletRequest,
+      HttpServletResponse servletResponse, MessageCodec codec, int expectedResponses,
+      int gzipThreshold) {
+    this.servletRequest = servletRequest;
+    this.servletResponse = servletResponse;
+    this.codec = codec;
+    this.pendingResponses = expectedResponses;
+    this.gzipThreshold = gzipThreshold;
+  }
+
+  @Override
+  public void sendResponse(Message message) throws IOException {
+
+    String json = codec.encode(message);
+
+    AsyncContext completedContext;
+
+    synchronized (this) {
+
+      if (written) {
+        log.warn("Response {} discarded because the HTTP response has already been sent", json);
+        return;
+      }
+
+      body.append(json).append('\n');
+      pendingResponses--;
+
+      if (pendingResponses > 0 || asyncContext == null) {
+        // The container thread writes the response when the request is processed
+        notifyAll();
+        return;
+      }
+
+      written = true;
+      completedContext = asyncContext;
+    }
+
+    writeAndComplete(completedContext);
+  }
+
+  @Override
+  public void sendPingResponse(Message message) throws IOException {
+    sendResponse(message);
+  }
+
+  /**
+   * Invoked in the container thread once the request has been processed. Writes the HTTP response
+   * if all the responses are available, or waits for them.
+   *
+   * @param timeoutMillis
+   *          maximum time to wait for the missing responses
+   */
+  public void processed(long timeoutMillis) throws IOException {
+
+    synchronized (this) {
+
+      if (pendingResponses > 0) {
+
+        try {
+
+          asyncContext = servletRequest.startAsync();
+          asyncContext.setTimeout(timeoutMillis);
+          asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+              timeout();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+              timeout();
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+            }
+          });
+          return;
+
+        } catch (IllegalStateException e) {
+          log.debug("Asynchronous processing not supported. Waiting for responses: {}",
+              e.getMessage());
+          waitForResponses(timeoutMillis);
+        }
+      }
+
+      written = true;
+    }
+
+    write();
+  }
+
+  private void waitForResponses(long timeoutMillis) {
+
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+
+    try {
+      long remaining = timeoutMillis;
+      while (pendingResponses > 0 && remaining > 0) {
+        wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void timeout() throws IOException {
+
+    AsyncContext context;
+
+    synchronized (this) {
+      if (written) {
+        return;
+      }
+      written = true;
+      context = asyncContext;
+    }
+
+    log.warn("Timeout waiting for {} responses to HTTP request", pendingResponses);
+
+    writeAndComplete(context);
+  }
+
+  private void writeAndComplete(AsyncContext context) throws IOException {
+    try {
+      write();
+    } finally {
+      context.complete();
+    }
+  }
+
+  private void write() throws IOException {
+
+    String json;
+    synchronized (this) {
+      json = body.toString();
+    }
+
+    servletResponse.setContentType("application/json");
+    servletResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+
+    if (json.isEmpty()) {
+      return;
+    }
+
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    ServletOutputStream out = servletResponse.getOutputStream();
+
+    if (bytes.length >= gzipThreshold && acceptsGzip()) {
+
+      servletResponse.setHeader("Content-Encoding", "gzip");
+      GZIPOutputStream gzip = new GZIPOutputStream(out);
+      gzip.write(bytes);
+      gzip.finish();
+
+    } else {
+
+      servletResponse.setContentLength(bytes.length);
+      out.write(bytes);
+    }
+
+    out.flush();
+  }
+
+  private boolean acceptsGzip() {
+    String acceptEncoding = servletRequest.getHeader("Accept-Encoding");
+    return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+  }
+}
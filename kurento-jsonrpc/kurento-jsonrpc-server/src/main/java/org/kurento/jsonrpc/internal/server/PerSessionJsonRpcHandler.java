@@ -50,6 +50,7 @@ public class PerSessionJsonRpcHandler<T> implements JsonRpcHandler<T>, BeanFacto
   private List<String> allowedOrigins = ImmutableList.of();
 
   private boolean pingWachdog;
+  private boolean perMessageDeflate = true;
 
   public PerSessionJsonRpcHandler(String handlerName) {
     this(handlerName, null);
@@ -190,6 +191,16 @@ public class PerSessionJsonRpcHandler<T> implements JsonRpcHandler<T>, BeanFacto
     return pingWachdog;
   }
 
+  public PerSessionJsonRpcHandler<T> withPerMessageDeflate(boolean perMessageDeflate) {
+    this.perMessageDeflate = perMessageDeflate;
+    return this;
+  }
+
+  @Override
+  public boolean isPerMessageDeflate() {
+    return perMessageDeflate;
+  }
+
   @Override
   public final PerSessionJsonRpcHandler<T> withAllowedOrigins(String... origins) {
     this.allowedOrigins = ImmutableList.copyOf(origins);
@@ -19,32 +19,62 @@ package org.kurento.jsonrpc.internal.server;
 
 import java.util.Date;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.kurento.commons.PropertiesManager;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimer;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimers;
+import org.kurento.jsonrpc.internal.timer.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.TaskScheduler;
 
+/**
+ * Closes the transports of the sessions that stop sending pings.
+ *
+ * A ping only records its arrival time in the session, so receiving a ping doesn't touch any
+ * timer. A single sweeper, scheduled in the shared timing wheel, periodically looks for sessions
+ * whose last ping is older than {@value #NUM_NO_PINGS_TO_CLOSE} times their ping interval and
+ * closes their transports in the task scheduler. The sweeper runs every
+ * {@value #SWEEP_PERIOD_PROPERTY} millis, or more often if a session negotiates a shorter ping
+ * interval.
+ *
+ * Sessions negotiating an adaptive heartbeat consider any message received as a ping, so busy
+ * clients don't need to send pings.
+ */
 public class PingWatchdogManager {
 
   private static final Logger log = LoggerFactory.getLogger(PingWatchdogManager.class);
 
+  public static final String SWEEP_PERIOD_PROPERTY = "jsonRpcServer.pingWatchdog.sweepPeriod";
+
+  private static final long DEFAULT_SWEEP_PERIOD = 1000;
+
   public interface NativeSessionCloser {
     public void closeSession(String transportId);
   }
 
   private static final long NUM_NO_PINGS_TO_CLOSE = 3;
 
+  // Last ping value of a session whose watchdog is not running
+  private static final long DISARMED = Long.MIN_VALUE;
+
   public class PingWatchdogSession {
 
     private static final long MAX_PING_INTERVAL = 20000;
 
-    private String transportId;
-    private String sessionId;
+    private volatile String transportId;
+    private volatile String sessionId;
 
-    private long pingInterval = -1;
+    private volatile long pingInterval = -1;
 
-    private volatile ScheduledFuture<?> lastTask;
+    private volatile boolean adaptive;
+
+    private final AtomicLong lastPing = new AtomicLong(DISARMED);
+
+    // Armed when the manager was disabled, so it is armed again when the manager is enabled
+    private volatile boolean suspended;
 
     private Runnable closeSessionTask = new Runnable() {
       @Override
@@ -60,32 +90,62 @@ public class PingWatchdogManager {
     }
 
     public void pingReceived(long interval) {
+      pingReceived(interval, false);
+    }
+
+    public void pingReceived(long interval, boolean adaptive) {
+
+      if (adaptive && !this.adaptive) {
+        this.adaptive = true;
+        log.info("Adaptive heartbeat enabled in session with transportId={}. Any message received"
+            + " is considered a ping", transportId);
+      }
 
       if (pingInterval == -1) {
 
-        if (interval == -1) {
-          pingInterval = MAX_PING_INTERVAL;
-          log.warn("Received first ping request without 'interval'");
-        } else {
-          pingInterval = interval;
-        }
+        synchronized (this) {
+
+          if (pingInterval == -1) {
 
-        log.info(
-            "Setting ping interval to {}" + " millis in session with transportId={}. "
-                + "Connection is closed if a ping is not received in {}x{}={} millis",
-            pingInterval, this.transportId, pingInterval, NUM_NO_PINGS_TO_CLOSE,
-            NUM_NO_PINGS_TO_CLOSE * pingInterval);
+            if (interval == -1) {
+              pingInterval = MAX_PING_INTERVAL;
+              log.warn("Received first ping request without 'interval'");
+            } else {
+              pingInterval = interval;
+            }
+
+            log.info(
+                "Setting ping interval to {}" + " millis in session with transportId={}. "
+                    + "Connection is closed if a ping is not received in {}x{}={} millis",
+                pingInterval, this.transportId, pingInterval, NUM_NO_PINGS_TO_CLOSE,
+                NUM_NO_PINGS_TO_CLOSE * pingInterval);
+
+            startSweeper(pingInterval);
+          }
+        }
       }
 
       activateSessionCloser();
     }
 
     private void activateSessionCloser() {
+      lastPing.set(now());
+    }
 
-      disablePingWatchdog();
+    /**
+     * Delays the close of the session if adaptive heartbeat has been negotiated. A disabled
+     * watchdog is not armed again.
+     */
+    void messageReceived() {
 
-      lastTask = taskScheduler.schedule(closeSessionTask,
-          new Date(System.currentTimeMillis() + NUM_NO_PINGS_TO_CLOSE * pingInterval));
+      if (!adaptive) {
+        return;
+      }
+
+      long last = lastPing.get();
+      if (last != DISARMED) {
+        lastPing.compareAndSet(last, now());
+      }
     }
 
     public void setSessionId(String sessionId) {
@@ -107,20 +167,120 @@ public class PingWatchdogManager {
     }
 
     public void disablePingWatchdog() {
-      if (lastTask != null) {
-        lastTask.cancel(false);
+      suspended = false;
+      lastPing.set(DISARMED);
+    }
+
+    void suspend() {
+      if (lastPing.getAndSet(DISARMED) != DISARMED) {
+        suspended = true;
+      }
+    }
+
+    /**
+     * Arms again a watchdog suspended when the manager was disabled, as if a ping had just been
+     * received.
+     *
+     * @return the ping interval of the session, or -1 if it was not suspended
+     */
+    long resume() {
+      if (!suspended || pingInterval == -1) {
+        return -1;
+      }
+      suspended = false;
+      activateSessionCloser();
+      return pingInterval;
+    }
+
+    /**
+     * Disarms the watchdog and closes the transport if no ping has been received in time. The
+     * session is closed once; a new ping or transport arms it again.
+     */
+    void checkExpired(long now) {
+
+      long last = lastPing.get();
+
+      if (last == DISARMED || now - last <= NUM_NO_PINGS_TO_CLOSE * pingInterval) {
+        return;
+      }
+
+      // A ping received meanwhile wins over the sweeper
+      if (lastPing.compareAndSet(last, DISARMED)) {
+        taskScheduler.schedule(closeSessionTask, new Date());
       }
     }
   }
 
+  private final Runnable sweepTask = new Runnable() {
+    @Override
+    public void run() {
+      long now = now();
+      for (PingWatchdogSession session : sessions.values()) {
+        try {
+          session.checkExpired(now);
+        } catch (Exception e) {
+          log.warn("Exception checking ping watchdog of session with transportId {}",
+              session.transportId, e);
+        }
+      }
+    }
+  };
+
   private ConcurrentHashMap<String, PingWatchdogSession> sessions = new ConcurrentHashMap<>();
-  private boolean pingWachdog = false;
+  private volatile boolean pingWachdog = false;
   private TaskScheduler taskScheduler;
   private NativeSessionCloser closer;
 
+  private final JsonRpcTimer timer;
+  private final long maxSweepPeriod;
+
+  // Guarded by this
+  private Timeout sweeper;
+  private long sweepPeriod;
+
   public PingWatchdogManager(TaskScheduler taskScheduler, NativeSessionCloser closer) {
+    this(taskScheduler, closer, JsonRpcTimers.getSharedTimer());
+  }
+
+  public PingWatchdogManager(TaskScheduler taskScheduler, NativeSessionCloser closer,
+      JsonRpcTimer timer) {
     this.taskScheduler = taskScheduler;
     this.closer = closer;
+    this.timer = timer;
+    this.maxSweepPeriod = PropertiesManager.getProperty(SWEEP_PERIOD_PROPERTY,
+        DEFAULT_SWEEP_PERIOD);
+  }
+
+  private static long now() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+  /**
+   * Starts the sweeper, or reschedules it if the ping interval needs a shorter sweep period.
+   */
+  private synchronized void startSweeper(long pingInterval) {
+
+    long period = Math.max(1, Math.min(maxSweepPeriod, pingInterval));
+
+    if (sweeper != null && period >= sweepPeriod) {
+      return;
+    }
+
+    if (sweeper != null) {
+      sweeper.cancel();
+    }
+
+    log.debug("Checking ping watchdogs every {} millis", period);
+
+    sweepPeriod = period;
+    sweeper = timer.scheduleAtFixedRate(sweepTask, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void stopSweeper() {
+    if (sweeper != null) {
+      sweeper.cancel();
+      sweeper = null;
+    }
   }
 
   public void associateSessionId(String transportId, String sessionId) {
@@ -137,24 +297,85 @@ public class PingWatchdogManager {
     }
   }
 
-  // TODO Improve concurrency
-  private synchronized PingWatchdogSession getOrCreatePingSession(String transportId) {
+  public void pingReceived(String transportId, long interval, boolean adaptive) {
+    if (pingWachdog) {
+      PingWatchdogSession session = getOrCreatePingSession(transportId);
+      session.pingReceived(interval, adaptive);
+    }
+  }
+
+  /**
+   * Notifies a message other than a ping received in a transport. It is considered a ping only in
+   * sessions with adaptive heartbeat.
+   */
+  public void messageReceived(String transportId) {
+    if (pingWachdog) {
+      PingWatchdogSession session = sessions.get(transportId);
+      if (session != null) {
+        session.messageReceived();
+      }
+    }
+  }
+
+  private PingWatchdogSession getOrCreatePingSession(String transportId) {
     PingWatchdogSession session = sessions.get(transportId);
     if (session == null) {
-      log.info("Created PingWatchdogSession for transportId {}", transportId);
-      session = new PingWatchdogSession(transportId);
-      sessions.put(transportId, session);
+      PingWatchdogSession newSession = new PingWatchdogSession(transportId);
+      session = sessions.putIfAbsent(transportId, newSession);
+      if (session == null) {
+        log.info("Created PingWatchdogSession for transportId {}", transportId);
+        session = newSession;
+      }
     }
     return session;
   }
 
-  public void setPingWatchdog(boolean pingWachdog) {
+  /**
+   * Enables or disables the watchdog of all the sessions. Disabling it stops the sweeper and
+   * disarms the sessions; enabling it again arms them and starts the sweeper for the shortest ping
+   * interval among them.
+   */
+  public synchronized void setPingWatchdog(boolean pingWachdog) {
+
+    if (this.pingWachdog == pingWachdog) {
+      return;
+    }
+
     this.pingWachdog = pingWachdog;
+
+    if (!pingWachdog) {
+
+      stopSweeper();
+      for (PingWatchdogSession session : sessions.values()) {
+        session.suspend();
+      }
+
+    } else {
+
+      long minPingInterval = Long.MAX_VALUE;
+      for (PingWatchdogSession session : sessions.values()) {
+        long pingInterval = session.resume();
+        if (pingInterval != -1) {
+          minPingInterval = Math.min(minPingInterval, pingInterval);
+        }
+      }
+
+      if (minPingInterval != Long.MAX_VALUE) {
+        startSweeper(minPingInterval);
+      }
+    }
   }
 
   public void removeSession(ServerSession session) {
-    log.info("Removed PingWatchdogSession for transportId {}", session.getTransportId());
-    PingWatchdogSession pingSession = sessions.remove(session.getTransportId());
+    removeTransport(session.getTransportId());
+  }
+
+  /**
+   * Stops watching a transport, e.g. a pooled transport of a session that has been closed.
+   */
+  public void removeTransport(String transportId) {
+    log.info("Removed PingWatchdogSession for transportId {}", transportId);
+    PingWatchdogSession pingSession = sessions.remove(transportId);
     if (pingSession != null) {
       pingSession.disablePingWatchdog();
     }
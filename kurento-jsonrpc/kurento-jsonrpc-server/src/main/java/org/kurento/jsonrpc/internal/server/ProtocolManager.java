@@ -17,20 +17,28 @@
 
 package org.kurento.jsonrpc.internal.server;
 
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ERROR_INVALID_REQUEST;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ERROR_SERVER_ERROR;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_CLOSE;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_CONNECT;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ADAPTIVE_PROPERTY;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_PING;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.POOLED_PROPERTY;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.PONG;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.PONG_PAYLOAD;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.RECONNECTION_ERROR;
 import static org.kurento.jsonrpc.internal.JsonRpcConstants.RECONNECTION_SUCCESSFUL;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.REPLAY_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.VALUE_PROPERTY;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 
 import javax.annotation.PostConstruct;
@@ -42,9 +50,16 @@ import org.kurento.jsonrpc.internal.JsonRpcHandlerManager;
 import org.kurento.jsonrpc.internal.client.AbstractSession;
 import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
 import org.kurento.jsonrpc.internal.server.PingWatchdogManager.NativeSessionCloser;
+import org.kurento.jsonrpc.internal.ws.RequestBatcher;
+import org.kurento.jsonrpc.message.GsonMessageCodec;
+import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.MessageCodec;
+import org.kurento.jsonrpc.message.MessageCodecs;
+import org.kurento.jsonrpc.message.MessageEnvelope;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.jsonrpc.message.Response;
 import org.kurento.jsonrpc.message.ResponseError;
+import org.kurento.jsonrpc.message.StreamingMessageCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -52,6 +67,7 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.core.task.TaskRejectedException;
 import org.springframework.scheduling.TaskScheduler;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
@@ -63,11 +79,28 @@ public class ProtocolManager {
 
   private static final String INTERVAL_PROPERTY = "interval";
 
+  private static final JsonObject PONG_RESULT = new JsonObject();
+
+  // Answer to pings asking for adaptive heartbeat
+  private static final JsonObject ADAPTIVE_PONG_RESULT = new JsonObject();
+
+  static {
+    PONG_RESULT.add(PONG_PAYLOAD, new JsonPrimitive(PONG));
+    ADAPTIVE_PONG_RESULT.add(PONG_PAYLOAD, new JsonPrimitive(PONG));
+    ADAPTIVE_PONG_RESULT.add(ADAPTIVE_PROPERTY, new JsonPrimitive(true));
+  }
+
   public interface ServerSessionFactory {
     ServerSession createSession(String sessionId, Object registerInfo,
         SessionsManager sessionsManager);
 
     void updateSessionOnReconnection(ServerSession session);
+
+    /**
+     * Closes the transport of this factory. Used for the pooled transports of a session, which
+     * are not its main transport.
+     */
+    void closeTransport(String reason);
   }
 
   private static final Logger log = LoggerFactory.getLogger(ProtocolManager.class);
@@ -93,6 +126,10 @@ public class ProtocolManager {
 
   private PingWatchdogManager pingWachdogManager;
 
+  private MessageCodec codec = MessageCodecs.getDefault();
+
+  private boolean scanEnvelopes = isJsonCodec(codec);
+
   public ProtocolManager(JsonRpcHandler<?> handler) {
     this.handlerManager = new JsonRpcHandlerManager(handler);
   }
@@ -113,7 +150,12 @@ public class ProtocolManager {
       public void closeSession(String transportId) {
         ServerSession serverSession = sessionsManager.getByTransportId(transportId);
         if (serverSession != null) {
-          serverSession.closeNativeSession("Close for not receive ping from client");
+          ServerSessionFactory pooledTransport = serverSession.getPooledTransport(transportId);
+          if (pooledTransport != null) {
+            pooledTransport.closeTransport("Close for not receive ping from client");
+          } else {
+            serverSession.closeNativeSession("Close for not receive ping from client");
+          }
         } else {
           log.warn("Ping wachdog trying to close a non-registered ServerSession");
         }
@@ -127,12 +169,98 @@ public class ProtocolManager {
     this.label = "[" + label + "] ";
   }
 
+  public void setMessageCodec(MessageCodec codec) {
+    this.codec = codec;
+    this.scanEnvelopes = isJsonCodec(codec);
+  }
+
+  /**
+   * Requests are routed scanning only their envelope when the codec is one of the built-in ones,
+   * because they all decode requests the same way. Other codecs are always used to decode.
+   */
+  private static boolean isJsonCodec(MessageCodec codec) {
+    return codec instanceof GsonMessageCodec || codec instanceof StreamingMessageCodec;
+  }
+
+  public MessageCodec getMessageCodec() {
+    return codec;
+  }
+
   public void processMessage(String messageJson, ServerSessionFactory factory,
       ResponseSender responseSender, String internalSessionId) throws IOException {
 
-    JsonObject messagetJsonObject = JsonUtils.fromJson(messageJson, JsonObject.class);
+    if (RequestBatcher.isBatch(messageJson)) {
+
+      JsonArray batch = JsonUtils.fromJson(messageJson, JsonArray.class);
+      processBatch(batch, factory, responseSender, internalSessionId);
+
+    } else {
+
+      MessageEnvelope envelope = scanEnvelopes ? MessageEnvelope.scan(messageJson) : null;
+
+      if (envelope != null && envelope.isRequest()) {
+        processRequestMessage(factory, envelope, messageJson, responseSender, internalSessionId);
+      } else {
+        processMessage(codec.decodeMessage(messageJson), factory, responseSender,
+            internalSessionId);
+      }
+    }
+  }
+
+  /**
+   * Process a request routing it by its envelope. Pings are answered without parsing the message
+   * and other requests parse their params only if the handler uses them. Requests with malformed
+   * params are answered with a parse error without being dispatched.
+   */
+  private void processRequestMessage(ServerSessionFactory factory, MessageEnvelope envelope,
+      String messageJson, ResponseSender responseSender, String transportId) throws IOException {
+
+    ResponseError paramsError = envelope.getParamsError();
+
+    if (paramsError != null) {
+      log.warn("{} Request with malformed params {} (transportId={})", label, messageJson,
+          transportId);
+      if (envelope.getId() != null) {
+        responseSender.sendResponse(new Response<>(envelope.getId(), paramsError));
+      }
+    } else if (METHOD_PING.equals(envelope.getMethod())) {
+      log.trace("{} Req-> {} (transportId={})", label, messageJson, transportId);
+      processPingMessage(envelope.getId(), envelope.getSessionId(),
+          envelope.getParamsLong(INTERVAL_PROPERTY, -1),
+          envelope.getParamsBoolean(ADAPTIVE_PROPERTY, false), responseSender, transportId);
+    } else {
+      processRequestMessage(factory, envelope.toRequest(), responseSender, transportId);
+    }
+  }
+
+  /**
+   * Process a JSON-RPC 2.0 batch. Each message in the batch is processed in order as if it had
+   * been received alone. Responses are sent individually as soon as they are available, because
+   * handlers can answer asynchronously; clients demultiplex them by id.
+   */
+  private void processBatch(JsonArray batch, ServerSessionFactory factory,
+      ResponseSender responseSender, String internalSessionId) throws IOException {
+
+    if (batch.size() == 0) {
+      responseSender.sendResponse(
+          new Response<>(null, new ResponseError(ERROR_INVALID_REQUEST, "Invalid Request")));
+      return;
+    }
+
+    for (JsonElement message : batch) {
+
+      if (!message.isJsonObject()) {
+        responseSender.sendResponse(
+            new Response<>(null, new ResponseError(ERROR_INVALID_REQUEST, "Invalid Request")));
+        continue;
+      }
 
-    processMessage(messagetJsonObject, factory, responseSender, internalSessionId);
+      try {
+        processMessage((JsonObject) message, factory, responseSender, internalSessionId);
+      } catch (Exception e) {
+        log.error("{} Exception processing message {} in batch", label, message, e);
+      }
+    }
   }
 
   /**
@@ -149,9 +277,34 @@ public class ProtocolManager {
       ResponseSender responseSender, String internalSessionId) throws IOException {
 
     if (messagetJsonObject.has(Request.METHOD_FIELD_NAME)) {
-      processRequestMessage(factory, messagetJsonObject, responseSender, internalSessionId);
+      processRequestMessage(factory,
+          JsonUtils.fromJsonRequest(messagetJsonObject, JsonElement.class), responseSender,
+          internalSessionId);
+    } else {
+      processResponseMessage(JsonUtils.fromJsonResponse(messagetJsonObject, JsonElement.class),
+          internalSessionId);
+    }
+  }
+
+  /**
+   * Process an incoming message already decoded by the {@link MessageCodec}. Requests and responses
+   * must have {@link JsonElement} params or result.
+   *
+   * @param message
+   * @param factory
+   * @param responseSender
+   * @param internalSessionId
+   * @throws IOException
+   */
+  @SuppressWarnings("unchecked")
+  public void processMessage(Message message, ServerSessionFactory factory,
+      ResponseSender responseSender, String internalSessionId) throws IOException {
+
+    if (message instanceof Request) {
+      processRequestMessage(factory, (Request<JsonElement>) message, responseSender,
+          internalSessionId);
     } else {
-      processResponseMessage(messagetJsonObject, internalSessionId);
+      processResponseMessage((Response<JsonElement>) message, internalSessionId);
     }
   }
 
@@ -159,11 +312,13 @@ public class ProtocolManager {
   // entity "RequestContext" or similar. In this way, there are less
   // parameters
   // and the implementation is easier
-  private void processRequestMessage(ServerSessionFactory factory, JsonObject requestJsonObject,
-      final ResponseSender responseSender, String transportId) throws IOException {
+  private void processRequestMessage(ServerSessionFactory factory,
+      final Request<JsonElement> request, final ResponseSender responseSender, String transportId)
+      throws IOException {
 
-    final Request<JsonElement> request = JsonUtils.fromJsonRequest(requestJsonObject,
-        JsonElement.class);
+    if (transportId != null) {
+      pingWachdogManager.messageReceived(transportId);
+    }
 
     switch (request.getMethod()) {
     case METHOD_CONNECT:
@@ -188,36 +343,51 @@ public class ProtocolManager {
       log.debug("{} Req-> {} [jsonRpcSessionId={}, transportId={}]", label, request,
           session.getSessionId(), transportId);
 
-      // TODO, Take out this an put in Http specific handler. The main
-      // reason is to wait for request before responding to the client.
-      // And for no contaminate the ProtocolManager.
       if (request.getMethod().equals(Request.POLL_METHOD_NAME)) {
 
         Type collectionType = new TypeToken<List<Response<JsonElement>>>() {
         }.getType();
 
-        List<Response<JsonElement>> responseList = JsonUtils.fromJson(request.getParams(),
-            collectionType);
+        List<Response<JsonElement>> responseList = request.getParams() != null
+            ? JsonUtils.<List<Response<JsonElement>>> fromJson(request.getParams(), collectionType)
+            : Collections.<Response<JsonElement>> emptyList();
 
         for (Response<JsonElement> response : responseList) {
           session.handleResponse(response);
         }
 
-        // Wait for some time if there is a request from server to
-        // client
-
-        // TODO Allow send empty responses. Now you have to send at
-        // least an
-        // empty string
-        responseSender.sendResponse(new Response<Object>(request.getId(), Collections.emptyList()));
+        session.processPoll(request, !responseList.isEmpty(), responseSender);
 
       } else {
-        session.processRequest(new Runnable() {
-          @Override
-          public void run() {
-            handlerManager.handleRequest(session, request, responseSender);
+
+        final ResponseSender requestResponseSender = session.trackRequest(request,
+            responseSender);
+
+        if (requestResponseSender == null) {
+          log.debug("{} Replayed request {} already handled in session {}", label,
+              request.getId(), session.getSessionId());
+          break;
+        }
+
+        try {
+
+          session.processRequest(new Runnable() {
+            @Override
+            public void run() {
+              handlerManager.handleRequest(session, request, requestResponseSender);
+            }
+          });
+
+        } catch (RejectedExecutionException e) {
+
+          log.warn("{} Request {} of session {} discarded: {}", label, request.getId(),
+              session.getSessionId(), e.getMessage());
+
+          if (request.getId() != null) {
+            requestResponseSender.sendResponse(new Response<>(request.getId(),
+                new ResponseError(ERROR_SERVER_ERROR, "Session is overloaded: " + e.getMessage())));
           }
-        });
+        }
       }
       break;
     }
@@ -283,23 +453,38 @@ public class ProtocolManager {
 
   private void processPingMessage(ServerSessionFactory factory, Request<JsonElement> request,
       ResponseSender responseSender, String transportId) throws IOException {
-    if (maxHeartbeats == 0 || maxHeartbeats > ++heartbeats) {
 
-      long interval = -1;
+    long interval = -1;
+    boolean adaptive = false;
 
-      if (request.getParams() != null) {
-        JsonObject element = (JsonObject) request.getParams();
-        if (element.has(INTERVAL_PROPERTY)) {
-          interval = element.get(INTERVAL_PROPERTY).getAsLong();
-        }
+    if (request.getParams() != null) {
+      JsonObject element = (JsonObject) request.getParams();
+      if (element.has(INTERVAL_PROPERTY)) {
+        interval = element.get(INTERVAL_PROPERTY).getAsLong();
+      }
+      if (element.has(ADAPTIVE_PROPERTY)) {
+        adaptive = element.get(ADAPTIVE_PROPERTY).getAsBoolean();
       }
+    }
+
+    processPingMessage(request.getId(), request.getSessionId(), interval, adaptive,
+        responseSender, transportId);
+  }
 
-      pingWachdogManager.pingReceived(transportId, interval);
+  /**
+   * Answers a ping. If the ping asks for adaptive heartbeat, the pong tells the client that any
+   * message will be considered a sign of liveness, so it can skip pings while it is busy. Clients
+   * not asking for it receive the usual pong.
+   */
+  private void processPingMessage(Integer id, String sessionId, long interval, boolean adaptive,
+      ResponseSender responseSender, String transportId) throws IOException {
+
+    if (maxHeartbeats == 0 || maxHeartbeats > ++heartbeats) {
 
-      String sessionId = request.getSessionId();
-      JsonObject pongPayload = new JsonObject();
-      pongPayload.add(PONG_PAYLOAD, new JsonPrimitive(PONG));
-      responseSender.sendPingResponse(new Response<>(sessionId, request.getId(), pongPayload));
+      pingWachdogManager.pingReceived(transportId, interval, adaptive);
+
+      responseSender.sendPingResponse(
+          new Response<>(sessionId, id, adaptive ? ADAPTIVE_PONG_RESULT : PONG_RESULT));
     }
   }
 
@@ -337,7 +522,15 @@ public class ProtocolManager {
     } else {
 
       ServerSession session = sessionsManager.get(sessionId);
-      if (session != null) {
+
+      if (session != null && transportId != null && isPooled(request)
+          && isMainTransportConnected(session)) {
+
+        attachPooledTransport(session, factory, transportId);
+
+        sendReconnectionResponse(session, request, responseSender);
+
+      } else if (session != null) {
 
         String oldTransportId = session.getTransportId();
         session.setTransportId(transportId);
@@ -349,8 +542,7 @@ public class ProtocolManager {
         // reconnect method has arrived
         cancelCloseTimer(session);
 
-        responseSender
-            .sendResponse(new Response<>(sessionId, request.getId(), RECONNECTION_SUCCESSFUL));
+        sendReconnectionResponse(session, request, responseSender);
 
       } else {
 
@@ -367,6 +559,135 @@ public class ProtocolManager {
     }
   }
 
+  /**
+   * A pooled connection joins the session as an additional transport, unless the main transport of
+   * the session is lost; then it becomes the main transport, as in a reconnection.
+   */
+  private static boolean isPooled(Request<JsonElement> request) {
+
+    JsonElement params = request.getParams();
+
+    if (params == null || !params.isJsonObject()) {
+      return false;
+    }
+
+    JsonElement pooled = ((JsonObject) params).get(POOLED_PROPERTY);
+    return pooled != null && pooled.isJsonPrimitive() && pooled.getAsBoolean();
+  }
+
+  private static boolean isMainTransportConnected(ServerSession session) {
+    ScheduledFuture<?> closeTimer = session.getCloseTimerTask();
+    return closeTimer == null || closeTimer.isDone();
+  }
+
+  private void attachPooledTransport(ServerSession session, ServerSessionFactory factory,
+      String transportId) {
+
+    if (transportId.equals(session.getTransportId())) {
+      return;
+    }
+
+    log.debug("{} Transport {} joins session {} with main transport {}", label, transportId,
+        session.getSessionId(), session.getTransportId());
+
+    session.addPooledTransport(transportId, factory);
+    sessionsManager.addTransportId(session, transportId);
+  }
+
+  /**
+   * Handles the loss of a pooled transport, or of the main transport of a session with pooled
+   * transports, promoting one of them to main transport.
+   *
+   * @return true if the session keeps connected through another transport
+   */
+  private boolean detachTransport(ServerSession session, String transportId) {
+
+    if (session.removePooledTransport(transportId) != null) {
+
+      log.debug("{} Pooled transport {} of session {} closed", label, transportId,
+          session.getSessionId());
+
+      sessionsManager.removeTransportId(session, transportId);
+      pingWachdogManager.removeTransport(transportId);
+      return true;
+    }
+
+    for (String pooledTransportId : session.getPooledTransportIds()) {
+
+      ServerSessionFactory promoted = session.removePooledTransport(pooledTransportId);
+      if (promoted == null) {
+        continue;
+      }
+
+      log.info("{} Main transport {} of session {} closed. Using transport {} instead", label,
+          transportId, session.getSessionId(), pooledTransportId);
+
+      pingWachdogManager.removeTransport(transportId);
+      session.setTransportId(pooledTransportId);
+      promoted.updateSessionOnReconnection(session);
+      sessionsManager.updateTransportId(session, transportId);
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Answers a client reconnecting to an existing session. If the client announced requests to
+   * replay and the session tracks the requests received, the result tells which ones it has to
+   * send again: {"value": "reconnection successful", "replay": [ids]}. Otherwise the result is the
+   * plain string, and the client can't replay requests. The responses of the announced requests
+   * already answered are sent again after the result.
+   */
+  private void sendReconnectionResponse(ServerSession session, Request<JsonElement> request,
+      ResponseSender responseSender) throws IOException {
+
+    List<Integer> replayedIds = getReplayedIds(request);
+
+    List<Integer> notReceived = replayedIds.isEmpty() ? null
+        : session.expectReplayedRequests(replayedIds, responseSender);
+
+    if (notReceived == null) {
+      responseSender.sendResponse(
+          new Response<>(session.getSessionId(), request.getId(), RECONNECTION_SUCCESSFUL));
+      return;
+    }
+
+    JsonArray replay = new JsonArray();
+    for (Integer id : notReceived) {
+      replay.add(new JsonPrimitive(id));
+    }
+
+    JsonObject result = new JsonObject();
+    result.addProperty(VALUE_PROPERTY, RECONNECTION_SUCCESSFUL);
+    result.add(REPLAY_PROPERTY, replay);
+
+    responseSender.sendResponse(new Response<>(session.getSessionId(), request.getId(), result));
+
+    session.resendResponses(replayedIds, responseSender);
+  }
+
+  private static List<Integer> getReplayedIds(Request<JsonElement> request) {
+
+    JsonElement params = request.getParams();
+
+    if (params == null || !params.isJsonObject()) {
+      return Collections.emptyList();
+    }
+
+    JsonElement replay = ((JsonObject) params).get(REPLAY_PROPERTY);
+
+    if (replay == null || !replay.isJsonArray()) {
+      return Collections.emptyList();
+    }
+
+    List<Integer> ids = new ArrayList<>();
+    for (JsonElement id : replay.getAsJsonArray()) {
+      ids.add(id.getAsInt());
+    }
+    return ids;
+  }
+
   private ServerSession createSession(ServerSessionFactory factory, Object registerInfo,
       String sessionId) {
 
@@ -386,10 +707,11 @@ public class ProtocolManager {
     return createSession(factory, registerInfo, sessionId);
   }
 
-  private void processResponseMessage(JsonObject messagetJsonObject, String internalSessionId) {
+  private void processResponseMessage(Response<JsonElement> response, String internalSessionId) {
 
-    Response<JsonElement> response = JsonUtils.fromJsonResponse(messagetJsonObject,
-        JsonElement.class);
+    if (internalSessionId != null) {
+      pingWachdogManager.messageReceived(internalSessionId);
+    }
 
     ServerSession session = sessionsManager.getByTransportId(internalSessionId);
 
@@ -405,6 +727,10 @@ public class ProtocolManager {
 
     final ServerSession session = sessionsManager.getByTransportId(transportId);
 
+    if (session != null && detachTransport(session, transportId)) {
+      return;
+    }
+
     if (session != null) {
 
       try {
@@ -441,6 +767,14 @@ public class ProtocolManager {
     } catch (IOException e) {
       log.warn("{} Could not close WsSession session {}", label, session.getSessionId(), e);
     }
+    for (String transportId : session.getPooledTransportIds()) {
+      ServerSessionFactory pooledTransport = session.removePooledTransport(transportId);
+      if (pooledTransport != null) {
+        pingWachdogManager.removeTransport(transportId);
+        sessionsManager.removeTransportId(session, transportId);
+        pooledTransport.closeTransport(reason);
+      }
+    }
     sessionsManager.remove(session);
     pingWachdogManager.removeSession(session);
     handlerManager.afterConnectionClosed(session, reason);
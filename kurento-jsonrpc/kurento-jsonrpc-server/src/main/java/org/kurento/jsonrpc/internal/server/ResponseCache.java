@@ -0,0 +1,193 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
+import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.Request;
+
+/**
+ * Per session cache of the last responses sent, used to deduplicate requests that a client
+ * replays after reconnecting to the session.
+ *
+ * Every request with id is tracked until it is evicted by newer requests. When a client reconnects,
+ * it announces the requests it has not received a response for. The ones already answered are
+ * answered again through the new transport, and the ones still being processed will be answered
+ * through it. Only the requests never received have to be sent again by the client.
+ *
+ * Announced requests sent again anyway are considered replays, and are not processed twice.
+ */
+public class ResponseCache {
+
+  private static class Entry {
+    private Message response;
+    private ResponseSender sender;
+
+    private Entry(ResponseSender sender) {
+      this.sender = sender;
+    }
+  }
+
+  private final int capacity;
+  private final Map<Integer, Entry> entries;
+  private final Set<Integer> expectedReplays = new HashSet<>();
+
+  public ResponseCache(final int capacity) {
+    this.capacity = capacity;
+    this.entries = new LinkedHashMap<Integer, Entry>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * @return false if the cache is disabled, so it can't tell which requests were received
+   */
+  public boolean isEnabled() {
+    return capacity > 0;
+  }
+
+  /**
+   * Registers the requests announced by a client reconnecting through a new transport. The ones
+   * still being processed will be answered through the new transport.
+   *
+   * @param ids
+   *          requests the client has not received a response for
+   * @param responseSender
+   *          the sender of the new transport
+   * @return the ids of the requests that were never received, which the client has to send again
+   */
+  public synchronized List<Integer> expectReplays(Collection<Integer> ids,
+      ResponseSender responseSender) {
+
+    expectedReplays.clear();
+    expectedReplays.addAll(ids);
+
+    List<Integer> notReceived = new ArrayList<>();
+    for (Integer id : ids) {
+      Entry entry = entries.get(id);
+      if (entry == null) {
+        notReceived.add(id);
+      } else if (entry.response == null) {
+        entry.sender = responseSender;
+      }
+    }
+    return notReceived;
+  }
+
+  /**
+   * Sends again the cached responses of the given requests. Requests not answered yet are ignored.
+   */
+  public void resendResponses(Collection<Integer> ids, ResponseSender responseSender)
+      throws IOException {
+
+    List<Message> responses = new ArrayList<>();
+
+    synchronized (this) {
+      for (Integer id : ids) {
+        Entry entry = entries.get(id);
+        if (entry != null && entry.response != null) {
+          responses.add(entry.response);
+        }
+      }
+    }
+
+    for (Message response : responses) {
+      responseSender.sendResponse(response);
+    }
+  }
+
+  /**
+   * Starts tracking a request.
+   *
+   * @param request
+   *          the received request
+   * @param responseSender
+   *          the sender of the transport the request was received from
+   * @return the sender to be used to answer the request, or null if the request is a replay that
+   *         has been already handled and must not be processed again
+   * @throws IOException
+   *           if the cached response of a replayed request can not be sent
+   */
+  public ResponseSender track(Request<?> request, ResponseSender responseSender)
+      throws IOException {
+
+    Integer id = request.getId();
+
+    if (capacity <= 0 || id == null) {
+      return responseSender;
+    }
+
+    Message cachedResponse;
+
+    synchronized (this) {
+
+      Entry entry = expectedReplays.remove(id) ? entries.get(id) : null;
+
+      if (entry == null) {
+        final Entry newEntry = new Entry(responseSender);
+        entries.put(id, newEntry);
+        return new ResponseSender() {
+          @Override
+          public void sendResponse(Message message) throws IOException {
+            answer(newEntry, message).sendResponse(message);
+          }
+
+          @Override
+          public void sendPingResponse(Message message) throws IOException {
+            answer(newEntry, message).sendPingResponse(message);
+          }
+        };
+      }
+
+      if (entry.response == null) {
+        // Still being processed. It will be answered through the new transport
+        entry.sender = responseSender;
+        return null;
+      }
+
+      cachedResponse = entry.response;
+    }
+
+    responseSender.sendResponse(cachedResponse);
+    return null;
+  }
+
+  private synchronized ResponseSender answer(Entry entry, Message response) {
+    entry.response = response;
+    return entry.sender;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    expectedReplays.clear();
+  }
+}
@@ -18,18 +18,23 @@
 package org.kurento.jsonrpc.internal.server;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledFuture;
 
 import org.kurento.commons.PropertiesManager;
-import org.kurento.commons.ThreadFactoryCreator;
 import org.kurento.jsonrpc.client.Continuation;
 import org.kurento.jsonrpc.internal.JsonRpcRequestSenderHelper;
+import org.kurento.jsonrpc.internal.OrderedDispatcher;
+import org.kurento.jsonrpc.internal.ProtocolUtils;
 import org.kurento.jsonrpc.internal.client.AbstractSession;
+import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
+import org.kurento.jsonrpc.internal.server.ProtocolManager.ServerSessionFactory;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.jsonrpc.message.Response;
 
@@ -41,14 +46,26 @@ public abstract class ServerSession extends AbstractSession {
   public static final String SESSION_RECONNECTION_TIME_PROP = "ws.sessionReconnectionTime";
   private static final int SESSION_RECONNECTION_TIME_DEFAULT = 10;
 
+  public static final String RESPONSE_CACHE_SIZE_PROP = "ws.responseCacheSize";
+  private static final int RESPONSE_CACHE_SIZE_DEFAULT = 32;
+
   private final SessionsManager sessionsManager;
   private JsonRpcRequestSenderHelper rsHelper;
   private String transportId;
   private ScheduledFuture<?> closeTimerTask;
-  private ExecutorService sessionExecutor;
+  private final OrderedDispatcher dispatcher;
+  // Sessions are not used as key because their equality depends on their mutable id
+  private final Object dispatchKey = new Object();
+  private final Executor sessionExecutor;
+  private final ResponseCache responseCache = new ResponseCache(
+      PropertiesManager.getProperty(RESPONSE_CACHE_SIZE_PROP, RESPONSE_CACHE_SIZE_DEFAULT));
 
   private volatile ConcurrentMap<String, Object> attributes;
 
+  // Transports of clients keeping several connections in this session, besides the main one
+  private final ConcurrentMap<String, ServerSessionFactory> pooledTransports =
+      new ConcurrentHashMap<>();
+
   private long reconnectionTimeoutInMillis = PropertiesManager.getProperty(
       SESSION_RECONNECTION_TIME_PROP, SESSION_RECONNECTION_TIME_DEFAULT) * 1000;
   private boolean gracefullyClosed;
@@ -61,8 +78,8 @@ public abstract class ServerSession extends AbstractSession {
     this.transportId = transportId;
     this.sessionsManager = sessionsManager;
 
-    this.sessionExecutor = Executors.newSingleThreadExecutor(ThreadFactoryCreator
-        .create("SessionHandler-" + sessionId));
+    this.dispatcher = SessionDispatcher.getShared();
+    this.sessionExecutor = dispatcher.executorFor(dispatchKey);
   }
 
   public abstract void handleResponse(Response<JsonElement> response);
@@ -78,7 +95,8 @@ public abstract class ServerSession extends AbstractSession {
   @Override
   public void close() throws IOException {
     this.sessionsManager.remove(this.getSessionId());
-    this.sessionExecutor.shutdownNow();
+    this.dispatcher.discard(dispatchKey);
+    this.responseCache.clear();
   }
 
   protected void setRsHelper(JsonRpcRequestSenderHelper rsHelper) {
@@ -188,7 +206,104 @@ public abstract class ServerSession extends AbstractSession {
 
   public abstract void closeNativeSession(String reason);
 
+  /**
+   * Closes the native session asking the client to wait before reconnecting. Servers can use it to
+   * spread reconnections when they are overloaded or starting up.
+   *
+   * @param reason
+   *          close reason
+   * @param retryAfterMillis
+   *          minimum time the client should wait before reconnecting
+   */
+  public void closeNativeSession(String reason, long retryAfterMillis) {
+    closeNativeSession(ProtocolUtils.withRetryAfter(reason, retryAfterMillis));
+  }
+
+  /**
+   * Answers a poll request, sent by clients that can only receive messages from the server as
+   * responses. By default there are never messages for the client, so polls are answered at once.
+   *
+   * @param request
+   *          the poll request
+   * @param responsesReceived
+   *          true if the poll carried responses to requests from the server
+   * @param responseSender
+   *          sender of the poll response
+   */
+  public void processPoll(Request<JsonElement> request, boolean responsesReceived,
+      ResponseSender responseSender) throws IOException {
+    responseSender.sendResponse(new Response<Object>(request.getId(), Collections.emptyList()));
+  }
+
+  void addPooledTransport(String transportId, ServerSessionFactory transport) {
+    pooledTransports.put(transportId, transport);
+  }
+
+  ServerSessionFactory getPooledTransport(String transportId) {
+    return pooledTransports.get(transportId);
+  }
+
+  ServerSessionFactory removePooledTransport(String transportId) {
+    return pooledTransports.remove(transportId);
+  }
+
+  /**
+   * @return the ids of the transports of this session besides the main one, used by clients that
+   *         keep several connections in the same session
+   */
+  public Collection<String> getPooledTransportIds() {
+    return Collections.unmodifiableSet(pooledTransports.keySet());
+  }
+
+  /**
+   * Registers the requests announced by a client reconnecting to this session.
+   *
+   * @return the ids of the requests not received by the session, which the client has to send
+   *         again, or null if the session doesn't keep track of the requests received
+   * @see ResponseCache#expectReplays(Collection, ResponseSender)
+   */
+  public List<Integer> expectReplayedRequests(Collection<Integer> ids,
+      ResponseSender responseSender) {
+    if (!responseCache.isEnabled()) {
+      return null;
+    }
+    return responseCache.expectReplays(ids, responseSender);
+  }
+
+  /**
+   * Sends again the responses of the announced requests already answered by the session.
+   */
+  public void resendResponses(Collection<Integer> ids, ResponseSender responseSender)
+      throws IOException {
+    responseCache.resendResponses(ids, responseSender);
+  }
+
+  /**
+   * Tracks a request received in this session so it can be deduplicated if the client replays it.
+   *
+   * @return the sender to answer the request with, or null if the request is a replay already
+   *         handled by the session
+   * @see ResponseCache#track(Request, ResponseSender)
+   */
+  public ResponseSender trackRequest(Request<?> request, ResponseSender responseSender)
+      throws IOException {
+    return responseCache.track(request, responseSender);
+  }
+
+  /**
+   * Executes a task after the tasks previously queued in this session.
+   *
+   * @throws java.util.concurrent.RejectedExecutionException
+   *           if too many tasks are queued in the session
+   */
   public void processRequest(Runnable task) {
     sessionExecutor.execute(task);
   }
+
+  /**
+   * Number of requests of this session waiting to be executed.
+   */
+  public int getQueuedRequests() {
+    return dispatcher.getQueuedTasks(dispatchKey);
+  }
 }
@@ -0,0 +1,107 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.commons.ThreadFactoryCreator;
+import org.kurento.jsonrpc.internal.OrderedDispatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holder of the dispatcher executing the requests of all the {@link ServerSession}s. Each session
+ * is a key of the dispatcher, so its requests are executed in order (as a mailbox) while requests
+ * of different sessions share a fixed pool of workers, instead of having a thread per session.
+ *
+ * The dispatcher is configured with the properties:
+ * <ul>
+ * <li>{@value #THREADS_PROPERTY}: number of workers (default twice the number of cores, at least
+ * 4)</li>
+ * <li>{@value #MAX_QUEUED_PER_SESSION_PROPERTY}: max requests waiting in the mailbox of a session
+ * (default 10000). Requests beyond the limit are rejected</li>
+ * <li>{@value #EXECUTOR_PROPERTY}: "pool" (default) for the fixed pool of workers, or "virtual" to
+ * execute requests in virtual threads if the JVM supports them</li>
+ * </ul>
+ *
+ * A dispatcher with any other executor can be set with {@link #setShared(OrderedDispatcher)}
+ * before sessions are created.
+ */
+public final class SessionDispatcher {
+
+  private static final Logger log = LoggerFactory.getLogger(SessionDispatcher.class);
+
+  public static final String THREADS_PROPERTY = "jsonRpcServer.sessionDispatcher.threads";
+  public static final String MAX_QUEUED_PER_SESSION_PROPERTY =
+      "jsonRpcServer.sessionDispatcher.maxQueuedPerSession";
+  public static final String EXECUTOR_PROPERTY = "jsonRpcServer.sessionDispatcher.executor";
+
+  private static final int DEFAULT_MAX_QUEUED_PER_SESSION = 10000;
+
+  private static volatile OrderedDispatcher shared;
+
+  private SessionDispatcher() {
+  }
+
+  public static OrderedDispatcher getShared() {
+    if (shared == null) {
+      synchronized (SessionDispatcher.class) {
+        if (shared == null) {
+          shared = create();
+        }
+      }
+    }
+    return shared;
+  }
+
+  public static synchronized void setShared(OrderedDispatcher dispatcher) {
+    shared = dispatcher;
+  }
+
+  private static OrderedDispatcher create() {
+
+    int maxQueued = PropertiesManager.getProperty(MAX_QUEUED_PER_SESSION_PROPERTY,
+        DEFAULT_MAX_QUEUED_PER_SESSION);
+
+    if ("virtual".equalsIgnoreCase(PropertiesManager.getProperty(EXECUTOR_PROPERTY, "pool"))) {
+      Executor virtualThreads = createVirtualThreadExecutor();
+      if (virtualThreads != null) {
+        log.info("Session requests are executed in virtual threads");
+        return new OrderedDispatcher(virtualThreads, maxQueued);
+      }
+    }
+
+    return new OrderedDispatcher(ThreadFactoryCreator.createDaemon("SessionHandler"),
+        PropertiesManager.getProperty(THREADS_PROPERTY,
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2)),
+        maxQueued);
+  }
+
+  private static Executor createVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (Exception e) {
+      log.warn("Virtual threads are not supported by this JVM. Using a pool of workers");
+      return null;
+    }
+  }
+}
@@ -73,10 +73,27 @@ public class SessionsManager {
     ServerSession session = sessions.remove(sessionId);
     if (session != null) {
       sessionsByTransportId.remove(session.getTransportId());
+      for (String transportId : session.getPooledTransportIds()) {
+        sessionsByTransportId.remove(transportId, session);
+      }
     }
     return session;
   }
 
+  /**
+   * Associates an additional transport to a session, without changing its main transport.
+   */
+  public void addTransportId(ServerSession session, String transportId) {
+    sessionsByTransportId.put(transportId, session);
+  }
+
+  /**
+   * Removes the association of a transport to a session, without removing the session.
+   */
+  public void removeTransportId(ServerSession session, String transportId) {
+    sessionsByTransportId.remove(transportId, session);
+  }
+
   public void updateTransportId(ServerSession session, String oldTransportId) {
     if (oldTransportId != null) {
       sessionsByTransportId.remove(oldTransportId);
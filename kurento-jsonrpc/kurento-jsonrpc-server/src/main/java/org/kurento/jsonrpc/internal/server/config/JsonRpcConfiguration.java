@@ -31,6 +31,7 @@ import org.kurento.jsonrpc.internal.http.JsonRpcHttpRequestHandler;
 import org.kurento.jsonrpc.internal.server.PerSessionJsonRpcHandler;
 import org.kurento.jsonrpc.internal.server.ProtocolManager;
 import org.kurento.jsonrpc.internal.server.SessionsManager;
+import org.kurento.jsonrpc.internal.ws.JsonRpcHandshakeHandler;
 import org.kurento.jsonrpc.internal.ws.JsonRpcWebSocketHandler;
 import org.kurento.jsonrpc.server.JsonRpcConfigurer;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -223,6 +224,8 @@ public class JsonRpcConfiguration implements WebSocketConfigurer {
 
       WebSocketHandlerRegistration registration = wsHandlerRegistry.addHandler(wsHandler, path);
 
+      registration.setHandshakeHandler(new JsonRpcHandshakeHandler(handler.isPerMessageDeflate()));
+
       List<String> origins = handler.allowedOrigins();
       registration.setAllowedOrigins(origins.toArray(new String[origins.size()]));
 
@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.ws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.kurento.jsonrpc.message.MessageCodecs;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+
+/**
+ * Handshake handler of the JSON-RPC WebSocket endpoints. It rejects the permessage-deflate
+ * extension offered by clients when it is disabled in the endpoint handler. Otherwise, extensions
+ * are negotiated as usual with the extensions supported by the container.
+ *
+ * The subprotocols of the registered binary codecs are accepted when requested by clients. Clients
+ * not requesting any of them use text messages.
+ */
+public class JsonRpcHandshakeHandler extends DefaultHandshakeHandler {
+
+  public static final String PER_MESSAGE_DEFLATE = "permessage-deflate";
+
+  private final boolean perMessageDeflate;
+
+  public JsonRpcHandshakeHandler(boolean perMessageDeflate) {
+    this.perMessageDeflate = perMessageDeflate;
+
+    Set<String> subprotocols = MessageCodecs.getBinarySubprotocols();
+    setSupportedProtocols(subprotocols.toArray(new String[subprotocols.size()]));
+  }
+
+  @Override
+  protected List<WebSocketExtension> filterRequestedExtensions(ServerHttpRequest request,
+      List<WebSocketExtension> requestedExtensions,
+      List<WebSocketExtension> supportedExtensions) {
+
+    List<WebSocketExtension> extensions = super.filterRequestedExtensions(request,
+        requestedExtensions, supportedExtensions);
+
+    if (perMessageDeflate) {
+      return extensions;
+    }
+
+    List<WebSocketExtension> result = new ArrayList<>(extensions.size());
+    for (WebSocketExtension extension : extensions) {
+      if (!PER_MESSAGE_DEFLATE.equalsIgnoreCase(extension.getName())) {
+        result.add(extension);
+      }
+    }
+    return result;
+  }
+}
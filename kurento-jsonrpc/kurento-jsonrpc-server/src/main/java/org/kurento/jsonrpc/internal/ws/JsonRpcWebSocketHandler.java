@@ -18,20 +18,31 @@
 package org.kurento.jsonrpc.internal.ws;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
 import org.kurento.jsonrpc.internal.server.ProtocolManager;
 import org.kurento.jsonrpc.internal.server.ProtocolManager.ServerSessionFactory;
 import org.kurento.jsonrpc.internal.server.ServerSession;
 import org.kurento.jsonrpc.internal.server.SessionsManager;
+import org.kurento.jsonrpc.message.BinaryMessageCodec;
 import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.MessageCodecs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
-public class JsonRpcWebSocketHandler extends TextWebSocketHandler {
+/**
+ * WebSocket endpoint of a JSON-RPC handler. Messages are exchanged as text, unless the client
+ * negotiates the subprotocol of a {@link BinaryMessageCodec}; then they are exchanged as binary
+ * messages encoded with that codec.
+ */
+public class JsonRpcWebSocketHandler extends AbstractWebSocketHandler {
 
   private static final Logger log = LoggerFactory.getLogger(JsonRpcWebSocketHandler.class);
 
@@ -119,54 +130,116 @@ public class JsonRpcWebSocketHandler extends TextWebSocketHandler {
 
     try {
 
-      String messageJson = message.getPayload();
+      protocolManager.processMessage(message.getPayload(), createSessionFactory(wsSession),
+          createResponseSender(wsSession), wsSession.getId());
 
-      // TODO Ensure only one register message per websocket session.
-      ServerSessionFactory factory = new ServerSessionFactory() {
-        @Override
-        public ServerSession createSession(String sessionId, Object registerInfo,
-            SessionsManager sessionsManager) {
-          return new WebSocketServerSession(sessionId, registerInfo, sessionsManager, wsSession);
-        }
+    } catch (Throwable t) {
+      log.error("{} Exception processing request {}.", label, message.getPayload(), t);
+    }
+  }
+
+  @Override
+  protected void handleBinaryMessage(WebSocketSession wsSession, BinaryMessage message)
+      throws Exception {
+
+    BinaryMessageCodec binaryCodec = MessageCodecs.getBinary(wsSession.getAcceptedProtocol());
+
+    if (binaryCodec == null) {
+      log.warn("{} Binary message received in session {} without binary subprotocol", label,
+          wsSession.getId());
+      wsSession.close(CloseStatus.NOT_ACCEPTABLE.withReason("Binary messages not supported"));
+      return;
+    }
+
+    try {
+
+      ByteBuffer payload = message.getPayload();
+      Message jsonRpcMessage;
+      if (payload.hasArray()) {
+        jsonRpcMessage = binaryCodec.decodeMessage(payload.array(),
+            payload.arrayOffset() + payload.position(), payload.remaining());
+      } else {
+        byte[] data = new byte[payload.remaining()];
+        payload.get(data);
+        jsonRpcMessage = binaryCodec.decodeMessage(data, 0, data.length);
+      }
+
+      protocolManager.processMessage(jsonRpcMessage, createSessionFactory(wsSession),
+          createResponseSender(wsSession), wsSession.getId());
+
+    } catch (Throwable t) {
+      log.error("{} Exception processing binary request of {} bytes.", label,
+          message.getPayloadLength(), t);
+    }
+  }
+
+  private ServerSessionFactory createSessionFactory(final WebSocketSession wsSession) {
+
+    // TODO Ensure only one register message per websocket session.
+    return new ServerSessionFactory() {
+      @Override
+      public ServerSession createSession(String sessionId, Object registerInfo,
+          SessionsManager sessionsManager) {
+        return new WebSocketServerSession(sessionId, registerInfo, sessionsManager, wsSession);
+      }
+
+      @Override
+      public void updateSessionOnReconnection(ServerSession session) {
+        ((WebSocketServerSession) session).updateWebSocketSession(wsSession);
+      }
 
-        @Override
-        public void updateSessionOnReconnection(ServerSession session) {
-          ((WebSocketServerSession) session).updateWebSocketSession(wsSession);
+      @Override
+      public void closeTransport(String reason) {
+        try {
+          WebSocketSendBuffer.get(wsSession)
+              .close(new CloseStatus(CloseStatus.NORMAL.getCode(), reason));
+        } catch (IOException e) {
+          log.warn("{} Exception closing WebSocket session {}", label, wsSession.getId(), e);
         }
-      };
+      }
+    };
+  }
+
+  private ResponseSender createResponseSender(final WebSocketSession wsSession) {
 
-      protocolManager.processMessage(messageJson, factory, new ResponseSender() {
-        @Override
-        public void sendResponse(Message message) throws IOException {
+    final BinaryMessageCodec binaryCodec = MessageCodecs
+        .getBinary(wsSession.getAcceptedProtocol());
 
-          String jsonMessage = message.toString();
+    return new ResponseSender() {
+      @Override
+      public void sendResponse(Message message) throws IOException {
+
+        if (binaryCodec != null) {
+          log.debug("{} Res<- {}", label, message);
+          sendWebSocketMessage(new BinaryMessage(binaryCodec.encode(message)));
+        } else {
+          String jsonMessage = protocolManager.getMessageCodec().encode(message);
           log.debug("{} Res<- {}", label, jsonMessage);
-          sendJsonMessage(jsonMessage);
+          sendWebSocketMessage(new TextMessage(jsonMessage));
         }
+      }
 
-        @Override
-        public void sendPingResponse(Message message) throws IOException {
+      @Override
+      public void sendPingResponse(Message message) throws IOException {
 
-          String jsonMessage = message.toString();
+        if (binaryCodec != null) {
+          log.trace("{} Res<- {}", label, message);
+          sendWebSocketMessage(new BinaryMessage(binaryCodec.encode(message)));
+        } else {
+          String jsonMessage = protocolManager.getMessageCodec().encode(message);
           log.trace("{} Res<- {}", label, jsonMessage);
-          sendJsonMessage(jsonMessage);
+          sendWebSocketMessage(new TextMessage(jsonMessage));
         }
+      }
 
-        private void sendJsonMessage(String jsonMessage) throws IOException {
-          synchronized (wsSession) {
-            if (wsSession.isOpen()) {
-              wsSession.sendMessage(new TextMessage(jsonMessage));
-            } else {
-              log.error("Trying to send a message to a closed session");
-            }
-          }
+      private void sendWebSocketMessage(WebSocketMessage<?> message) throws IOException {
+        if (wsSession.isOpen()) {
+          WebSocketSendBuffer.get(wsSession).send(message, false);
+        } else {
+          log.error("Trying to send a message to a closed session");
         }
-      }, wsSession.getId());
-
-    } catch (Throwable t) {
-      log.error("{} Exception processing request {}.", label, message.getPayload(), t);
-    }
-
+      }
+    };
   }
 
 }
@@ -0,0 +1,607 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.internal.ws;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.commons.ThreadFactoryCreator;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+/**
+ * Bounded buffer of messages to be sent through a server WebSocket session, so threads sending
+ * messages are not blocked by clients reading slowly. Messages of a session are written in order,
+ * one at a time.
+ *
+ * Sessions of a JSR-356 container are written with its asynchronous API: a writer only starts the
+ * write, and the next message is written when the container completes it, so a client that stops
+ * reading doesn't hold any thread. Other sessions can only be written blocking, by a shared pool of
+ * writers.
+ *
+ * When the buffered bytes exceed the limit, the {@link OverflowPolicy} applies. The session is
+ * also closed when a message takes longer than the send time limit to be written, which is checked
+ * by a periodic sweep of the buffers in the shared JSON-RPC timer. Closing the session aborts the
+ * stalled write, releasing its writer. The limits, the policy and the writers are configured with
+ * the properties jsonRpcServerWebSocket.outbound.bufferSizeLimit (default 1 MiB),
+ * jsonRpcServerWebSocket.outbound.sendTimeLimit (default 10000 ms),
+ * jsonRpcServerWebSocket.outbound.sweepPeriod (default 1000 ms),
+ * jsonRpcServerWebSocket.outbound.overflowPolicy (default CLOSE) and
+ * jsonRpcServerWebSocket.outbound.writerThreads (default twice the number of cores, at least 4).
+ */
+public class WebSocketSendBuffer {
+
+  private static final Logger log = LoggerFactory.getLogger(WebSocketSendBuffer.class);
+
+  public enum OverflowPolicy {
+    /**
+     * Discard the oldest notifications waiting to be sent. If there are not enough notifications,
+     * close the session.
+     */
+    DROP_OLDEST_NOTIFICATION,
+    /**
+     * Close the session.
+     */
+    CLOSE,
+    /**
+     * Block the sender until there is room, up to the send time limit. Then close the session.
+     */
+    BLOCK
+  }
+
+  private static final String ATTRIBUTE = WebSocketSendBuffer.class.getName();
+
+  private static final int BUFFER_SIZE_LIMIT = PropertiesManager
+      .getProperty("jsonRpcServerWebSocket.outbound.bufferSizeLimit", 1024 * 1024);
+
+  private static final long SEND_TIME_LIMIT = PropertiesManager
+      .getProperty("jsonRpcServerWebSocket.outbound.sendTimeLimit", 10000L);
+
+  private static final OverflowPolicy OVERFLOW_POLICY = PropertiesManager
+      .getProperty("jsonRpcServerWebSocket.outbound.overflowPolicy", OverflowPolicy.CLOSE);
+
+  private static final long SWEEP_PERIOD = PropertiesManager
+      .getProperty("jsonRpcServerWebSocket.outbound.sweepPeriod", 1000L);
+
+  // Max messages written before giving the writer to other sessions
+  private static final int MAX_MESSAGES_PER_DRAIN = 64;
+
+  // States of an asynchronous write
+  private static final int WRITING = 0;
+  private static final int WRITING_ASYNC = 1;
+  private static final int DONE = 2;
+
+  private static class WritersHolder {
+    static final Executor writers;
+
+    static {
+      int threads = PropertiesManager.getProperty(
+          "jsonRpcServerWebSocket.outbound.writerThreads",
+          Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), ThreadFactoryCreator.createDaemon("WsSendBuffer"));
+      pool.allowCoreThreadTimeOut(true);
+      writers = pool;
+    }
+  }
+
+  // Buffers whose send time limit is checked by the sweep, until they are closed
+  private static class SweepHolder {
+
+    static final Set<WebSocketSendBuffer> buffers = Collections
+        .newSetFromMap(new ConcurrentHashMap<WebSocketSendBuffer, Boolean>());
+
+    static {
+      JsonRpcTimers.getSharedTimer().scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          sweep();
+        }
+      }, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    private static void sweep() {
+      Iterator<WebSocketSendBuffer> it = buffers.iterator();
+      while (it.hasNext()) {
+        WebSocketSendBuffer buffer = it.next();
+        try {
+          if (!buffer.checkSendTimeLimit()) {
+            it.remove();
+          }
+        } catch (Exception e) {
+          log.warn("Exception checking send time limit of WebSocket session {}",
+              buffer.wsSession.getId(), e);
+        }
+      }
+    }
+  }
+
+  private static class Entry {
+
+    private final WebSocketMessage<?> message;
+    private final int bytes;
+    private final boolean droppable;
+
+    Entry(WebSocketMessage<?> message, boolean droppable) {
+      this.message = message;
+      this.bytes = message.getPayloadLength();
+      this.droppable = droppable;
+    }
+  }
+
+  // Completion of an asynchronous write
+  private class AsyncWrite implements SendHandler {
+
+    private final Entry entry;
+    private final AtomicInteger state = new AtomicInteger(WRITING);
+    private volatile boolean succeeded;
+
+    AsyncWrite(Entry entry) {
+      this.entry = entry;
+    }
+
+    @Override
+    public void onResult(SendResult result) {
+
+      // Set before completing, as the draining thread reads it when the write completes inline
+      succeeded = written(entry, result.isOK() ? null : result.getException());
+
+      // Writes completed inline are followed by the loop in drainAsync(), to avoid recursion
+      if (state.getAndSet(DONE) == WRITING_ASYNC && succeeded) {
+        drainAsync();
+      }
+    }
+
+    /**
+     * Invoked by the draining thread after starting the write.
+     *
+     * @return true if the write has already completed
+     */
+    boolean completedInline() {
+      return !state.compareAndSet(WRITING, WRITING_ASYNC);
+    }
+  }
+
+  private final WebSocketSession wsSession;
+  private final RemoteEndpoint.Async asyncRemote;
+  private final Executor writers;
+  private final int bufferSizeLimit;
+  private final long sendTimeLimitMillis;
+  private final OverflowPolicy overflowPolicy;
+
+  private final Runnable drainTask = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+
+  // Guarded by this
+  private final Queue<Entry> entries = new ArrayDeque<>();
+  private long bufferedBytes;
+  private long maxBufferedBytes;
+  private long droppedMessages;
+  private boolean draining;
+  private long sendStartNanos;
+  private boolean closed;
+  private CloseStatus pendingClose;
+
+  public WebSocketSendBuffer(WebSocketSession wsSession, Executor writers, int bufferSizeLimit,
+      long sendTimeLimitMillis, OverflowPolicy overflowPolicy) {
+    this.wsSession = wsSession;
+    this.asyncRemote = getAsyncRemote(wsSession);
+    this.writers = writers;
+    this.bufferSizeLimit = bufferSizeLimit;
+    this.sendTimeLimitMillis = sendTimeLimitMillis;
+    this.overflowPolicy = overflowPolicy;
+    SweepHolder.buffers.add(this);
+  }
+
+  private static RemoteEndpoint.Async getAsyncRemote(WebSocketSession wsSession) {
+    if (!(wsSession instanceof NativeWebSocketSession)) {
+      return null;
+    }
+    Session nativeSession = ((NativeWebSocketSession) wsSession).getNativeSession(Session.class);
+    return nativeSession != null ? nativeSession.getAsyncRemote() : null;
+  }
+
+  /**
+   * Returns the buffer of a WebSocket session, creating it with the configured properties.
+   */
+  public static WebSocketSendBuffer get(WebSocketSession wsSession) {
+    synchronized (wsSession) {
+      WebSocketSendBuffer buffer = (WebSocketSendBuffer) wsSession.getAttributes().get(ATTRIBUTE);
+      if (buffer == null) {
+        buffer = new WebSocketSendBuffer(wsSession, WritersHolder.writers, BUFFER_SIZE_LIMIT,
+            SEND_TIME_LIMIT, OVERFLOW_POLICY);
+        wsSession.getAttributes().put(ATTRIBUTE, buffer);
+      }
+      return buffer;
+    }
+  }
+
+  /**
+   * Buffers a message to be sent.
+   *
+   * @param message
+   *          the message
+   * @param droppable
+   *          true if the message can be discarded by
+   *          {@link OverflowPolicy#DROP_OLDEST_NOTIFICATION} (i.e. it is a notification)
+   * @throws IOException
+   *           if the buffer is closed, or has been closed because of the limits
+   */
+  public void send(WebSocketMessage<?> message, boolean droppable) throws IOException {
+
+    Entry entry = new Entry(message, droppable);
+    String closeReason = null;
+
+    synchronized (this) {
+
+      if (closed || pendingClose != null) {
+        throw new IOException("WebSocket session " + wsSession.getId() + " is closed");
+      }
+
+      if (isSendTimeLimitExceeded()) {
+
+        closeReason = "Send time limit of " + sendTimeLimitMillis + " ms exceeded";
+
+      } else if (overflowPolicy == OverflowPolicy.BLOCK && !waitForRoom(entry.bytes)) {
+
+        closeReason = "Blocked more than " + sendTimeLimitMillis
+            + " ms waiting for room in send buffer";
+
+      } else {
+
+        entries.add(entry);
+        bufferedBytes += entry.bytes;
+        if (bufferedBytes > maxBufferedBytes) {
+          maxBufferedBytes = bufferedBytes;
+        }
+
+        if (bufferedBytes > bufferSizeLimit && overflowPolicy != OverflowPolicy.BLOCK
+            && !dropNotifications()) {
+          closeReason = "Send buffer size limit of " + bufferSizeLimit + " bytes exceeded";
+        }
+
+        if (closeReason == null && !draining) {
+          draining = true;
+          try {
+            writers.execute(drainTask);
+          } catch (RejectedExecutionException e) {
+            draining = false;
+            throw new IOException("Send buffer writers have been shut down", e);
+          }
+        }
+      }
+    }
+
+    if (closeReason != null) {
+      closeSlowSession(closeReason);
+      throw new IOException(closeReason + " in WebSocket session " + wsSession.getId());
+    }
+  }
+
+  /**
+   * Closes the WebSocket session after the buffered messages have been sent.
+   */
+  public void close(CloseStatus status) throws IOException {
+
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      if (draining) {
+        pendingClose = status;
+        return;
+      }
+      closed = true;
+    }
+
+    wsSession.close(status);
+  }
+
+  /**
+   * Closes the session if the message being written has been waiting for the client longer than
+   * the send time limit. It is invoked periodically by a sweep, so stalled clients are detected
+   * even if nothing else is sent to them.
+   *
+   * @return false if the buffer is closed, so it doesn't need to be checked anymore
+   */
+  public boolean checkSendTimeLimit() {
+
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+      if (!isSendTimeLimitExceeded()) {
+        return wsSession.isOpen() || draining;
+      }
+    }
+
+    closeSlowSession("Send time limit of " + sendTimeLimitMillis + " ms exceeded");
+    return false;
+  }
+
+  private boolean isSendTimeLimitExceeded() {
+    return sendStartNanos != 0
+        && System.nanoTime() - sendStartNanos > TimeUnit.MILLISECONDS.toNanos(sendTimeLimitMillis);
+  }
+
+  private boolean waitForRoom(int bytes) {
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sendTimeLimitMillis);
+
+    try {
+      // A message bigger than the limit is accepted if the buffer is empty
+      while (bufferedBytes > 0 && bufferedBytes + bytes > bufferSizeLimit) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || closed) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return !closed;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private boolean dropNotifications() {
+
+    if (overflowPolicy != OverflowPolicy.DROP_OLDEST_NOTIFICATION) {
+      return false;
+    }
+
+    Iterator<Entry> it = entries.iterator();
+    while (bufferedBytes > bufferSizeLimit && it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.droppable) {
+        it.remove();
+        bufferedBytes -= entry.bytes;
+        droppedMessages++;
+      }
+    }
+
+    if (bufferedBytes <= bufferSizeLimit) {
+      log.debug("Dropped notifications to slow client of WebSocket session {} ({} in total)",
+          wsSession.getId(), droppedMessages);
+      return true;
+    }
+    return false;
+  }
+
+  private void drain() {
+    if (asyncRemote != null) {
+      drainAsync();
+    } else {
+      drainBlocking();
+    }
+  }
+
+  /**
+   * Starts writing the next message. If the write completes inline, the same thread goes on with
+   * the next message; otherwise the completion of the write does.
+   */
+  private void drainAsync() {
+
+    while (true) {
+
+      Entry entry = nextEntry();
+      if (entry == null) {
+        return;
+      }
+
+      AsyncWrite write = new AsyncWrite(entry);
+      try {
+        if (entry.message instanceof TextMessage) {
+          asyncRemote.sendText(((TextMessage) entry.message).getPayload(), write);
+        } else if (entry.message instanceof BinaryMessage) {
+          asyncRemote.sendBinary(((BinaryMessage) entry.message).getPayload(), write);
+        } else {
+          wsSession.sendMessage(entry.message);
+          write.onResult(new SendResult());
+        }
+      } catch (Exception e) {
+        write.onResult(new SendResult(e));
+      }
+
+      if (!write.completedInline() || !write.succeeded) {
+        return;
+      }
+    }
+  }
+
+  private void drainBlocking() {
+
+    for (int i = 0; i < MAX_MESSAGES_PER_DRAIN; i++) {
+
+      Entry entry = nextEntry();
+      if (entry == null) {
+        return;
+      }
+
+      Throwable failure = null;
+      try {
+        wsSession.sendMessage(entry.message);
+      } catch (Exception e) {
+        failure = e;
+      }
+
+      if (!written(entry, failure)) {
+        return;
+      }
+    }
+
+    // Give other sessions the chance to be written
+    try {
+      writers.execute(drainTask);
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        draining = false;
+      }
+    }
+  }
+
+  /**
+   * @return the next message to be written, or null if there are no more. Then the buffer stops
+   *         draining and, if it was requested, the session is closed
+   */
+  private Entry nextEntry() {
+
+    Entry entry;
+    CloseStatus closeStatus = null;
+
+    synchronized (this) {
+      entry = closed ? null : entries.poll();
+      if (entry == null) {
+        draining = false;
+        if (pendingClose != null && !closed) {
+          closed = true;
+          closeStatus = pendingClose;
+        }
+      } else {
+        sendStartNanos = System.nanoTime();
+      }
+    }
+
+    if (closeStatus != null) {
+      closeQuietly(closeStatus);
+    }
+    return entry;
+  }
+
+  /**
+   * Accounts a message written. If the write failed, the session can't be written anymore.
+   *
+   * @return true if the message was written
+   */
+  private boolean written(Entry entry, Throwable failure) {
+
+    if (failure != null) {
+      log.warn("Exception sending message to WebSocket session {}: {}", wsSession.getId(),
+          failure.getMessage());
+    }
+
+    synchronized (this) {
+      sendStartNanos = 0;
+      bufferedBytes -= entry.bytes;
+      if (failure != null) {
+        discardAll();
+        draining = false;
+      }
+      notifyAll();
+    }
+
+    return failure == null;
+  }
+
+  private void discardAll() {
+    closed = true;
+    for (Entry entry : entries) {
+      bufferedBytes -= entry.bytes;
+    }
+    entries.clear();
+  }
+
+  private void closeSlowSession(String reason) {
+
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      log.warn("Closing WebSocket session {} of slow client: {}. {}", wsSession.getId(), reason,
+          this);
+      // If a message is being written, the writer stops after it
+      discardAll();
+      notifyAll();
+    }
+
+    closeQuietly(CloseStatus.SESSION_NOT_RELIABLE.withReason(reason));
+  }
+
+  private void closeQuietly(CloseStatus status) {
+    try {
+      wsSession.close(status);
+    } catch (IOException e) {
+      log.warn("Exception closing WebSocket session {}", wsSession.getId(), e);
+    }
+  }
+
+  /**
+   * @return bytes of the messages buffered or being written
+   */
+  public synchronized long getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  public synchronized long getMaxBufferedBytes() {
+    return maxBufferedBytes;
+  }
+
+  /**
+   * @return messages waiting to be written
+   */
+  public synchronized int getBufferedMessages() {
+    return entries.size();
+  }
+
+  public synchronized long getDroppedMessages() {
+    return droppedMessages;
+  }
+
+  /**
+   * @return milliseconds the message being written has been waiting for the client, or 0
+   */
+  public synchronized long getCurrentSendTimeMillis() {
+    return sendStartNanos == 0 ? 0
+        : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sendStartNanos);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "WebSocketSendBuffer [bufferedBytes=" + bufferedBytes + ", bufferedMessages="
+        + entries.size() + ", maxBufferedBytes=" + maxBufferedBytes + ", droppedMessages="
+        + droppedMessages + "]";
+  }
+}
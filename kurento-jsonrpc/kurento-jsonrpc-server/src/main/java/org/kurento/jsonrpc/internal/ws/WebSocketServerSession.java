@@ -19,28 +19,33 @@ package org.kurento.jsonrpc.internal.ws;
 
 import java.io.IOException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.kurento.commons.PropertiesManager;
+import org.kurento.commons.ThreadFactoryCreator;
 import org.kurento.commons.exception.KurentoException;
 import org.kurento.jsonrpc.JsonRpcException;
 import org.kurento.jsonrpc.JsonUtils;
 import org.kurento.jsonrpc.TransportException;
 import org.kurento.jsonrpc.client.Continuation;
 import org.kurento.jsonrpc.internal.JsonRpcRequestSenderHelper;
+import org.kurento.jsonrpc.internal.ProtocolUtils;
 import org.kurento.jsonrpc.internal.server.ServerSession;
 import org.kurento.jsonrpc.internal.server.SessionsManager;
+import org.kurento.jsonrpc.message.BinaryMessageCodec;
+import org.kurento.jsonrpc.message.MessageCodecs;
 import org.kurento.jsonrpc.message.MessageUtils;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.jsonrpc.message.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import com.google.gson.JsonElement;
@@ -50,13 +55,23 @@ public class WebSocketServerSession extends ServerSession {
   private static final long TIMEOUT =
       PropertiesManager.getProperty("jsonRpcServerWebSocket.timeout", 10000);
 
+  /**
+   * WebSocket close code "Try Again Later" (RFC 6455 registry).
+   */
+  private static final int TRY_AGAIN_LATER_STATUS = 1013;
+
   private static Logger log = LoggerFactory.getLogger(WebSocketServerSession.class);
 
-  private WebSocketSession wsSession;
+  // Not the session executor: a handler running there may be waiting for the continuation
+  private static class ContinuationsHolder {
 
-  private final PendingRequests pendingRequests = new PendingRequests();
+    static final Executor executor = Executors
+        .newCachedThreadPool(ThreadFactoryCreator.createDaemon("JsonRpcServer-continuation"));
+  }
 
-  private ExecutorService execService = Executors.newCachedThreadPool();
+  private volatile WebSocketSession wsSession;
+
+  private final PendingRequests pendingRequests = new PendingRequests();
 
   public WebSocketServerSession(String sessionId, Object registerInfo,
       SessionsManager sessionsManager, WebSocketSession wsSession) {
@@ -80,56 +95,96 @@ public class WebSocketServerSession extends ServerSession {
     });
   }
 
+  /**
+   * Sends a request without blocking. The continuation is invoked when the response arrives, or
+   * when the request times out, in a shared executor of continuations. It is not invoked in the
+   * session executor, so handlers of the session can wait for it without blocking forever.
+   */
   protected void sendRequestWebSocket(final Request<? extends Object> request,
       final Class<JsonElement> resultClass,
       final Continuation<Response<JsonElement>> continuation) {
 
-    // FIXME: Poor man async implementation.
-    execService.submit(new Runnable() {
+    log.info("Req-> {}", request);
+
+    ResponseSlot responseSlot = null;
+
+    try {
+
+      if (request.getId() != null) {
+        responseSlot = pendingRequests.prepareResponse(request.getId(), TIMEOUT);
+      }
+
+      sendMessage(request);
+
+    } catch (RuntimeException e) {
+      if (responseSlot != null) {
+        responseSlot.cancel(false);
+      }
+      continuation.onError(e);
+      return;
+    }
+
+    if (responseSlot == null) {
+      continuation.onSuccess(null);
+      return;
+    }
+
+    responseSlot.setContinuation(new Continuation<Response<JsonElement>>() {
       @Override
-      public void run() {
+      public void onSuccess(Response<JsonElement> response) {
+
+        log.info("<-Res {}", response);
+
+        Response<JsonElement> result;
         try {
-          Response<JsonElement> result = sendRequestWebSocket(request, resultClass);
-          try {
-            continuation.onSuccess(result);
-          } catch (Exception e) {
-            log.error("Exception while processing response", e);
-          }
+          result = MessageUtils.convertResponse(response, resultClass);
         } catch (Exception e) {
           continuation.onError(e);
+          return;
+        }
+
+        try {
+          continuation.onSuccess(result);
+        } catch (Exception e) {
+          log.error("Exception while processing response", e);
         }
       }
-    });
+
+      @Override
+      public void onError(Throwable cause) {
+        continuation.onError(cause);
+      }
+    }, ContinuationsHolder.executor);
   }
 
   private <P, R> Response<R> sendRequestWebSocket(Request<P> request, Class<R> resultClass) {
 
-    log.info("Req-> {}", request.toString());
+    log.info("Req-> {}", request);
 
-    Future<Response<JsonElement>> responseFuture = null;
+    ResponseSlot responseSlot = null;
 
     if (request.getId() != null) {
-      responseFuture = pendingRequests.prepareResponse(request.getId());
+      responseSlot = pendingRequests.prepareResponse(request.getId());
     }
 
     try {
-      synchronized (wsSession) {
-        wsSession.sendMessage(new TextMessage(JsonUtils.toJson(request)));
+      sendMessage(request);
+    } catch (RuntimeException e) {
+      if (responseSlot != null) {
+        responseSlot.cancel(false);
       }
-    } catch (Exception e) {
-      throw new KurentoException("Exception while sending message '" + JsonUtils.toJson(request)
-          + "' to websocket with native sessionId '" + wsSession.getId() + "'", e);
+      throw e;
     }
 
-    if (responseFuture == null) {
+    if (responseSlot == null) {
       return null;
     }
 
     Response<JsonElement> responseJsonObject;
     try {
-      responseJsonObject = responseFuture.get(TIMEOUT, TimeUnit.MILLISECONDS);
+      responseJsonObject = responseSlot.get(TIMEOUT, TimeUnit.MILLISECONDS);
 
-      log.info("<-Res {}", responseJsonObject.toString());
+      log.info("<-Res {}", responseJsonObject);
 
     } catch (InterruptedException e) {
       // TODO What to do in this case?
@@ -138,6 +193,7 @@ public class WebSocketServerSession extends ServerSession {
       // TODO Is there a better way to handle this?
       throw new JsonRpcException("This exception shouldn't be thrown", e);
     } catch (TimeoutException e) {
+      responseSlot.cancel(false);
       throw new TransportException(
           "Timeout of " + TIMEOUT + " milliseconds waiting from response to request with id:"
               + request.getId() + ". Request: " + request,
@@ -147,6 +203,21 @@ public class WebSocketServerSession extends ServerSession {
     return MessageUtils.convertResponse(responseJsonObject, resultClass);
   }
 
+  private void sendMessage(Request<?> request) {
+    WebSocketSession wsSession = this.wsSession;
+    try {
+      BinaryMessageCodec binaryCodec = MessageCodecs.getBinary(wsSession.getAcceptedProtocol());
+      WebSocketMessage<?> message = binaryCodec != null
+          ? new BinaryMessage(binaryCodec.encode(request))
+          : new TextMessage(JsonUtils.toJson(request));
+      // Notifications can be discarded if the client is too slow
+      WebSocketSendBuffer.get(wsSession).send(message, request.getId() == null);
+    } catch (Exception e) {
+      throw new KurentoException("Exception while sending message '" + JsonUtils.toJson(request)
+          + "' to websocket with native sessionId '" + wsSession.getId() + "'", e);
+    }
+  }
+
   @Override
   public void handleResponse(Response<JsonElement> response) {
     pendingRequests.handleResponse(response);
@@ -155,23 +226,39 @@ public class WebSocketServerSession extends ServerSession {
   @Override
   public void close() throws IOException {
     try {
-      execService.shutdown();
-      wsSession.close();
+      WebSocketSendBuffer.get(wsSession).close(CloseStatus.NORMAL);
     } finally {
+      pendingRequests.closeAllPendingRequests();
       super.close();
     }
   }
 
   public void updateWebSocketSession(WebSocketSession wsSession) {
-    synchronized (wsSession) {
-      this.wsSession = wsSession;
-    }
+    this.wsSession = wsSession;
+  }
+
+  /**
+   * Buffer of the messages waiting to be sent to the client, to monitor slow clients.
+   */
+  public WebSocketSendBuffer getSendBuffer() {
+    return WebSocketSendBuffer.get(wsSession);
   }
 
   @Override
   public void closeNativeSession(String reason) {
     try {
-      wsSession.close(new CloseStatus(CloseStatus.NORMAL.getCode(), reason));
+      WebSocketSendBuffer.get(wsSession)
+          .close(new CloseStatus(CloseStatus.NORMAL.getCode(), reason));
+    } catch (IOException e) {
+      log.warn("Exception closing webSocket session", e);
+    }
+  }
+
+  @Override
+  public void closeNativeSession(String reason, long retryAfterMillis) {
+    try {
+      WebSocketSendBuffer.get(wsSession).close(new CloseStatus(TRY_AGAIN_LATER_STATUS,
+          ProtocolUtils.withRetryAfter(reason, retryAfterMillis)));
     } catch (IOException e) {
       log.warn("Exception closing webSocket session", e);
     }
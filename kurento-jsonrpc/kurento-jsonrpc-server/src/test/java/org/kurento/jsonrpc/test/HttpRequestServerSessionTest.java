@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.client.Continuation;
+import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
+import org.kurento.jsonrpc.internal.http.HttpRequestServerSession;
+import org.kurento.jsonrpc.internal.server.SessionsManager;
+import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class HttpRequestServerSessionTest {
+
+  private static class QueueResponseSender implements ResponseSender {
+
+    private final BlockingQueue<Response<?>> responses = new LinkedBlockingQueue<>();
+
+    @Override
+    public void sendResponse(Message message) throws IOException {
+      responses.add((Response<?>) message);
+    }
+
+    @Override
+    public void sendPingResponse(Message message) throws IOException {
+      sendResponse(message);
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<Request<?>> nextPollResult() throws InterruptedException {
+      Response<?> response = responses.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(response);
+      return (List<Request<?>>) response.getResult();
+    }
+  }
+
+  private static Request<JsonElement> poll(int id) {
+    return new Request<JsonElement>(id, Request.POLL_METHOD_NAME, null);
+  }
+
+  @Test
+  public void heldPollTest() throws Exception {
+
+    HttpRequestServerSession session =
+        new HttpRequestServerSession("session", null, new SessionsManager());
+
+    // A poll without messages is held until the server sends one
+    QueueResponseSender sender = new QueueResponseSender();
+    session.processPoll(poll(1), false, sender);
+    Assert.assertTrue(sender.responses.isEmpty());
+
+    session.sendNotification("event", new JsonObject());
+
+    List<Request<?>> messages = sender.nextPollResult();
+    Assert.assertEquals(1, messages.size());
+    Assert.assertEquals("event", messages.get(0).getMethod());
+
+    // Requests are completed by the responses carried by later polls
+    final AtomicReference<JsonElement> result = new AtomicReference<>();
+    session.sendRequest("method", new JsonObject(), new Continuation<JsonElement>() {
+      @Override
+      public void onSuccess(JsonElement response) {
+        result.set(response);
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+      }
+    });
+
+    session.processPoll(poll(2), false, sender);
+
+    messages = sender.nextPollResult();
+    Assert.assertEquals(1, messages.size());
+
+    session.handleResponse(
+        new Response<JsonElement>(messages.get(0).getId(), new JsonPrimitive("OK")));
+    Assert.assertEquals(new JsonPrimitive("OK"), result.get());
+
+    // Polls carrying responses are answered at once
+    session.processPoll(poll(3), true, sender);
+    Assert.assertTrue(sender.nextPollResult().isEmpty());
+
+    session.close();
+  }
+}
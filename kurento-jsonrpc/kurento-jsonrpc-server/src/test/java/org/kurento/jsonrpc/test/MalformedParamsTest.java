@@ -0,0 +1,179 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ERROR_INVALID_PARAM;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.ERROR_PARSE_ERROR;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
+import org.kurento.jsonrpc.internal.server.ProtocolManager;
+import org.kurento.jsonrpc.internal.server.ProtocolManager.ServerSessionFactory;
+import org.kurento.jsonrpc.internal.server.ServerSession;
+import org.kurento.jsonrpc.internal.server.SessionsManager;
+import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import com.google.gson.JsonElement;
+
+public class MalformedParamsTest {
+
+  public static class Params {
+    int value;
+  }
+
+  private static class TestServerSession extends ServerSession {
+
+    public TestServerSession(String sessionId, Object registerInfo,
+        SessionsManager sessionsManager, String transportId) {
+      super(sessionId, registerInfo, sessionsManager, transportId);
+    }
+
+    @Override
+    public void handleResponse(Response<JsonElement> response) {
+    }
+
+    @Override
+    public void closeNativeSession(String reason) {
+    }
+  }
+
+  private static class TestTransport implements ServerSessionFactory, ResponseSender {
+
+    private final BlockingQueue<Response<?>> responses = new LinkedBlockingQueue<>();
+
+    @Override
+    public ServerSession createSession(String sessionId, Object registerInfo,
+        SessionsManager sessionsManager) {
+      return new TestServerSession(sessionId, registerInfo, sessionsManager, "t1");
+    }
+
+    @Override
+    public void updateSessionOnReconnection(ServerSession session) {
+    }
+
+    @Override
+    public void closeTransport(String reason) {
+    }
+
+    @Override
+    public void sendResponse(Message message) throws IOException {
+      responses.add((Response<?>) message);
+    }
+
+    @Override
+    public void sendPingResponse(Message message) throws IOException {
+      sendResponse(message);
+    }
+
+    Response<?> nextResponse() throws InterruptedException {
+      Response<?> response = responses.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(response);
+      return response;
+    }
+  }
+
+  private final BlockingQueue<Params> handledParams = new LinkedBlockingQueue<>();
+
+  private ThreadPoolTaskScheduler scheduler;
+  private ProtocolManager protocolManager;
+  private TestTransport transport;
+
+  @Before
+  public void setup() {
+
+    scheduler = new ThreadPoolTaskScheduler();
+    scheduler.initialize();
+
+    protocolManager = new ProtocolManager(new DefaultJsonRpcHandler<Params>() {
+      @Override
+      public void handleRequest(Transaction transaction, Request<Params> request)
+          throws Exception {
+        handledParams.add(request.getParams());
+        transaction.sendResponse("OK");
+      }
+    }, new SessionsManager(), scheduler);
+
+    transport = new TestTransport();
+  }
+
+  @After
+  public void teardown() {
+    scheduler.shutdown();
+  }
+
+  private Response<?> send(String messageJson) throws Exception {
+    protocolManager.processMessage(messageJson, transport, transport, "t1");
+    return transport.nextResponse();
+  }
+
+  @Test
+  public void malformedParamsAreNotDispatched() throws Exception {
+
+    Response<?> response = send("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"echo\","
+        + "\"params\":{\"value\":}}");
+
+    Assert.assertEquals(Integer.valueOf(1), response.getId());
+    Assert.assertEquals(ERROR_PARSE_ERROR, response.getError().getCode());
+    Assert.assertTrue(handledParams.isEmpty());
+  }
+
+  @Test
+  public void malformedPingParams() throws Exception {
+
+    Response<?> response = send("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"ping\","
+        + "\"params\":{\"interval\" 1000}}");
+
+    Assert.assertEquals(Integer.valueOf(2), response.getId());
+    Assert.assertEquals(ERROR_PARSE_ERROR, response.getError().getCode());
+  }
+
+  @Test
+  public void paramsNotMatchingHandlerType() throws Exception {
+
+    Response<?> response = send("{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"echo\","
+        + "\"params\":{\"value\":\"one\"}}");
+
+    Assert.assertEquals(Integer.valueOf(3), response.getId());
+    Assert.assertEquals(ERROR_INVALID_PARAM, response.getError().getCode());
+    Assert.assertTrue(handledParams.isEmpty());
+  }
+
+  @Test
+  public void validParamsAreDispatched() throws Exception {
+
+    Response<?> response = send("{\"jsonrpc\":\"2.0\",\"id\":4,\"method\":\"echo\","
+        + "\"params\":{\"value\":1}}");
+
+    Assert.assertEquals(Integer.valueOf(4), response.getId());
+    Assert.assertNull(response.getError());
+    Assert.assertEquals(1, handledParams.poll(5, TimeUnit.SECONDS).value);
+  }
+}
@@ -18,15 +18,216 @@
 package org.kurento.jsonrpc.test;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Test;
 import org.kurento.jsonrpc.internal.server.PingWatchdogManager;
 import org.kurento.jsonrpc.internal.server.PingWatchdogManager.NativeSessionCloser;
+import org.kurento.jsonrpc.internal.timer.JsonRpcTimer;
+import org.kurento.jsonrpc.internal.timer.Timeout;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 public class PingWatchdogManagerTest {
 
+  // Runs the sweeper when the test asks for it
+  private static class ManualTimer implements JsonRpcTimer {
+
+    private volatile Runnable task;
+    private long period;
+
+    @Override
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period,
+        TimeUnit unit) {
+      this.task = task;
+      this.period = unit.toMillis(period);
+      return new Timeout() {
+
+        private volatile boolean cancelled;
+
+        @Override
+        public boolean cancel() {
+          cancelled = true;
+          ManualTimer.this.task = null;
+          return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+          return cancelled;
+        }
+      };
+    }
+
+    @Override
+    public void release() {
+    }
+
+    // Nothing is run if the sweeper has been cancelled
+    void sweep() {
+      Runnable sweepTask = task;
+      if (sweepTask != null) {
+        sweepTask.run();
+      }
+    }
+  }
+
+  private static class RecordingCloser implements NativeSessionCloser {
+
+    private final BlockingQueue<String> closed = new LinkedBlockingQueue<>();
+
+    @Override
+    public void closeSession(String transportId) {
+      closed.add(transportId);
+    }
+
+    String nextClosed() throws InterruptedException {
+      return closed.poll(2, TimeUnit.SECONDS);
+    }
+
+    String closedMeanwhile() throws InterruptedException {
+      return closed.poll(100, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private ThreadPoolTaskScheduler scheduler;
+  private ManualTimer timer;
+  private RecordingCloser closer;
+  private PingWatchdogManager manager;
+
+  @Before
+  public void setup() {
+
+    scheduler = new ThreadPoolTaskScheduler();
+    scheduler.initialize();
+
+    timer = new ManualTimer();
+    closer = new RecordingCloser();
+    manager = new PingWatchdogManager(scheduler, closer, timer);
+    manager.setPingWatchdog(true);
+  }
+
+  @After
+  public void teardown() {
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void expiredSessionIsClosedOnce() throws InterruptedException {
+
+    manager.pingReceived("TransportID", 50);
+
+    // The sweeper checks at least as often as pings are expected
+    Assert.assertEquals(50, timer.period);
+
+    timer.sweep();
+    Assert.assertNull(closer.closedMeanwhile());
+
+    Thread.sleep(200);
+
+    timer.sweep();
+    Assert.assertEquals("TransportID", closer.nextClosed());
+
+    timer.sweep();
+    Assert.assertNull(closer.closedMeanwhile());
+  }
+
+  @Test
+  public void pingRearmsWatchdog() throws InterruptedException {
+
+    manager.pingReceived("TransportID", 50);
+
+    for (int i = 0; i < 5; i++) {
+      Thread.sleep(100);
+      manager.pingReceived("TransportID", 50);
+      timer.sweep();
+    }
+
+    Assert.assertNull(closer.closedMeanwhile());
+
+    Thread.sleep(200);
+    timer.sweep();
+    Assert.assertEquals("TransportID", closer.nextClosed());
+
+    // A ping after closing arms the watchdog again
+    manager.pingReceived("TransportID", 50);
+    Thread.sleep(200);
+    timer.sweep();
+    Assert.assertEquals("TransportID", closer.nextClosed());
+  }
+
+  @Test
+  public void updatedTransportIsClosed() throws InterruptedException {
+
+    manager.pingReceived("OldTransportID", 50);
+
+    Thread.sleep(100);
+    manager.updateTransportId("NewTransportID", "OldTransportID");
+
+    // Updating the transport restarts the watchdog
+    Thread.sleep(100);
+    timer.sweep();
+    Assert.assertNull(closer.closedMeanwhile());
+
+    // Pings are received in the new transport
+    manager.pingReceived("NewTransportID", 50);
+    Thread.sleep(200);
+    timer.sweep();
+
+    Assert.assertEquals("NewTransportID", closer.nextClosed());
+    Assert.assertNull(closer.closedMeanwhile());
+  }
+
+  @Test
+  public void reenabledWatchdogCloses() throws InterruptedException {
+
+    manager.pingReceived("TransportID", 50);
+    manager.pingReceived("DisabledTransportID", 50);
+    manager.disablePingWatchdogForSession("DisabledTransportID");
+
+    manager.setPingWatchdog(false);
+
+    Thread.sleep(200);
+    timer.sweep();
+    Assert.assertNull(closer.closedMeanwhile());
+
+    // Sessions are armed again as if a ping had just been received
+    manager.setPingWatchdog(true);
+    Assert.assertEquals(50, timer.period);
+
+    timer.sweep();
+    Assert.assertNull(closer.closedMeanwhile());
+
+    Thread.sleep(200);
+    timer.sweep();
+    Assert.assertEquals("TransportID", closer.nextClosed());
+    Assert.assertNull(closer.closedMeanwhile());
+  }
+
+  @Test
+  public void disabledWatchdogDoesntClose() throws InterruptedException {
+
+    manager.pingReceived("TransportID", 50);
+    manager.disablePingWatchdogForSession("TransportID");
+
+    Thread.sleep(200);
+    timer.sweep();
+
+    Assert.assertNull(closer.closedMeanwhile());
+  }
+
   @Test
   public void test() throws InterruptedException {
 
@@ -48,4 +249,29 @@ public class PingWatchdogManagerTest {
     verify(closer).closeSession("TransportID");
   }
 
+  @Test
+  public void adaptiveTest() throws InterruptedException {
+
+    ThreadPoolTaskScheduler executor = new ThreadPoolTaskScheduler();
+    executor.initialize();
+
+    NativeSessionCloser closer = mock(NativeSessionCloser.class);
+    PingWatchdogManager manager = new PingWatchdogManager(executor, closer);
+
+    manager.setPingWatchdog(true);
+
+    manager.pingReceived("TransportID", 100, true);
+
+    for (int i = 0; i < 10; i++) {
+      Thread.sleep(100);
+      manager.messageReceived("TransportID");
+    }
+
+    verify(closer, never()).closeSession("TransportID");
+
+    Thread.sleep(500);
+
+    verify(closer).closeSession("TransportID");
+  }
+
 }
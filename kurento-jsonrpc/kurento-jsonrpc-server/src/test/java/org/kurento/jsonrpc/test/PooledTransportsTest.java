@@ -0,0 +1,322 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_CLOSE;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.METHOD_CONNECT;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.POOLED_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.RECONNECTION_SUCCESSFUL;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.REPLAY_PROPERTY;
+import static org.kurento.jsonrpc.internal.JsonRpcConstants.VALUE_PROPERTY;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
+import org.kurento.jsonrpc.internal.server.ProtocolManager;
+import org.kurento.jsonrpc.internal.server.ProtocolManager.ServerSessionFactory;
+import org.kurento.jsonrpc.internal.server.ServerSession;
+import org.kurento.jsonrpc.internal.server.SessionsManager;
+import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class PooledTransportsTest {
+
+  private static class TestServerSession extends ServerSession {
+
+    private final List<String> nativeCloses = new ArrayList<>();
+
+    public TestServerSession(String sessionId, Object registerInfo,
+        SessionsManager sessionsManager, String transportId) {
+      super(sessionId, registerInfo, sessionsManager, transportId);
+    }
+
+    @Override
+    public void handleResponse(Response<JsonElement> response) {
+    }
+
+    @Override
+    public void closeNativeSession(String reason) {
+      nativeCloses.add(reason);
+    }
+  }
+
+  // One per connection of the client
+  private static class TestTransport implements ServerSessionFactory, ResponseSender {
+
+    private final String transportId;
+    private final BlockingQueue<Response<?>> responses = new LinkedBlockingQueue<>();
+    private final List<ServerSession> reconnectedSessions = new ArrayList<>();
+    private final List<String> closeReasons = new ArrayList<>();
+
+    public TestTransport(String transportId) {
+      this.transportId = transportId;
+    }
+
+    @Override
+    public ServerSession createSession(String sessionId, Object registerInfo,
+        SessionsManager sessionsManager) {
+      return new TestServerSession(sessionId, registerInfo, sessionsManager, transportId);
+    }
+
+    @Override
+    public void updateSessionOnReconnection(ServerSession session) {
+      reconnectedSessions.add(session);
+    }
+
+    @Override
+    public void closeTransport(String reason) {
+      closeReasons.add(reason);
+    }
+
+    @Override
+    public void sendResponse(Message message) throws IOException {
+      responses.add((Response<?>) message);
+    }
+
+    @Override
+    public void sendPingResponse(Message message) throws IOException {
+      sendResponse(message);
+    }
+
+    Response<?> nextResponse() throws InterruptedException {
+      Response<?> response = responses.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(response);
+      return response;
+    }
+  }
+
+  private final BlockingQueue<Session> requestSessions = new LinkedBlockingQueue<>();
+  private final List<String> closedSessions = new ArrayList<>();
+
+  private ThreadPoolTaskScheduler scheduler;
+  private SessionsManager sessionsManager;
+  private ProtocolManager protocolManager;
+  private int nextId;
+
+  @Before
+  public void setup() {
+
+    scheduler = new ThreadPoolTaskScheduler();
+    scheduler.initialize();
+
+    sessionsManager = new SessionsManager();
+
+    protocolManager = new ProtocolManager(new DefaultJsonRpcHandler<JsonObject>() {
+      @Override
+      public void handleRequest(Transaction transaction, Request<JsonObject> request)
+          throws Exception {
+        requestSessions.add(transaction.getSession());
+        transaction.sendResponse("OK");
+      }
+
+      @Override
+      public void afterConnectionClosed(Session session, String status) throws Exception {
+        closedSessions.add(session.getSessionId());
+      }
+    }, sessionsManager, scheduler);
+  }
+
+  @After
+  public void teardown() {
+    scheduler.shutdown();
+  }
+
+  private Response<?> send(TestTransport transport, String method, JsonObject params,
+      String sessionId) throws Exception {
+
+    Request<JsonObject> request = new Request<>(nextId++, method, params);
+    request.setSessionId(sessionId);
+
+    protocolManager.processMessage(JsonUtils.toJsonMessage(request), transport, transport,
+        transport.transportId);
+
+    return transport.nextResponse();
+  }
+
+  private String createSession(TestTransport transport) throws Exception {
+    return send(transport, METHOD_CONNECT, null, null).getSessionId();
+  }
+
+  private void join(TestTransport transport, String sessionId) throws Exception {
+
+    JsonObject params = new JsonObject();
+    params.addProperty(POOLED_PROPERTY, true);
+
+    Response<?> response = send(transport, METHOD_CONNECT, params, sessionId);
+
+    Assert.assertEquals(sessionId, response.getSessionId());
+    Assert.assertEquals(RECONNECTION_SUCCESSFUL, response.getResult());
+  }
+
+  @Test
+  public void joinReportsReplayedRequestsNotReceived() throws Exception {
+
+    TestTransport main = new TestTransport("t1");
+    TestTransport pooled = new TestTransport("t2");
+
+    String sessionId = createSession(main);
+    int answeredId = nextId;
+    send(main, "echo", null, sessionId);
+
+    JsonArray replay = new JsonArray();
+    replay.add(new JsonPrimitive(answeredId));
+    replay.add(new JsonPrimitive(1000));
+
+    JsonObject params = new JsonObject();
+    params.addProperty(POOLED_PROPERTY, true);
+    params.add(REPLAY_PROPERTY, replay);
+
+    JsonObject result = (JsonObject) send(pooled, METHOD_CONNECT, params, sessionId).getResult();
+
+    Assert.assertEquals(RECONNECTION_SUCCESSFUL, result.get(VALUE_PROPERTY).getAsString());
+    Assert.assertEquals(1, result.getAsJsonArray(REPLAY_PROPERTY).size());
+    Assert.assertEquals(1000, result.getAsJsonArray(REPLAY_PROPERTY).get(0).getAsInt());
+
+    // The response already sent is sent again through the joining transport
+    Assert.assertEquals(Integer.valueOf(answeredId), pooled.nextResponse().getId());
+  }
+
+  @Test
+  public void joinedTransportsShareSession() throws Exception {
+
+    TestTransport main = new TestTransport("t1");
+    TestTransport pooled = new TestTransport("t2");
+
+    String sessionId = createSession(main);
+    join(pooled, sessionId);
+
+    ServerSession session = sessionsManager.get(sessionId);
+
+    // The main transport is not moved to the transport joining the session
+    Assert.assertEquals("t1", session.getTransportId());
+    Assert.assertTrue(session.getPooledTransportIds().contains("t2"));
+    Assert.assertSame(session, sessionsManager.getByTransportId("t1"));
+    Assert.assertSame(session, sessionsManager.getByTransportId("t2"));
+    Assert.assertTrue(pooled.reconnectedSessions.isEmpty());
+
+    // Requests without session id are processed in the session of their transport
+    send(pooled, "echo", new JsonObject(), null);
+    Assert.assertSame(session, requestSessions.poll(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void pooledTransportLost() throws Exception {
+
+    TestTransport main = new TestTransport("t1");
+    TestTransport pooled = new TestTransport("t2");
+
+    String sessionId = createSession(main);
+    join(pooled, sessionId);
+
+    protocolManager.closeSessionIfTimeout("t2", "Connection lost");
+
+    ServerSession session = sessionsManager.get(sessionId);
+
+    Assert.assertEquals("t1", session.getTransportId());
+    Assert.assertTrue(session.getPooledTransportIds().isEmpty());
+    Assert.assertNull(sessionsManager.getByTransportId("t2"));
+    Assert.assertNull(session.getCloseTimerTask());
+  }
+
+  @Test
+  public void mainTransportLostPromotesPooled() throws Exception {
+
+    TestTransport main = new TestTransport("t1");
+    TestTransport pooled = new TestTransport("t2");
+
+    String sessionId = createSession(main);
+    join(pooled, sessionId);
+
+    protocolManager.closeSessionIfTimeout("t1", "Connection lost");
+
+    ServerSession session = sessionsManager.get(sessionId);
+
+    Assert.assertEquals("t2", session.getTransportId());
+    Assert.assertTrue(session.getPooledTransportIds().isEmpty());
+    Assert.assertEquals(1, pooled.reconnectedSessions.size());
+    Assert.assertSame(session, sessionsManager.getByTransportId("t2"));
+    Assert.assertNull(sessionsManager.getByTransportId("t1"));
+    Assert.assertNull(session.getCloseTimerTask());
+
+    // The lost connection joins again as a pooled transport
+    TestTransport recovered = new TestTransport("t3");
+    join(recovered, sessionId);
+
+    Assert.assertEquals("t2", session.getTransportId());
+    Assert.assertTrue(session.getPooledTransportIds().contains("t3"));
+  }
+
+  @Test
+  public void lastTransportLostWaitsForReconnection() throws Exception {
+
+    TestTransport main = new TestTransport("t1");
+
+    String sessionId = createSession(main);
+
+    protocolManager.closeSessionIfTimeout("t1", "Connection lost");
+
+    ServerSession session = sessionsManager.get(sessionId);
+    Assert.assertNotNull(session.getCloseTimerTask());
+
+    // With the main transport lost, a pooled connection becomes the main transport
+    TestTransport pooled = new TestTransport("t2");
+    join(pooled, sessionId);
+
+    Assert.assertEquals("t2", session.getTransportId());
+    Assert.assertTrue(session.getPooledTransportIds().isEmpty());
+    Assert.assertEquals(1, pooled.reconnectedSessions.size());
+    Assert.assertTrue(session.getCloseTimerTask().isCancelled());
+  }
+
+  @Test
+  public void closeSessionClosesPooledTransports() throws Exception {
+
+    TestTransport main = new TestTransport("t1");
+    TestTransport pooled = new TestTransport("t2");
+
+    String sessionId = createSession(main);
+    join(pooled, sessionId);
+
+    send(main, METHOD_CLOSE, null, sessionId);
+
+    Assert.assertNull(sessionsManager.get(sessionId));
+    Assert.assertNull(sessionsManager.getByTransportId("t2"));
+    Assert.assertEquals(1, pooled.closeReasons.size());
+    Assert.assertEquals(1, closedSessions.size());
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.internal.client.TransactionImpl.ResponseSender;
+import org.kurento.jsonrpc.internal.server.ResponseCache;
+import org.kurento.jsonrpc.message.Message;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+
+import com.google.gson.JsonElement;
+
+public class ResponseCacheTest {
+
+  private static class ListResponseSender implements ResponseSender {
+
+    private final List<Message> responses = new ArrayList<>();
+
+    @Override
+    public void sendResponse(Message message) throws IOException {
+      responses.add(message);
+    }
+
+    @Override
+    public void sendPingResponse(Message message) throws IOException {
+      sendResponse(message);
+    }
+  }
+
+  private static Request<JsonElement> request(int id) {
+    return new Request<JsonElement>(id, "method", null);
+  }
+
+  @Test
+  public void reconnectionReportsRequestsNotReceived() throws IOException {
+
+    ResponseCache cache = new ResponseCache(8);
+
+    ListResponseSender oldTransport = new ListResponseSender();
+    ResponseSender answered = cache.track(request(1), oldTransport);
+    ResponseSender inProgress = cache.track(request(2), oldTransport);
+
+    answered.sendResponse(new Response<>(1, "one"));
+
+    ListResponseSender newTransport = new ListResponseSender();
+
+    // Only the request never received has to be sent again
+    Assert.assertEquals(Arrays.asList(3), cache.expectReplays(Arrays.asList(1, 2, 3),
+        newTransport));
+
+    // Answered: the cached response is sent through the new transport
+    cache.resendResponses(Arrays.asList(1, 2, 3), newTransport);
+    Assert.assertEquals(1, newTransport.responses.size());
+    Assert.assertEquals(Integer.valueOf(1), ((Response<?>) newTransport.responses.get(0)).getId());
+
+    // In progress: answered through the new transport without being sent again
+    inProgress.sendResponse(new Response<>(2, "two"));
+    Assert.assertEquals(2, newTransport.responses.size());
+    Assert.assertEquals(1, oldTransport.responses.size());
+  }
+
+  @Test
+  public void replayedRequestsAreDeduplicated() throws IOException {
+
+    ResponseCache cache = new ResponseCache(8);
+
+    ListResponseSender oldTransport = new ListResponseSender();
+    ResponseSender answered = cache.track(request(1), oldTransport);
+    ResponseSender inProgress = cache.track(request(2), oldTransport);
+
+    answered.sendResponse(new Response<>(1, "one"));
+
+    ListResponseSender newTransport = new ListResponseSender();
+    cache.expectReplays(Arrays.asList(1, 2, 3), newTransport);
+
+    // Answered: the cached response is sent again
+    Assert.assertNull(cache.track(request(1), newTransport));
+    Assert.assertEquals(1, newTransport.responses.size());
+
+    // In progress: the response is sent through the new transport
+    Assert.assertNull(cache.track(request(2), newTransport));
+    inProgress.sendResponse(new Response<>(2, "two"));
+    Assert.assertEquals(2, newTransport.responses.size());
+    Assert.assertEquals(1, oldTransport.responses.size());
+
+    // Never received: processed as a new request
+    Assert.assertNotNull(cache.track(request(3), newTransport));
+
+    // Not announced as replay: processed again
+    Assert.assertNotNull(cache.track(request(1), newTransport));
+  }
+
+  @Test
+  public void disabledCacheCantReportReplays() {
+    Assert.assertFalse(new ResponseCache(0).isEnabled());
+    Assert.assertTrue(new ResponseCache(1).isEnabled());
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.kurento.jsonrpc.internal.ws.WebSocketSendBuffer;
+import org.kurento.jsonrpc.internal.ws.WebSocketSendBuffer.OverflowPolicy;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+public class WebSocketSendBufferTest {
+
+  private static class SlowClient implements InvocationHandler {
+
+    private final CountDownLatch unblocked = new CountDownLatch(1);
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private volatile CloseStatus closeStatus;
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+      switch (method.getName()) {
+        case "sendMessage":
+          unblocked.await();
+          received.add(((TextMessage) args[0]).getPayload());
+          return null;
+        case "close":
+          closeStatus = args != null ? (CloseStatus) args[0] : CloseStatus.NORMAL;
+          return null;
+        case "getId":
+          return "slowClient";
+        case "isOpen":
+          return closeStatus == null;
+        default:
+          return null;
+      }
+    }
+
+    WebSocketSession session() {
+      return (WebSocketSession) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class<?>[] { WebSocketSession.class }, this);
+    }
+  }
+
+  // Client of a JSR-356 container. Writes are completed by the test
+  private static class AsyncClient implements InvocationHandler {
+
+    private final BlockingQueue<String> written = new LinkedBlockingQueue<>();
+    private final BlockingQueue<SendHandler> pendingWrites = new LinkedBlockingQueue<>();
+    private volatile CloseStatus closeStatus;
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+      switch (method.getName()) {
+        case "getNativeSession":
+        case "getAsyncRemote":
+          return proxy;
+        case "sendText":
+          written.add((String) args[0]);
+          pendingWrites.add((SendHandler) args[1]);
+          return null;
+        case "close":
+          closeStatus = args != null ? (CloseStatus) args[0] : CloseStatus.NORMAL;
+          return null;
+        case "getId":
+          return "asyncClient";
+        case "isOpen":
+          return closeStatus == null;
+        default:
+          return null;
+      }
+    }
+
+    WebSocketSession session() {
+      return (WebSocketSession) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class<?>[] { NativeWebSocketSession.class, Session.class,
+              RemoteEndpoint.Async.class },
+          this);
+    }
+
+    void completeWrite() throws InterruptedException {
+      SendHandler handler = pendingWrites.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(handler);
+      handler.onResult(new SendResult());
+    }
+  }
+
+  private static TextMessage message(int length) {
+    return new TextMessage(new String(new char[length]).replace('\0', 'x'));
+  }
+
+  @Test
+  public void dropOldestNotificationsTest() throws Exception {
+
+    SlowClient client = new SlowClient();
+    WebSocketSendBuffer buffer = new WebSocketSendBuffer(client.session(),
+        Executors.newSingleThreadExecutor(), 100, 10000, OverflowPolicy.DROP_OLDEST_NOTIFICATION);
+
+    buffer.send(message(10), false);
+    for (int i = 0; i < 5; i++) {
+      buffer.send(message(40), true);
+    }
+
+    Assert.assertTrue(buffer.getBufferedBytes() <= 100);
+    Assert.assertTrue(buffer.getDroppedMessages() > 0);
+
+    buffer.close(CloseStatus.NORMAL);
+    Assert.assertNull("Closed before sending buffered messages", client.closeStatus);
+
+    client.unblocked.countDown();
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (client.closeStatus == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    Assert.assertEquals(CloseStatus.NORMAL.getCode(), client.closeStatus.getCode());
+    Assert.assertEquals(6 - buffer.getDroppedMessages(), client.received.size());
+    Assert.assertEquals(0, buffer.getBufferedBytes());
+  }
+
+  @Test
+  public void closeSlowClientTest() throws Exception {
+
+    SlowClient client = new SlowClient();
+    WebSocketSendBuffer buffer = new WebSocketSendBuffer(client.session(),
+        Executors.newSingleThreadExecutor(), 100, 10000, OverflowPolicy.CLOSE);
+
+    buffer.send(message(60), false);
+
+    try {
+      buffer.send(message(60), false);
+      Assert.fail("IOException expected");
+    } catch (IOException e) {
+      Assert.assertEquals(CloseStatus.SESSION_NOT_RELIABLE.getCode(),
+          client.closeStatus.getCode());
+    } finally {
+      client.unblocked.countDown();
+    }
+
+    try {
+      buffer.send(message(10), false);
+      Assert.fail("IOException expected");
+    } catch (IOException e) {
+      // Closed buffers don't accept messages
+    }
+
+    Assert.assertTrue(client.received.size() <= 1);
+    TimeUnit.MILLISECONDS.sleep(50);
+    Assert.assertEquals(0, buffer.getBufferedBytes());
+  }
+
+  @Test
+  public void asyncWritesInOrder() throws Exception {
+
+    AsyncClient client = new AsyncClient();
+    WebSocketSendBuffer buffer = new WebSocketSendBuffer(client.session(),
+        Executors.newSingleThreadExecutor(), 1000, 10000, OverflowPolicy.CLOSE);
+
+    buffer.send(new TextMessage("1"), false);
+    buffer.send(new TextMessage("2"), false);
+    buffer.send(new TextMessage("3"), false);
+
+    // One write at a time
+    Assert.assertEquals("1", client.written.poll(5, TimeUnit.SECONDS));
+    Assert.assertNull(client.written.poll(50, TimeUnit.MILLISECONDS));
+
+    client.completeWrite();
+    Assert.assertEquals("2", client.written.poll(5, TimeUnit.SECONDS));
+    client.completeWrite();
+    Assert.assertEquals("3", client.written.poll(5, TimeUnit.SECONDS));
+    client.completeWrite();
+
+    Assert.assertEquals(0, buffer.getBufferedBytes());
+  }
+
+  @Test
+  public void stalledClientDoesntBlockWriters() throws Exception {
+
+    // A single writer shared by both sessions
+    ExecutorService writers = Executors.newSingleThreadExecutor();
+
+    AsyncClient stalled = new AsyncClient();
+    WebSocketSendBuffer stalledBuffer = new WebSocketSendBuffer(stalled.session(), writers, 1000,
+        10000, OverflowPolicy.CLOSE);
+
+    AsyncClient healthy = new AsyncClient();
+    WebSocketSendBuffer healthyBuffer = new WebSocketSendBuffer(healthy.session(), writers, 1000,
+        10000, OverflowPolicy.CLOSE);
+
+    stalledBuffer.send(new TextMessage("stalled"), false);
+    Assert.assertEquals("stalled", stalled.written.poll(5, TimeUnit.SECONDS));
+
+    healthyBuffer.send(new TextMessage("healthy"), false);
+    Assert.assertEquals("healthy", healthy.written.poll(5, TimeUnit.SECONDS));
+
+    writers.shutdown();
+  }
+
+  @Test
+  public void sweepClosesStalledClient() throws Exception {
+
+    AsyncClient client = new AsyncClient();
+    WebSocketSendBuffer buffer = new WebSocketSendBuffer(client.session(),
+        Executors.newSingleThreadExecutor(), 1000, 100, OverflowPolicy.CLOSE);
+
+    buffer.send(new TextMessage("1"), false);
+    Assert.assertEquals("1", client.written.poll(5, TimeUnit.SECONDS));
+
+    Assert.assertTrue(buffer.checkSendTimeLimit());
+
+    // Nothing else is sent, the periodic sweep detects the write never completed
+    long deadline = System.currentTimeMillis() + 5000;
+    while (client.closeStatus == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    Assert.assertNotNull(client.closeStatus);
+    Assert.assertEquals(CloseStatus.SESSION_NOT_RELIABLE.getCode(), client.closeStatus.getCode());
+    Assert.assertFalse(buffer.checkSendTimeLimit());
+  }
+}
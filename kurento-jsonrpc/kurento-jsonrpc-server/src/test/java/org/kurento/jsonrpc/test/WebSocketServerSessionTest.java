@@ -0,0 +1,168 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.jsonrpc.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.jsonrpc.client.Continuation;
+import org.kurento.jsonrpc.internal.server.SessionsManager;
+import org.kurento.jsonrpc.internal.ws.WebSocketServerSession;
+import org.kurento.jsonrpc.message.Response;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+public class WebSocketServerSessionTest {
+
+  // Client receiving the requests sent by the session
+  private static class TestClient implements InvocationHandler {
+
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final BlockingQueue<JsonObject> received = new LinkedBlockingQueue<>();
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+      switch (method.getName()) {
+        case "sendMessage":
+          String payload = ((TextMessage) args[0]).getPayload();
+          received.add(new JsonParser().parse(payload).getAsJsonObject());
+          return null;
+        case "getAttributes":
+          return attributes;
+        case "getId":
+          return "testClient";
+        case "isOpen":
+          return true;
+        default:
+          return null;
+      }
+    }
+
+    WebSocketSession session() {
+      return (WebSocketSession) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class<?>[] { WebSocketSession.class }, this);
+    }
+
+    int nextRequestId() throws InterruptedException {
+      JsonObject request = received.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(request);
+      return request.get("id").getAsInt();
+    }
+  }
+
+  private static class QueueContinuation implements Continuation<JsonElement> {
+
+    private final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onSuccess(JsonElement result) {
+      results.add(result);
+    }
+
+    @Override
+    public void onError(Throwable cause) {
+      results.add(cause);
+    }
+
+    Object nextResult() throws InterruptedException {
+      Object result = results.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(result);
+      return result;
+    }
+  }
+
+  private TestClient client;
+  private WebSocketServerSession session;
+
+  @Before
+  public void setup() {
+    client = new TestClient();
+    session = new WebSocketServerSession("session", null, new SessionsManager(),
+        client.session());
+  }
+
+  @After
+  public void teardown() throws Exception {
+    session.close();
+  }
+
+  @Test
+  public void handlerCanWaitForContinuation() throws Exception {
+
+    final QueueContinuation continuation = new QueueContinuation();
+    final BlockingQueue<Object> handlerResults = new LinkedBlockingQueue<>();
+
+    // The handler sends a request and waits for it in the session executor
+    session.processRequest(new Runnable() {
+      @Override
+      public void run() {
+        session.sendRequest("ping", new JsonObject(), continuation);
+        try {
+          Object result = continuation.results.poll(5, TimeUnit.SECONDS);
+          handlerResults.add(result != null ? result : "timeout");
+        } catch (InterruptedException e) {
+          handlerResults.add(e);
+        }
+      }
+    });
+
+    int id = client.nextRequestId();
+    session.handleResponse(new Response<JsonElement>(id, new JsonPrimitive("pong")));
+
+    Assert.assertEquals(new JsonPrimitive("pong"), handlerResults.poll(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void requestFailsIfItCantBeSent() throws Exception {
+
+    session.getSendBuffer().close(CloseStatus.NORMAL);
+
+    QueueContinuation continuation = new QueueContinuation();
+    session.sendRequest("ping", new JsonObject(), continuation);
+
+    Assert.assertTrue(continuation.nextResult() instanceof Exception);
+  }
+
+  @Test
+  public void closeFailsPendingRequests() throws Exception {
+
+    QueueContinuation continuation = new QueueContinuation();
+    session.sendRequest("ping", new JsonObject(), continuation);
+    client.nextRequestId();
+
+    session.close();
+
+    Assert.assertTrue(continuation.nextResult() instanceof Exception);
+  }
+}